@@ -8,11 +8,22 @@ import java.math.BigInteger;
 import java.net.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.*;
 import java.security.MessageDigest;
 import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import tools.BankLedger;
+import tools.BroadcastRing;
+import tools.ChatIndex;
+import tools.ChatJournal;
+import tools.ChunkPool;
+import tools.HandlerExecutor;
+import tools.LogPanel;
+import tools.PollTally;
 
 public class Server {
     private static final int PORT = 1234; // THAY BẰNG 4 SỐ CUỐI MSSV CỦA BẠN
@@ -23,31 +34,29 @@ public class Server {
     // Danh sách toàn cục
     private static final Set<ClientHandler> allClients = Collections.synchronizedSet(new HashSet<>());
     private static final Map<String, Set<ClientHandler>> rooms = new ConcurrentHashMap<>(); // roomName -> clients
-    private static final Map<String, BigInteger> bankAccounts = new ConcurrentHashMap<>();
-    // Poll state: current poll question -> options CSV and votes map
-    private static final Map<String, String> polls = new ConcurrentHashMap<>(); // pollId -> question|opt1,opt2
-    private static final Map<String, Map<String, Integer>> pollVotes = new ConcurrentHashMap<>(); // pollId -> (option -> count)
+    // Poll state: pollId -> tools.PollTally (options, one vote per student ID, coalesced VOTE_RESULT)
+    private static final Map<String, PollTally> polls = new ConcurrentHashMap<>();
     // Simple poll id generator
     private static final AtomicInteger pollCounter = new AtomicInteger(0);
     private static ClientHandler admin = null;
     private static final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
 
-    // Log file
-    private static PrintWriter chatLog;
+    // Chat log: append-only mmap journal (chat_journal/biggprojectt), fsync'd in groups, not per line
+    private static ChatJournal chatLog;
+    // SEARCH: inverted index over the room lines of the chat journal ("[ts] [room] text")
+    private static ChatIndex chatSearch;
+    // Balances: tools.BankLedger (bank_ledger/biggprojectt), kept across restarts; bank_log.txt stays a readable log
+    private static BankLedger bank;
     private static PrintWriter bankLog;
 
     // Simple server GUI log
     private static JFrame serverFrame;
-    private static JTextArea serverLogArea;
+    private static volatile LogPanel serverLog; // bounded, repainted by its own timer
 
     private static void guiLog(String line) {
-        // append to GUI if exists
-        if (serverLogArea != null) {
-            SwingUtilities.invokeLater(() -> {
-                serverLogArea.append(line + "\n");
-                serverLogArea.setCaretPosition(serverLogArea.getDocument().getLength());
-            });
-        }
+        // append to GUI if exists (no EDT work per line: the panel refreshes at a fixed rate)
+        LogPanel p = serverLog;
+        if (p != null) p.append(line);
     }
 
     public static void main(String[] args) throws IOException {
@@ -78,15 +87,16 @@ public class Server {
             topBar.add(editUsersBtn);
             serverFrame.add(topBar, BorderLayout.NORTH);
 
-            serverLogArea = new JTextArea();
-            serverLogArea.setEditable(false);
-            serverLogArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
-            serverFrame.add(new JScrollPane(serverLogArea), BorderLayout.CENTER);
+            serverLog = new LogPanel(new Font("Monospaced", Font.PLAIN, 12), null);
+            serverFrame.add(serverLog, BorderLayout.CENTER);
             serverFrame.setVisible(true);
         });
 
         // Khởi tạo log file
-        chatLog = new PrintWriter(new FileWriter("chat_log.txt", true));
+        chatLog = ChatJournal.open("biggprojectt");
+        chatSearch = new ChatIndex(chatLog, Server::chatDoc);
+        bank = BankLedger.open("biggprojectt");
+        guiLog("Bank ledger: " + bank.describe());
         bankLog = new PrintWriter(new FileWriter("bank_log.txt", true));
         rooms.put("Main", Collections.synchronizedSet(new HashSet<>()));
 
@@ -94,7 +104,8 @@ public class Server {
         try {
             SSLServerSocketFactory ssf = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
             try (SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket(PORT)) {
-                String startLine = "=== SUPER SERVER RUNNING (TLS) ON PORT " + PORT + " ===";
+                String startLine = "=== SUPER SERVER RUNNING (TLS) ON PORT " + PORT + " | threads: " + HandlerExecutor.mode()
+                        + " | " + ClientHandler.FRAMES.describe() + " ===";
                 System.out.println(startLine);
                 guiLog(startLine);
 
@@ -103,7 +114,7 @@ public class Server {
                     ClientHandler client = new ClientHandler(socket);
                     allClients.add(client);
                     if (admin == null) admin = client; // Người đầu tiên là admin
-                    new Thread(client).start();
+                    HandlerExecutor.submit(client); // platform or virtual thread (-Dserver.threads)
                 }
             }
         } catch (IOException e) {
@@ -253,29 +264,40 @@ public class Server {
     }
 
     // ==================== UTILITY METHODS ====================
+    // Snapshot under the monitor, send outside it: a blocking socket write must not hold
+    // allClients (it would stall every other broadcaster and pin a virtual thread's carrier).
+    static List<ClientHandler> snapshot(Set<ClientHandler> set) {
+        synchronized (set) { return new ArrayList<>(set); }
+    }
+
     public static void broadcastAll(String msg) {
-        synchronized (allClients) {
-            for (ClientHandler c : allClients) c.send(msg);
-        }
+        for (ClientHandler c : snapshot(allClients)) c.send(msg);
         logChat(msg);
     }
 
     public static void broadcastRoom(String room, String msg) {
         Set<ClientHandler> set = rooms.getOrDefault(room, new HashSet<>());
-        synchronized (set) {
-            for (ClientHandler c : set) c.send("ROOM|" + room + "|" + msg);
-        }
+        for (ClientHandler c : snapshot(set)) c.send("ROOM|" + room + "|" + msg);
         logChat("[" + room + "] " + msg);
     }
 
     public static void logChat(String msg) {
-        String line = "[" + sdf.format(new Date()) + "] " + msg;
-        chatLog.println(line);
-        chatLog.flush();
+        long now = System.currentTimeMillis();
+        String line = "[" + sdf.format(new Date(now)) + "] " + msg;
+        chatLog.append(now, line);
         System.out.println(line);
         guiLog(line);
     }
 
+    // "[HH:mm:ss] [room] [user]: text" -> {room, text}; lines without a room (system notices) are not indexed
+    private static String[] chatDoc(String line) {
+        int a = line.indexOf("] [");
+        if (!line.startsWith("[") || a < 0) return null;
+        int b = line.indexOf("] ", a + 3);
+        if (b < 0) return null;
+        return new String[] { line.substring(a + 3, b), line.substring(b + 2) };
+    }
+
     public static void logBank(String msg) {
         String line = "[" + sdf.format(new Date()) + "] " + msg;
         bankLog.println(line);
@@ -307,54 +329,206 @@ public class Server {
         private String studentID = "Unknown";
         private String currentRoom = "Main";
 
-        // Per-client send queue and sender thread to avoid blocking
-        private final BlockingQueue<Frame> sendQueue = new LinkedBlockingQueue<>(256);
-        private Thread senderThread;
+        // Sender task: writes the ring entries addressed to this client (file frames) so the uploader
+        // is never blocked by a slow receiver
+        private final BroadcastRing<Frame>.Reader reader = FRAMES.reader(this::onOverrun, g -> sendCancel());
+        private Future<?> sender;
+        // Guards dataOut: control messages (send) and file frames (sender) share one stream. It is held for
+        // one message or one frame, never for a whole file. A ReentrantLock rather than synchronized so a
+        // blocked write does not pin a virtual thread.
+        private final ReentrantLock writeLock = new ReentrantLock();
+        // Control messages in send() order. Written by whoever gets writeLock, but never while a transfer is
+        // open (FILE_INCOMING written, its EOF/CANCEL not yet): the client reads raw frames until then. So a
+        // broadcaster never waits for a download; its message goes out after the download's EOF.
+        private final ConcurrentLinkedQueue<String> control = new ConcurrentLinkedQueue<>();
+        private boolean inTransfer; // guarded by writeLock
+        private volatile boolean closed;
+
+        // Frame: len + bytes. len = 0 EOF, -1 CANCEL. A log frame (log != null) stands for a whole SAVELOG
+        // range of the chat journal: the sender streams it from disk (see streamLog) instead of queueing
+        // byte[] copies.
+        // A header frame (header != null) opens an upload fan-out: FILE_INCOMING goes through the ring too,
+        // so it reaches each receiver right before the chunks, in order with its other transfers.
+        // A chunk frame carries one shared, pooled chunk of an upload fan-out, released once every
+        // receiver has written it. Frames are ring slots, reused for every lap. A receiver that spills
+        // (-Dserver.lagPolicy=spill) reads its frames back from its journal into data.
+        private static class Frame extends BroadcastRing.Entry {
+            int len;
+            List<ChatJournal.Slice> log;
+            String header;
+            ChunkPool.Chunk chunk;
+            byte[] data;
+
+            @Override protected boolean endsGroup() { return chunk == null && header == null; } // EOF, CANCEL or a whole log
+
+            @Override protected void clear() {
+                if (chunk != null) chunk.release();
+                chunk = null;
+                log = null;
+                header = null;
+            }
 
-        // Frame: len + bytes. len = 0 EOF, -1 CANCEL
-        private static class Frame {
-            final int len;
-            final byte[] data;
-            Frame(int len, byte[] data) { this.len = len; this.data = data; }
+            // Journal record: [0][len:int][bytes], [1]{[path len:short][path][pos:long][len:long]} or [2][header, UTF-8]
+            @Override protected int spillSize() {
+                if (header != null) return 1 + header.getBytes(StandardCharsets.UTF_8).length;
+                if (log != null) {
+                    int n = 1;
+                    for (ChatJournal.Slice sl : log) n += 2 + sl.file.toString().getBytes(StandardCharsets.UTF_8).length + 16;
+                    return n;
+                }
+                return 1 + 4 + (chunk != null ? chunk.length() : 0);
+            }
+
+            @Override protected void spillTo(ByteBuffer out) {
+                if (header != null) {
+                    out.put((byte) 2).put(header.getBytes(StandardCharsets.UTF_8));
+                } else if (log != null) {
+                    out.put((byte) 1);
+                    for (ChatJournal.Slice sl : log) {
+                        byte[] path = sl.file.toString().getBytes(StandardCharsets.UTF_8);
+                        out.putShort((short) path.length).put(path).putLong(sl.position).putLong(sl.length);
+                    }
+                } else {
+                    out.put((byte) 0).putInt(len);
+                    if (chunk != null) out.put(chunk.data(), 0, chunk.length());
+                }
+            }
+
+            @Override protected void spillFrom(ByteBuffer in) {
+                chunk = null;
+                log = null;
+                header = null;
+                byte kind = in.get();
+                if (kind == 2) {
+                    byte[] h = new byte[in.remaining()];
+                    in.get(h);
+                    header = new String(h, StandardCharsets.UTF_8);
+                    return;
+                }
+                if (kind == 1) {
+                    log = new ArrayList<>();
+                    while (in.hasRemaining()) {
+                        byte[] path = new byte[in.getShort() & 0xFFFF];
+                        in.get(path);
+                        log.add(ChatJournal.Slice.of(new String(path, StandardCharsets.UTF_8), in.getLong(), in.getLong()));
+                    }
+                    return;
+                }
+                len = in.getInt();
+                int n = in.remaining();
+                if (data == null || data.length < n) data = new byte[Math.max(n, FILE_CHUNK)];
+                in.get(data, 0, n);
+            }
+        }
+
+        private static final int FILE_CHUNK = 64 * 1024;
+        // One pool for every fan-out: each chunk is read once and published to all receivers
+        private static final ChunkPool FAN_OUT = new ChunkPool(FILE_CHUNK, 256);
+        // Outgoing file frames of every client: published once per group of receivers, each sender
+        // keeps its own cursor (-Dserver.lagPolicy / -Dserver.lagLimit, default disconnect after 256)
+        private static final BroadcastRing<Frame> FRAMES = new BroadcastRing<>(Frame::new,
+                BroadcastRing.policyFromProperty(), BroadcastRing.limitFromProperty(256));
+        private byte[] fileBuf; // sender-only read buffer for log frames, reused for every SAVELOG
+
+        // Publish one frame to a group of receivers. False when none of them is left; the chunk
+        // (if any) belongs to the ring from here on, or is released.
+        private static boolean publish(BroadcastRing.Group group, int len, ChunkPool.Chunk chunk)
+                throws InterruptedIOException {
+            return publish(group, len, chunk, null);
         }
 
-        private boolean enqueueFrame(Frame f) {
+        private static boolean publish(BroadcastRing.Group group, int len, ChunkPool.Chunk chunk,
+                                       List<ChatJournal.Slice> log) throws InterruptedIOException {
+            return publish(group, len, chunk, log, null);
+        }
+
+        private static boolean publish(BroadcastRing.Group group, int len, ChunkPool.Chunk chunk,
+                                       List<ChatJournal.Slice> log, String header) throws InterruptedIOException {
+            Frame f;
             try {
-                boolean ok = sendQueue.offer(f, 2000, TimeUnit.MILLISECONDS);
-                if (!ok) {
-                    guiLog("Queue full for " + studentID + ", dropping client");
-                    closeQuiet();
-                    return false;
-                }
-                return true;
+                f = FRAMES.claim(group);
             } catch (InterruptedException ie) {
+                if (chunk != null) chunk.release();
                 Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while publishing a frame");
+            }
+            if (f == null) {
+                if (chunk != null) chunk.release();
                 return false;
             }
+            f.len = len;
+            f.chunk = chunk;
+            f.log = log;
+            f.header = header;
+            FRAMES.commit(f);
+            return true;
         }
 
         private void startSender() {
-            senderThread = new Thread(() -> {
+            sender = HandlerExecutor.submit(() -> {
                 try {
-                    while (!Thread.currentThread().isInterrupted()) {
-                        Frame f = sendQueue.take();
+                    while (true) {
+                        Frame f = reader.next();
                         try {
-                            dataOut.writeInt(f.len);
-                            if (f.len > 0 && f.data != null) dataOut.write(f.data, 0, f.len);
-                            dataOut.flush();
-                        } catch (IOException ioe) {
-                            guiLog("Send error to " + studentID + ": " + ioe.getMessage());
-                            break;
+                            if (f.log != null) {
+                                streamLog(f.log);
+                            } else {
+                                writeLock.lock();
+                                try {
+                                    if (f.header != null) {
+                                        writeControl(); // what was sent before the fan-out goes first
+                                        dataOut.writeUTF(f.header);
+                                        inTransfer = true;
+                                    } else {
+                                        dataOut.writeInt(f.len);
+                                        if (f.chunk != null) f.chunk.writeTo(dataOut);
+                                        else if (f.len > 0) dataOut.write(f.data, 0, f.len);
+                                        else inTransfer = false; // EOF or CANCEL
+                                    }
+                                    dataOut.flush();
+                                } finally {
+                                    writeLock.unlock();
+                                }
+                            }
+                        } finally {
+                            reader.done(f);
                         }
+                        flushControl();
                     }
+                } catch (IOException ioe) {
+                    guiLog("Send error to " + studentID + ": " + ioe.getMessage());
                 } catch (InterruptedException ie) {
-                    // thread interrupted -- exit
+                    // task cancelled -- exit
                 } finally {
+                    closed = true;
+                    control.clear();
                     closeQuiet();
+                    reader.detach();
+                }
+            });
+        }
+
+        // Lag policy "disconnect": this client fell too far behind the ring
+        private void onOverrun() {
+            guiLog("Client " + studentID + " is too slow for the file broadcast, dropping client");
+            closeQuiet();
+        }
+
+        // Lag policy "drop": the ring skipped part of a transfer for us, tell the client to discard it.
+        // If the header was skipped too, the client never saw the transfer and there is nothing to cancel.
+        private void sendCancel() throws IOException {
+            guiLog("Client " + studentID + " lagged behind, file transfer cancelled for it");
+            writeLock.lock();
+            try {
+                if (inTransfer) {
+                    dataOut.writeInt(-1);
+                    dataOut.flush();
+                    inTransfer = false;
                 }
-            }, studentID + "-sender");
-            senderThread.setDaemon(true);
-            senderThread.start();
+            } finally {
+                writeLock.unlock();
+            }
+            flushControl();
         }
 
         public ClientHandler(Socket socket) throws IOException {
@@ -370,16 +544,36 @@ public class Server {
         public String getStudentID() { return studentID; }
         public String getCurrentRoom() { return currentRoom; }
 
-        // Send control message to client using writeUTF to match client's reader
-        public synchronized void send(String msg) {
-            try {
-                dataOut.writeUTF(msg);
-                dataOut.flush();
-            } catch (IOException e) {
-                guiLog("Failed send to " + studentID + ": " + e.getMessage());
+        // Send control message to client using writeUTF to match client's reader. Never waits for writeLock:
+        // if another thread is writing to this client, that thread writes the message before letting go.
+        public void send(String msg) {
+            if (closed) return;
+            control.add(msg);
+            flushControl();
+        }
+
+        // Re-checked after every unlock, so a message queued while the lock was taken is not left behind
+        private void flushControl() {
+            while (!control.isEmpty() && writeLock.tryLock()) {
+                try {
+                    if (inTransfer) return; // the sender flushes after the EOF
+                    writeControl();
+                    dataOut.flush();
+                } catch (IOException e) {
+                    guiLog("Failed send to " + studentID + ": " + e.getMessage());
+                    control.clear();
+                    return;
+                } finally {
+                    writeLock.unlock();
+                }
             }
         }
 
+        // writeLock held, no transfer open
+        private void writeControl() throws IOException {
+            for (String m; (m = control.poll()) != null; ) dataOut.writeUTF(m);
+        }
+
         private void closeQuiet() {
             try { socket.close(); } catch (IOException ignored) {}
         }
@@ -405,7 +599,6 @@ public class Server {
 
                 // Thêm vào phòng Main
                 Server.rooms.get("Main").add(this);
-                Server.bankAccounts.put(studentID, BigInteger.ZERO);
                 Server.broadcastAll("*** " + studentID + " đã tham gia server ***");
                 send("WELCOME|Chào " + studentID + "! Bạn đang ở phòng Main");
 
@@ -491,7 +684,7 @@ public class Server {
                         Server.broadcastRoom(currentRoom, studentID + " đang gõ...");
 
                     } else if (line.startsWith("BALANCE") || line.startsWith("DEPOSIT:") || line.startsWith("WITHDRAW:")) {
-                        // CASE 11: Ngân hàng (synchronized)
+                        // CASE 11: Ngân hàng (tools.BankLedger)
                         handleBank(line);
 
                     } else if (line.startsWith("VOTE:")) {
@@ -508,9 +701,13 @@ public class Server {
                             Server.broadcastAll("*** " + targetID + " bị admin kick ***");
                         }
 
-                    } else if (line.equals("SAVELOG")) {
-                        // CASE 14: Gửi lại log file
-                        sendFileToClient("chat_log.txt");
+                    } else if (line.startsWith("SEARCH:")) {
+                        // Tìm trong lịch sử chat: SEARCH:<từ khoá>[:phòng][:từ lúc][:trang]
+                        handleSearch(line.substring(7));
+
+                    } else if (line.equals("SAVELOG") || line.startsWith("SAVELOG:")) {
+                        // CASE 14: Gửi lại log (SAVELOG[:from[:to]], giờ: epoch giây hoặc -30m/-2h/-1d)
+                        sendChatLog(line.length() > 8 ? line.substring(8) : "");
 
                     }
                     // CASE 15: exit → xử lý ở finally
@@ -521,6 +718,7 @@ public class Server {
             } finally {
                 Server.removeClient(this);
                 try { socket.close(); } catch (IOException e) {}
+                if (sender != null) sender.cancel(true); // sender would otherwise park in take() forever
             }
         }
 
@@ -564,105 +762,191 @@ public class Server {
                 guiLog("Upload cancelled or incomplete from " + studentID);
                 return;
             }
-            // Notify clients and enqueue frames so sender threads will deliver them non-blocking
-            synchronized (allClients) {
-                for (ClientHandler c : allClients) if (c != this) c.send("FILE_INCOMING|" + fileName + "|" + size);
-                try (FileInputStream fis = new FileInputStream(f)) {
-                    int r;
-                    byte[] chunk = new byte[8192];
-                    while ((r = fis.read(chunk)) != -1) {
-                        byte[] copy = Arrays.copyOf(chunk, r);
-                        for (ClientHandler c : allClients) {
-                            if (c == this) continue;
-                            c.enqueueFrame(new Frame(r, copy));
-                        }
-                    }
-                    for (ClientHandler c : allClients) if (c != this) c.enqueueFrame(new Frame(0, null));
+            // Notify clients, then publish the frames once for all of them; their sender threads deliver them.
+            // Receivers are fixed up front; publishing may wait for a lagging reader, so no monitor is held here.
+            List<ClientHandler> receivers = snapshot(allClients);
+            receivers.remove(this);
+            List<BroadcastRing<Frame>.Reader> readers = new ArrayList<>();
+            for (ClientHandler c : receivers) readers.add(c.reader);
+            BroadcastRing.Group group = FRAMES.group(readers, true);
+            // Each chunk is read once into a pooled buffer and published once; it returns to the pool
+            // after the last receiver has written it.
+            try (FileInputStream fis = new FileInputStream(f)) {
+                boolean open = publish(group, 0, null, null, "FILE_INCOMING|" + fileName + "|" + size);
+                while (open) {
+                    ChunkPool.Chunk chunk = FAN_OUT.acquire();
+                    if (chunk.fill(fis, FILE_CHUNK) == -1) { chunk.release(); break; }
+                    open = publish(group, chunk.length(), chunk); // false: every receiver has left
                 }
+                if (open) publish(group, 0, null);
             }
+            guiLog("Fan-out of " + fileName + " to " + receivers.size() + " client(s): " + FAN_OUT.stats());
             // Acknowledge sender
             send("FILE_OK|" + fileName);
         }
 
-        private synchronized void handleBank(String cmd) {
-            BigInteger balance = Server.bankAccounts.getOrDefault(studentID, BigInteger.ZERO);
-            if (cmd.equals("BALANCE")) {
-                send("BANK_BALANCE|" + balance);
-            } else if (cmd.startsWith("DEPOSIT:")) {
-                BigInteger amount = new BigInteger(cmd.substring(8));
-                balance = balance.add(amount);
-                Server.bankAccounts.put(studentID, balance);
-                Server.logBank(studentID + " nạp " + amount);
-                send("BANK_BALANCE|" + balance);
-            } else if (cmd.startsWith("WITHDRAW:")) {
-                BigInteger amount = new BigInteger(cmd.substring(9));
-                if (balance.compareTo(amount) >= 0) {
-                    balance = balance.subtract(amount);
-                    Server.bankAccounts.put(studentID, balance);
-                    Server.logBank(studentID + " rút " + amount);
-                    send("BANK_BALANCE|" + balance);
-                } else {
-                    // if not enough money, we can wait/notify pattern: for simplicity send error
-                    send("BANK_ERROR|Không đủ tiền");
-                }
+        // tools.BankLedger: CAS on the account's balance, reply once the WAL batch is on disk. No lock on
+        // the handler, so two connections with the same ID update one account without losing updates.
+        private void handleBank(String cmd) {
+            boolean deposit = cmd.startsWith("DEPOSIT:");
+            if (!deposit && !cmd.startsWith("WITHDRAW:")) { // BALANCE
+                send("BANK_BALANCE|" + BankLedger.format(Server.bank.balance(studentID)));
+                return;
+            }
+            long amount;
+            CompletableFuture<Long> op;
+            try {
+                amount = BankLedger.parseCents(cmd.substring(deposit ? 8 : 9));
+                op = deposit ? Server.bank.deposit(studentID, amount) : Server.bank.withdraw(studentID, amount);
+            } catch (IllegalArgumentException e) {
+                send("BANK_ERROR|Số tiền không hợp lệ");
+                return;
+            }
+            try {
+                long balance = op.join();
+                Server.logBank(studentID + (deposit ? " nạp " : " rút ") + BankLedger.format(amount));
+                send("BANK_BALANCE|" + BankLedger.format(balance));
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof BankLedger.InsufficientFundsException) send("BANK_ERROR|Không đủ tiền");
+                else send("BANK_ERROR|Ngân hàng tạm thời không ghi được giao dịch");
             }
         }
 
         private void handleVote(String cmd) {
             // VOTE:create:Question?opt1:opt2:opt3
-            // VOTE:vote:pollId:option
+            // VOTE:vote:pollId:option      (một phiếu mỗi MSSV; bầu lại lựa chọn khác = đổi phiếu)
+            // VOTE:retract:pollId          (rút phiếu)
+            // VOTE:stats:pollId            (số người bầu + bộ nhớ bitmap)
             try {
                 if (cmd.startsWith("VOTE:create:")) {
                     String payload = cmd.substring("VOTE:create:".length());
-                    String pollId = "P" + pollCounter.incrementAndGet();
-                    // store poll as pollId -> question|opt1,opt2
+                    int n = pollCounter.incrementAndGet();
+                    String pollId = "P" + n;
                     String[] qparts = payload.split("\\?", 2);
                     String question = qparts[0];
                     String optionsCsv = qparts.length>1 ? qparts[1].replace(':', ',') : "";
-                    polls.put(pollId, question + "|" + optionsCsv);
-                    Map<String,Integer> map = new ConcurrentHashMap<>();
-                    for (String opt : optionsCsv.split(",")) map.put(opt, 0);
-                    pollVotes.put(pollId, map);
+                    // kết quả gửi gộp mỗi 100 ms, luôn đủ mọi lựa chọn (client vẽ lại cả danh sách)
+                    polls.put(pollId, new PollTally(n, question, Arrays.asList(optionsCsv.split(",")), (poll, changes) -> {
+                        StringBuilder res = new StringBuilder();
+                        for (int i = 0; i < poll.options.size(); i++) res.append(poll.options.get(i)).append(":").append(poll.count(i)).append(",");
+                        broadcastAll("VOTE_RESULT|" + pollId + "|" + res);
+                    }));
                     // broadcast poll to all clients
                     broadcastAll("VOTE|" + pollId + "|" + question + "|" + optionsCsv);
                     send("VOTE_OK|created|" + pollId);
                 } else if (cmd.startsWith("VOTE:vote:")) {
                     String[] parts = cmd.split(":",4);
                     if (parts.length>=4) {
-                        String pollId = parts[2];
-                        String opt = parts[3];
-                        Map<String,Integer> votes = pollVotes.get(pollId);
-                        if (votes != null && votes.containsKey(opt)) {
-                            votes.compute(opt, (k,v)-> v==null?1:v+1);
-                            // broadcast real-time results
-                            StringBuilder res = new StringBuilder();
-                            votes.forEach((k,v)-> res.append(k).append(":").append(v).append(","));
-                            broadcastAll("VOTE_RESULT|" + pollId + "|" + res.toString());
-                            send("VOTE_OK|voted|" + pollId);
-                        } else send("VOTE_ERROR|invalid option");
+                        PollTally poll = polls.get(parts[2]);
+                        if (poll == null) { send("VOTE_ERROR|invalid option"); return; }
+                        switch (poll.vote(studentID, poll.options.indexOf(parts[3]))) {
+                            case VOTED -> send("VOTE_OK|voted|" + parts[2]);
+                            case CHANGED -> send("VOTE_OK|changed|" + parts[2]);
+                            case SAME -> send("VOTE_ERROR|already voted");
+                            case BAD_OPTION -> send("VOTE_ERROR|invalid option");
+                        }
                     }
+                } else if (cmd.startsWith("VOTE:retract:") || cmd.startsWith("VOTE:stats:")) {
+                    String[] parts = cmd.split(":",3);
+                    PollTally poll = polls.get(parts[2]);
+                    if (poll == null) send("VOTE_ERROR|unknown poll");
+                    else if (parts[1].equals("stats")) send("VOTE_STATS|" + parts[2] + "|" + poll.describe());
+                    else if (poll.retract(studentID)) send("VOTE_OK|retracted|" + parts[2]);
+                    else send("VOTE_ERROR|not voted");
                 }
             } catch (Exception e) {
                 send("VOTE_ERROR|" + e.getMessage());
             }
         }
 
-        private void sendFileToClient(String path) throws IOException {
-            File file = new File(path);
-            if (!file.exists()) {
-                send("FILE_NOT_FOUND");
+        // SEARCH_RES|page|pages|total, one SEARCH_HIT|<log line> per match (newest first), SEARCH_DONE
+        private void handleSearch(String arg) throws IOException {
+            String[] q = arg.split(":", 4);
+            long since;
+            int page;
+            try {
+                since = q.length > 2 ? ChatJournal.parseTime(q[2], System.currentTimeMillis(), Long.MIN_VALUE) : Long.MIN_VALUE;
+                page = q.length > 3 && !q[3].isBlank() ? Math.max(1, Integer.parseInt(q[3].trim())) : 1;
+            } catch (RuntimeException e) {
+                send("ERROR|SEARCH: tham số không hợp lệ");
                 return;
             }
-            // Use enqueue to this client's queue to send file non-blocking
-            send("FILE_INCOMING|" + file.getName() + "|" + file.length());
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192];
-                int r;
-                while ((r = fis.read(buffer)) != -1) {
-                    byte[] copy = Arrays.copyOf(buffer, r);
-                    enqueueFrame(new Frame(r, copy));
+            ChatIndex.Page res = chatSearch.search(q[0], q.length > 1 ? q[1].trim() : "", since, page);
+            send("SEARCH_RES|" + res.page + "|" + res.pages + "|" + res.total);
+            for (String hit : res.lines) send("SEARCH_HIT|" + hit);
+            send("SEARCH_DONE");
+        }
+
+        // SAVELOG[:from[:to]]: the journal range goes out like a file named chat_log.txt, read by the
+        // sender from the segment files; the heap never holds the log.
+        private void sendChatLog(String arg) throws IOException {
+            String[] t = arg.split(":", 2);
+            long now = System.currentTimeMillis(), from, to;
+            try {
+                from = ChatJournal.parseTime(t[0], now, Long.MIN_VALUE);
+                to = t.length > 1 ? ChatJournal.parseTime(t[1], now, Long.MAX_VALUE) : Long.MAX_VALUE;
+            } catch (RuntimeException e) {
+                send("ERROR|SAVELOG: thời gian không hợp lệ " + arg);
+                return;
+            }
+            long[] r = chatLog.range(from, to);
+            publish(FRAMES.group(List.of(reader), false), 0, null, chatLog.slices(r[0], r[1]));
+        }
+
+        // Sender thread: a chat journal range as FILE_INCOMING|chat_log.txt|size + frames + EOF.
+        // The socket is TLS (SSLSocket), so transferTo/sendfile cannot be used; the segments are read
+        // through one reusable buffer instead. writeLock is taken per frame; control messages queue up
+        // meanwhile (see send) instead of waiting for the whole log or landing between frames.
+        private void streamLog(List<ChatJournal.Slice> log) throws IOException {
+            if (fileBuf == null) fileBuf = new byte[FILE_CHUNK];
+            openTransfer("FILE_INCOMING|chat_log.txt|" + ChatJournal.size(log));
+            ByteBuffer buf = ByteBuffer.wrap(fileBuf);
+            for (ChatJournal.Slice sl : log) {
+                try (java.nio.channels.FileChannel fc = java.nio.channels.FileChannel.open(sl.file)) {
+                    for (long pos = sl.position, end = sl.position + sl.length; pos < end; ) {
+                        buf.clear().limit((int) Math.min(fileBuf.length, end - pos));
+                        int r = fc.read(buf, pos);
+                        if (r < 0) throw new EOFException("chat journal segment shrank: " + sl.file);
+                        writeFrame(r);
+                        pos += r;
+                    }
                 }
-                enqueueFrame(new Frame(0, null));
+            }
+            closeTransfer();
+        }
+
+        // Sender thread: queued control messages, then the header; from here on send() only queues
+        private void openTransfer(String header) throws IOException {
+            writeLock.lock();
+            try {
+                writeControl();
+                dataOut.writeUTF(header);
+                inTransfer = true;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Sender thread: one len+bytes frame of fileBuf
+        private void writeFrame(int len) throws IOException {
+            writeLock.lock();
+            try {
+                dataOut.writeInt(len);
+                dataOut.write(fileBuf, 0, len);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Sender thread: EOF frame; the sender loop then writes the control messages that queued up
+        private void closeTransfer() throws IOException {
+            writeLock.lock();
+            try {
+                dataOut.writeInt(0);
+                dataOut.flush();
+                inTransfer = false;
+            } finally {
+                writeLock.unlock();
             }
         }
     }
@@ -0,0 +1,245 @@
+package bigtest;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Binary framing: [type:1][length:4, big-endian][payload:length]
+   Payload fields: str = [len:2][UTF-8], int = 4 bytes, tail = rest of the payload
+   (UTF-8 text or raw bytes). Frames are decoded in place from the connection's read buffer:
+   file data is handed on as a slice of that buffer, only the small header strings are copied.
+   Server->client traffic is TEXT frames carrying the usual "PREFIX:args" lines. A download is a
+   FILE_STREAM header (name, file size, start offset) followed by FILE_PART frames holding the bytes
+   from that offset up to the file size; the server fills FILE_PART payloads with FileChannel.transferTo
+   and TEXT frames may arrive between parts. Clients write the parts straight to disk.
+*/
+final class BinaryCodec implements WireCodec {
+    static final int HEADER = 5;
+
+    // client -> server
+    static final byte OP_TEXT = 0x00;        // tail: one text-protocol line (handshake, anything without an opcode)
+    static final byte OP_CHAT = 0x01;        // tail: message body
+    static final byte OP_PRIV = 0x02;        // str target, tail: message
+    static final byte OP_NUM = 0x03;         // tail: decimal digits
+    static final byte OP_FILE = 0x10;        // str name
+    static final byte OP_FILEDATA = 0x11;    // str name, tail: bytes
+    static final byte OP_FILECHUNK = 0x12;   // str name, int index, tail: bytes
+    static final byte OP_FILEEND = 0x13;     // str name
+    static final byte OP_GETFILE = 0x14;     // str name [, long offset]
+    static final byte OP_BANK = 0x20;        // byte action, str amount (TRANSFER/BATCH: to:amount[,...])
+    static final byte OP_POLL_CREATE = 0x21; // str title, byte count, count x str option
+    static final byte OP_POLL_VOTE = 0x22;   // int poll id, int option index
+    static final byte OP_LIST = 0x30;
+    static final byte OP_WHOAMI = 0x31;
+    static final byte OP_SAVELOG = 0x32;
+    static final byte OP_KICK = 0x33;        // tail: user id
+    static final byte OP_QUIT = 0x34;
+    static final byte OP_CALC = 0x35;        // tail: expression
+    // server -> client
+    static final byte OP_FILE_SEND = 0x15;   // str name, tail: bytes (whole file in one frame)
+    static final byte OP_FILE_STREAM = 0x16; // str name, long file size, long offset
+    static final byte OP_FILE_PART = 0x17;   // tail: next bytes of the current FILE_STREAM
+    static final int FILE_PART_SIZE = 1024 * 1024;
+
+    static final String[] BANK_ACTIONS = {"BALANCE", "DEPOSIT", "WITHDRAW", "TRANSFER", "BATCH", "STATS"};
+
+    @Override
+    public String name() { return "BIN"; }
+
+    @Override
+    public boolean decode(ByteBuffer in, Commands out) throws IOException {
+        if (in.remaining() < HEADER) return false;
+        int pos = in.position();
+        byte type = in.get(pos);
+        int len = in.getInt(pos + 1);
+        if (len < 0 || len > MAX_MESSAGE - HEADER) throw new ProtocolException("bad frame length " + len);
+        if (in.remaining() < HEADER + len) return false;
+        ByteBuffer p = in.slice(pos + HEADER, len);
+        in.position(pos + HEADER + len);
+        try {
+            dispatch(type, p, out);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new ProtocolException("malformed frame type " + type); // payload shorter than its opcode needs
+        }
+        return true;
+    }
+
+    private static void dispatch(byte type, ByteBuffer p, Commands out) throws ProtocolException {
+        switch (type) {
+            case OP_TEXT -> out.onLine(tail(p));
+            case OP_CHAT -> out.onChat(tail(p));
+            case OP_PRIV -> { String to = str(p); out.onPriv(to, tail(p)); }
+            case OP_NUM -> out.onNumber(tail(p));
+            case OP_FILE -> out.onFileOffer(str(p));
+            case OP_FILEDATA -> { String name = str(p); out.onFileData(name, p.slice()); }
+            case OP_FILECHUNK -> { String name = str(p); int idx = p.getInt(); out.onFileChunk(name, idx, p.slice()); }
+            case OP_FILEEND -> out.onFileEnd(str(p));
+            case OP_GETFILE -> { String name = str(p); out.onGetFile(name, p.remaining() >= 8 ? p.getLong() : 0L); }
+            case OP_BANK -> {
+                int a = p.get();
+                if (a < 0 || a >= BANK_ACTIONS.length) throw new ProtocolException("bad bank action " + a);
+                out.onBank(BANK_ACTIONS[a], p.hasRemaining() ? str(p) : "");
+            }
+            case OP_POLL_CREATE -> {
+                String title = str(p);
+                int n = p.get() & 0xFF;
+                List<String> opts = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) opts.add(str(p));
+                out.onPollCreate(title, opts);
+            }
+            case OP_POLL_VOTE -> { int id = p.getInt(); out.onPollVote(id, p.getInt()); }
+            case OP_LIST -> out.onCommand("LIST", "");
+            case OP_WHOAMI -> out.onCommand("WHOAMI", "");
+            case OP_SAVELOG -> out.onCommand("SAVELOG", "");
+            case OP_KICK -> out.onCommand("KICK", tail(p));
+            case OP_QUIT -> out.onCommand("QUIT", "");
+            case OP_CALC -> out.onCommand("CALC", tail(p));
+            default -> throw new ProtocolException("unknown frame type " + type);
+        }
+    }
+
+    @Override
+    public ByteBuffer encode(String line) {
+        byte[] b = line.getBytes(StandardCharsets.UTF_8);
+        return frame(OP_TEXT, b.length).put(b).flip();
+    }
+
+    // ---- payload readers (advance p) ----
+    static String str(ByteBuffer p) {
+        int n = p.getShort() & 0xFFFF;
+        String s = utf8(p, n);
+        p.position(p.position() + n);
+        return s;
+    }
+
+    static String tail(ByteBuffer p) {
+        String s = utf8(p, p.remaining());
+        p.position(p.limit());
+        return s;
+    }
+
+    private static String utf8(ByteBuffer p, int n) {
+        if (n > p.remaining()) throw new BufferUnderflowException();
+        if (p.hasArray()) return new String(p.array(), p.arrayOffset() + p.position(), n, StandardCharsets.UTF_8);
+        byte[] tmp = new byte[n];
+        p.get(p.position(), tmp);
+        return new String(tmp, StandardCharsets.UTF_8);
+    }
+
+    // ---- encoders (used by Client and for server-side downloads) ----
+    static ByteBuffer frame(byte type, int payloadLen) {
+        return ByteBuffer.allocate(HEADER + payloadLen).put(type).putInt(payloadLen);
+    }
+
+    static ByteBuffer putStr(ByteBuffer b, byte[] s) {
+        return b.putShort((short) s.length).put(s);
+    }
+
+    static byte[] utf8Field(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > 0xFFFF) throw new IllegalArgumentException("field longer than 65535 bytes");
+        return b;
+    }
+
+    static ByteBuffer fileChunk(String name, int index, byte[] data, int off, int len) {
+        byte[] n = utf8Field(name);
+        return putStr(frame(OP_FILECHUNK, 2 + n.length + 4 + len), n).putInt(index).put(data, off, len).flip();
+    }
+
+    static ByteBuffer fileData(String name, byte[] data) {
+        byte[] n = utf8Field(name);
+        return putStr(frame(OP_FILEDATA, 2 + n.length + data.length), n).put(data).flip();
+    }
+
+    static ByteBuffer fileSend(String name, byte[] data) {
+        byte[] n = utf8Field(name);
+        return putStr(frame(OP_FILE_SEND, 2 + n.length + data.length), n).put(data).flip();
+    }
+
+    static ByteBuffer fileStream(String name, long size, long offset) {
+        byte[] n = utf8Field(name);
+        return putStr(frame(OP_FILE_STREAM, 2 + n.length + 16), n).putLong(size).putLong(offset).flip();
+    }
+
+    // Header only: the caller sends 'len' payload bytes right after it (transferTo)
+    static ByteBuffer filePartHeader(int len) {
+        return ByteBuffer.allocate(HEADER).put(OP_FILE_PART).putInt(len).flip();
+    }
+
+    static ByteBuffer getFile(String name, long offset) {
+        byte[] n = utf8Field(name);
+        return putStr(frame(OP_GETFILE, 2 + n.length + 8), n).putLong(offset).flip();
+    }
+
+    static ByteBuffer nameOnly(byte type, String name) {
+        byte[] n = utf8Field(name);
+        return putStr(frame(type, 2 + n.length), n).flip();
+    }
+
+    static ByteBuffer textOnly(byte type, String text) {
+        byte[] b = text.getBytes(StandardCharsets.UTF_8);
+        return frame(type, b.length).put(b).flip();
+    }
+
+    // Client side: turn a text-protocol command line into its typed frame, so the server gets
+    // the fields already separated. Lines without an opcode travel as OP_TEXT.
+    static ByteBuffer fromLine(String line) {
+        int c = line.indexOf(':');
+        String prefix = c < 0 ? line : line.substring(0, c);
+        String rest = c < 0 ? "" : line.substring(c + 1);
+        try {
+            switch (prefix) {
+                case "PRIV": {
+                    int c2 = rest.indexOf(':');
+                    if (c2 <= 0) break;
+                    byte[] to = utf8Field(rest.substring(0, c2));
+                    byte[] msg = rest.substring(c2 + 1).getBytes(StandardCharsets.UTF_8);
+                    return putStr(frame(OP_PRIV, 2 + to.length + msg.length), to).put(msg).flip();
+                }
+                case "FILE": return nameOnly(OP_FILE, rest);
+                case "FILEEND": return nameOnly(OP_FILEEND, rest);
+                case "GETFILE": return getFile(rest, 0L);
+                case "BANK": {
+                    String[] f = rest.split(":", 2);
+                    int a = List.of(BANK_ACTIONS).indexOf(f[0].toUpperCase());
+                    if (a < 0) break;
+                    byte[] amt = utf8Field(f.length > 1 ? f[1] : "");
+                    return putStr(frame(OP_BANK, 1 + 2 + amt.length).put((byte) a), amt).flip();
+                }
+                case "POLL": {
+                    String[] f = rest.split(":", 3);
+                    if (f[0].equalsIgnoreCase("VOTE") && f.length == 3) {
+                        return frame(OP_POLL_VOTE, 8).putInt(Integer.parseInt(f[1].trim())).putInt(Integer.parseInt(f[2].trim())).flip();
+                    }
+                    if (f[0].equalsIgnoreCase("CREATE") && f.length == 3) {
+                        byte[] t = utf8Field(f[1]);
+                        String[] opts = f[2].split(",");
+                        if (opts.length > 255) break;
+                        List<byte[]> ob = new ArrayList<>();
+                        int len = 2 + t.length + 1;
+                        for (String o : opts) { byte[] x = utf8Field(o.trim()); ob.add(x); len += 2 + x.length; }
+                        ByteBuffer b = putStr(frame(OP_POLL_CREATE, len), t).put((byte) ob.size());
+                        for (byte[] x : ob) putStr(b, x);
+                        return b.flip();
+                    }
+                    break;
+                }
+                case "LIST": if (rest.isEmpty()) return frame(OP_LIST, 0).flip(); break;
+                case "WHOAMI": if (rest.isEmpty()) return frame(OP_WHOAMI, 0).flip(); break;
+                case "SAVELOG": if (rest.isEmpty()) return frame(OP_SAVELOG, 0).flip(); break;
+                case "QUIT": if (rest.isEmpty()) return frame(OP_QUIT, 0).flip(); break;
+                case "KICK": return textOnly(OP_KICK, rest);
+                case "CALC": return textOnly(OP_CALC, rest);
+                default:
+                    if (c < 0 && !line.isEmpty() && line.chars().allMatch(Character::isDigit)) return textOnly(OP_NUM, line);
+            }
+        } catch (IllegalArgumentException ignored) {
+            // oversized field or bad number: let the server parse the plain line
+        }
+        return textOnly(OP_TEXT, line);
+    }
+}
@@ -13,7 +13,15 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import javax.net.ssl.*;
 
 /*
@@ -60,6 +68,11 @@ public class Client {
     private JList<String> fileList;
     private static final boolean CHUNK_UPLOAD_ENABLED = true; // toggle chunked upload in client
     private static final int CHUNK_SIZE = 60_000; // chunk size in bytes
+    private static final int UPLOAD_WINDOW = 8;    // chunks in flight before waiting for FILECHUNK_OK
+    private static final int UPLOAD_ACK_TIMEOUT_S = 30;
+    // Wire protocol: -Dbigtest.binary=true asks the server for binary frames (PROTO:BIN, see WireCodec);
+    // the client stays on the text protocol if the server does not answer PROTO_OK:BIN.
+    private static final boolean BINARY_PROTOCOL = Boolean.getBoolean("bigtest.binary");
 
     // Poll UI
     private DefaultListModel<String> pollListModel;
@@ -67,11 +80,22 @@ public class Client {
     private JTextArea pollDetails;
     // Local poll store: id -> PollData (title + options + lastResult)
     private final Map<Integer, PollData> pollsMap = new HashMap<>();
+    // Running chunked uploads: file name -> free window slots (released by FILECHUNK_OK)
+    private final Map<String, Semaphore> uploadWindows = new ConcurrentHashMap<>();
 
     // Network
     private Socket socket;
     private BufferedReader in;
     private PrintWriter out;
+    private DataInputStream binIn;   // binary protocol only
+    private OutputStream binOut;     // binary protocol only
+    private volatile boolean binary = false;
+    // Download in progress (binary FILE_STREAM): parts go straight into a temp file
+    private FileChannel dlFile;
+    private Path dlPath;
+    private String dlName;
+    private long dlRemaining;
+    private final byte[] dlBuf = new byte[64 * 1024];
     private String username;
     private String clientPassword; // set when using AUTH
     // store server connection info so we can reconnect
@@ -351,8 +375,7 @@ public class Client {
             appendSystem("Resolving host '" + host + "'...");
             int timeout = 4000;
             socket = createSocket(host, port, timeout, errors);
-             in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-             out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            openStreams(BINARY_PROTOCOL);
             this.username = id;
             this.serverHost = host;
             this.serverPort = port;
@@ -360,11 +383,11 @@ public class Client {
             connected = false;
             // New handshake: send ID first. If server requires AUTH it will reply with "AUTH_REQ".
             // This avoids mismatch when server's Require AUTH toggle is off.
-            out.println("ID:" + id);
+            sendRaw("ID:" + id);
             try {
                 // set a short socket read timeout to peek server response (AUTH_REQ or immediate replies)
                 socket.setSoTimeout(3000);
-                String firstResp = in.readLine();
+                String firstResp = readServerLine();
                 // clear timeout
                 socket.setSoTimeout(0);
 
@@ -393,7 +416,7 @@ public class Client {
                     long deadline = System.currentTimeMillis() + 5000;
                     while (System.currentTimeMillis() < deadline) {
                         String authResp = null;
-                        try { authResp = in.readLine(); } catch (IOException ioe) { break; }
+                        try { authResp = readServerLine(); } catch (IOException ioe) { break; }
                         if (authResp == null) break;
                         String ar = authResp.trim();
                         if (ar.equals("AUTH_OK")) { authOk = true; appendSystem("Authenticated successfully"); break; }
@@ -418,7 +441,7 @@ public class Client {
              new Thread(() -> {
                  try {
                      String line;
-                     while ((line = in.readLine()) != null) handleServerLine(line);
+                     while ((line = readServerLine()) != null) handleServerLine(line);
                  } catch (IOException e) { handleDisconnect("Disconnected: " + e.getClass().getSimpleName() + ": " + e.getMessage()); }
              }).start();
 
@@ -432,16 +455,15 @@ public class Client {
                 java.net.Socket f = new java.net.Socket();
                 f.connect(new java.net.InetSocketAddress("127.0.0.1", port), 3000);
                 socket = f;
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                openStreams(false);
                 this.username = id;
                 this.serverHost = "127.0.0.1";
                 this.serverPort = port;
                 connected = true;
                 setConnectedUI(true);
-                out.println("ID:" + id);
+                sendRaw("ID:" + id);
                 new Thread(() -> {
-                    try { String line; while ((line = in.readLine()) != null) handleServerLine(line); } catch (IOException ex) { handleDisconnect("Disconnected: " + ex.getClass().getSimpleName() + ": " + ex.getMessage()); }
+                    try { String line; while ((line = readServerLine()) != null) handleServerLine(line); } catch (IOException ex) { handleDisconnect("Disconnected: " + ex.getClass().getSimpleName() + ": " + ex.getMessage()); }
                 }).start();
                 appendSystem("Fallback to 127.0.0.1 succeeded");
                 return true;
@@ -471,6 +493,88 @@ public class Client {
          return false;
      }
 
+    // Set up reader/writer for the new socket. With tryBinary the client first sends PROTO:BIN and
+    // reads the reply unbuffered, so no frame bytes end up inside a BufferedReader.
+    private void openStreams(boolean tryBinary) throws IOException {
+        binary = false;
+        if (tryBinary) {
+            OutputStream os = socket.getOutputStream();
+            os.write("PROTO:BIN\n".getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            socket.setSoTimeout(3000);
+            String reply = readRawLine(socket.getInputStream());
+            socket.setSoTimeout(0);
+            binary = "PROTO_OK:BIN".equals(reply);
+            appendSystem("Protocol: " + (binary ? "binary frames" : "text"));
+        }
+        if (binary) {
+            binIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            binOut = socket.getOutputStream();
+            in = null; out = null;
+        } else {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        }
+    }
+
+    private static String readRawLine(InputStream is) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        int c;
+        while ((c = is.read()) >= 0 && c != '\n') if (c != '\r') b.write(c);
+        return c < 0 && b.size() == 0 ? null : b.toString(StandardCharsets.UTF_8);
+    }
+
+    // Next server message as a text line (null at end of stream). In binary mode download frames
+    // (FILE_STREAM/FILE_PART/FILE_SEND) are handled here and never reach handleServerLine.
+    private String readServerLine() throws IOException {
+        if (!binary) return in.readLine();
+        while (true) {
+            int type;
+            try { type = binIn.readUnsignedByte(); } catch (EOFException eof) { return null; }
+            int len = binIn.readInt();
+            if (len < 0 || len > WireCodec.MAX_MESSAGE) throw new IOException("bad frame length " + len);
+            if (type == BinaryCodec.OP_FILE_PART) { receivePart(len); continue; }
+            byte[] payload = new byte[len];
+            binIn.readFully(payload);
+            if (type == BinaryCodec.OP_TEXT) return new String(payload, StandardCharsets.UTF_8);
+            ByteBuffer p = ByteBuffer.wrap(payload);
+            String name = BinaryCodec.str(p);
+            if (type == BinaryCodec.OP_FILE_STREAM) startDownload(name, p.getLong(), p.getLong());
+            else if (type == BinaryCodec.OP_FILE_SEND) saveDownload(name, Arrays.copyOfRange(payload, p.position(), len));
+        }
+    }
+
+    private void startDownload(String name, long size, long offset) throws IOException {
+        if (dlFile != null) { dlFile.close(); Files.deleteIfExists(dlPath); }
+        dlName = name;
+        dlPath = Files.createTempFile("bigtest-", ".part");
+        dlFile = FileChannel.open(dlPath, StandardOpenOption.WRITE);
+        dlFile.position(offset);
+        dlRemaining = size - offset;
+        appendSystem("Downloading " + name + " (" + dlRemaining + " bytes)");
+        if (dlRemaining <= 0) finishDownload();
+    }
+
+    // Copy one FILE_PART from the socket to the temp file through a fixed buffer
+    private void receivePart(int len) throws IOException {
+        while (len > 0) {
+            int r = binIn.read(dlBuf, 0, Math.min(len, dlBuf.length));
+            if (r < 0) throw new EOFException("connection closed during download");
+            len -= r;
+            if (dlFile == null) continue; // part without a FILE_STREAM header: skip it
+            ByteBuffer b = ByteBuffer.wrap(dlBuf, 0, r);
+            while (b.hasRemaining()) dlFile.write(b);
+            dlRemaining -= r;
+        }
+        if (dlFile != null && dlRemaining <= 0) finishDownload();
+    }
+
+    private void finishDownload() throws IOException {
+        dlFile.close();
+        dlFile = null;
+        saveDownload(dlName, dlPath);
+    }
+
     // Handle disconnect logic in one place
     private void handleDisconnect(String reason) {
         connected = false;
@@ -523,9 +627,11 @@ public class Client {
      *      broadcast messages from server and display them.
      *
      * 3) How to enable more robust file transfer (binary, using DataOutputStream):
-     *    - Current behavior: client sends base64 payloads over text lines (FILEDATA/FILECHUNK).
+     *    - Default behavior: client sends base64 payloads over text lines (FILEDATA/FILECHUNK).
      *      This works but is less efficient for large files.
-     *    - To switch to binary streaming, you must change both client and server. Steps:
+     *    - Built-in binary mode: start the client with -Dbigtest.binary=true. It negotiates PROTO:BIN and
+     *      then sends length-prefixed frames (BinaryCodec) with raw file bytes; no template needed.
+     *    - To switch to a hand-written binary stream instead, you must change both client and server. Steps:
      *      a) Client: replace sendFile(File f) with the `sendFileBinary(File f)` template below and
      *         use DataOutputStream to write a header via writeUTF("BFILE:<name>:<length>") followed
      *         by raw bytes.
@@ -553,45 +659,65 @@ public class Client {
      *    - To adopt binary file transfer: uncomment UNCOMMENT_BINARY_CLIENT_TEMPLATE in Client.java AND UNCOMMENT_BINARY_SERVER_TEMPLATE in Server.java.
      *    - After any uncommenting: recompile both files.
      */
-    // Generic send
-    private void sendRaw(String line) { if (out != null) out.println(line); }
+    // Generic send (binary mode: the line is mapped to its typed frame)
+    private void sendRaw(String line) {
+        if (binary) writeFrame(BinaryCodec.fromLine(line)); else if (out != null) out.println(line);
+    }
+
+    private synchronized void writeFrame(ByteBuffer b) {
+        try { binOut.write(b.array(), b.arrayOffset() + b.position(), b.remaining()); }
+        catch (IOException e) { appendSystem("Send failed: " + e.getMessage()); }
+    }
 
-    // Send file as base64 (simple)
+    // Send a file on a background thread (the Swing thread must not wait for acks)
     private void sendFile(File f) {
-         try {
-            String absPath = f.getAbsolutePath();
-            String name = f.getName();
+        Thread t = new Thread(() -> uploadFile(f), "upload-" + f.getName());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Chunks are read from disk one at a time, so memory stays at one chunk whatever the file size.
+    // Flow control: at most UPLOAD_WINDOW chunks are unacknowledged; each FILECHUNK_OK frees a slot,
+    // so the upload runs as fast as the server writes to disk instead of at a fixed sleep per chunk.
+    private void uploadFile(File f) {
+        String name = f.getName();
+        Semaphore window = new Semaphore(UPLOAD_WINDOW);
+        try (FileInputStream fis = new FileInputStream(f)) {
+            long total = f.length();
             // Send only the filename (not the full absolute path) to avoid ':' from Windows drive letters
             // which would break naive colon-splitting on the server side.
             sendRaw("FILE:" + name);
-             byte[] data = Files.readAllBytes(f.toPath());
-             if (CHUNK_UPLOAD_ENABLED && data.length > CHUNK_SIZE) {
-                 int idx = 0, off = 0, total = data.length;
-                 int chunks = (total + CHUNK_SIZE - 1) / CHUNK_SIZE;
-                 appendSystem("Uploading in " + chunks + " chunks...");
-                 while (off < total) {
-                     int len = Math.min(CHUNK_SIZE, total - off);
-                     byte[] part = Arrays.copyOfRange(data, off, off + len);
-                     String b64 = Base64.getEncoder().encodeToString(part);
-                     // ensure no stray backslashes in Base64 (JDK bug workaround)
-                     b64 = b64.replaceAll("\\\\", "");
-                     // send chunk identified by filename to avoid colon issues with Windows absolute paths
-                     sendRaw("FILECHUNK:" + name + ":" + idx + ":" + b64);
-                     off += len; idx++;
-                     Thread.sleep(40);
-                 }
-                 // signal end using filename only
-                 sendRaw("FILEEND:" + name);
-                 appendSystem("Chunked upload finished: " + f.getAbsolutePath());
-             } else {
-                 String b64 = Base64.getEncoder().encodeToString(data);
-                 Thread.sleep(80);
-                 // send single-packet file using filename only
-                 sendRaw("FILEDATA:" + name + ":" + b64);
-                 appendSystem("File sent (single-pkt): " + f.getAbsolutePath());
-             }
-         } catch (Exception e) { appendSystem("File send error: " + e.getMessage()); }
-     }
+            if (!CHUNK_UPLOAD_ENABLED || total <= CHUNK_SIZE) {
+                byte[] data = fis.readAllBytes();
+                // send single-packet file using filename only
+                if (binary) writeFrame(BinaryCodec.fileData(name, data));
+                else sendRaw("FILEDATA:" + name + ":" + Base64.getEncoder().encodeToString(data));
+                appendSystem("File sent (single-pkt): " + f.getAbsolutePath());
+                return;
+            }
+            uploadWindows.put(name, window);
+            appendSystem("Uploading in " + ((total + CHUNK_SIZE - 1) / CHUNK_SIZE) + " chunks...");
+            byte[] buf = new byte[CHUNK_SIZE];
+            int idx = 0, len;
+            while ((len = fis.readNBytes(buf, 0, CHUNK_SIZE)) > 0) {
+                if (!window.tryAcquire(UPLOAD_ACK_TIMEOUT_S, TimeUnit.SECONDS)) { appendSystem("Upload stalled: no FILECHUNK_OK for " + name); return; }
+                if (uploadWindows.get(name) != window) { appendSystem("Upload aborted: " + name); return; }
+                // send chunk identified by filename to avoid colon issues with Windows absolute paths
+                if (binary) writeFrame(BinaryCodec.fileChunk(name, idx, buf, 0, len));
+                else sendRaw("FILECHUNK:" + name + ":" + idx + ":" + Base64.getEncoder().encodeToString(len == buf.length ? buf : Arrays.copyOf(buf, len)));
+                idx++;
+            }
+            // wait for the last acks, then signal end using filename only
+            if (!window.tryAcquire(UPLOAD_WINDOW, UPLOAD_ACK_TIMEOUT_S, TimeUnit.SECONDS)) { appendSystem("Upload stalled: no FILECHUNK_OK for " + name); return; }
+            if (uploadWindows.get(name) != window) { appendSystem("Upload aborted: " + name); return; }
+            sendRaw("FILEEND:" + name);
+            appendSystem("Chunked upload finished: " + f.getAbsolutePath());
+        } catch (Exception e) {
+            appendSystem("File send error: " + e.getMessage());
+        } finally {
+            uploadWindows.remove(name, window);
+        }
+    }
 
     // Handle lines from server
     private void handleServerLine(String line) {
@@ -623,6 +749,9 @@ public class Client {
             case "LIST": // LIST:<usersCSV>:ROOMS:<roomMap>
                 if (p.length>=2) { String users = p[1]; String roomMap = p.length>=4?p[3]:""; updateOnline(users, roomMap); }
                 break;
+            case "PRESENCE_DELTA": // PRESENCE_DELTA:+user,-user:ROOMS:<roomMap> (changes since the last LIST/delta)
+                if (p.length>=2) applyPresence(p[1], p.length>=4?p[3]:"");
+                break;
             case "READY": appendSystem("Server ready for file: " + (p.length>=2?p[1]:"")); break;
             case "FILE_OK": // FILE_OK:<nameOnly>:SAVED_AT:<absPath>
                 if (line.startsWith("FILE_OK:")) {
@@ -635,22 +764,43 @@ public class Client {
                 }
                 break;
             case "FILE_SEND": // FILE_SEND:<name>:<b64>
-                if (p.length >= 3) {
-                    String name = p[1]; String b64 = p[2];
-                    byte[] bytes = Base64.getDecoder().decode(b64);
-                    SwingUtilities.invokeLater(() -> {
-                        JFileChooser fc = new JFileChooser(); fc.setSelectedFile(new File(name));
-                        if (fc.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION) {
-                            try (FileOutputStream fos = new FileOutputStream(fc.getSelectedFile())) { fos.write(bytes); appendSystem("File downloaded: " + fc.getSelectedFile().getAbsolutePath()); } catch (IOException ex) { appendSystem("Save failed: " + ex.getMessage()); }
-                        } else appendSystem("Download cancelled");
-                    });
-                }
+                if (p.length >= 3) saveDownload(p[1], Base64.getDecoder().decode(p[2]));
+                break;
+            case "FILECHUNK_OK": // FILECHUNK_OK:<name>:<idx> frees one upload window slot
+                if (p.length>=3) { Semaphore w = uploadWindows.get(p[1]); if (w != null) w.release(); appendSystem("Chunk ack: " + p[1] + " idx=" + p[2]); }
+                break;
+            case "FILE_ERR": // server dropped an upload: running uploads see their window gone and stop
+                for (Semaphore w : uploadWindows.values()) w.release(UPLOAD_WINDOW);
+                uploadWindows.clear();
+                appendSystem(line);
                 break;
-            case "FILECHUNK_OK": if (p.length>=3) appendSystem("Chunk ack: " + p[1] + " idx=" + p[2]); break;
             default: appendSystem(line); break;
         }
     }
 
+    // Ask where to store a downloaded file (FILE_SEND line or binary frame)
+    private void saveDownload(String name, byte[] bytes) {
+        SwingUtilities.invokeLater(() -> {
+            JFileChooser fc = new JFileChooser(); fc.setSelectedFile(new File(name));
+            if (fc.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION) {
+                try (FileOutputStream fos = new FileOutputStream(fc.getSelectedFile())) { fos.write(bytes); appendSystem("File downloaded: " + fc.getSelectedFile().getAbsolutePath()); } catch (IOException ex) { appendSystem("Save failed: " + ex.getMessage()); }
+            } else appendSystem("Download cancelled");
+        });
+    }
+
+    // Same as above for a download already on disk: move the temp file to the chosen place
+    private void saveDownload(String name, Path tmp) {
+        SwingUtilities.invokeLater(() -> {
+            JFileChooser fc = new JFileChooser(); fc.setSelectedFile(new File(name));
+            try {
+                if (fc.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION) {
+                    Files.move(tmp, fc.getSelectedFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    appendSystem("File downloaded: " + fc.getSelectedFile().getAbsolutePath());
+                } else { Files.deleteIfExists(tmp); appendSystem("Download cancelled"); }
+            } catch (IOException ex) { appendSystem("Save failed: " + ex.getMessage()); }
+        });
+    }
+
     // Helpers to append different styled messages
     private void appendChat(String user, String msg) { appendStyled(user + ": ", Color.BLUE, true); appendStyled(msg + "\n", Color.BLACK, false); }
     private void appendPrivate(String from, String msg) { appendStyled("[PRIVATE] " + from + ": ", new Color(128,0,128), true); appendStyled(msg + "\n", new Color(128,0,128), false); }
@@ -688,6 +838,22 @@ public class Client {
     }
 
 
+    // Apply a PRESENCE_DELTA to the online list: +user adds, -user removes (repeats are harmless)
+    private void applyPresence(String changes, String roomMap) {
+        SwingUtilities.invokeLater(() -> {
+            for (String c : changes.split(",")) {
+                if (c.length() < 2) continue;
+                String user = c.substring(1);
+                if (c.charAt(0) == '+') { if (!onlineModel.contains(user)) onlineModel.addElement(user); }
+                else onlineModel.removeElement(user);
+            }
+            int n = onlineModel.size();
+            onlineCountLabel.setText("Online: " + n + (!roomMap.isEmpty() ? " | Rooms: " + roomMap : ""));
+            if (leftPanel!=null) leftPanel.setBorder(BorderFactory.createTitledBorder("Online (" + n + ") " + roomMap));
+        });
+    }
+
+
     // Entry point
     public static void main(String[] args) {
         // Clear the system clipboard as early as possible to avoid JVM attempting to
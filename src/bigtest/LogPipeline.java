@@ -0,0 +1,177 @@
+package bigtest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import tools.ChatJournal;
+
+/* LogPipeline - asynchronous, batched log output for bigtest.Server.
+   Any thread calls chat()/console()/plain(): the record goes on a lock-free queue (many producers,
+   one consumer) and the caller returns at once, so ClientHandler.send() no longer serializes every
+   thread on the server monitor. One daemon thread drains the queue in batches of up to BATCH
+   records and hands each batch to every sink in one call: stdout (one print), the optional log file
+   (-Dbigtest.logFile=<path>, one write + flush), the SAVELOG journal (ChatJournal: copied into its
+   mapped segment, fsync'd by its own group commit) and the GUI log panel (one appendAll).
+   Bounded for console output: past MAX_QUEUED waiting records new console()/plain() lines are dropped
+   and counted rather than blocking the caller; the next batch reports how many were lost. chat()
+   records (MSG_FROM, bank audit, FILE_UP: what the journal keeps) are always queued.
+   timestamp() formats "yyyy-MM-dd HH:mm:ss" with a DateTimeFormatter (thread-safe, unlike the old
+   shared SimpleDateFormat) and reuses the string for the rest of that second.
+*/
+final class LogPipeline {
+    static final String FILE_PROPERTY = "bigtest.logFile";
+    static final int MAX_QUEUED = 1 << 16;
+    private static final int BATCH = 4096;
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static final class Stamp {
+        final long second;
+        final String text;
+        Stamp(long second, String text) { this.second = second; this.text = text; }
+    }
+    private static volatile Stamp stamp = new Stamp(Long.MIN_VALUE, "");
+
+    // Kinds: CHAT and CONSOLE go everywhere (CONSOLE lines are prefixed in the history), PLAIN only to stdout
+    private static final int CHAT = 0, CONSOLE = 1, PLAIN = 2;
+
+    private static final class Rec {
+        final long time;
+        final int kind;
+        final String text;
+        Rec(long time, int kind, String text) { this.time = time; this.kind = kind; this.text = text; }
+    }
+
+    private final Queue<Rec> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private final ChatJournal history;            // "ts | entry" lines for SAVELOG
+    private final Consumer<List<String>> gui;     // entries as shown in the GUI log
+    private final PrintStream stdout = System.out;
+    private final BufferedWriter file;
+    private final Thread writer;
+    private volatile boolean sleeping;
+
+    LogPipeline(ChatJournal history, Consumer<List<String>> gui) {
+        this.history = history;
+        this.gui = gui;
+        this.file = openFile(System.getProperty(FILE_PROPERTY));
+        this.writer = new Thread(this::run, "bigtest-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            while (drain()) { }
+            history.sync();
+        }, "bigtest-log-flush"));
+    }
+
+    private BufferedWriter openFile(String path) {
+        if (path == null || path.isEmpty()) return null;
+        try {
+            return Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            stdout.println("Log file " + path + " unavailable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    static String timestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        Stamp s = stamp;
+        if (s.second != second) {
+            s = new Stamp(second, FORMAT.format(Instant.ofEpochSecond(second)));
+            stamp = s;
+        }
+        return s.text;
+    }
+
+    static String now() { return timestamp(System.currentTimeMillis()); }
+
+    // Chat/audit entry: history, stdout, file and GUI
+    void chat(String entry) { offer(CHAT, entry); }
+
+    // Server console line: like chat() but kept as "CONSOLE:<line>" in the history
+    void console(String line) { offer(CONSOLE, line); }
+
+    // stdout only, as is
+    void plain(String line) { offer(PLAIN, line); }
+
+    private void offer(int kind, String text) {
+        if (queued.incrementAndGet() > MAX_QUEUED && kind != CHAT) {
+            queued.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        queue.offer(new Rec(System.currentTimeMillis(), kind, text));
+        if (sleeping) {
+            sleeping = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            if (!drain()) {
+                sleeping = true;
+                if (queue.isEmpty()) LockSupport.park(this); // offer() re-checks 'sleeping' after queueing
+                sleeping = false;
+            }
+        }
+    }
+
+    // Write one batch; false when there was nothing to write
+    private synchronized boolean drain() { // synchronized: the shutdown hook may race the writer
+        long lost = dropped.sumThenReset();
+        StringBuilder out = new StringBuilder();
+        List<String> lines = new ArrayList<>(), guiLines = new ArrayList<>();
+        if (lost > 0) {
+            String note = "(" + lost + " log lines dropped: log queue full)";
+            out.append(note).append(System.lineSeparator());
+            guiLines.add(note);
+        }
+        int n = 0;
+        Rec r;
+        while (n < BATCH && (r = queue.poll()) != null) {
+            n++;
+            if (r.kind == PLAIN) {
+                out.append(r.text).append(System.lineSeparator());
+                continue;
+            }
+            String line = timestamp(r.time) + " | " + (r.kind == CONSOLE ? "CONSOLE:" : "") + r.text;
+            out.append(line).append(System.lineSeparator());
+            history.append(r.time, line);
+            lines.add(line);
+            guiLines.add(r.text);
+        }
+        queued.addAndGet(-n);
+        if (n == 0 && lost == 0) return false;
+        stdout.print(out);
+        stdout.flush();
+        if (!lines.isEmpty() && file != null) {
+            try {
+                for (String l : lines) { file.write(l); file.newLine(); }
+                file.flush();
+            } catch (IOException e) {
+                stdout.println("Log file write failed: " + e.getMessage());
+            }
+        }
+        if (!guiLines.isEmpty()) gui.accept(guiLines);
+        return true;
+    }
+}
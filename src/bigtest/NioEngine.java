@@ -0,0 +1,482 @@
+package bigtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import tools.HandlerExecutor;
+
+/* NioEngine - non-blocking front-end for bigtest.Server.
+   One accept thread plus a small fixed pool of reactor threads (Selector loop, same
+   pattern as test.ex3.TCPServer). Every connection is pinned to one reactor, so the
+   number of connected clients is no longer tied to the number of threads.
+   Incoming bytes are decoded straight from a per-connection ByteBuffer by the handler's
+   current WireCodec (text lines or binary frames) and handed to the same handler code
+   the thread-per-client mode uses.
+   The reactor only decodes and encodes. Decoded commands go to the connection's lane, which runs
+   them one at a time, in order, on tools.HandlerExecutor, so a command that blocks (disk reads,
+   SAVELOG, file writes) holds up its own client only. The handshake stays on the reactor
+   (Handler.inline) because it may switch the codec the next message is decoded with. While 32 MB
+   of commands wait in a lane the reactor stops reading that client.
+   Output: a client with more than 32 MB queued is dropped as not reading, except that the replies of
+   its own commands wait for room instead (a text GETFILE or SAVELOG may be larger than that in total).
+   A reply line larger than the limit on its own goes out once the queue is empty and does not count
+   against it; a client that reads nothing for STALL_NANOS while its command waits is dropped.
+*/
+final class NioEngine {
+    // Callback side implemented by Server.ClientHandler
+    interface Handler extends WireCodec.Commands {
+        WireCodec codec();          // current framing; may change after a message (PROTO negotiation)
+        boolean inline();           // run the next message on the reactor (handshake: it may change codec())
+        void onClose();             // connection closed (by peer, error or server)
+    }
+
+    interface HandlerFactory {
+        Handler open(Connection c) throws IOException;
+    }
+
+    private static final int READ_BUFFER = 16 * 1024;          // initial per-connection read buffer
+    private static final long MAX_PENDING_OUT = 32L * 1024 * 1024; // drop clients that stop reading
+    private static final long MAX_PENDING_IN = 32L * 1024 * 1024;  // stop reading while this much waits in the lane
+    private static final long STALL_NANOS = 60_000_000_000L;        // a waiting reply gives up on a client reading nothing
+
+    private final int port;
+    private final int ioThreads;
+    private final HandlerFactory factory;
+    private final Consumer<String> log;
+
+    private ServerSocketChannel server;
+    private Reactor[] reactors;
+    private Thread acceptThread;
+    private volatile boolean running = false;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private final AtomicInteger open = new AtomicInteger();
+
+    NioEngine(int port, int ioThreads, HandlerFactory factory, Consumer<String> log) {
+        this.port = port;
+        this.ioThreads = Math.max(1, ioThreads);
+        this.factory = factory;
+        this.log = log;
+    }
+
+    void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        reactors = new Reactor[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            reactors[i] = new Reactor(Selector.open());
+            reactors[i].thread = new Thread(reactors[i], "nio-reactor-" + i);
+            reactors[i].thread.setDaemon(true);
+            reactors[i].thread.start();
+        }
+        // accept stays blocking: it is one thread regardless of client count
+        acceptThread = new Thread(() -> {
+            while (running) {
+                try {
+                    SocketChannel ch = server.accept();
+                    ch.configureBlocking(false);
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)].register(ch);
+                } catch (IOException e) {
+                    if (running) log.accept("NIO accept error: " + e.getMessage());
+                }
+            }
+            log.accept("NIO accept loop ended");
+        }, "nio-accept");
+        acceptThread.start();
+        log.accept("NIO engine listening on port " + port + " with " + ioThreads + " I/O threads");
+    }
+
+    void stop() {
+        if (!running) return;
+        running = false;
+        try { server.close(); } catch (IOException ignored) {}
+        for (Reactor r : reactors) r.shutdown();
+    }
+
+    void join() throws InterruptedException {
+        if (acceptThread != null) acceptThread.join();
+    }
+
+    int connectionCount() { return open.get(); }
+
+    // One selector + one thread; owns a subset of the connections
+    private final class Reactor implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        Thread thread;
+
+        Reactor(Selector selector) { this.selector = selector; }
+
+        void register(SocketChannel ch) {
+            tasks.add(() -> {
+                Connection c = new Connection(ch, this);
+                try {
+                    c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                    c.handler = factory.open(c);
+                    open.incrementAndGet();
+                } catch (IOException e) {
+                    log.accept("NIO register error: " + e.getMessage());
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+            });
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            tasks.add(() -> {
+                for (SelectionKey k : selector.keys()) {
+                    if (k.attachment() instanceof Connection) ((Connection) k.attachment()).close();
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            });
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    Runnable t;
+                    while ((t = tasks.poll()) != null) t.run();
+                    if (!selector.isOpen()) break;
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove(); // remove right away so it is not processed twice
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) c.onWritable();
+                            if (key.isValid() && key.isReadable()) c.onReadable();
+                        } catch (IOException | CancelledKeyException e) {
+                            c.close();
+                        } catch (RuntimeException e) {
+                            // a handler bug must not take the whole reactor down with it
+                            log.accept("NIO handler error for " + c.remoteAddress() + ": " + e);
+                            c.close();
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    log.accept("NIO select error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // A slice of a file queued behind the buffers ahead of it; sent with FileChannel.transferTo
+    // (sendfile), so it never passes through the heap and does not count as pending output.
+    private static final class FileRegion {
+        final FileChannel file;
+        long position;
+        final long end;
+        final boolean closeAfter;
+
+        FileRegion(FileChannel file, long position, long count, boolean closeAfter) {
+            this.file = file; this.position = position; this.end = position + count; this.closeAfter = closeAfter;
+        }
+    }
+
+    // Per-client state: codec-driven decoder on the read side, byte/file queue on the write side
+    final class Connection {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private SelectionKey key;
+        private Handler handler;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        private final ArrayDeque<Object> outQueue = new ArrayDeque<>(); // ByteBuffer or FileRegion, guarded by this
+        private long pendingOut = 0;                                         // guarded by this
+        private ByteBuffer bigReply;      // a queued own reply over MAX_PENDING_OUT, not counted; guarded by this
+        private long written = 0;         // bytes written so far, to tell a slow reader from a stopped one; guarded by this
+        private int waiting = 0;          // lane threads waiting for room; guarded by this
+        private boolean readPaused = false;                                  // guarded by this
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final Lane lane = new Lane();
+
+        Connection(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+        }
+
+        SocketAddress remoteAddress() {
+            try { return channel.getRemoteAddress(); } catch (IOException e) { return null; }
+        }
+
+        boolean isOpen() { return !closed.get(); }
+
+        // Thread-safe: any thread may send. Writes directly when nothing is queued,
+        // otherwise leaves the rest to the reactor via OP_WRITE.
+        void write(ByteBuffer b) {
+            enqueue(b);
+        }
+
+        // Send 'header' followed by 'count' bytes of 'file' from 'position' without copying them
+        // into the heap. closeAfter: close the file once this region is sent (or the connection dies).
+        void transfer(ByteBuffer header, FileChannel file, long position, long count, boolean closeAfter) {
+            enqueue(header, new FileRegion(file, position, count, closeAfter));
+        }
+
+        private void enqueue(Object... items) {
+            boolean tooSlow = false;
+            synchronized (this) {
+                long bytes = 0;
+                for (Object o : items) if (o instanceof ByteBuffer) bytes += ((ByteBuffer) o).remaining();
+                boolean own = lane.current();
+                if (own && !awaitRoom(bytes)) tooSlow = true;
+                if (closed.get()) { release(Arrays.asList(items)); return; }
+                boolean idle = outQueue.isEmpty();
+                for (Object o : items) {
+                    outQueue.add(o);
+                    if (o instanceof ByteBuffer) pendingOut += ((ByteBuffer) o).remaining();
+                }
+                if (own && bytes > MAX_PENDING_OUT && items.length == 1) {
+                    bigReply = (ByteBuffer) items[0];
+                    pendingOut -= bytes;
+                }
+                if (idle && !tooSlow) {
+                    try { if (drain()) return; } catch (IOException e) { tooSlow = true; }
+                }
+                if (!tooSlow) {
+                    if (pendingOut > MAX_PENDING_OUT) {
+                        tooSlow = true;
+                        log.accept("NIO client " + remoteAddress() + " is not reading (" + pendingOut + " bytes pending), dropping");
+                    } else {
+                        interest(true);
+                    }
+                }
+            }
+            if (tooSlow) close(); else reactor.selector.wakeup();
+        }
+
+        // Lane thread, lock held: wait until 'bytes' more fit under MAX_PENDING_OUT (or, for a larger
+        // reply, until nothing is queued). false: the client read nothing for STALL_NANOS
+        private boolean awaitRoom(long bytes) {
+            long stalled = System.nanoTime(), seen = written;
+            waiting++;
+            try {
+                while (!closed.get() && !outQueue.isEmpty() && pendingOut + bytes > MAX_PENDING_OUT) {
+                    long now = System.nanoTime();
+                    if (written != seen) { seen = written; stalled = now; }
+                    long left = stalled + STALL_NANOS - now;
+                    if (left <= 0) {
+                        log.accept("NIO client " + remoteAddress() + " read nothing for " + STALL_NANOS / 1_000_000_000L + " s, dropping");
+                        return false;
+                    }
+                    wait(left / 1_000_000 + 1);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting--;
+            }
+        }
+
+        // Write queued items until the queue is empty (true) or the socket buffer is full (false).
+        // Caller holds the lock.
+        private boolean drain() throws IOException {
+            while (!outQueue.isEmpty()) {
+                Object o = outQueue.peek();
+                if (o instanceof ByteBuffer) {
+                    ByteBuffer b = (ByteBuffer) o;
+                    int n = channel.write(b);
+                    written += n;
+                    if (b == bigReply) {
+                        if (!b.hasRemaining()) bigReply = null;
+                    } else {
+                        pendingOut -= n;
+                    }
+                    if (b.hasRemaining()) return false;
+                } else {
+                    FileRegion r = (FileRegion) o;
+                    long n = r.file.transferTo(r.position, r.end - r.position, channel);
+                    r.position += n;
+                    written += n;
+                    if (r.position < r.end) {
+                        if (n == 0 && r.position >= r.file.size()) throw new IOException("file shrank during transfer");
+                        return false;
+                    }
+                    if (r.closeAfter) r.file.close();
+                }
+                outQueue.poll();
+            }
+            return true;
+        }
+
+        private void onWritable() throws IOException {
+            synchronized (this) {
+                if (drain()) interest(false); // else wait for next OP_WRITE
+                if (waiting > 0) notifyAll();
+            }
+        }
+
+        // Caller holds the lock
+        private void interest(boolean write) {
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (write ? SelectionKey.OP_WRITE : 0));
+        }
+
+        // Caller holds the lock
+        private boolean writePending() { return !outQueue.isEmpty(); }
+
+        private static void release(Collection<Object> items) {
+            for (Object o : items) {
+                if (o instanceof FileRegion) try { ((FileRegion) o).file.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void onReadable() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) { close(); return; }
+            decodeBuffered();
+        }
+
+        // Reactor thread: decode what is in 'in' until it runs out or the lane is full
+        private void decodeBuffered() throws IOException {
+            in.flip();
+            try {
+                while (!closed.get() && !lane.full() && handler.codec().decode(in, handler.inline() ? handler : lane)) {
+                    /* one message per call */
+                }
+            } catch (IOException e) {
+                log.accept("NIO protocol error from " + remoteAddress() + ": " + e.getMessage());
+                close();
+                return;
+            }
+            // keep the unfinished tail at the front of the buffer
+            in.compact();
+            if (lane.full()) pauseRead();
+            else if (!in.hasRemaining()) in = WireCodec.grow(in);
+        }
+
+        private void pauseRead() {
+            if (closed.get()) return;
+            synchronized (this) {
+                readPaused = true;
+                interest(writePending());
+            }
+            if (!lane.full()) resumeRead(); // the lane drained in between
+        }
+
+        // Any thread: the lane has room again; decode what is buffered, then read on
+        private void resumeRead() {
+            reactor.tasks.add(() -> {
+                if (closed.get() || lane.full()) return;
+                synchronized (this) {
+                    if (!readPaused) return;
+                    readPaused = false;
+                }
+                try {
+                    decodeBuffered();
+                    synchronized (this) {
+                        if (!closed.get()) interest(writePending());
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    close();
+                }
+            });
+            reactor.selector.wakeup();
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            synchronized (this) {
+                release(outQueue);
+                outQueue.clear();
+                pendingOut = 0;
+                bigReply = null;
+                notifyAll();
+            }
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            open.decrementAndGet();
+            if (handler != null) handler.onClose();
+        }
+
+        // Decoded commands for this connection, run in order on the handler executor, one at a time.
+        // Payloads that point into the read buffer are copied: the reactor reuses it for the next read.
+        private final class Lane implements WireCodec.Commands {
+            private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+            private final AtomicBoolean scheduled = new AtomicBoolean();
+            private final AtomicLong pending = new AtomicLong(); // bytes of commands waiting
+            private volatile Thread runner;                       // the thread running them, while it does
+
+            boolean full() { return pending.get() >= MAX_PENDING_IN; }
+
+            boolean current() { return runner == Thread.currentThread(); }
+
+            private void add(long bytes, Runnable command) {
+                long cost = bytes + 64;
+                pending.addAndGet(cost);
+                queue.add(() -> {
+                    try {
+                        if (!closed.get()) command.run();
+                    } finally {
+                        boolean wasFull = full();
+                        if (pending.addAndGet(-cost) < MAX_PENDING_IN && wasFull) resumeRead();
+                    }
+                });
+                if (scheduled.compareAndSet(false, true)) HandlerExecutor.submit(this::drain);
+            }
+
+            private void drain() {
+                do {
+                    runner = Thread.currentThread();
+                    for (Runnable t; (t = queue.poll()) != null; ) {
+                        try {
+                            t.run();
+                        } catch (RuntimeException e) {
+                            // a handler bug must not leave the lane stuck
+                            log.accept("NIO handler error for " + remoteAddress() + ": " + e);
+                            close();
+                        }
+                    }
+                    runner = null;
+                    scheduled.set(false);
+                } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+            }
+
+            private ByteBuffer copy(ByteBuffer b) {
+                return ByteBuffer.allocate(b.remaining()).put(b.duplicate()).flip();
+            }
+
+            @Override public void onLine(String line) { add(line.length(), () -> handler.onLine(line)); }
+            @Override public void onChat(String body) { add(body.length(), () -> handler.onChat(body)); }
+            @Override public void onNumber(String digits) { add(digits.length(), () -> handler.onNumber(digits)); }
+            @Override public void onPriv(String target, String msg) { add(msg.length(), () -> handler.onPriv(target, msg)); }
+            @Override public void onFileOffer(String name) { add(0, () -> handler.onFileOffer(name)); }
+            @Override public void onFileData(String name, ByteBuffer data) {
+                ByteBuffer d = copy(data);
+                add(d.remaining(), () -> handler.onFileData(name, d));
+            }
+            @Override public void onFileChunk(String name, int index, ByteBuffer data) {
+                ByteBuffer d = copy(data);
+                add(d.remaining(), () -> handler.onFileChunk(name, index, d));
+            }
+            @Override public void onFileEnd(String name) { add(0, () -> handler.onFileEnd(name)); }
+            @Override public void onGetFile(String name, long offset) { add(0, () -> handler.onGetFile(name, offset)); }
+            @Override public void onBank(String action, String amount) { add(0, () -> handler.onBank(action, amount)); }
+            @Override public void onPollCreate(String title, List<String> options) { add(0, () -> handler.onPollCreate(title, options)); }
+            @Override public void onPollVote(int pollId, int option) { add(0, () -> handler.onPollVote(pollId, option)); }
+            @Override public void onCommand(String command, String arg) { add(0, () -> handler.onCommand(command, arg)); }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package bigtest;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* RoomIndex - room name -> members, kept up to date on join, room change and leave.
+   A room broadcast walks only that room's member set and the LIST room summary walks only the
+   rooms with their maintained counts, instead of scanning every client on each call.
+   Member sets are concurrent: a broadcast iterates while others join or leave. Changes to one
+   room run inside ConcurrentHashMap.compute, so its count always matches its set and an empty
+   room disappears from the index.
+*/
+final class RoomIndex<M> {
+    private static final class Room<M> {
+        final Set<M> members = ConcurrentHashMap.newKeySet();
+        volatile int count; // written inside compute() only
+    }
+
+    private final ConcurrentHashMap<String, Room<M>> rooms = new ConcurrentHashMap<>();
+
+    void join(String room, M member) {
+        rooms.compute(room, (k, r) -> {
+            if (r == null) r = new Room<>();
+            if (r.members.add(member)) r.count++;
+            return r;
+        });
+    }
+
+    void leave(String room, M member) {
+        rooms.computeIfPresent(room, (k, r) -> {
+            if (r.members.remove(member)) r.count--;
+            return r.count == 0 ? null : r;
+        });
+    }
+
+    void move(String from, String to, M member) {
+        if (from.equals(to)) return;
+        join(to, member);
+        leave(from, member);
+    }
+
+    // Live view for broadcasts (weakly consistent: members joining meanwhile may or may not be seen)
+    Set<M> members(String room) {
+        Room<M> r = rooms.get(room);
+        return r == null ? Collections.emptySet() : r.members;
+    }
+
+    int count(String room) {
+        Room<M> r = rooms.get(room);
+        return r == null ? 0 : r.count;
+    }
+
+    // Room summary in the LIST format the clients parse: {Lobby=3, dev=1}
+    String summary() {
+        StringBuilder sb = new StringBuilder("{");
+        for (var e : rooms.entrySet()) {
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(e.getKey()).append('=').append(e.getValue().count);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -1,52 +1,80 @@
 package bigtest;
 
-import java.awt.*;
 import java.io.*;
 import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import javax.swing.*; // GUI
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import tools.BankLedger;
+import tools.ChatIndex;
+import tools.ChatJournal;
+import tools.HandlerExecutor;
+import tools.PollTally;
+import tools.PresenceService;
 import javax.net.ssl.*;
 
 /* bigtest.Server - compact multi-client chat server (GUI optional).
    Features: MSG/PRIV/FILE/BANK/POLL/ROOM/LIST/WHOAMI/KICK/SAVELOG, optional AUTH and SSL.
+   Settings come from ServerConfig (flags or a properties file). The core uses no Swing: with
+   --headless (or -Djava.awt.headless=true) no GUI class is loaded; otherwise ServerGui attaches as
+   the ServerObserver and gets the log, the client list and the running state.
 */
 
-// compact server: GUI + protocol handlers. (Detailed docs removed to keep file short.)
+// compact server: protocol handlers; the GUI lives in ServerGui. (Detailed docs removed to keep file short.)
 public class Server {
     // Configuration
     private final int port;
     private ServerSocket serverSocket;
     private volatile boolean isRunning = false; // server running flag
 
-    // -------------------- GUI FIELDS --------------------
-    // Server GUI components (pink theme, Times New Roman for logs)
-    private JFrame frame;
-    private JTextArea txtLog;                // main server log area (Times New Roman)
-    private DefaultListModel<String> clientListModel;
-    private JList<String> clientList;
-    private JButton btnStart;
-    private JButton btnStop;
-    // ---------------------------------------------------
+    // I/O engine selected at startup: "blocking" = one thread per client (BufferedReader loop),
+    // "nio" = Selector-based NioEngine with a small fixed set of I/O threads.
+    // Select with --engine=nio (or the first program argument, or -Dbigtest.engine=nio); -Dbigtest.ioThreads=N sizes the pool.
+    static final String ENGINE_BLOCKING = "blocking";
+    static final String ENGINE_NIO = "nio";
+    private final String engine;
+    private NioEngine nioEngine;
+    private Thread acceptThread; // blocking engine
+
+    // Optional front end (ServerGui); null = headless
+    private volatile ServerObserver observer;
 
      // Global state
      private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>(); // username -> handler
-     @SuppressWarnings("unused")
-     private final Map<String, BankAccount> accounts = new ConcurrentHashMap<>(); // username -> bank
-     @SuppressWarnings("unused")
-     private final Map<Integer, Poll> polls = new ConcurrentHashMap<>(); // pollId -> Poll
-     private final Map<String, String> rooms = new ConcurrentHashMap<>(); // username -> roomName
-     private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    // In-memory chat history (used by SAVELOG feature). We keep it in-memory since disk logging is disabled.
-    private final List<String> chatHistory = Collections.synchronizedList(new ArrayList<>());
+     // Balances in cents, CAS-updated, with a group-committed WAL and snapshots (bank_ledger/bigtest-<port>)
+     private final BankLedger bank;
+     // pollId -> vote counts; results go out as coalesced POLL_RES changes (-Dserver.pollFlushMs)
+     private final Map<Integer, PollTally> polls = new ConcurrentHashMap<>();
+     private final RoomIndex<ClientHandler> rooms = new RoomIndex<>(); // roomName -> members (+ counts)
+     // Joins/leaves/room moves go out as one PRESENCE_DELTA per window (-Dserver.presenceWindowMs)
+     private final PresenceService<ClientHandler> presence =
+             new PresenceService<>(clients::values, ClientHandler::send, this::listLine, rooms::summary);
+    // Chat history for SAVELOG: append-only mmap journal on disk (chat_journal/bigtest-<port>), not the heap
+    private final ChatJournal journal;
+    // SEARCH: inverted index over the MSG_FROM lines of the journal (see chatDoc)
+    private final ChatIndex search;
+    // Console/journal/GUI logging off the caller's thread, in batches (see LogPipeline)
+    private final LogPipeline log;
 
     // Admin (first connected user)
     private volatile String adminUser = null;
@@ -70,37 +98,60 @@ public class Server {
 
     // Poll id generator
     private final Random rnd = new Random();
-    @SuppressWarnings("unused")
-    private int pollCounter = 0;
+    private final AtomicInteger pollCounter = new AtomicInteger();
 
     // ----------------- OPTIONAL: SIMPLE AUTHENTICATION -----------------
-    // Runtime-toggleable auth flag. Use the GUI checkbox "Require AUTH" to
-    // enable/disable authentication while the server is running. Default=true.
+    // Auth flag, from ServerConfig (auth=true / --auth). Default=false.
     private volatile boolean enableAuth = false;
     // pre-defined credentials (username -> password). You can modify or load dynamically.
     private final Map<String,String> credentials = new HashMap<>() {{ put("thao","hahaha"); put("20520001","pass"); }};
     // -----------------------------------------------------------------
 
-    // Optional SSL/TLS: set to true and configure SSL_KEYSTORE/SSL_PASS to enable.
-    private static final boolean ENABLE_SSL = false; // set true to bind SSLServerSocket
-    private static final String SSL_KEYSTORE = "./server_keystore.jks";
-    private static final String SSL_KEYSTORE_PASS = "123456";
+    // Optional SSL/TLS (ssl=true / --ssl, with ssl.keystore and ssl.password): binds an SSLServerSocket.
+    private final boolean enableSsl;
+    private final String sslKeystore;
+    private final String sslKeystorePass;
 
-    // TEST_SIMPLE_MODE removed. Use explicit feature flags below to control optional behaviors.
-    // Set these to true to enable feature; set to false to comment/disable the behavior.
-    private static final boolean BROADCAST_ENABLED = true; // when true server broadcasts joins/rooms/file notifications
-    private static final boolean ENABLE_POLL = true;       // enable poll creation/vote
-    private static final boolean ENABLE_BANK = true;       // enable bank (deposit/withdraw) features
-    private static final boolean ENABLE_KICK = true;       // admin kick
-    private static final boolean ENABLE_SAVELOG = true;    // allow SAVELOG command
-    private static final boolean ENABLE_PRIVMSG = true;    // private messaging (PRIV)
-
-    // Default AUTH requirement: set to true to require AUTH by default; the GUI checkbox
-    // was removed per request — toggle here in code if you want AUTH enabled or disabled.
-    private static final boolean REQUIRE_AUTH_DEFAULT = false;
+    // Feature flags (ServerConfig keys in brackets); false disables the behavior.
+    private final boolean broadcastEnabled; // [broadcast] server broadcasts joins/rooms/file notifications
+    private final boolean enablePoll;       // [poll] poll creation/vote
+    private final boolean enableBank;       // [bank] bank (deposit/withdraw) features
+    private final boolean enableKick;       // [kick] admin kick
+    private final boolean enableSavelog;    // [savelog] SAVELOG command
+    private final boolean enablePrivmsg;    // [privmsg] private messaging (PRIV)
 
     public Server(int port) {
-        this.port = port;
+        this(port, ENGINE_BLOCKING);
+    }
+
+    public Server(int port, String engine) {
+        this(config(port, engine));
+    }
+
+    Server(ServerConfig cfg) {
+        this.port = cfg.port;
+        this.engine = ENGINE_NIO.equalsIgnoreCase(cfg.engine) ? ENGINE_NIO : ENGINE_BLOCKING;
+        this.enableSsl = cfg.ssl;
+        this.sslKeystore = cfg.sslKeystore;
+        this.sslKeystorePass = cfg.sslPassword;
+        this.broadcastEnabled = cfg.broadcast;
+        this.enablePoll = cfg.poll;
+        this.enableBank = cfg.bank;
+        this.enableKick = cfg.kick;
+        this.enableSavelog = cfg.savelog;
+        this.enablePrivmsg = cfg.privmsg;
+        try {
+            this.journal = ChatJournal.open("bigtest-" + port);
+            this.search = new ChatIndex(journal, Server::chatDoc);
+        } catch (IOException e) {
+            throw new UncheckedIOException("chat journal: " + e.getMessage(), e);
+        }
+        try {
+            this.bank = BankLedger.open("bigtest-" + port);
+        } catch (IOException e) {
+            throw new UncheckedIOException("bank ledger: " + e.getMessage(), e);
+        }
+        this.log = new LogPipeline(journal, this::guiAppend);
         // ensure logs exist
         try {
             // NOTE: per request we no longer create or write chat_log.txt / bank_log.txt
@@ -109,125 +160,89 @@ public class Server {
             Path d = Paths.get(DEFAULT_SAVE_DIR);
             if (!Files.exists(d)) Files.createDirectories(d);
         } catch (IOException ignored) {}
-        // initialize auth flag from compile-time default
-        this.enableAuth = REQUIRE_AUTH_DEFAULT;
-        // Initialize GUI components (but do not auto-start server). Call initializeGUI() from main.
+        this.enableAuth = cfg.auth;
     }
 
-    // -------------------- GUI METHODS --------------------
-    /**
-     * Build and show the server GUI. Use Start/Stop to control the listener.
-     * The GUI is intentionally simple: log area, client list, start/stop controls.
-     */
-    public void initializeGUI() {
-        SwingUtilities.invokeLater(() -> {
-            frame = new JFrame("NPR Server - Pink GUI");
-            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            frame.setSize(900, 600);
-
-            // Top control panel with Start/Stop
-            JPanel control = new JPanel(new FlowLayout(FlowLayout.LEFT));
-            btnStart = new JButton("Start Server");
-            btnStop = new JButton("Stop Server"); btnStop.setEnabled(false);
-            control.add(btnStart); control.add(btnStop);
-
-            // Log area (Times New Roman)
-            txtLog = new JTextArea(); txtLog.setEditable(false);
-            txtLog.setFont(new Font("Times New Roman", Font.PLAIN, 12));
-            txtLog.setBackground(new Color(255, 240, 245)); // pale pink
-            JScrollPane logScroll = new JScrollPane(txtLog);
-
-            // Client list (with titled border that shows connected count)
-            clientListModel = new DefaultListModel<>(); clientList = new JList<>(clientListModel);
-            clientList.setFont(new Font("Times New Roman", Font.PLAIN, 13));
-            JScrollPane listScroll = new JScrollPane(clientList);
-            listScroll.setBorder(BorderFactory.createTitledBorder("Clients (0)"));
-
-            JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, logScroll, listScroll);
-            split.setDividerLocation(650);
-
-            frame.getContentPane().setBackground(new Color(255, 192, 203)); // pink theme background
-            frame.getContentPane().setLayout(new BorderLayout());
-            frame.getContentPane().add(control, BorderLayout.NORTH);
-            frame.getContentPane().add(split, BorderLayout.CENTER);
-
-            // Wire buttons
-            btnStart.addActionListener(e -> startServer());
-            btnStop.addActionListener(e -> stopServer());
-
-            frame.setVisible(true);
-            appendConsole("GUI initialized. Port: " + port + " — click Start Server to listen.");
-        });
+    private static ServerConfig config(int port, String engine) {
+        ServerConfig c = new ServerConfig();
+        c.port = port;
+        c.engine = engine;
+        return c;
     }
 
-    // Append message to GUI log and to file log
-    private void appendConsole(String s) {
-        appendChatLog("CONSOLE:" + s);
-        if (txtLog != null) {
-            SwingUtilities.invokeLater(() -> {
-                txtLog.append(s + "\n");
-                txtLog.setCaretPosition(txtLog.getDocument().getLength());
-            });
-        }
+    // Attach a front end (ServerGui); it gets the current state at once, then every change
+    void setObserver(ServerObserver o) {
+        observer = o;
+        o.runningChanged(isRunning);
+        o.clientsChanged(clients.keySet());
     }
 
-    // Update client list UI
-    private void updateClientListUI() {
-        if (clientListModel == null) return;
-        SwingUtilities.invokeLater(() -> {
-            clientListModel.clear();
-            for (String u : clients.keySet()) clientListModel.addElement(u);
-            // update titled border with count
-            int cnt = clients.size();
-            if (clientList != null) {
-                Component parent = clientList.getParent();
-                if (parent instanceof JViewport) parent = parent.getParent();
-                if (parent instanceof JScrollPane) {
-                    JScrollPane sp = (JScrollPane) parent;
-                    sp.setBorder(BorderFactory.createTitledBorder("Clients (" + cnt + ")"));
-                }
-            }
-            appendConsole("Connected clients: " + cnt);
-        });
+    // Append message to the log (console, SAVELOG history, observer)
+    void appendConsole(String s) {
+        log.console(s);
+    }
+
+    // One batch of log lines from the LogPipeline writer
+    private void guiAppend(List<String> lines) {
+        ServerObserver o = observer;
+        if (o != null) o.logLines(lines);
+    }
+
+    // Someone joined or left: tell the observer (headless: nothing to do)
+    private void clientsChanged() {
+        ServerObserver o = observer;
+        if (o == null) return;
+        o.clientsChanged(clients.keySet());
+        appendConsole("Connected clients: " + clients.size());
     }
 
-    // Start the server accept loop (called from GUI Start)
+    // Start listening in the background (GUI Start button, or start() below)
     public void startServer() {
         if (isRunning) return;
         try {
-            if (ENABLE_SSL) {
+            listen();
+        } catch (IOException e) {
+            appendConsole("Failed to start server: " + e.getMessage());
+        }
+    }
+
+    private void listen() throws IOException {
+        appendConsole("Bank ledger: " + bank.describe());
+        if (useNio()) {
+            startNio();
+            appendConsole("Server started on port " + port + " (NIO engine)");
+        } else {
+            if (enableSsl) {
                 // Create SSL context and configure the server socket factory
-                System.setProperty("javax.net.ssl.keyStore", SSL_KEYSTORE);
-                System.setProperty("javax.net.ssl.keyStorePassword", SSL_KEYSTORE_PASS);
+                System.setProperty("javax.net.ssl.keyStore", sslKeystore);
+                System.setProperty("javax.net.ssl.keyStorePassword", sslKeystorePass);
                 SSLServerSocketFactory sslFactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
                 serverSocket = sslFactory.createServerSocket(port);
             } else {
-                serverSocket = new ServerSocket(port);
+                serverSocket = openServerSocket();
             }
             isRunning = true;
-            btnStart.setEnabled(false);
-            btnStop.setEnabled(true);
-            appendConsole("Server started on port " + port);
+            appendConsole("Server started on port " + port + " (handler threads: " + HandlerExecutor.mode() + ")");
 
-            Thread acceptThread = new Thread(() -> {
+            acceptThread = new Thread(() -> {
                 while (isRunning) {
                     try {
                         Socket s = serverSocket.accept();
                         String clientId = "Client connected from " + s.getInetAddress().getHostAddress() + ":" + s.getPort();
                         appendConsole(clientId);
-                        // create handler and start in its own thread
+                        // create handler and run it on the shared handler executor (platform or virtual thread)
                         ClientHandler ch = new ClientHandler(s, clientId);
-                        new Thread(ch).start();
+                        HandlerExecutor.submit(ch);
                     } catch (IOException e) {
                         if (isRunning) appendConsole("Accept error: " + e.getMessage());
                     }
                 }
                 appendConsole("Accept loop ended");
-            });
+            }, "bigtest-accept");
             acceptThread.start();
-        } catch (IOException e) {
-            appendConsole("Failed to start server: " + e.getMessage());
         }
+        ServerObserver o = observer;
+        if (o != null) o.runningChanged(true);
     }
 
     // Stop the server and disconnect clients
@@ -238,267 +253,365 @@ public class Server {
             // close server socket to break accept()
             if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
         } catch (IOException ignored) {}
+        if (nioEngine != null) { nioEngine.stop(); nioEngine = null; }
         // close all client sockets
-        for (ClientHandler ch : new ArrayList<>(clients.values())) {
-            try { ch.socket.close(); } catch (IOException ignored) {}
-        }
+        for (ClientHandler ch : new ArrayList<>(clients.values())) ch.close();
         clients.clear();
-        updateClientListUI();
-        btnStart.setEnabled(true); btnStop.setEnabled(false);
+        clientsChanged();
+        ServerObserver o = observer;
+        if (o != null) o.runningChanged(false);
         appendConsole("Server stopped");
     }
 
-    // ---------------------------------------------------
-    // Legacy CLI start kept for compatibility; prefer startServer() (GUI)
+    // Headless/CLI start: same listener as startServer(), then block until the server stops
     public void start() throws IOException {
-        // Start server in non-GUI mode (blocking) if called directly from main
-        serverSocket = new ServerSocket(port);
-        logConsole("Server started on port " + port + " (CLI mode)");
-        while (!serverSocket.isClosed()) {
-            Socket s = serverSocket.accept();
-            String clientId = "Client connected from " + s.getInetAddress().getHostAddress() + ":" + s.getPort();
-            logConsole(clientId);
-            ClientHandler ch = new ClientHandler(s, clientId);
-            new Thread(ch).start();
+        if (isRunning) return;
+        listen();
+        NioEngine e = nioEngine;
+        Thread t = acceptThread;
+        try {
+            if (e != null) e.join();
+            else if (t != null) t.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    // Plain blocking listener backed by a ServerSocketChannel: accepted sockets then have a
+    // SocketChannel, so downloads can use FileChannel.transferTo (sendfile) in blocking mode too.
+    private ServerSocket openServerSocket() throws IOException {
+        return ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
+    }
+
+    // NIO engine has no SSLEngine support yet; SSL builds keep the blocking engine.
+    private boolean useNio() {
+        if (!ENGINE_NIO.equals(engine)) return false;
+        if (enableSsl) { appendConsole("NIO engine does not support SSL, using blocking engine"); return false; }
+        return true;
+    }
+
+    private void startNio() throws IOException {
+        int ioThreads = Integer.getInteger("bigtest.ioThreads", Runtime.getRuntime().availableProcessors());
+        nioEngine = new NioEngine(port, ioThreads, c -> {
+            String clientId = "Client connected from " + c.remoteAddress();
+            appendConsole(clientId);
+            return new ClientHandler(c, clientId);
+        }, this::appendConsole);
+        nioEngine.start();
+        isRunning = true;
+    }
+
     // Broadcast utility: send message to all clients
     private void broadcast(String line) {
         for (ClientHandler ch : clients.values()) ch.send(line);
     }
 
-    // Broadcast to room
+    // Broadcast to room: only its members, from the room index
     private void broadcastRoom(String room, String line) {
-        for (Map.Entry<String, ClientHandler> e : clients.entrySet()) {
-            String user = e.getKey();
-            if (room.equals(rooms.getOrDefault(user, "Lobby"))) e.getValue().send(line);
-        }
+        for (ClientHandler ch : rooms.members(room)) ch.send(line);
     }
 
-    // NO DISK CHAT LOG (disabled by request). We still show messages in GUI console.
-    private synchronized void appendChatLog(String entry) {
-        String line = df.format(new Date()) + " | " + entry + System.lineSeparator();
-        // write only to GUI / console (no file writes)
-        logConsole(line);
-        // keep in-memory history for SAVELOG
-        chatHistory.add(line.trim());
-        if (txtLog != null) {
-            SwingUtilities.invokeLater(() -> {
-                txtLog.append(entry + "\n");
-                txtLog.setCaretPosition(txtLog.getDocument().getLength());
-            });
-        }
+    // LIST line: CSV of usernames + room summary ({room=count, ...}, one entry per room)
+    private String listLine() {
+        return "LIST:" + String.join(",", clients.keySet()) + ":ROOMS:" + rooms.summary();
+    }
+
+    // NO DISK CHAT LOG by default (-Dbigtest.logFile turns one on). Console, SAVELOG history and GUI
+    // are written by the LogPipeline thread; callers never block here.
+    private void appendChatLog(String entry) {
+        log.chat(entry);
+    }
+
+    // Journal line "<ts> | MSG_FROM:<user>@<room>:<body>" -> {room, body} for the search index
+    private static String[] chatDoc(String line) {
+        int i = line.indexOf(" | MSG_FROM:");
+        if (i < 0 || i > 20) return null; // chat entries only, not CONSOLE lines quoting one
+        int from = i + 12, colon = line.indexOf(':', from);
+        if (colon < 0) return null;
+        int at = line.lastIndexOf('@', colon);
+        return new String[] { at < from ? null : line.substring(at + 1, colon), line.substring(colon + 1) };
     }
 
     // NO DISK BANK LOG (disabled by request). We still record bank ops in memory and GUI.
-    private synchronized void appendBankLog(String entry) {
+    private void appendBankLog(String entry) {
         // keep visible in server GUI/hard-log only; do NOT write to bank_log.txt
         appendChatLog("BANK:" + entry);
     }
 
+    // Cause of a failed ledger future (dependent stages wrap it in a CompletionException)
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
     // Simple console logger (server-side GUI was optional; for exam CLI is fine)
-    private void logConsole(String s) { System.out.println(s); }
+    private void logConsole(String s) { log.plain(s); }
 
     // Find handler by username
     private ClientHandler findHandler(String username) { return clients.get(username); }
 
-    // Bank account implementation using BigInteger and wait/notify
-    private static class BankAccount {
-        private BigInteger balance = BigInteger.ZERO;
-        private final List<String> history = new ArrayList<>();
-
-        public synchronized BigInteger deposit(BigInteger amt) {
-            balance = balance.add(amt);
-            history.add("DEPOSIT:" + amt + ":BAL=" + balance);
-            notifyAll(); // wake waiting withdrawers
-            return balance;
-        }
-
-        public synchronized BigInteger withdraw(BigInteger amt) throws InterruptedException {
-            long deadline = System.currentTimeMillis() + 10000; // wait up to 10s
-            while (balance.compareTo(amt) < 0) {
-                long wait = deadline - System.currentTimeMillis();
-                if (wait <= 0) throw new IllegalStateException("Insufficient funds");
-                wait(wait);
-            }
-            balance = balance.subtract(amt);
-            history.add("WITHDRAW:" + amt + ":BAL=" + balance);
-            return balance;
-        }
 
-        public synchronized BigInteger getBalance() { return balance; }
-        public synchronized List<String> getHistory() { return new ArrayList<>(history); }
-    }
+    // Commands routed from the text protocol to handleCommand (BinaryCodec has an opcode for each)
+    private static final int MAX_TRANSFERS = 1000; // per BANK:BATCH
+    private static final Set<String> TEXT_COMMANDS = Set.of("BANK", "POLL", "LIST", "ROOM", "WHOAMI", "SAVELOG", "SEARCH", "KICK", "QUIT", "CALC");
 
-    // Poll class
-    private static class Poll {
-        final int id;
-        final String title;
-        final List<String> options;
-        final Map<Integer, Integer> votes = new HashMap<>();
+    // Chunked upload in progress. Each FILECHUNK is written at index * chunkSize into <name>.part as
+    // soon as it arrives (positional FileChannel.write) and the file is renamed at FILEEND, so the
+    // heap only ever holds the chunk being decoded, whatever the file size.
+    private static final class Upload {
+        final Path part;
+        final FileChannel channel;
+        int chunkSize = -1; // length of chunk 0; every chunk except the last has this length
+        long bytes = 0;
 
-        Poll(int id, String title, List<String> options) {
-            this.id = id; this.title = title; this.options = options;
-            for (int i = 0; i < options.size(); i++) votes.put(i, 0);
+        Upload(Path part) throws IOException {
+            this.part = part;
+            this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
         }
 
-        public synchronized void vote(int idx) { votes.put(idx, votes.getOrDefault(idx, 0) + 1); }
-
-        public synchronized String resultString() {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < options.size(); i++) {
-                if (i > 0) sb.append(",");
-                sb.append(options.get(i)).append("=").append(votes.getOrDefault(i, 0));
-            }
-            return sb.toString();
+        void abort() {
+            try { channel.close(); } catch (IOException ignored) {}
+            try { Files.deleteIfExists(part); } catch (IOException ignored) {}
         }
     }
 
-    // ClientHandler: handles a single connected socket
-    private class ClientHandler implements Runnable {
-        private final Socket socket;
-        private final BufferedReader in;
-        private final PrintWriter out;
+    // ClientHandler: handles a single connected client. Driven either by its own thread
+    // (run() reading into a ByteBuffer) or by NioEngine callbacks; both decode with the
+    // connection's WireCodec (text by default, binary after "PROTO:BIN") into the typed on* methods.
+    private class ClientHandler implements Runnable, NioEngine.Handler {
+        private final Socket socket;              // blocking mode only
+        private final NioEngine.Connection conn;  // NIO mode only
+        private final InputStream in;
+        private final OutputStream out;
+        private final ReentrantLock writeLock = new ReentrantLock(); // blocking mode: one frame at a time
+        private volatile WireCodec codec = new TextCodec();
         private final String clientId; // descriptive address-based id (not the user name)
         private String username = null; // the display username (may be 'user'+studentId or custom)
         private String rawId = null;    // the original ID sent by client (if any) - used to compute ID_RES when numeric
-        private String room = "Lobby";
-        // Buffer for incoming chunked file uploads: filename -> (index -> base64chunk)
-        private final Map<String, SortedMap<Integer,String>> chunkBuffers = new HashMap<>();
+        private volatile String room = "Lobby"; // changed by ROOM:join, read by cleanup on another thread
+        // Chunked uploads in progress: filename -> file being written (cleanup may run on another thread)
+        private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+        // Handshake state: optional PROTO, first line (ID or AUTH) -> optional AUTH retry -> normal commands
+        private static final int STAGE_HELLO = 0, STAGE_AUTH = 1, STAGE_READY = 2;
+        private int stage = STAGE_HELLO;
+        private volatile boolean closed = false;
+        private boolean cleanedUp = false;
 
         // Constructor changed to accept clientId for clearer logging and admin decisions.
         ClientHandler(Socket s, String clientId) throws IOException {
             this.socket = s;
+            this.conn = null;
+            this.clientId = clientId;
+            this.in = s.getInputStream();
+            this.out = s.getOutputStream();
+        }
+
+        ClientHandler(NioEngine.Connection c, String clientId) {
+            this.socket = null;
+            this.conn = c;
             this.clientId = clientId;
-            this.in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
-            this.out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
+            this.in = null;
+            this.out = null;
         }
 
-        // send a single-line message
+        @Override
+        public WireCodec codec() { return codec; }
+
+        // NIO: the handshake runs on the reactor (PROTO switches the codec for the next message);
+        // commands after it run in order on the handler executor
+        @Override
+        public boolean inline() { return stage != STAGE_READY; }
+
+        // send a single-line message (not logged: the history keeps what clients said, not every echo of it)
         public void send(String line) {
-            // Log outgoing message to server GUI & chat log
-            appendConsole("SEND to " + username + " => " + line);
-            out.println(line);
+            writeLine(line);
+        }
+
+        // one line in the connection's codec (send() and the handshake replies)
+        private void writeLine(String line) {
+            write(codec.encode(line));
+        }
+
+        private void write(ByteBuffer b) {
+            if (conn != null) { conn.write(b); return; }
+            writeLock.lock();
+            try {
+                out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            } catch (IOException e) {
+                close();
+            } finally { writeLock.unlock(); }
+        }
+
+        void close() {
+            closed = true;
+            if (conn != null) conn.close();
+            else try { socket.close(); } catch (IOException ignored) {}
+        }
+
+        SocketAddress remoteAddress() {
+            return conn != null ? conn.remoteAddress() : socket.getRemoteSocketAddress();
         }
 
         @Override
         public void run() {
+            ByteBuffer buf = ByteBuffer.allocate(16 * 1024);
             try {
-                String line;
-                // Optional AUTH flow: if ENABLE_AUTH == true, expect client to send
-                // AUTH:<username>:<password> as the first meaningful message. If the
-                // client sends something else, server replies AUTH_REQ and waits.
-                line = in.readLine();
-                if (line == null) return;
-                if (enableAuth) {
-                    // ensure we have an AUTH: token
-                    if (!line.startsWith("AUTH:")) {
-                        out.println("AUTH_REQ"); out.flush();
-                        line = in.readLine();
-                        if (line == null) return;
-                    }
-                    if (line.startsWith("AUTH:")) {
-                        String[] parts = line.split(":", 3);
-                        String au = parts.length>1?parts[1].trim():"";
-                        String ap = parts.length>2?parts[2].trim():"";
-                        String expected = credentials.get(au);
-                        if (expected != null && expected.equals(ap)) {
-                            out.println("AUTH_OK"); out.flush();
-                            username = au; // authenticated user becomes username
-                        } else {
-                            out.println("AUTH_FAIL"); out.flush();
-                            appendConsole("Auth failed for " + au + " from " + clientId);
-                            socket.close();
-                            return;
-                        }
-                    } else {
-                        out.println("AUTH_FAIL"); out.flush(); socket.close(); return;
-                    }
-                } else {
-                    // legacy behavior: accept ID:<id> or plain username as first token
-                    String rid;
-                    if (line.startsWith("ID:")) {
-                        rid = line.substring(3).trim();
-                    } else {
-                        rid = line.trim();
-                    }
-                    // If the client provided a purely numeric student ID, convert to display username 'user<ID>'
-                    if (rid.matches("\\d+")) {
-                         rawId = rid;
-                         username = "user" + rid; // canonical display name
-                     } else {
-                         // non-numeric: treat the provided token as username
-                         rawId = null;
-                         username = rid.isEmpty() ? null : rid;
-                     }
+                while (!closed) {
+                    int n = in.read(buf.array(), buf.position(), buf.remaining());
+                    if (n < 0) break;
+                    buf.position(buf.position() + n);
+                    buf.flip();
+                    while (!closed && codec.decode(buf, this)) { /* one message per call */ }
+                    buf.compact();
+                    if (!buf.hasRemaining()) buf = WireCodec.grow(buf);
                 }
+            } catch (IOException e) {
+                if (!closed) logConsole("Client error (" + clientId + "): " + e.getMessage());
+            } finally {
+                cleanup();
+            }
+        }
 
-                // Ensure unique username: if exists, append random suffix
-                synchronized (clients) {
-                    if (username == null || username.isEmpty()) username = "user" + rnd.nextInt(10000);
-                    if (clients.containsKey(username)) username = username + "_" + rnd.nextInt(1000);
-                    // If admin not set, first connected becomes admin
-                    if (adminUser == null) adminUser = username;
-                    clients.put(username, this);
-                    rooms.put(username, room);
+        @Override
+        public void onLine(String line) {
+            try {
+                if (stage == STAGE_READY) {
+                    // main read loop body
+                    if (line.trim().isEmpty()) return;
+                    handleLine(line);
+                } else {
+                    handshake(line);
                 }
+            } catch (IOException e) {
+                logConsole("Client error (" + clientId + "): " + e.getMessage());
+                close();
+            }
+        }
 
-                // Print both clientId and username for clarity
-                logConsole("Handler started for " + clientId + " -> username=" + username);
-                updateClientListUI();
+        // Typed frames are only valid after ID/AUTH; the handshake itself travels as text lines.
+        private boolean ready() {
+            if (stage == STAGE_READY) return true;
+            writeLine("ERR:Handshake not finished");
+            close();
+            return false;
+        }
 
-                // Send ID_OK and ID_RES (ID^4) as required
-                send("ID_OK:" + username);
-                // If we have rawId (numeric student id), compute rawId^4 and send ID_RES
-                if (rawId != null) {
-                    try {
-                        BigInteger n = new BigInteger(rawId);
-                        send("ID_RES:" + n.pow(4));
-                    } catch (Exception ignore) {}
+        @Override
+        public void onClose() { cleanup(); }
+
+        // Optional AUTH flow: if enableAuth == true, expect client to send
+        // AUTH:<username>:<password> as the first meaningful message. If the
+        // client sends something else, server replies AUTH_REQ and waits.
+        private void handshake(String line) throws IOException {
+            // Optional codec negotiation before ID/AUTH: PROTO:BIN switches both directions to
+            // binary frames after the (text) reply; anything else keeps the text protocol.
+            if (stage == STAGE_HELLO && line.startsWith("PROTO:")) {
+                if ("BIN".equalsIgnoreCase(line.substring(6).trim())) {
+                    writeLine("PROTO_OK:BIN");
+                    codec = new BinaryCodec();
+                } else writeLine("PROTO_OK:TEXT");
+                appendConsole("Protocol " + codec.name() + " for " + clientId);
+                return;
+            }
+            if (enableAuth) {
+                // ensure we have an AUTH: token
+                if (!line.startsWith("AUTH:")) {
+                    if (stage == STAGE_HELLO) { writeLine("AUTH_REQ"); stage = STAGE_AUTH; return; }
+                    writeLine("AUTH_FAIL"); close(); return;
+                }
+                String[] parts = line.split(":", 3);
+                String au = parts.length>1?parts[1].trim():"";
+                String ap = parts.length>2?parts[2].trim():"";
+                String expected = credentials.get(au);
+                if (expected != null && expected.equals(ap)) {
+                    writeLine("AUTH_OK");
+                    username = au; // authenticated user becomes username
                 } else {
-                    // if username itself is numeric (edge-case), try compute
-                    try {
-                        BigInteger n = new BigInteger(username);
-                        send("ID_RES:" + n.pow(4));
-                    } catch (Exception ignore) {}
+                    writeLine("AUTH_FAIL");
+                    appendConsole("Auth failed for " + au + " from " + clientId);
+                    close();
+                    return;
                 }
-                // Announce join. By default BROADCAST_ENABLED==true and server broadcasts joins and LIST.
-                appendChatLog("JOIN:" + username + ":" + clientId);
-                updateClientListUI();
-                if (BROADCAST_ENABLED) {
-                    broadcast("SYSTEM:" + username + " has joined");
-                    // Broadcast current online LIST to all clients so they can update in real-time
-                    broadcastList();
+            } else {
+                // legacy behavior: accept ID:<id> or plain username as first token
+                String rid;
+                if (line.startsWith("ID:")) {
+                    rid = line.substring(3).trim();
                 } else {
-                    // If you want "simple-mode" (server replies only to the connecting client), set BROADCAST_ENABLED=false above.
-                    send("SYSTEM:Connected (server-simple-mode)");
+                    rid = line.trim();
                 }
+                // If the client provided a purely numeric student ID, convert to display username 'user<ID>'
+                if (rid.matches("\\d+")) {
+                     rawId = rid;
+                     username = "user" + rid; // canonical display name
+                 } else {
+                     // non-numeric: treat the provided token as username
+                     rawId = null;
+                     username = rid.isEmpty() ? null : rid;
+                 }
+            }
+            stage = STAGE_READY;
+            join();
+        }
 
-                // main read loop
-                while ((line = in.readLine()) != null) {
-                    if (line.trim().isEmpty()) continue;
-                    handleLine(line);
-                }
-            } catch (IOException e) {
-                logConsole("Client error (" + clientId + "): " + e.getMessage());
-            } finally {
-                cleanup();
+        private void join() {
+            // Ensure unique username: if exists, append random suffix
+            synchronized (clients) {
+                if (username == null || username.isEmpty()) username = "user" + rnd.nextInt(10000);
+                if (clients.containsKey(username)) username = username + "_" + rnd.nextInt(1000);
+                // If admin not set, first connected becomes admin
+                if (adminUser == null) adminUser = username;
+                clients.put(username, this);
+                rooms.join(room, this);
+            }
+
+            // Print both clientId and username for clarity
+            logConsole("Handler started for " + clientId + " -> username=" + username);
+            clientsChanged();
+
+            // Send ID_OK and ID_RES (ID^4) as required
+            send("ID_OK:" + username);
+            // If we have rawId (numeric student id), compute rawId^4 and send ID_RES
+            if (rawId != null) {
+                try {
+                    BigInteger n = new BigInteger(rawId);
+                    send("ID_RES:" + n.pow(4));
+                } catch (Exception ignore) {}
+            } else {
+                // if username itself is numeric (edge-case), try compute
+                try {
+                    BigInteger n = new BigInteger(username);
+                    send("ID_RES:" + n.pow(4));
+                } catch (Exception ignore) {}
+            }
+            // Announce join. By default broadcastEnabled and server broadcasts joins and LIST.
+            appendChatLog("JOIN:" + username + ":" + clientId);
+            clientsChanged();
+            if (broadcastEnabled) {
+                broadcast("SYSTEM:" + username + " has joined");
+                // Full LIST to the newcomer now; everyone else gets the join in the next PRESENCE_DELTA
+                presence.joined(username, this);
+            } else {
+                // If you want "simple-mode" (server replies only to the connecting client), start with --broadcast=false.
+                send("SYSTEM:Connected (server-simple-mode)");
             }
         }
 
         private void cleanup() {
-            try { socket.close(); } catch (IOException ignored) {}
-            if (username != null) {
+            synchronized (this) {
+                if (cleanedUp) return; // NIO close and blocking finally may both land here
+                cleanedUp = true;
+            }
+            close();
+            for (Upload up : uploads.values()) up.abort(); // unfinished uploads leave no .part files behind
+            uploads.clear();
+            if (username != null && stage == STAGE_READY) {
                 clients.remove(username);
-                rooms.remove(username);
-                // Broadcast updated LIST so clients see the change immediately
-                if (BROADCAST_ENABLED) {
+                rooms.leave(room, this);
+                if (broadcastEnabled) {
                     broadcast("SYSTEM:" + username + " has left");
                     appendChatLog("LEFT:" + username);
-                    updateClientListUI();
-                    // Broadcast updated LIST so clients see the change immediately
-                    broadcastList();
+                    clientsChanged();
+                    presence.left(username);
                     if (username.equals(adminUser)) {
                         // new admin: pick any existing user
                         adminUser = clients.keySet().stream().findFirst().orElse(null);
@@ -508,119 +621,66 @@ public class Server {
             }
         }
 
-        // Build and broadcast LIST message to all clients (simple CSV of usernames + rooms summary)
-        private void broadcastList() {
-            String users = String.join(",", clients.keySet());
-            Map<String,Integer> roomCounts = new HashMap<>();
-            for (String r : rooms.values()) roomCounts.put(r, roomCounts.getOrDefault(r, 0) + 1);
-            String roomMap = roomCounts.toString();
-            for (ClientHandler ch : clients.values()) ch.send("LIST:" + users + ":ROOMS:" + roomMap);
-        }
-
-        // Handle a single incoming prefixed line
+        // Handle a single incoming text-protocol line: split off the prefix and call the same
+        // typed handlers the binary opcodes map to.
         private void handleLine(String line) {
-            String[] p = line.split(":", 3);
             // Simplified, prefix-free handling:
             // - File-related commands (FILE, FILEDATA, FILECHUNK, FILEEND, GETFILE) are processed as before.
             // - PRIV:<target>:<msg> still supported for private messages.
+            // - BANK/POLL/LIST/WHOAMI/SAVELOG/SEARCH/KICK/QUIT/CALC go to handleCommand.
             // - If the incoming content is a plain integer -> numeric handler (one active case implemented: n^4).
             // - Otherwise treat as plain text: broadcast message to room and return a small set of derived string results
             //   (UPPER, REV, COUNT, WCOUNT) directly to the sender.
             try {
                 // quick guard
                 if (line == null || line.trim().isEmpty()) return;
+                int firstColon = line.indexOf(':');
+                String prefix = firstColon < 0 ? line.trim() : line.substring(0, firstColon);
+                String rest = firstColon < 0 ? "" : line.substring(firstColon + 1);
 
                 // FILE family: preserve earlier robust handling that tolerates Windows paths with ':'
-                String prefix = p[0];
                 if ("FILE".equals(prefix) || "FILEDATA".equals(prefix) || "FILECHUNK".equals(prefix) || "FILEEND".equals(prefix) || "GETFILE".equals(prefix)) {
-                    int firstColon = line.indexOf(':');
                     if (firstColon < 0) { send("ERR:Malformed file command"); return; }
                     try {
-                        if ("FILE".equals(prefix)) {
-                            String abs = line.substring(firstColon + 1);
-                            String name = Paths.get(abs).getFileName().toString();
-                            send("READY:" + name);
-                            return;
-                        }
-                        if ("FILEDATA".equals(prefix)) {
-                            int lastColon = line.lastIndexOf(':');
-                            if (lastColon <= firstColon) { send("ERR:Malformed FILEDATA"); return; }
-                            String abs = line.substring(firstColon + 1, lastColon);
-                            String b64 = line.substring(lastColon + 1);
-                            byte[] data = Base64.getDecoder().decode(b64);
-                            String name = Paths.get(abs).getFileName().toString();
-                            Path target = Paths.get(DEFAULT_SAVE_DIR, name);
-                            try (FileOutputStream fos = new FileOutputStream(target.toFile())) { fos.write(data); }
-                            appendChatLog("FILE_UP:" + username + ":" + name + ":" + target.toAbsolutePath());
-                            send("FILE_OK:" + name + ":SAVED_AT:" + target.toAbsolutePath());
-                            if (BROADCAST_ENABLED) broadcastRoom(room, "FILE_BC:" + username + ":" + name);
-                            return;
-                        }
-                        if ("FILECHUNK".equals(prefix)) {
-                            int lastColon = line.lastIndexOf(':');
-                            int secondLast = line.lastIndexOf(':', lastColon - 1);
-                            if (secondLast <= firstColon || lastColon <= secondLast) { send("ERR:Malformed FILECHUNK"); return; }
-                            String abs = line.substring(firstColon + 1, secondLast);
-                            String idxS = line.substring(secondLast + 1, lastColon);
-                            String b64 = line.substring(lastColon + 1);
-                            int idx = Integer.parseInt(idxS);
-                            String name = Paths.get(abs).getFileName().toString();
-                            SortedMap<Integer, String> buf = chunkBuffers.computeIfAbsent(name, k -> new TreeMap<>());
-                            buf.put(idx, b64);
-                            send("FILECHUNK_OK:" + name + ":" + idx);
-                            return;
-                        }
-                        if ("FILEEND".equals(prefix)) {
-                            String abs = line.substring(firstColon + 1);
-                            String name = Paths.get(abs).getFileName().toString();
-                            SortedMap<Integer, String> buf = chunkBuffers.get(name);
-                            if (buf == null || buf.isEmpty()) { send("FILE_ERR:No chunks for " + name); return; }
-                            Path target = Paths.get(DEFAULT_SAVE_DIR, name);
-                            try (FileOutputStream fos = new FileOutputStream(target.toFile())) {
-                                for (Map.Entry<Integer, String> e : buf.entrySet()) {
-                                    byte[] part = Base64.getDecoder().decode(e.getValue());
-                                    fos.write(part);
-                                }
+                        switch (prefix) {
+                            case "FILE": onFileOffer(rest); return;
+                            case "FILEDATA": {
+                                int lastColon = line.lastIndexOf(':');
+                                if (lastColon <= firstColon) { send("ERR:Malformed FILEDATA"); return; }
+                                byte[] data = Base64.getDecoder().decode(line.substring(lastColon + 1));
+                                onFileData(line.substring(firstColon + 1, lastColon), ByteBuffer.wrap(data));
+                                return;
                             }
-                            chunkBuffers.remove(name);
-                            appendChatLog("FILE_UP:" + username + ":" + name + ":" + target.toAbsolutePath());
-                            send("FILE_OK:" + name + ":SAVED_AT:" + target.toAbsolutePath());
-                            if (BROADCAST_ENABLED) broadcastRoom(room, "FILE_BC:" + username + ":" + name);
-                            return;
-                        }
-                        if ("GETFILE".equals(prefix)) {
-                            String name = line.substring(firstColon + 1);
-                            Path target = Paths.get(DEFAULT_SAVE_DIR, name);
-                            if (Files.exists(target)) {
-                                byte[] data = Files.readAllBytes(target);
-                                String b64 = Base64.getEncoder().encodeToString(data);
-                                send("FILE_SEND:" + name + ":" + b64);
-                            } else send("FILE_SEND_ERR:Not found");
-                            return;
+                            case "FILECHUNK": {
+                                int lastColon = line.lastIndexOf(':');
+                                int secondLast = line.lastIndexOf(':', lastColon - 1);
+                                if (secondLast <= firstColon || lastColon <= secondLast) { send("ERR:Malformed FILECHUNK"); return; }
+                                int idx = Integer.parseInt(line.substring(secondLast + 1, lastColon));
+                                byte[] data = Base64.getDecoder().decode(line.substring(lastColon + 1));
+                                onFileChunk(line.substring(firstColon + 1, secondLast), idx, ByteBuffer.wrap(data));
+                                return;
+                            }
+                            case "FILEEND": onFileEnd(rest); return;
+                            default: onGetFile(rest, 0L); return;
                         }
                     } catch (IllegalArgumentException iae) {
                         send("ERR:Base64 decode error: " + iae.getMessage());
                         appendConsole("Base64 decode error for client " + username + ": " + iae.getMessage());
                         return;
-                    } catch (Exception ex) {
-                        send("ERR:File handling exception: " + ex.getMessage());
-                        appendConsole("File handling exception: " + ex);
-                        return;
                     }
                 }
 
                 // PRIVATE message (kept simple): PRIV:target:msg (optional prefix kept for private sends)
-                if (line.startsWith("PRIV:")) {
-                    String[] t = line.split(":",3);
-                    if (t.length >= 3) {
-                        String target = t[1].trim(); String msg = t[2];
-                        ClientHandler tgt = findHandler(target);
-                        if (tgt != null) { tgt.send("PRIV:" + username + ":" + msg); send("PRIV_SENT:" + target + ":" + msg); appendChatLog("PRIV_FROM:" + username + ":TO:" + target + ":" + msg); }
-                        else send("ERR:User not found");
-                    } else send("ERR:PRIV bad args");
+                if ("PRIV".equals(prefix)) {
+                    int c2 = rest.indexOf(':');
+                    if (c2 >= 0) onPriv(rest.substring(0, c2).trim(), rest.substring(c2 + 1));
+                    else send("ERR:PRIV bad args");
                     return;
                 }
 
+                // Commands with a dedicated handler (BANK:DEPOSIT:5, POLL:VOTE:1:0, LIST, SAVELOG, ...)
+                if (TEXT_COMMANDS.contains(prefix)) { handleCommand(prefix, rest, true); return; }
+
                 // Now: treat the entire line as user content (no prefix required)
                 String body = line.trim();
 
@@ -678,119 +738,401 @@ public class Server {
                  *    // UNCOMMENT_BROADCAST_TEMPLATE END
                  *
                  * ---------------- Note on streams and file transfer ----------------
-                 * The server currently uses character streams for messages (BufferedReader/PrintWriter)
-                 * and Base64-encoded blocks for file upload/download (client sends FILEDATA/FILECHUNK etc).
-                 * This is implemented using:
-                 *   - Reader: BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF-8));
-                 *   - Writer: PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), UTF-8), true);
-                 *   - For storing binary files on disk we use FileOutputStream and Base64 decoding.
-                 *
-                 * If you prefer raw binary transfers that do not require Base64 and avoid colon parsing
-                 * issues (recommended for large files), use the DataOutputStream/DataInputStream pattern.
-                 * Below is a small server-side skeleton (COMMENTED) you can enable. It must be used in
-                 * coordination with a client-side DataOutputStream sender (see Client.java template).
-                 *
-                 *    // UNCOMMENT_BINARY_SERVER_TEMPLATE START
-                 *    // // Example server-side binary receive (call from run-loop when expecting binary):
-                 *    // DataInputStream dis = new DataInputStream(socket.getInputStream());
-                 *    // String hdr = dis.readUTF(); // e.g. BFILE:<name>:<length>
-                 *    // // parse hdr then read exact number of bytes into file
-                 *    // long length = ...; // parsed
-                 *    // try (FileOutputStream fos = new FileOutputStream(targetFile)) {
-                 *    //    byte[] buf = new byte[8192]; long rem = length; while (rem>0) { int r = dis.read(buf,0,(int)Math.min(buf.length, rem)); if (r<0) throw new EOFException(); fos.write(buf,0,r); rem-=r; }
-                 *    // }
-                 *    // UNCOMMENT_BINARY_SERVER_TEMPLATE END
+                 * Incoming bytes are decoded by the connection's WireCodec. The default TextCodec keeps the
+                 * line protocol above (file upload/download as Base64 in FILEDATA/FILECHUNK/FILE_SEND lines).
+                 * A client that sends "PROTO:BIN" before ID/AUTH switches to BinaryCodec: length-prefixed
+                 * frames with one opcode per command and raw file bytes (no Base64, no colon parsing).
+                 * Both codecs end up in the same typed on* handlers below.
                  *
                  * When you uncomment any of the above templates: recompile server and client together.
                  * I added explicit marker comments (UNCOMMENT_SERVER_ONLY_TEMPLATE, UNCOMMENT_PRIV_TEMPLATE,
-                 * UNCOMMENT_BROADCAST_TEMPLATE, UNCOMMENT_BINARY_SERVER_TEMPLATE) so you can quickly find
+                 * UNCOMMENT_BROADCAST_TEMPLATE) so you can quickly find
                  * and enable them.
                  */
 
                 // Numeric detection (simple integer check). Active numeric behavior: compute n^4 and return to sender.
-                if (body.matches("^-?\\d+$")) {
-                    try {
-                        BigInteger n = new BigInteger(body);
-                        // ACTIVE: compute n^4 (required by spec) and send back to sender
-                        BigInteger pow4 = n.pow(4);
-                        send("CALC_RES:" + pow4);
+                if (body.matches("^-?\\d+$")) { onNumber(body); return; }
+
+                // Plain text handling (no prefix required)
+                onChat(body);
 
-                        // ACTIVE: sign info (simple human-friendly tag)
-                        if (n.compareTo(BigInteger.ZERO) > 0) send("NUM_SIGN:POS");
-                        else if (n.compareTo(BigInteger.ZERO) < 0) send("NUM_SIGN:NEG");
-                        else send("NUM_SIGN:ZERO");
+            } catch (Exception e) {
+                send("ERR:Exception " + e.getClass().getSimpleName() + " - " + e.getMessage());
+                logConsole("Exception in handler for " + username + ": " + e);
+            }
+        }
 
-                        // OPTIONAL CHECKS (many useful exam helpers) - KEEP COMMENTED BY DEFAULT
-                        // If you want more numeric diagnostics, uncomment any of the blocks below.
-                        // Each block sends one or more short responses back to the client. Example
-                        // usage: remove the surrounding comment markers and recompile.
-                        /* ----------------- OPTIONAL NUMERIC HELPERS -----------------
-                        // Binary / Hex representation
-                        send("BIN_RES:" + n.toString(2));
-                        send("HEX_RES:" + n.toString(16));
+        // ----------------- Typed handlers (TextCodec via handleLine, BinaryCodec directly) -----------------
 
-                        // Even / Odd
-                        if (n.mod(BigInteger.valueOf(2)).equals(BigInteger.ZERO)) send("EVENODD:even"); else send("EVENODD:odd");
+        @Override
+        public void onChat(String body) {
+            if (!ready()) return;
+            // Broadcast the raw message to everyone in the room
+            appendChatLog("MSG_FROM:" + username + "@" + room + ":" + body);
+            String ts = LogPipeline.now();
+            broadcastRoom(room, "MSG:" + username + ":" + ts + ":" + body);
+
+            // Also send a compact set of derived string results back to the sender (private feedback)
+            // Active string cases: UPPER, REV, COUNT, WCOUNT (uncomment other templates below to enable more)
+            send("TEXT_UPPER:" + body.toUpperCase(Locale.ROOT));
+            send("TEXT_REV:" + new StringBuilder(body).reverse().toString());
+            send("COUNT_RES:" + body.length());
+            send("WCOUNT_RES:" + (body.trim().isEmpty()?0:body.trim().split("\\\\s+").length));
+
+        // TEMPLATES (commented): additional string utilities you can enable by uncommenting
+        // send("ROT13:" + rot13(body));
+        // send("TRIM_RES:" + body.trim());
+        // send("SLUG:" + slugify(body));
+        // send("NO_VOWELS:" + body.replaceAll("(?i)[aeiou]",""));
+        // send("DIGITS_RES:" + body.replaceAll("[^0-9]",""));
+        // send("BYTES:" + body.getBytes(StandardCharsets.UTF_8).length);
+        }
 
-                        // Divisible by small numbers
-                        send("DIV3:" + (n.mod(BigInteger.valueOf(3)).equals(BigInteger.ZERO) ? "yes" : "no"));
-                        send("DIV5:" + (n.mod(BigInteger.valueOf(5)).equals(BigInteger.ZERO) ? "yes" : "no"));
+        @Override
+        public void onNumber(String digits) {
+            if (!ready()) return;
+            try {
+                BigInteger n = new BigInteger(digits.trim());
+                // ACTIVE: compute n^4 (required by spec) and send back to sender
+                BigInteger pow4 = n.pow(4);
+                send("CALC_RES:" + pow4);
+
+                // ACTIVE: sign info (simple human-friendly tag)
+                if (n.compareTo(BigInteger.ZERO) > 0) send("NUM_SIGN:POS");
+                else if (n.compareTo(BigInteger.ZERO) < 0) send("NUM_SIGN:NEG");
+                else send("NUM_SIGN:ZERO");
+
+                    // OPTIONAL CHECKS (many useful exam helpers) - KEEP COMMENTED BY DEFAULT
+                    // If you want more numeric diagnostics, uncomment any of the blocks below.
+                    // Each block sends one or more short responses back to the client. Example
+                    // usage: remove the surrounding comment markers and recompile.
+                    /* ----------------- OPTIONAL NUMERIC HELPERS -----------------
+                    // Binary / Hex representation
+                    send("BIN_RES:" + n.toString(2));
+                    send("HEX_RES:" + n.toString(16));
+
+                    // Even / Odd
+                    if (n.mod(BigInteger.valueOf(2)).equals(BigInteger.ZERO)) send("EVENODD:even"); else send("EVENODD:odd");
+
+                    // Divisible by small numbers
+                    send("DIV3:" + (n.mod(BigInteger.valueOf(3)).equals(BigInteger.ZERO) ? "yes" : "no"));
+                    send("DIV5:" + (n.mod(BigInteger.valueOf(5)).equals(BigInteger.ZERO) ? "yes" : "no"));
+
+                    // Prime check (uses probable prime test)
+                    send("IS_PRIME:" + (isPrime(n) ? "yes" : "no"));
+
+                    // Palindrome check (numeric string)
+                    String s = n.abs().toString(); send("IS_PALIN:" + (new StringBuilder(s).reverse().toString().equals(s) ? "yes" : "no"));
+
+                    // Digit sum and number of digits
+                    send("DIGIT_SUM:" + digitSum(n));
+                    send("NUM_DIGITS:" + s.length());
+
+                    // Small combinatorial helpers (commented heavy ops)
+                    // Uncomment with caution for big n:
+                    // send("FACT:" + factorial(n)); // expensive for large n
+                    // send("FIB:" + fibonacci(n.intValue())); // limited to moderate n
+
+                    // GCD example with a fixed value (template to extend)
+                    // send("GCD_WITH_1000:" + gcd(n, BigInteger.valueOf(1000)).toString());
+
+                    // END OPTIONAL
+                    -------------------------------------------------------------- */
+            } catch (Exception ex) {
+                send("NUM_ERR:invalid");
+            }
+        }
 
-                        // Prime check (uses probable prime test)
-                        send("IS_PRIME:" + (isPrime(n) ? "yes" : "no"));
+        @Override
+        public void onPriv(String target, String msg) {
+            if (!ready()) return;
+            if (!enablePrivmsg) { send("ERR:PRIV disabled"); return; }
+            ClientHandler tgt = findHandler(target);
+            if (tgt != null) { tgt.send("PRIV:" + username + ":" + msg); send("PRIV_SENT:" + target + ":" + msg); appendChatLog("PRIV_FROM:" + username + ":TO:" + target + ":" + msg); }
+            else send("ERR:User not found");
+        }
 
-                        // Palindrome check (numeric string)
-                        String s = n.abs().toString(); send("IS_PALIN:" + (new StringBuilder(s).reverse().toString().equals(s) ? "yes" : "no"));
+        @Override
+        public void onFileOffer(String path) {
+            if (!ready()) return;
+            try {
+                String name = fileName(path);
+                Upload stale = uploads.remove(name); // FILE starts over
+                if (stale != null) stale.abort();
+                send("READY:" + name);
+            } catch (Exception ex) { fileError(ex); }
+        }
 
-                        // Digit sum and number of digits
-                        send("DIGIT_SUM:" + digitSum(n));
-                        send("NUM_DIGITS:" + s.length());
+        // 'data' may be a view of the read buffer: consume it before returning
+        @Override
+        public void onFileData(String path, ByteBuffer data) {
+            if (!ready()) return;
+            try {
+                String name = fileName(path);
+                Path target = Paths.get(DEFAULT_SAVE_DIR, name);
+                try (FileOutputStream fos = new FileOutputStream(target.toFile())) {
+                    while (data.hasRemaining()) fos.getChannel().write(data);
+                }
+                appendChatLog("FILE_UP:" + username + ":" + name + ":" + target.toAbsolutePath());
+                send("FILE_OK:" + name + ":SAVED_AT:" + target.toAbsolutePath());
+                if (broadcastEnabled) broadcastRoom(room, "FILE_BC:" + username + ":" + name);
+            } catch (Exception ex) { fileError(ex); }
+        }
 
-                        // Small combinatorial helpers (commented heavy ops)
-                        // Uncomment with caution for big n:
-                        // send("FACT:" + factorial(n)); // expensive for large n
-                        // send("FIB:" + fibonacci(n.intValue())); // limited to moderate n
+        @Override
+        public void onFileChunk(String path, int index, ByteBuffer data) {
+            if (!ready()) return;
+            String name = null;
+            try {
+                name = fileName(path);
+                Upload up = uploads.get(name);
+                if (up == null) {
+                    if (index != 0) { send("FILE_ERR:Chunk 0 of " + name + " must come first"); return; }
+                    up = new Upload(Paths.get(DEFAULT_SAVE_DIR, name + ".part"));
+                    uploads.put(name, up);
+                }
+                int len = data.remaining();
+                if (index == 0) up.chunkSize = len;
+                else if (index < 0 || len > up.chunkSize) {
+                    uploads.remove(name).abort();
+                    send("FILE_ERR:Bad chunk " + index + " (" + len + " bytes) for " + name);
+                    return;
+                }
+                long offset = (long) index * up.chunkSize;
+                while (data.hasRemaining()) offset += up.channel.write(data, offset);
+                up.bytes += len;
+                send("FILECHUNK_OK:" + name + ":" + index);
+            } catch (Exception ex) {
+                Upload up = name == null ? null : uploads.remove(name);
+                if (up != null) up.abort();
+                fileError(ex);
+            }
+        }
 
-                        // GCD example with a fixed value (template to extend)
-                        // send("GCD_WITH_1000:" + gcd(n, BigInteger.valueOf(1000)).toString());
+        @Override
+        public void onFileEnd(String path) {
+            if (!ready()) return;
+            try {
+                String name = fileName(path);
+                Upload up = uploads.remove(name);
+                if (up == null) { send("FILE_ERR:No chunks for " + name); return; }
+                up.channel.close();
+                Path target = Paths.get(DEFAULT_SAVE_DIR, name);
+                Files.move(up.part, target, StandardCopyOption.REPLACE_EXISTING);
+                appendChatLog("FILE_UP:" + username + ":" + name + ":" + target.toAbsolutePath() + " (" + up.bytes + " bytes)");
+                send("FILE_OK:" + name + ":SAVED_AT:" + target.toAbsolutePath());
+                if (broadcastEnabled) broadcastRoom(room, "FILE_BC:" + username + ":" + name);
+            } catch (Exception ex) { fileError(ex); }
+        }
 
-                        // END OPTIONAL
-                        -------------------------------------------------------------- */
+        // Binary protocol: FILE_STREAM header, then FILE_PART frames filled by FileChannel.transferTo,
+        // so the file never enters the heap and any offset can be resumed. Text protocol keeps the
+        // single Base64 FILE_SEND line for existing clients.
+        @Override
+        public void onGetFile(String name, long offset) {
+            if (!ready()) return;
+            try {
+                Path target = Paths.get(DEFAULT_SAVE_DIR, fileName(name));
+                if (!Files.exists(target)) { send("FILE_SEND_ERR:Not found"); return; }
+                if (codec instanceof BinaryCodec) { streamFile(target, offset); return; }
+                byte[] data = Files.readAllBytes(target);
+                send("FILE_SEND:" + name + ":" + Base64.getEncoder().encodeToString(data));
+            } catch (Exception ex) { fileError(ex); }
+        }
 
-                        return;
-                    } catch (Exception ex) {
-                        send("NUM_ERR:invalid");
-                        return;
+        private void streamFile(Path target, long offset) throws IOException {
+            FileChannel fc = FileChannel.open(target, StandardOpenOption.READ);
+            long size;
+            try {
+                size = fc.size();
+            } catch (IOException e) {
+                fc.close();
+                throw e;
+            }
+            if (offset < 0 || offset > size) { fc.close(); send("FILE_SEND_ERR:Bad offset " + offset); return; }
+            String name = target.getFileName().toString();
+            appendConsole("SEND to " + username + " => FILE_STREAM:" + name + " (" + (size - offset) + " of " + size + " bytes from " + offset + ")");
+            write(BinaryCodec.fileStream(name, size, offset));
+            streamParts(fc, offset, size - offset);
+        }
+
+        // FILE_PART frames for [pos, pos + len) of fc, filled by transferTo; fc is closed once sent
+        // (by the reactor after the last part in NIO mode)
+        private void streamParts(FileChannel fc, long pos, long len) throws IOException {
+            boolean handedOff = false;
+            try {
+                WritableByteChannel sink = conn == null ? (socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out)) : null;
+                for (long end = pos + len; pos < end && !closed; ) {
+                    int n = (int) Math.min(BinaryCodec.FILE_PART_SIZE, end - pos);
+                    ByteBuffer header = BinaryCodec.filePartHeader(n);
+                    if (conn != null) {
+                        // queued behind earlier output; the reactor closes fc after the last part
+                        handedOff = pos + n == end;
+                        conn.transfer(header, fc, pos, n, handedOff);
+                    } else {
+                        // lock per part: other threads' frames may go out between parts
+                        writeLock.lock();
+                        try {
+                            out.write(header.array(), 0, header.limit());
+                            for (long done = 0; done < n; ) done += fc.transferTo(pos + done, n - done, sink);
+                        } finally { writeLock.unlock(); }
                     }
+                    pos += n;
                 }
+            } finally {
+                if (!handedOff) fc.close();
+            }
+        }
 
-                // Plain text handling (no prefix required)
-                // Broadcast the raw message to everyone in the room
-                appendChatLog("MSG_FROM:" + username + ":" + body);
-                String ts = df.format(new Date());
-                broadcast("MSG:" + username + ":" + ts + ":" + body);
-
-                // Also send a compact set of derived string results back to the sender (private feedback)
-                // Active string cases: UPPER, REV, COUNT, WCOUNT (uncomment other templates below to enable more)
-                send("TEXT_UPPER:" + body.toUpperCase(Locale.ROOT));
-                send("TEXT_REV:" + new StringBuilder(body).reverse().toString());
-                send("COUNT_RES:" + body.length());
-                send("WCOUNT_RES:" + (body.trim().isEmpty()?0:body.trim().split("\\\\s+").length));
-
-                // TEMPLATES (commented): additional string utilities you can enable by uncommenting
-                // send("ROT13:" + rot13(body));
-                // send("TRIM_RES:" + body.trim());
-                // send("SLUG:" + slugify(body));
-                // send("NO_VOWELS:" + body.replaceAll("(?i)[aeiou]",""));
-                // send("DIGITS_RES:" + body.replaceAll("[^0-9]",""));
-                // send("BYTES:" + body.getBytes(StandardCharsets.UTF_8).length);
+        // SAVELOG[:<from>[:<to>]] (times: epoch seconds or -30m/-2h/-1d, see ChatJournal.parseTime).
+        // Binary protocol: one FILE_STREAM "chat_log.txt" whose parts are sent from the journal
+        // segments with transferTo (zero-copy). Text protocol: one SAVELOG_LINE per journal line, read
+        // through a small buffer. Either way the reply is not echoed into the log line by line.
+        private void sendLog(String arg) throws IOException {
+            String[] t = arg.split(":", 2);
+            long now = System.currentTimeMillis(), from, to;
+            try {
+                from = ChatJournal.parseTime(t[0], now, Long.MIN_VALUE);
+                to = t.length > 1 ? ChatJournal.parseTime(t[1], now, Long.MAX_VALUE) : Long.MAX_VALUE;
+            } catch (RuntimeException e) {
+                send("ERR:SAVELOG bad time: " + arg);
+                return;
+            }
+            long[] r = journal.range(from, to);
+            List<ChatJournal.Slice> slices = journal.slices(r[0], r[1]);
+            long size = ChatJournal.size(slices);
+            appendConsole("SEND to " + username + " => SAVELOG " + size + " bytes (journal " + r[0] + ".." + r[1] + ")");
+            if (codec instanceof BinaryCodec) {
+                write(BinaryCodec.fileStream("chat_log.txt", size, 0));
+                for (ChatJournal.Slice sl : slices) {
+                    if (closed) break;
+                    streamParts(FileChannel.open(sl.file, StandardOpenOption.READ), sl.position, sl.length);
+                }
+            } else {
+                ChatJournal.lines(slices, line -> writeLine("SAVELOG_LINE:" + line));
+            }
+            send("SAVELOG_DONE");
+        }
 
-            } catch (Exception e) {
-                send("ERR:Exception " + e.getClass().getSimpleName() + " - " + e.getMessage());
-                logConsole("Exception in handler for " + username + ": " + e);
+        private String fileName(String path) { return Paths.get(path).getFileName().toString(); }
+
+        private void fileError(Exception ex) {
+            send("ERR:File handling exception: " + ex.getMessage());
+            appendConsole("File handling exception: " + ex);
+        }
+
+        // amount == null: action given without an amount
+        @Override
+        public void onBank(String action, String amount) {
+            if (!ready()) return;
+            if (!enableBank) { send("ERR:BANK disabled"); return; }
+            String act = action.toUpperCase(Locale.ROOT);
+            if ("BALANCE".equals(act)) { send("BANK_BAL:" + BankLedger.format(bank.balance(username))); return; }
+            if ("TRANSFER".equals(act) || "BATCH".equals(act)) { onTransfer(act, amount); return; }
+            if ("STATS".equals(act)) { send("BANK_STATS:" + bank.describe()); return; }
+            if (!"DEPOSIT".equals(act) && !"WITHDRAW".equals(act)) { send("BANK_ERR:unknown"); return; }
+            long cents;
+            CompletableFuture<Long> op;
+            try {
+                cents = BankLedger.parseCents(amount);
+                op = "DEPOSIT".equals(act) ? bank.deposit(username, cents) : bank.withdraw(username, cents, BankLedger.WAIT_MILLIS);
+            } catch (IllegalArgumentException ex) { send("BANK_ERR:bad_amount"); return; }
+            String user = username;
+            bankReply(op, (bal, err) -> {
+                if (err instanceof BankLedger.InsufficientFundsException) send("BANK_ERR:insufficient");
+                else if (err != null) send("BANK_ERR:unavailable");
+                else {
+                    appendBankLog(user + ":" + act + ":" + BankLedger.format(cents) + ":BAL=" + BankLedger.format(bal));
+                    send("BANK_OK:" + act + ":" + BankLedger.format(bal));
+                }
+            });
+        }
+
+        // TRANSFER:<to>:<amount>, or BATCH:<to>:<amount>[,<to>:<amount>...] applied all or nothing.
+        // The reply ends with the time to durable in microseconds; connected recipients get BANK_IN.
+        private void onTransfer(String act, String arg) {
+            List<BankLedger.Transfer> batch = new ArrayList<>();
+            Map<String, Long> in = new LinkedHashMap<>(); // recipient -> total
+            String user = username;
+            CompletableFuture<Long> op;
+            try {
+                for (String item : (arg == null ? "" : arg).split(",")) {
+                    int c = item.lastIndexOf(':');
+                    if (c <= 0) throw new IllegalArgumentException("bad transfer");
+                    String to = item.substring(0, c).trim();
+                    if (to.equals(username)) { send("BANK_ERR:bad_target"); return; }
+                    if (!clients.containsKey(to) && !bank.exists(to)) { send("BANK_ERR:unknown_user:" + to); return; }
+                    long cents = BankLedger.parseCents(item.substring(c + 1));
+                    batch.add(new BankLedger.Transfer(username, to, cents));
+                    in.merge(to, cents, Long::sum);
+                }
+                if (batch.size() > MAX_TRANSFERS || ("TRANSFER".equals(act) && batch.size() != 1)) throw new IllegalArgumentException("bad batch");
+                op = bank.transfer(batch).thenApply(v -> bank.balance(user));
+            } catch (IllegalArgumentException | ArithmeticException ex) { send("BANK_ERR:bad_amount"); return; }
+            long t0 = System.nanoTime();
+            bankReply(op, (bal, err) -> {
+                long micros = (System.nanoTime() - t0) / 1000;
+                if (err instanceof BankLedger.InsufficientFundsException) { send("BANK_ERR:insufficient"); return; }
+                if (err != null) { send("BANK_ERR:unavailable"); return; }
+                long total = 0;
+                for (Map.Entry<String, Long> e : in.entrySet()) {
+                    total += e.getValue();
+                    ClientHandler h = clients.get(e.getKey());
+                    if (h != null) h.send("BANK_IN:" + user + ":" + BankLedger.format(e.getValue()) + ":" + BankLedger.format(bank.balance(e.getKey())));
+                }
+                String what = batch.size() == 1 ? batch.get(0).to : batch.size() + " transfers";
+                appendBankLog(user + ":" + act + ":" + what + ":" + BankLedger.format(total) + ":BAL=" + BankLedger.format(bal) + ":" + micros + "us");
+                if ("BATCH".equals(act)) send("BANK_OK:BATCH:" + batch.size() + ":" + BankLedger.format(bal) + ":" + micros + "us");
+                else send("BANK_OK:TRANSFER:" + BankLedger.format(bal) + ":" + micros + "us");
+            });
+        }
+
+        // The ledger completes op when its WAL batch is forced, a deposit covers a waiting withdraw or
+        // the wait times out. Nobody waits for it: NIO replies from there (conn.write only queues), thread
+        // per client from a handler-executor task, so a slow socket never holds up the ledger or timer.
+        private void bankReply(CompletableFuture<Long> op, BiConsumer<Long, Throwable> reply) {
+            if (conn != null) op.whenComplete((bal, err) -> reply.accept(bal, unwrap(err)));
+            else op.whenCompleteAsync((bal, err) -> reply.accept(bal, unwrap(err)), HandlerExecutor.executor());
+        }
+
+        @Override
+        public void onPollCreate(String title, List<String> opts) {
+            if (!ready()) return;
+            if (!enablePoll) { send("ERR:POLL disabled"); return; }
+            int id = pollCounter.incrementAndGet();
+            polls.put(id, new PollTally(id, title, opts, (p, changes) -> broadcast("POLL_RES:" + p.id + ":" + changes)));
+            broadcast("POLL_NEW:"+id+":"+title+":"+opts); send("POLL_OK:CREATED:"+id);
+        }
+
+        @Override
+        public void onPollVote(int id, int idx) {
+            if (!ready()) return;
+            if (!enablePoll) { send("ERR:POLL disabled"); return; }
+            PollTally pol = polls.get(id);
+            if (pol == null) { send("POLL_ERR:unknown"); return; }
+            switch (pol.vote(username, idx)) { // counts go out with the next POLL_RES
+                case VOTED -> send("POLL_OK:VOTED");
+                case CHANGED -> send("POLL_OK:CHANGED");
+                case SAME -> send("POLL_ERR:already_voted");
+                case BAD_OPTION -> send("POLL_ERR:bad_option");
             }
         }
 
+        // POLL:RETRACT:<id> takes the user's vote back; POLL:STATS:<id> reports voters and bitmap memory
+        private void onPollAdmin(String act, String arg) {
+            PollTally pol;
+            try { pol = polls.get(Integer.parseInt(arg.trim())); } catch (NumberFormatException e) { send("POLL_ERR"); return; }
+            if (pol == null) send("POLL_ERR:unknown");
+            else if ("STATS".equals(act)) send("POLL_STATS:" + pol.id + ":" + pol.describe());
+            else if (pol.retract(username)) send("POLL_OK:RETRACTED");
+            else send("POLL_ERR:not_voted");
+        }
+
+        @Override
+        public void onCommand(String command, String arg) {
+            if (ready()) handleCommand(command, arg, true);
+        }
+
         // Centralized command handler used by both simple and full modes.
         // senderOnly==true => send responses only to the originating client; otherwise broadcast where appropriate.
         private void handleCommand(String prefix, String payload, boolean senderOnly) {
@@ -798,18 +1140,18 @@ public class Server {
                 switch (prefix) {
                     // ----------------- Messaging -----------------
                     case "MSG": {
-                        appendChatLog("MSG_FROM:" + username + ":" + payload);
-                        // Plain messages are broadcast to all clients by default.
+                        appendChatLog("MSG_FROM:" + username + "@" + room + ":" + payload);
+                        // Plain messages are broadcast to the sender's room (everyone starts in Lobby).
                         // If a client explicitly used the SERVER: prefix to request a private
                         // server response then that is handled via other commands.
-                        String ts = df.format(new Date());
-                        broadcast("MSG:" + username + ":" + ts + ":" + payload);
+                        String ts = LogPipeline.now();
+                        broadcastRoom(room, "MSG:" + username + ":" + ts + ":" + payload);
                         break;
                     }
 
                     // ----------------- Private message example -----------------
                     case "PRIV": {
-                        if (!ENABLE_PRIVMSG) { send("ERR:PRIV disabled"); break; }
+                        if (!enablePrivmsg) { send("ERR:PRIV disabled"); break; }
                         // expected payload: target:message
                         String[] t = payload.split(":",2);
                         if (t.length>=2) {
@@ -833,59 +1175,79 @@ public class Server {
 
                     // ----------------- List / Whoami -----------------
                     case "LIST": {
-                        String users = String.join(",", clients.keySet());
-                        Map<String,Integer> roomCounts = new HashMap<>();
-                        for (String u : rooms.values()) roomCounts.put(u, roomCounts.getOrDefault(u,0)+1);
-                        if (senderOnly) send("LIST:" + users + ":ROOMS:" + roomCounts); else broadcast("LIST:" + users + ":ROOMS:" + roomCounts);
+                        if (senderOnly) send(listLine()); else broadcast(listLine());
+                        break;
+                    }
+                    // ROOM:join:<name> / ROOM:create:<name> (same thing: rooms exist while they have members), ROOM:leave -> Lobby
+                    case "ROOM": {
+                        String[] r = payload.split(":", 2);
+                        String action = r[0].trim().toLowerCase(Locale.ROOT);
+                        String target = action.equals("leave") ? "Lobby" : (r.length > 1 ? r[1].trim() : "");
+                        if (!(action.equals("join") || action.equals("create") || action.equals("leave"))) { send("ERR:ROOM bad args"); break; }
+                        if (target.isEmpty() || target.matches(".*[:,={}@].*")) { send("ERR:ROOM bad name"); break; }
+                        String from;
+                        synchronized (this) { // against cleanup(): once it ran, this handler stays out of the index
+                            if (cleanedUp) break;
+                            from = room;
+                            room = target;
+                            rooms.move(from, target, this);
+                        }
+                        send("ROOM_OK:" + target + ":" + rooms.count(target));
+                        appendChatLog("ROOM:" + username + ":" + from + "->" + target);
+                        if (broadcastEnabled) presence.roomsChanged();
                         break;
                     }
-                    case "WHOAMI": { send("WHOAMI:" + username + ":rawId:" + (rawId==null?"(none)":rawId) + ":addr:" + socket.getRemoteSocketAddress() + ":room:" + room); break; }
+                    case "WHOAMI": { send("WHOAMI:" + username + ":rawId:" + (rawId==null?"(none)":rawId) + ":addr:" + remoteAddress() + ":room:" + room); break; }
 
                     // ----------------- File / GETFILE handling already done above; here we only notify -----------------
                     case "SAVELOG": {
-                        if (!ENABLE_SAVELOG) { send("ERR:SAVELOG disabled"); break; }
-                        for (String h : chatHistory) send("SAVELOG_LINE:" + h);
-                        send("SAVELOG_DONE");
+                        if (!enableSavelog) { send("ERR:SAVELOG disabled"); break; }
+                        sendLog(payload);
+                        break;
+                    }
+
+                    // SEARCH:<terms>[:room][:since][:page] -> SEARCH_RES:<page>:<pages>:<total>, SEARCH_HIT:<line>..., SEARCH_DONE
+                    // (newest first; room empty = all rooms; since as in SAVELOG: epoch seconds or -30m/-2h/-7d)
+                    case "SEARCH": {
+                        if (!enableSavelog) { send("ERR:SEARCH disabled"); break; }
+                        String[] q = payload.split(":", 4);
+                        long since;
+                        int page;
+                        try {
+                            since = q.length > 2 ? ChatJournal.parseTime(q[2], System.currentTimeMillis(), Long.MIN_VALUE) : Long.MIN_VALUE;
+                            page = q.length > 3 && !q[3].isBlank() ? Math.max(1, Integer.parseInt(q[3].trim())) : 1;
+                        } catch (RuntimeException e) { send("ERR:SEARCH bad args"); break; }
+                        ChatIndex.Page res = search.search(q[0], q.length > 1 ? q[1].trim() : "", since, page);
+                        send("SEARCH_RES:" + res.page + ":" + res.pages + ":" + res.total);
+                        for (String hit : res.lines) writeLine("SEARCH_HIT:" + hit); // not echoed into the log
+                        send("SEARCH_DONE");
                         break;
                     }
 
                     // ----------------- Bank example (simple) -----------------
                     case "BANK": {
-                        if (!ENABLE_BANK) { send("ERR:BANK disabled"); break; }
-                        String[] t = payload.split(":",3);
-                        if (t.length>=1) {
-                            String act = t[0].toUpperCase(Locale.ROOT);
-                            accounts.putIfAbsent(username, new BankAccount());
-                            BankAccount acc = accounts.get(username);
-                            if ("DEPOSIT".equals(act) && t.length>=2) {
-                                try { BigInteger amt = new BigInteger(t[1].trim()); BigInteger bal = acc.deposit(amt); appendBankLog(username+":DEPOSIT:"+amt+":BAL="+bal); send("BANK_OK:DEPOSIT:"+bal); } catch(Exception ex){ send("BANK_ERR:bad_amount");}
-                            } else if ("WITHDRAW".equals(act) && t.length>=2) {
-                                try { BigInteger amt = new BigInteger(t[1].trim()); try { BigInteger bal = acc.withdraw(amt); appendBankLog(username+":WITHDRAW:"+amt+":BAL="+bal); send("BANK_OK:WITHDRAW:"+bal); } catch(InterruptedException ie){ send("BANK_ERR:timeout"); } } catch(Exception ex){ send("BANK_ERR:bad_amount"); }
-                            } else if ("BALANCE".equals(act)) {
-                                send("BANK_BAL:" + acc.getBalance());
-                            } else send("BANK_ERR:unknown");
-                        }
+                        String[] t = payload.split(":",2); // action, then its argument (TRANSFER: to:amount)
+                        onBank(t[0], t.length>=2 ? t[1] : null);
                         break;
                     }
 
                     // ----------------- Poll example -----------------
                     case "POLL": {
-                        if (!ENABLE_POLL) { send("ERR:POLL disabled"); break; }
                         String[] t = payload.split(":",3);
-                        if (t.length>=1) {
-                            String act = t[0].toUpperCase(Locale.ROOT);
-                            if ("CREATE".equals(act) && t.length>=3) {
-                                int id = ++pollCounter; List<String> opts = Arrays.asList(t[2].split(",")); Poll p = new Poll(id, t[1], opts); polls.put(id, p); broadcast("POLL_NEW:"+id+":"+t[1]+":"+opts); send("POLL_OK:CREATED:"+id);
-                            } else if ("VOTE".equals(act) && t.length>=3) {
-                                try { int id = Integer.parseInt(t[1]); int idx = Integer.parseInt(t[2]); Poll pol = polls.get(id); if (pol!=null) { pol.vote(idx); broadcast("POLL_RES:"+id+":"+pol.resultString()); send("POLL_OK:VOTED"); } else send("POLL_ERR:unknown"); } catch(Exception ex){ send("POLL_ERR"); }
-                            }
+                        String act = t[0].toUpperCase(Locale.ROOT);
+                        if ("CREATE".equals(act) && t.length>=3) {
+                            onPollCreate(t[1], Arrays.asList(t[2].split(",")));
+                        } else if ("VOTE".equals(act) && t.length>=3) {
+                            try { onPollVote(Integer.parseInt(t[1].trim()), Integer.parseInt(t[2].trim())); } catch(NumberFormatException ex){ send("POLL_ERR"); }
+                        } else if (("RETRACT".equals(act) || "STATS".equals(act)) && t.length>=2) {
+                            if (enablePoll) onPollAdmin(act, t[1]); else send("ERR:POLL disabled");
                         }
                         break;
                     }
 
                     case "KICK": {
-                        if (!ENABLE_KICK) { send("ERR:KICK disabled"); break; }
-                        String who = payload.trim(); if (!username.equals(adminUser)) { send("ERR:Not admin"); } else { ClientHandler ch = findHandler(who); if (ch!=null) { ch.send("SYSTEM:You are kicked by admin"); try { ch.socket.close(); } catch(IOException ignored){} broadcast("SYSTEM:"+who+" was kicked by " + username); } }
+                        if (!enableKick) { send("ERR:KICK disabled"); break; }
+                        String who = payload.trim(); if (!username.equals(adminUser)) { send("ERR:Not admin"); } else { ClientHandler ch = findHandler(who); if (ch!=null) { ch.send("SYSTEM:You are kicked by admin"); ch.close(); broadcast("SYSTEM:"+who+" was kicked by " + username); } }
                         break;
                     }
 
@@ -893,8 +1255,8 @@ public class Server {
                     case "QUIT": {
                         appendChatLog("QUIT_REQUEST:" + username);
                         // Inform others and close this connection
-                        if (BROADCAST_ENABLED) broadcast("SYSTEM:" + username + " is leaving (QUIT)");
-                        try { socket.close(); } catch (IOException ignored) {}
+                        if (broadcastEnabled) broadcast("SYSTEM:" + username + " is leaving (QUIT)");
+                        close();
                         break;
                     }
 
@@ -940,14 +1302,24 @@ public class Server {
         }
     }
 
-    public static void main(String[] args) {
-        int port = 5000;
-        Server server = new Server(port);
-        server.initializeGUI();
-        SwingUtilities.invokeLater(() -> {
-            server.startServer();
-            server.appendConsole("(Auto-start) Server started on port " + port);
-        });
+    // java bigtest.Server [nio] [--config=server.properties] [--headless] [--port=5000] [--engine=nio] [--auth] [--ssl] ...
+    // (keys: see ServerConfig)
+    public static void main(String[] args) throws IOException {
+        ServerConfig cfg;
+        try {
+            cfg = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Bad argument: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        Server server = new Server(cfg);
+        server.logConsole("Config: " + cfg.describe());
+        if (cfg.gui) {
+            ServerGui.show(server, cfg.port); // attaches, then auto-starts the listener
+        } else {
+            server.start();
+        }
     }
 
     // ---------- Numeric helper implementations (small, safe) ----------
@@ -0,0 +1,83 @@
+package bigtest;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/* ServerConfig - startup settings of bigtest.Server, from a properties file and/or command-line flags.
+   Keys (file: key=value, command line: --key=value, or --key alone for true):
+     port=5000            engine=blocking|nio      gui=true|false (--headless = gui=false)
+     auth=false           ssl=false                ssl.keystore=./server_keystore.jks  ssl.password=123456
+     broadcast=true       poll=true  bank=true  kick=true  savelog=true  privmsg=true
+   --config=<file> loads a properties file first; later flags override it. A bare first argument is
+   the engine (old usage: java bigtest.Server nio). Defaults are the previous compile-time values;
+   -Dbigtest.engine still sets the engine, and -Djava.awt.headless=true implies gui=false.
+*/
+final class ServerConfig {
+    int port = 5000;
+    String engine = System.getProperty("bigtest.engine", Server.ENGINE_BLOCKING);
+    boolean gui = !Boolean.getBoolean("java.awt.headless");
+    boolean auth = false;
+    boolean ssl = false;
+    String sslKeystore = "./server_keystore.jks";
+    String sslPassword = "123456";
+    boolean broadcast = true;
+    boolean poll = true;
+    boolean bank = true;
+    boolean kick = true;
+    boolean savelog = true;
+    boolean privmsg = true;
+
+    static ServerConfig parse(String[] args) throws IOException {
+        Properties p = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (i == 0 && !a.startsWith("--")) { p.setProperty("engine", a); continue; }
+            if (!a.startsWith("--")) throw new IllegalArgumentException("unexpected argument: " + a);
+            int eq = a.indexOf('=');
+            String key = eq < 0 ? a.substring(2) : a.substring(2, eq);
+            String value = eq < 0 ? "true" : a.substring(eq + 1);
+            if (key.equals("config")) {
+                try (Reader r = Files.newBufferedReader(Paths.get(value), StandardCharsets.UTF_8)) { p.load(r); }
+            } else if (key.equals("headless")) {
+                p.setProperty("gui", String.valueOf(!Boolean.parseBoolean(value)));
+            } else {
+                p.setProperty(key, value);
+            }
+        }
+        ServerConfig c = new ServerConfig();
+        c.apply(p);
+        return c;
+    }
+
+    private void apply(Properties p) {
+        for (String key : p.stringPropertyNames()) {
+            String v = p.getProperty(key).trim();
+            switch (key) {
+                case "port": port = Integer.parseInt(v); break;
+                case "engine": engine = v; break;
+                case "gui": gui = Boolean.parseBoolean(v); break;
+                case "auth": auth = Boolean.parseBoolean(v); break;
+                case "ssl": ssl = Boolean.parseBoolean(v); break;
+                case "ssl.keystore": sslKeystore = v; break;
+                case "ssl.password": sslPassword = v; break;
+                case "broadcast": broadcast = Boolean.parseBoolean(v); break;
+                case "poll": poll = Boolean.parseBoolean(v); break;
+                case "bank": bank = Boolean.parseBoolean(v); break;
+                case "kick": kick = Boolean.parseBoolean(v); break;
+                case "savelog": savelog = Boolean.parseBoolean(v); break;
+                case "privmsg": privmsg = Boolean.parseBoolean(v); break;
+                default: throw new IllegalArgumentException("unknown setting: " + key);
+            }
+        }
+    }
+
+    String describe() {
+        return "port=" + port + " engine=" + engine + " gui=" + gui + " auth=" + auth + " ssl=" + ssl
+                + " broadcast=" + broadcast + " poll=" + poll + " bank=" + bank + " kick=" + kick
+                + " savelog=" + savelog + " privmsg=" + privmsg;
+    }
+}
@@ -0,0 +1,96 @@
+package bigtest;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.swing.*;
+import tools.LogPanel;
+
+/* ServerGui - the optional Swing window of bigtest.Server (pink theme, Times New Roman logs):
+   log panel, client list with count and Start/Stop buttons. It attaches to the server as its
+   ServerObserver, so only a GUI start loads Swing/AWT; a headless server never does.
+*/
+final class ServerGui implements ServerObserver {
+    private final Server server;
+    private final LogPanel logPanel; // bounded, repainted by its own timer; append() from any thread
+    private DefaultListModel<String> clientListModel;
+    private JScrollPane listScroll;
+    private JButton btnStart;
+    private JButton btnStop;
+
+    private ServerGui(Server server) {
+        this.server = server;
+        this.logPanel = new LogPanel(new Font("Times New Roman", Font.PLAIN, 12), new Color(255, 240, 245));
+    }
+
+    // Build and show the window (on the EDT), attach it to the server, then auto-start the listener
+    static void show(Server server, int port) {
+        SwingUtilities.invokeLater(() -> {
+            ServerGui gui = new ServerGui(server);
+            gui.build();
+            server.setObserver(gui);
+            server.appendConsole("GUI initialized. Port: " + port);
+            new Thread(() -> {
+                server.startServer();
+                server.appendConsole("(Auto-start) Server started on port " + port);
+            }, "server-start").start();
+        });
+    }
+
+    private void build() {
+        JFrame frame = new JFrame("NPR Server - Pink GUI");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setSize(900, 600);
+
+        // Top control panel with Start/Stop
+        JPanel control = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        btnStart = new JButton("Start Server");
+        btnStop = new JButton("Stop Server"); btnStop.setEnabled(false);
+        control.add(btnStart); control.add(btnStop);
+
+        // Client list (with titled border that shows connected count)
+        clientListModel = new DefaultListModel<>();
+        JList<String> clientList = new JList<>(clientListModel);
+        clientList.setFont(new Font("Times New Roman", Font.PLAIN, 13));
+        listScroll = new JScrollPane(clientList);
+        listScroll.setBorder(BorderFactory.createTitledBorder("Clients (0)"));
+
+        JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, logPanel, listScroll);
+        split.setDividerLocation(650);
+
+        frame.getContentPane().setBackground(new Color(255, 192, 203)); // pink theme background
+        frame.getContentPane().setLayout(new BorderLayout());
+        frame.getContentPane().add(control, BorderLayout.NORTH);
+        frame.getContentPane().add(split, BorderLayout.CENTER);
+
+        // Start/stop may block briefly (bind, closing sockets): keep it off the EDT
+        btnStart.addActionListener(e -> new Thread(server::startServer, "server-start").start());
+        btnStop.addActionListener(e -> new Thread(server::stopServer, "server-stop").start());
+
+        frame.setVisible(true);
+    }
+
+    @Override
+    public void logLines(List<String> lines) {
+        logPanel.appendAll(lines);
+    }
+
+    @Override
+    public void clientsChanged(Collection<String> users) {
+        List<String> copy = new ArrayList<>(users);
+        SwingUtilities.invokeLater(() -> {
+            clientListModel.clear();
+            for (String u : copy) clientListModel.addElement(u);
+            listScroll.setBorder(BorderFactory.createTitledBorder("Clients (" + copy.size() + ")"));
+        });
+    }
+
+    @Override
+    public void runningChanged(boolean running) {
+        SwingUtilities.invokeLater(() -> {
+            btnStart.setEnabled(!running);
+            btnStop.setEnabled(running);
+        });
+    }
+}
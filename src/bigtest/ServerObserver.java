@@ -0,0 +1,19 @@
+package bigtest;
+
+import java.util.Collection;
+import java.util.List;
+
+/* ServerObserver - what a front end (the Swing ServerGui) gets from a running bigtest.Server.
+   The server core never touches Swing: without an observer it runs headless. Callbacks come from
+   server threads (log writer, client handlers); an implementation moves the work to its own thread.
+*/
+interface ServerObserver {
+    // A batch of log lines, in order (from the LogPipeline writer thread)
+    void logLines(List<String> lines);
+
+    // Someone joined or left; users is a live view, copy what you keep
+    void clientsChanged(Collection<String> users);
+
+    // The listener was started or stopped
+    void runningChanged(boolean running);
+}
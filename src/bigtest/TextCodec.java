@@ -0,0 +1,36 @@
+package bigtest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Line protocol: every message is UTF-8 text terminated by '\n' ("\r\n" accepted).
+final class TextCodec implements WireCodec {
+    private int scanned = 0; // bytes after in.position() already checked for '\n'
+
+    @Override
+    public String name() { return "TEXT"; }
+
+    @Override
+    public boolean decode(ByteBuffer in, Commands out) throws IOException {
+        int start = in.position();
+        int end = in.limit();
+        for (int i = start + scanned; i < end; i++) {
+            if (in.get(i) != '\n') continue;
+            int stop = (i > start && in.get(i - 1) == '\r') ? i - 1 : i;
+            String line = new String(in.array(), in.arrayOffset() + start, stop - start, StandardCharsets.UTF_8);
+            in.position(i + 1);
+            scanned = 0;
+            out.onLine(line);
+            return true;
+        }
+        scanned = end - start;
+        if (scanned >= MAX_MESSAGE) throw new IOException("line longer than " + MAX_MESSAGE + " bytes");
+        return false;
+    }
+
+    @Override
+    public ByteBuffer encode(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,52 @@
+package bigtest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/* WireCodec - pluggable framing for bigtest client/server traffic.
+   TextCodec  : the original protocol, one UTF-8 line per message ("PREFIX:args").
+   BinaryCodec: type byte + int length + payload, one opcode per command; payload fields are
+                read in place from the receive buffer (no split/regex, no Base64 for file data).
+   A connection starts as text; the client switches with "PROTO:BIN" before ID/AUTH (see Server).
+   Codecs are per connection (TextCodec remembers how far it has scanned).
+*/
+interface WireCodec {
+    int MAX_MESSAGE = 16 * 1024 * 1024; // largest line or frame accepted
+
+    String name();
+
+    // Decode one message from 'in' (read mode) and dispatch it. Returns false when 'in' does not
+    // hold a complete message yet; the caller then compacts, reads more and calls again.
+    boolean decode(ByteBuffer in, Commands out) throws IOException;
+
+    // Encode one server->client text message ("PREFIX:args") for the wire.
+    ByteBuffer encode(String line);
+
+    // Typed commands produced by the decoders. TextCodec only produces onLine; the server's
+    // handleLine parses it and calls the same typed handlers the binary opcodes map to.
+    interface Commands {
+        void onLine(String line);
+        void onChat(String body);
+        void onNumber(String digits);
+        void onPriv(String target, String msg);
+        void onFileOffer(String name);
+        void onFileData(String name, ByteBuffer data);
+        void onFileChunk(String name, int index, ByteBuffer data);
+        void onFileEnd(String name);
+        void onGetFile(String name, long offset);
+        void onBank(String action, String amount);
+        void onPollCreate(String title, List<String> options);
+        void onPollVote(int pollId, int option);
+        void onCommand(String command, String arg); // LIST, WHOAMI, SAVELOG, KICK, QUIT, CALC
+    }
+
+    // Grow a read buffer that is full but still holds an incomplete message.
+    static ByteBuffer grow(ByteBuffer full) throws IOException {
+        if (full.capacity() >= MAX_MESSAGE) throw new IOException("message larger than " + MAX_MESSAGE + " bytes");
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_MESSAGE, full.capacity() * 2));
+        full.flip();
+        bigger.put(full);
+        return bigger;
+    }
+}
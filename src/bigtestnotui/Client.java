@@ -91,6 +91,7 @@ public class Client {
                 else System.out.println(line);
                 break;
             case "SYSTEM": System.out.println("[SYS] " + (p.length>=2? p[1]: line)); break;
+            case "PRESENCE_DELTA": System.out.println("[ONLINE] " + (p.length>=2? p[1]: "") + (p.length>=4? " rooms " + p[3]: "")); break;
             case "FILE_BC": if (p.length>=3) System.out.println("[FILE] " + p[1] + ": " + p[2]); else System.out.println(line); break;
             case "FILE_SEND": if (p.length>=3) {
                 try {
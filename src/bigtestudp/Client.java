@@ -12,7 +12,11 @@ import java.util.Scanner;
 /**
  * Console UDP client compatible with bigtestudp.Server protocol.
  * - Sends ID:<id> at startup, then supports menu-driven commands.
- * - Uses DatagramSocket; best-effort delivery (no reliability layer implemented yet).
+ * - Uses DatagramSocket through ReliableUdp: every message is sequenced, acknowledged and retransmitted
+ *   until the server has it, and arrives in order. Replies from the server come back the same way.
+ * - Chunked uploads go as fast as the acknowledgements allow (no fixed sleep between chunks).
+ * - If the server offers a multicast group (MCAST:...), room messages come from the group once the
+ *   client hears it, with missed ones repaired by NAK (RoomMulticast); -Dudp.multicast=off stays on unicast.
  */
 public class Client {
     // Optional auto-connect constants
@@ -32,17 +36,53 @@ public class Client {
     private DatagramSocket socket;
     private InetAddress serverAddr;
     private int serverPort;
+    private InetSocketAddress server;
+    private ReliableUdp rudp;
+    private volatile RoomMulticast.Receiver group; // null until the server's MCAST advert (and if it is off)
     private final Scanner sc = new Scanner(System.in);
     private volatile boolean running = true;
 
-    public Client(String host, int port) throws Exception { this.host = host; this.port = port; this.serverAddr = InetAddress.getByName(host); this.serverPort = port; socket = new DatagramSocket(); socket.setSoTimeout(0); }
+    public Client(String host, int port) throws Exception {
+        this.host = host; this.port = port; this.serverAddr = InetAddress.getByName(host); this.serverPort = port;
+        socket = new DatagramSocket(); socket.setSoTimeout(0);
+        server = new InetSocketAddress(serverAddr, serverPort);
+        rudp = new ReliableUdp(socket, new ReliableUdp.Handler() {
+            @Override public void deliver(InetSocketAddress from, byte[] data, int off, int len) {
+                onServerLine(new String(data, off, len, java.nio.charset.StandardCharsets.UTF_8));
+            }
+            @Override public void lost(InetSocketAddress peer) { System.out.println("[UDP-CLIENT] Server is not acknowledging; unsent messages dropped"); }
+        }, true);
+    }
 
-    private void send(String s) {
+    private void onServerLine(String line) {
+        if (line.startsWith("MCAST")) { if (onMulticast(line)) return; }
+        System.out.println("[SRV] " + line);
+        System.out.print("[You] > ");
+    }
+
+    // MCAST:<group>:<port>:<epoch> offers the group; MCAST_OK:<seq> / MCAST_OFF:<seq> answer our JOIN / LEAVE
+    private boolean onMulticast(String line) {
+        RoomMulticast.Receiver g = group;
         try {
-            byte[] b = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-            DatagramPacket p = new DatagramPacket(b, b.length, serverAddr, serverPort);
-            socket.send(p);
-        } catch (IOException e) { System.out.println("[UDP-CLIENT] Send error: " + e.getMessage()); }
+            if (line.startsWith("MCAST:")) {
+                if ("off".equalsIgnoreCase(System.getProperty(RoomMulticast.GROUP_PROPERTY))) return true;
+                if (g != null) g.close();
+                group = RoomMulticast.Receiver.open(line, server, socket,
+                        d -> onServerLine(new String(d, java.nio.charset.StandardCharsets.UTF_8)), this::send);
+            } else if (line.startsWith("MCAST_OK:") && g != null) {
+                g.started(Integer.parseInt(line.substring(9).trim()));
+                System.out.println("[MCAST] Room messages now come from the multicast group");
+            } else if (line.startsWith("MCAST_OFF:")) {
+                System.out.println("[MCAST] Multicast group went silent; room messages come unicast again");
+            } else return false;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("[MCAST] Staying on unicast: " + e.getMessage());
+        }
+        return true;
+    }
+
+    private void send(String s) {
+        if (!rudp.send(server, s.getBytes(java.nio.charset.StandardCharsets.UTF_8))) System.out.println("[UDP-CLIENT] Send failed (server not answering, or message over " + ReliableUdp.MAX_MESSAGE + " bytes)");
     }
 
     private void listenAsync() {
@@ -52,9 +92,8 @@ public class Client {
                 try {
                     DatagramPacket p = new DatagramPacket(buf, buf.length);
                     socket.receive(p);
-                    String m = new String(p.getData(), p.getOffset(), p.getLength(), java.nio.charset.StandardCharsets.UTF_8);
-                    System.out.println("[SRV] " + m);
-                    System.out.print("[You] > ");
+                    RoomMulticast.Receiver g = group;
+                    if (g == null || !g.receive(p)) rudp.receive(p); // acks, ordering, then deliver() prints it
                 } catch (IOException e) { if (running) System.out.println("[UDP-CLIENT] Receive error: " + e.getMessage()); }
             }
         }, "udp-listener").start();
@@ -74,16 +113,26 @@ public class Client {
         int total = data.length;
         int idx = 0; int off = 0; int chunks = (total + RAW_CHUNK_SIZE - 1) / RAW_CHUNK_SIZE;
         System.out.println("[FILE] Uploading in " + chunks + " chunks...");
+        long t0 = System.nanoTime();
+        long[] before = rudp.counters(server);
         while (off < total) {
             int len = Math.min(RAW_CHUNK_SIZE, total - off);
             byte[] part = new byte[len]; System.arraycopy(data, off, part, 0, len);
             String b64 = Base64.getEncoder().encodeToString(part);
-            send("FILECHUNK:" + name + ":" + idx + ":" + b64);
+            // Waits only while 1 MB is queued; the congestion window and the pacer set the pace
+            if (!rudp.sendBlocking(server, ("FILECHUNK:" + name + ":" + idx + ":" + b64).getBytes(java.nio.charset.StandardCharsets.UTF_8))) {
+                System.out.println("[FILE] Upload aborted: server not answering"); return;
+            }
             off += len; idx++;
-            try { Thread.sleep(30); } catch (InterruptedException ignored) {}
         }
         send("FILEEND:" + name);
-        System.out.println("[FILE] Chunked upload finished: " + name);
+        if (!rudp.flush(server, 30000)) { System.out.println("[FILE] Upload not confirmed: " + name); return; }
+        double s = (System.nanoTime() - t0) / 1e9;
+        long[] after = rudp.counters(server);
+        long sent = after[0] - before[0], resent = after[1] - before[1];
+        System.out.printf("[FILE] Chunked upload finished: %s (%.2f s, goodput %.1f KB/s, %d frames, %d resent = %.1f%% loss, %d loss events)%n",
+                name, s, total / 1024.0 / s, sent, resent, sent == 0 ? 0.0 : 100.0 * resent / sent, after[3] - before[3]);
+        System.out.println("[NET] " + rudp.describe(server));
     }
 
     private void sendFile(String path) {
@@ -130,7 +179,7 @@ public class Client {
                             System.out.println("Poll: a) create  b) vote"); System.out.print("Choice: "); String pch = sc.nextLine(); if ("a".equalsIgnoreCase(pch)) { System.out.print("Title: "); String title = sc.nextLine(); System.out.print("Options (comma): "); String opts = sc.nextLine(); send("POLL:CREATE:" + title + ":" + opts); }
                             else if ("b".equalsIgnoreCase(pch)) { System.out.print("Poll id: "); String pid = sc.nextLine(); System.out.print("Option index: "); String idx = sc.nextLine(); send("POLL:VOTE:" + pid.trim() + ":" + idx.trim()); } break;
                         case 8:
-                            System.out.println("Commands: message | /file <path> | /priv <user> <msg> | /list | /whoami | /quit"); break;
+                            System.out.println("Commands: message | /file <path> | /priv <user> <msg> | /list | /whoami | /netstats | /quit"); break;
                         case 9:
                             send("QUIT"); running = false; continue;
                     }
@@ -139,17 +188,19 @@ public class Client {
 
                 // fallback commands
                 if (line.equalsIgnoreCase("/quit") || line.equalsIgnoreCase("quit")) { send("QUIT"); break; }
-                if (line.equalsIgnoreCase("/help") || line.equalsIgnoreCase("help")) { System.out.println("Commands: message | /file <path> | /priv <user> <msg> | /list | /whoami | /quit"); continue; }
+                if (line.equalsIgnoreCase("/help") || line.equalsIgnoreCase("help")) { System.out.println("Commands: message | /file <path> | /priv <user> <msg> | /list | /whoami | /netstats | /quit"); continue; }
                 if (line.startsWith("/file ")) { sendFile(line.substring(6).trim()); continue; }
                 if (line.startsWith("/priv ")) { String[] t = line.split("\\s+",3); if (t.length<3) { System.out.println("Usage: /priv user msg"); continue; } send("PRIV:" + t[1] + ":" + t[2]); continue; }
                 if (line.equalsIgnoreCase("/list")) { send("LIST"); continue; }
                 if (line.equalsIgnoreCase("/whoami")) { send("WHOAMI"); continue; }
+                if (line.equalsIgnoreCase("/netstats")) { System.out.println("[NET] " + rudp.describe(server)); RoomMulticast.Receiver g = group; if (g != null) System.out.println("[NET] " + g.describe()); send("NETSTATS"); continue; }
 
                 // otherwise send message as-is
                 send(line);
             } catch (Exception e) { System.out.println("[UDP-CLIENT] Error: " + e.getMessage()); }
         }
-        running = false; socket.close();
+        try { rudp.flush(server, 2000); } catch (InterruptedException ignored) {} // let QUIT get through
+        running = false; RoomMulticast.Receiver g = group; if (g != null) g.close(); socket.close();
     }
 
     public static void main(String[] args) throws Exception {
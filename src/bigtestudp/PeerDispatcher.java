@@ -0,0 +1,81 @@
+package bigtestudp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/* PeerDispatcher - receive stage of bigtestudp.Server, between the UdpTransport receive loop and ReliableUdp.
+   The receive thread only copies each datagram out of its buffer and hands it to one of N worker
+   threads, picked by the sender's address. One peer always lands on the same worker, so its
+   datagrams (and the messages ReliableUdp delivers from them) are handled in arrival order, while
+   different peers are handled in parallel: a slow command (Base64 decode, file write at FILEEND,
+   a burst of sends) only holds up the peers that share its worker.
+   - Workers: -Dudp.workers (default: number of CPUs, at least 4).
+   - Each worker has a queue of QUEUE datagrams. When it is full the datagram is dropped and counted,
+     as the kernel would when the socket buffer overflows; ReliableUdp peers get it resent.
+*/
+final class PeerDispatcher {
+    static final String WORKERS_PROPERTY = "udp.workers";
+    private static final int QUEUE = 4096;
+
+    private static final class Datagram {
+        final InetSocketAddress from;
+        final byte[] data;
+        Datagram(InetSocketAddress from, byte[] data) { this.from = from; this.data = data; }
+    }
+
+    private final List<BlockingQueue<Datagram>> queues;
+    private final BiConsumer<InetSocketAddress, byte[]> handler;
+    private final LongAdder dispatched = new LongAdder(), dropped = new LongAdder(), failed = new LongAdder();
+
+    PeerDispatcher(BiConsumer<InetSocketAddress, byte[]> handler) {
+        this.handler = handler;
+        int n = Math.max(1, Integer.getInteger(WORKERS_PROPERTY, Math.max(4, Runtime.getRuntime().availableProcessors())));
+        List<BlockingQueue<Datagram>> qs = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            BlockingQueue<Datagram> q = new ArrayBlockingQueue<>(QUEUE);
+            qs.add(q);
+            Thread t = new Thread(() -> work(q), "udp-worker-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        queues = List.copyOf(qs);
+    }
+
+    // Receive thread: the transport reuses data's buffer for the next datagram, so the worker gets a copy
+    void dispatch(InetSocketAddress from, ByteBuffer data) {
+        byte[] copy = new byte[data.remaining()];
+        data.get(copy);
+        if (queues.get(Math.floorMod(from.hashCode(), queues.size())).offer(new Datagram(from, copy))) dispatched.increment();
+        else dropped.increment();
+    }
+
+    private void work(BlockingQueue<Datagram> q) {
+        while (true) {
+            Datagram d;
+            try {
+                d = q.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                handler.accept(d.from, d.data);
+            } catch (RuntimeException e) {
+                failed.increment();
+                System.err.println("[UDP-SRV] worker " + Thread.currentThread().getName() + ": " + e);
+            }
+        }
+    }
+
+    String describe() {
+        StringBuilder sb = new StringBuilder().append(queues.size()).append(" workers, queued [");
+        for (int i = 0; i < queues.size(); i++) sb.append(i == 0 ? "" : " ").append(queues.get(i).size());
+        return sb.append("], ").append(dispatched.sum()).append(" datagrams dispatched, ").append(dropped.sum())
+                .append(" dropped (worker queue full), ").append(failed.sum()).append(" failed").toString();
+    }
+}
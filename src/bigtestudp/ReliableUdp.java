@@ -0,0 +1,657 @@
+package bigtestudp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import tools.TimerWheel;
+
+/* ReliableUdp - lossless, ordered messages per peer on top of one DatagramSocket (Server and Client).
+   Frames start with 0xFF, which never starts UTF-8 text, so plain text datagrams from old clients (and
+   tools.UDPSender) still reach the handler as they are; the server answers a peer in frames only after
+   that peer sent one. Per peer and direction:
+   - DATA [0xFF 'D' int epoch, int seq, payload]: seq counts from 0 per epoch (random per peer state),
+     so a restarted sender is recognised and the receiver starts over.
+   - ACK ['A' epoch, int next expected seq, long SACK bits for the 63 seqs after it], sent for every DATA.
+   - NAK ['N' epoch, short n, n x int seq]: the holes below the highest buffered seq, sent with the ACK
+     while there are any; the sender resends those at once (at most once per srtt + min RTT / 4 each).
+   - A message is one frame: at most MAX_MESSAGE bytes (one datagram less the header). send() refuses a
+     longer one before it takes a seq, so it never sits in the window unsendable.
+   - Sliding window of at most 64 frames; further messages wait in a queue (4096 per peer: send() returns
+     false past that; sendBlocking() waits while 1 MB is queued). The receiver buffers out-of-order frames
+     and hands messages to the handler strictly in order.
+   - Congestion control (AIMD, per peer): cwnd starts at 4 frames of 64 KB, doubles per RTT in slow
+     start, then grows by one frame per RTT. A loss seen by NAK halves it once per window, or takes a
+     fifth off if the RTT shows no queue building (Veno: probably link noise, not congestion); a timeout
+     drops it to the minimum of 3 frames, which keeps enough frames behind a lost one for the receiver
+     to NAK it. The bytes in flight also stay under the best recent delivery rate x the lowest RTT plus
+     one frame (BBR-like), which stops AIMD from filling a short router queue until it overflows.
+     Frames are not sent in bursts: one "udp-pacer" thread releases them at 1.25 x window / srtt
+     (2 x in slow start), so a slow link is not flooded by a whole window at once.
+   - RTT: smoothed RTT/variance from frames sent once (Karn), RTO = srtt + 4 * rttvar, at least
+     -Dudp.minRtoMs (default 50), doubled on each timeout. One retransmit timer per peer on the shared
+     TimerWheel resends the oldest unacked frame; after 10 timeouts in a row the peer is dropped
+     (Handler.lost) with what it had queued.
+   - Peer state goes away on forget() (the Server's QUIT/KICK) once what was sent to it is acknowledged,
+     and after -Dudp.peerIdleSec (default 300) without a datagram from it, with nothing in flight, unless
+     Handler.keep says it is still in session. A sweep on the TimerWheel checks every quarter of that.
+     A forgotten peer that comes back starts over with a new epoch (see onData).
+   The handler runs on the receiving thread, never under a lock of this class. One thread at a time
+   receives for a given peer (the Client's receive loop; on the Server the PeerDispatcher worker the
+   peer hashes to), so messages keep their order.
+*/
+final class ReliableUdp {
+    static final String MIN_RTO_PROPERTY = "udp.minRtoMs";
+    private static final long MIN_RTO_NANOS = Math.max(1, Long.getLong(MIN_RTO_PROPERTY, 50)) * 1_000_000L;
+    private static final long INITIAL_RTO_NANOS = 500_000_000L; // until the first RTT sample
+    private static final long MAX_RTO_NANOS = 4_000_000_000L;
+    private static final int WINDOW = 64;       // frames in flight; the ACK's SACK bits cover the rest of it
+    private static final int FRAME = 64 * 1024; // cwnd unit (largest datagram)
+    // MIN_CWND: enough frames behind a lost one for the receiver to NAK it instead of waiting for a timeout
+    private static final long INITIAL_CWND = 4L * FRAME, MIN_CWND = 3L * FRAME, MAX_CWND = 64L * FRAME;
+    private static final int MAX_QUEUED = 4096; // messages waiting for the window, per peer
+    private static final long MAX_QUEUED_BYTES = 1 << 20; // sendBlocking() waits above this
+    private static final int MAX_RETRIES = 10;  // timeouts in a row before the peer counts as gone
+    static final String PEER_IDLE_PROPERTY = "udp.peerIdleSec";
+    private static final long PEER_IDLE_NANOS = Math.max(1, Long.getLong(PEER_IDLE_PROPERTY, 300)) * 1_000_000_000L;
+    private static final byte MAGIC = (byte) 0xFF;
+    private static final byte DATA = 'D', ACK = 'A', NAK = 'N';
+    private static final int HEADER = 10;
+    static final int MAX_MESSAGE = UdpTransport.MAX_DATAGRAM - HEADER;
+
+    interface Handler {
+        void deliver(InetSocketAddress from, byte[] data, int off, int len);
+        default void lost(InetSocketAddress peer) {}
+        // true while the peer is in session: its state is kept however long it stays quiet
+        default boolean keep(InetSocketAddress peer) { return false; }
+    }
+
+    // The header is written in front of data at each (re)send: a broadcast shares one data array
+    private static final class Frame {
+        final int seq;
+        final byte[] data;
+        long sentAt;
+        int sends;
+        boolean acked;
+        Frame(int seq, byte[] data) { this.seq = seq; this.data = data; }
+        int size() { return HEADER + data.length; }
+    }
+
+    private static final class Peer {
+        final InetSocketAddress addr;
+        volatile boolean reliable; // it sent us a frame (or we initiate): our messages to it go framed
+        volatile long heard = System.nanoTime(); // last frame from it
+        // Receive side
+        final ReentrantLock rx = new ReentrantLock();
+        boolean rxStarted;
+        int rxEpoch, expected;
+        final byte[][] early = new byte[WINDOW][]; // out-of-order payloads by seq % WINDOW
+        // Send side
+        final ReentrantLock tx = new ReentrantLock();
+        final Condition changed = tx.newCondition();
+        final int txEpoch = ThreadLocalRandom.current().nextInt();
+        final Frame[] window = new Frame[WINDOW];
+        final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        int base, nextSeq; // oldest unacked, next to assign
+        long inFlight, queuedBytes;
+        long srtt, rttvar, rto = INITIAL_RTO_NANOS, deadline;
+        int retries;
+        boolean armed, dead, closing; // closing: forget() once nothing is left unacknowledged
+        // Congestion control and pacing
+        long cwnd = INITIAL_CWND, ssthresh = MAX_CWND, nextRelease;
+        int recover;      // no second cwnd cut for losses of frames sent before this seq
+        boolean recovering, paced;
+        // Counters for transfer reports: frames, frames resent, payload bytes acked, loss events
+        long sentFrames, resentFrames, ackedBytes, lossEvents;
+        long rateStart, rateAcked, deliveryRate; // bytes/s over the last RTT
+        final long[] rates = new long[8];         // the last 8 of those
+        int rateNext;
+        long minRtt, minRttAt;                    // lowest RTT sample of the last 10 s, of frames >= 32 KB
+        Peer(InetSocketAddress addr) { this.addr = addr; }
+    }
+
+    private final UdpTransport transport;
+    private final Handler handler;
+    private final boolean initiate;
+    private final ConcurrentHashMap<InetSocketAddress, Peer> peers = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Peer> wakeups = new ConcurrentLinkedQueue<>();
+    private final Thread pacer;
+    private final LongAdder frames = new LongAdder(), retransmits = new LongAdder(), duplicates = new LongAdder(),
+            naks = new LongAdder(), dropped = new LongAdder(), oversized = new LongAdder(), lostPeers = new LongAdder(), expiredPeers = new LongAdder();
+
+    // initiate: frame every message (Client); otherwise only to peers that sent a frame (Server)
+    ReliableUdp(DatagramSocket socket, Handler handler, boolean initiate) {
+        this(UdpTransport.of(socket), handler, initiate);
+    }
+
+    ReliableUdp(UdpTransport transport, Handler handler, boolean initiate) {
+        this.transport = transport;
+        this.handler = handler;
+        this.initiate = initiate;
+        pacer = new Thread(this::pace, "udp-pacer");
+        pacer.setDaemon(true);
+        pacer.start();
+        scheduleSweep();
+    }
+
+    // ---------------------------------------------------------------- receive
+
+    // Every datagram from the socket goes through here
+    void receive(DatagramPacket p) {
+        receive((InetSocketAddress) p.getSocketAddress(), p.getData(), p.getOffset(), p.getLength());
+    }
+
+    void receive(InetSocketAddress from, byte[] b, int off, int len) {
+        if (len == 0 || b[off] != MAGIC) { handler.deliver(from, b, off, len); return; }
+        if (len < 6) return;
+        ByteBuffer in = ByteBuffer.wrap(b, off + 2, len - 2);
+        int epoch = in.getInt();
+        // Only DATA starts peer state: an ACK or NAK without it is about nothing we sent
+        Peer peer = b[off + 1] == DATA ? peer(from) : peers.get(from);
+        if (peer == null) return;
+        peer.reliable = true;
+        peer.heard = System.nanoTime();
+        switch (b[off + 1]) {
+            case DATA -> { if (in.remaining() >= 4) onData(peer, epoch, in); }
+            case ACK -> { if (in.remaining() >= 12) onAck(peer, epoch, in.getInt(), in.getLong()); }
+            case NAK -> { if (in.remaining() >= 2) onNak(peer, epoch, in); }
+            default -> { }
+        }
+    }
+
+    private Peer peer(InetSocketAddress addr) {
+        return peers.computeIfAbsent(addr, a -> {
+            Peer p = new Peer(a);
+            p.reliable = initiate;
+            return p;
+        });
+    }
+
+    private void onData(Peer peer, int epoch, ByteBuffer in) {
+        int seq = in.getInt();
+        byte[] b = in.array();
+        int off = in.position(), len = in.remaining();
+        boolean now = false;
+        List<byte[]> next = null;
+        byte[] ack, nak = null;
+        if (peer.closing) { // it is back (a new login) before the state was dropped
+            peer.tx.lock();
+            try { peer.closing = false; } finally { peer.tx.unlock(); }
+        }
+        peer.rx.lock();
+        try {
+            if (!peer.rxStarted || epoch != peer.rxEpoch) {
+                // New sender state; far into a sequence means we had forgotten this peer: pick it up there
+                peer.rxStarted = true;
+                peer.rxEpoch = epoch;
+                peer.expected = seq >= 0 && seq < WINDOW ? 0 : seq;
+                Arrays.fill(peer.early, null);
+            }
+            int d = seq - peer.expected;
+            if (d == 0) {
+                now = true;
+                peer.expected++;
+                for (byte[] e; (e = peer.early[peer.expected & (WINDOW - 1)]) != null; peer.expected++) {
+                    peer.early[peer.expected & (WINDOW - 1)] = null;
+                    if (next == null) next = new ArrayList<>();
+                    next.add(e);
+                }
+            } else if (d > 0 && d < WINDOW && peer.early[seq & (WINDOW - 1)] == null) {
+                peer.early[seq & (WINDOW - 1)] = Arrays.copyOfRange(b, off, off + len);
+            } else {
+                duplicates.increment(); // already delivered or buffered, or past the window: the ACK says where we are
+            }
+            ack = ackFrame(peer);
+            nak = nakFrame(peer);
+        } finally {
+            peer.rx.unlock();
+        }
+        transmit(ack, peer.addr);
+        if (nak != null) transmit(nak, peer.addr);
+        if (now) handler.deliver(peer.addr, b, off, len);
+        if (next != null) for (byte[] e : next) handler.deliver(peer.addr, e, 0, e.length);
+    }
+
+    // rx lock: next expected seq plus which of the following seqs are buffered
+    private static byte[] ackFrame(Peer peer) {
+        long sack = 0;
+        for (int i = 0; i < WINDOW - 1; i++) {
+            if (peer.early[(peer.expected + 1 + i) & (WINDOW - 1)] != null) sack |= 1L << i;
+        }
+        return ByteBuffer.allocate(18).put(MAGIC).put(ACK).putInt(peer.rxEpoch).putInt(peer.expected).putLong(sack).array();
+    }
+
+    // rx lock: the seqs missing below the highest buffered one, or null without a gap
+    private static byte[] nakFrame(Peer peer) {
+        int top = -1;
+        for (int i = 1; i < WINDOW; i++) if (peer.early[(peer.expected + i) & (WINDOW - 1)] != null) top = i;
+        if (top < 0) return null;
+        int n = 0;
+        int[] missing = new int[WINDOW];
+        for (int i = 0; i < top; i++) if (peer.early[(peer.expected + i) & (WINDOW - 1)] == null) missing[n++] = peer.expected + i;
+        ByteBuffer f = ByteBuffer.allocate(8 + 4 * n).put(MAGIC).put(NAK).putInt(peer.rxEpoch).putShort((short) n);
+        for (int i = 0; i < n; i++) f.putInt(missing[i]);
+        return f.array();
+    }
+
+    private void onAck(Peer peer, int epoch, int cum, long sack) {
+        long now = System.nanoTime();
+        boolean done = false;
+        peer.tx.lock();
+        try {
+            if (epoch != peer.txEpoch || peer.dead || cum - peer.base < 0 || cum - peer.nextSeq > 0) return;
+            boolean progress = false;
+            Frame newest = null; // the RTT sample: older frames in this ACK may have waited for it (lost ACK)
+            for (; peer.base != cum; peer.base++) {
+                Frame f = peer.window[peer.base & (WINDOW - 1)];
+                peer.window[peer.base & (WINDOW - 1)] = null;
+                if (f != null && !f.acked) { acked(peer, f, now); newest = f; }
+                progress = true;
+            }
+            for (int i = 0; i < WINDOW - 1 && sack >>> i != 0; i++) {
+                int s = cum + 1 + i;
+                if (s - peer.nextSeq >= 0) break;
+                Frame f = peer.window[s & (WINDOW - 1)];
+                if ((sack >>> i & 1) != 0 && f != null && !f.acked) {
+                    f.acked = true;
+                    acked(peer, f, now);
+                    newest = f;
+                    progress = true;
+                }
+            }
+            if (!progress) return;
+            if (newest != null) sample(peer, newest, now);
+            // New data got through: forget the timeout backoff
+            if (peer.srtt > 0) peer.rto = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, peer.srtt + 4 * peer.rttvar));
+            peer.retries = 0;
+            peer.deadline = now + peer.rto;
+            fill(peer, now);
+            peer.changed.signalAll();
+            done = peer.closing && retire(peer);
+        } finally {
+            peer.tx.unlock();
+        }
+        if (done) remove(peer);
+    }
+
+    // tx lock: a frame got through: window growth, delivery rate
+    private static void acked(Peer peer, Frame f, long now) {
+        int n = f.size();
+        peer.inFlight -= n;
+        peer.ackedBytes += n - HEADER;
+        if (peer.recovering && f.seq - peer.recover >= 0) peer.recovering = false;
+        if (peer.cwnd < peer.ssthresh) peer.cwnd += n;                     // slow start: doubles per RTT
+        else peer.cwnd += Math.max(1, (long) n * FRAME / peer.cwnd);      // one frame per RTT
+        peer.cwnd = Math.min(peer.cwnd, MAX_CWND);
+        if (peer.rateStart == 0) { peer.rateStart = now; peer.rateAcked = peer.ackedBytes; }
+        else if (now - peer.rateStart >= Math.max(peer.srtt, 1_000_000)) {
+            peer.deliveryRate = (peer.ackedBytes - peer.rateAcked) * 1_000_000_000L / (now - peer.rateStart);
+            peer.rates[peer.rateNext++ & 7] = peer.deliveryRate;
+            peer.rateStart = now;
+            peer.rateAcked = peer.ackedBytes;
+        }
+    }
+
+    // tx lock: loss seen (NAK or timeout); one multiplicative decrease per window of data
+    private static void lost(Peer peer, Frame f, boolean timeout) {
+        if (timeout) {
+            peer.ssthresh = Math.max(MIN_CWND, window(peer) / 2);
+            peer.cwnd = MIN_CWND;
+        } else if (!peer.recovering || f.seq - peer.recover >= 0) {
+            // Veno: with the RTT near its minimum no queue is building, so the loss is more likely noise
+            // on the link than congestion and only costs a fifth of the window
+            long w = window(peer);
+            boolean queueing = peer.minRtt == 0 || peer.srtt > peer.minRtt + peer.minRtt / 4;
+            peer.ssthresh = Math.max(MIN_CWND, queueing ? w / 2 : w - w / 5);
+            peer.cwnd = peer.ssthresh;
+        } else {
+            return;
+        }
+        peer.lossEvents++;
+        peer.recovering = true;
+        peer.recover = peer.nextSeq;
+    }
+
+    // tx lock: bytes allowed in flight: cwnd, capped at the bandwidth-delay product once both are measured
+    // plus one frame. The extra frame keeps the next one queued behind the one on the wire, and lets the
+    // delivery rate (and so the cap) grow a frame per round trip until the RTT starts to rise
+    private static long window(Peer peer) {
+        long bw = 0;
+        for (long r : peer.rates) bw = Math.max(bw, r);
+        if (bw == 0 || peer.minRtt == 0) return peer.cwnd;
+        return Math.min(peer.cwnd, Math.max(MIN_CWND, bw * peer.minRtt / 1_000_000_000L + FRAME));
+    }
+
+    // tx lock: RFC 6298 smoothing, only for frames sent once (Karn)
+    private static void sample(Peer peer, Frame f, long now) {
+        if (f.sends != 1) return;
+        long r = now - f.sentAt;
+        // Full-size frames only: a short message's RTT leaves out the time a link takes to serialize a frame
+        if (f.size() >= FRAME / 2 && (peer.minRtt == 0 || r <= peer.minRtt || now - peer.minRttAt > 10_000_000_000L)) {
+            peer.minRtt = Math.max(1, r);
+            peer.minRttAt = now;
+        }
+        if (peer.srtt == 0) {
+            peer.srtt = Math.max(1, r);
+            peer.rttvar = r / 2;
+        } else {
+            peer.rttvar = (3 * peer.rttvar + Math.abs(peer.srtt - r)) / 4;
+            peer.srtt = Math.max(1, (7 * peer.srtt + r) / 8);
+        }
+        peer.rto = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, peer.srtt + 4 * peer.rttvar));
+    }
+
+    private void onNak(Peer peer, int epoch, ByteBuffer in) {
+        int n = Math.min(in.getShort(), in.remaining() / 4);
+        long now = System.nanoTime();
+        peer.tx.lock();
+        try {
+            if (epoch != peer.txEpoch || peer.dead) return;
+            naks.increment();
+            for (int i = 0; i < n; i++) {
+                int s = in.getInt();
+                if (s - peer.base < 0 || s - peer.nextSeq >= 0) continue;
+                Frame f = peer.window[s & (WINDOW - 1)];
+                // Reordering allowance of a quarter of the lowest RTT before a hole counts as lost (as in RACK)
+                if (f != null && !f.acked && now - f.sentAt >= peer.srtt + peer.minRtt / 4) {
+                    lost(peer, f, false);
+                    resend(peer, f, now);
+                }
+            }
+        } finally {
+            peer.tx.unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------- send
+
+    // Queues the message; false (and dropped) if the peer is gone, already has MAX_QUEUED waiting or the
+    // message is over MAX_MESSAGE bytes.
+    // data is kept (not copied) until acknowledged, so one array can go to many peers but must not change
+    boolean send(InetSocketAddress to, byte[] data) {
+        try {
+            return enqueue(to, data, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Like send(), but waits while the peer's queue is full (large uploads); false if the peer is gone
+    boolean sendBlocking(InetSocketAddress to, byte[] data) throws InterruptedException {
+        return enqueue(to, data, true);
+    }
+
+    private boolean enqueue(InetSocketAddress to, byte[] data, boolean wait) throws InterruptedException {
+        Peer peer = initiate ? peer(to) : peers.get(to);
+        if (peer == null || !peer.reliable) {
+            if (data.length > UdpTransport.MAX_DATAGRAM) { oversized.increment(); return false; }
+            transmit(data, to); // plain text peer
+            return true;
+        }
+        if (data.length > MAX_MESSAGE) { oversized.increment(); return false; }
+        peer.tx.lock();
+        try {
+            while (!peer.dead && (peer.queue.size() >= MAX_QUEUED || wait && peer.queuedBytes >= MAX_QUEUED_BYTES)) {
+                if (!wait) { dropped.increment(); return false; }
+                peer.changed.await();
+            }
+            if (peer.dead) return false;
+            peer.queue.add(data);
+            peer.queuedBytes += data.length;
+            fill(peer, System.nanoTime());
+            return true;
+        } finally {
+            peer.tx.unlock();
+        }
+    }
+
+    // Waits until everything sent to the peer is acknowledged; false on timeout or if the peer is gone
+    boolean flush(InetSocketAddress to, long timeoutMillis) throws InterruptedException {
+        Peer peer = peers.get(to);
+        if (peer == null) return true;
+        long left = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        peer.tx.lock();
+        try {
+            while (!peer.dead && (peer.base != peer.nextSeq || !peer.queue.isEmpty())) {
+                if (left <= 0) return false;
+                left = peer.changed.awaitNanos(left);
+            }
+            return !peer.dead;
+        } finally {
+            peer.tx.unlock();
+        }
+    }
+
+    // tx lock: queued messages into the window while window() and the pacing rate allow; a peer held back
+    // by pacing is handed to the pacer thread, one held back by the window waits for the next ACK
+    private void fill(Peer peer, long now) {
+        boolean wasIdle = peer.base == peer.nextSeq;
+        while (!peer.queue.isEmpty() && peer.nextSeq - peer.base < WINDOW
+                && (peer.inFlight == 0 || peer.inFlight + HEADER + peer.queue.peek().length <= window(peer))) {
+            if (peer.nextRelease - now > 0) {
+                if (!peer.paced) {
+                    peer.paced = true;
+                    wakeups.add(peer);
+                    LockSupport.unpark(pacer);
+                }
+                break;
+            }
+            byte[] data = peer.queue.poll();
+            peer.queuedBytes -= data.length;
+            int seq = peer.nextSeq++;
+            Frame f = new Frame(seq, data);
+            peer.window[seq & (WINDOW - 1)] = f;
+            peer.inFlight += f.size();
+            send(peer, f, now);
+        }
+        if (peer.queue.isEmpty() || peer.queuedBytes < MAX_QUEUED_BYTES) peer.changed.signalAll();
+        if (peer.base == peer.nextSeq) return;
+        if (wasIdle) peer.deadline = now + peer.rto;
+        arm(peer, now);
+    }
+
+    // tx lock: every frame, resends included, pushes the next release back by its share of the pacing rate
+    private void send(Peer peer, Frame f, long now) {
+        if (peer.srtt > 0) {
+            // 2x / 1.25x the window per RTT, as time between frames
+            long rate = Math.max(1, window(peer) * (peer.cwnd < peer.ssthresh ? 2_000_000_000L : 1_250_000_000L) / peer.srtt);
+            peer.nextRelease = Math.max(peer.nextRelease, now) + f.size() * 1_000_000_000L / rate;
+        }
+        f.sentAt = now;
+        f.sends++;
+        peer.sentFrames++;
+        frames.increment();
+        transmit(transport.buffer().put(MAGIC).put(DATA).putInt(peer.txEpoch).putInt(f.seq).put(f.data).flip(), peer.addr);
+    }
+
+    private void resend(Peer peer, Frame f, long now) {
+        peer.resentFrames++;
+        retransmits.increment();
+        send(peer, f, now);
+    }
+
+    // Pacer thread: sends for the peers whose next release time has come
+    private void pace() {
+        ArrayList<Peer> waiting = new ArrayList<>();
+        while (true) {
+            for (Peer p; (p = wakeups.poll()) != null; ) waiting.add(p);
+            long now = System.nanoTime(), sleep = Long.MAX_VALUE;
+            int keep = 0;
+            for (int i = 0; i < waiting.size(); i++) {
+                Peer p = waiting.get(i);
+                p.tx.lock();
+                try {
+                    if (!p.dead && p.nextRelease - now > 0) {
+                        waiting.set(keep++, p);
+                        sleep = Math.min(sleep, p.nextRelease - now);
+                        continue;
+                    }
+                    p.paced = false;
+                    if (!p.dead) fill(p, now); // may queue it again
+                } finally {
+                    p.tx.unlock();
+                }
+            }
+            waiting.subList(keep, waiting.size()).clear();
+            if (!wakeups.isEmpty()) continue;
+            if (waiting.isEmpty()) LockSupport.park(this);
+            else LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    private void transmit(byte[] data, InetSocketAddress to) {
+        transmit(transport.buffer().put(data).flip(), to);
+    }
+
+    private void transmit(ByteBuffer b, InetSocketAddress to) {
+        try {
+            transport.send(b, to);
+        } catch (IOException e) {
+            // closed socket or no route: the retransmit timer tries again, or gives the peer up
+        }
+    }
+
+    // tx lock: one pending timer per peer, for its current deadline
+    private void arm(Peer peer, long now) {
+        if (peer.armed) return;
+        peer.armed = true;
+        long ms = Math.max(1, TimeUnit.NANOSECONDS.toMillis(peer.deadline - now + 999_999));
+        TimerWheel.shared().schedule(ms, () -> onTimer(peer));
+    }
+
+    // Timer wheel thread: resend the oldest unacked frame and back off, or give the peer up
+    private void onTimer(Peer peer) {
+        boolean gone = false;
+        peer.tx.lock();
+        try {
+            peer.armed = false;
+            if (peer.dead || peer.base == peer.nextSeq) return;
+            long now = System.nanoTime();
+            if (now - peer.deadline < 0) { arm(peer, now); return; }
+            if (++peer.retries > MAX_RETRIES) {
+                peer.dead = gone = true;
+                peer.queue.clear();
+                Arrays.fill(peer.window, null);
+                peer.inFlight = peer.queuedBytes = 0;
+                peer.changed.signalAll();
+            } else {
+                for (int s = peer.base; s != peer.nextSeq; s++) {
+                    Frame f = peer.window[s & (WINDOW - 1)];
+                    if (f != null && !f.acked) { lost(peer, f, true); resend(peer, f, now); break; }
+                }
+                peer.rto = Math.min(MAX_RTO_NANOS, peer.rto * 2);
+                peer.deadline = now + peer.rto;
+                arm(peer, now);
+            }
+        } finally {
+            peer.tx.unlock();
+        }
+        if (gone) {
+            peers.remove(peer.addr, peer);
+            lostPeers.increment();
+            handler.lost(peer.addr);
+        }
+    }
+
+    // ---------------------------------------------------------------- peer state
+
+    // The peer has left (QUIT, KICK): drop its state once what was already sent to it is acknowledged
+    void forget(InetSocketAddress addr) {
+        Peer peer = peers.get(addr);
+        if (peer == null) return;
+        boolean done;
+        peer.tx.lock();
+        try {
+            peer.closing = true;
+            done = retire(peer);
+        } finally {
+            peer.tx.unlock();
+        }
+        if (done) remove(peer);
+    }
+
+    // tx lock: with nothing queued or unacknowledged, mark the peer dead (later sends to this state fail
+    // instead of being lost) and say so
+    private static boolean retire(Peer peer) {
+        if (peer.dead || peer.base != peer.nextSeq || !peer.queue.isEmpty()) return false;
+        peer.dead = true;
+        peer.changed.signalAll();
+        return true;
+    }
+
+    private void remove(Peer peer) {
+        if (peers.remove(peer.addr, peer)) expiredPeers.increment();
+    }
+
+    private void scheduleSweep() {
+        TimerWheel.shared().schedule(TimeUnit.NANOSECONDS.toMillis(PEER_IDLE_NANOS / 4), this::sweep);
+    }
+
+    // Timer wheel thread: drop peers quiet for PEER_IDLE_NANOS with nothing in flight, past clients and
+    // spoofed senders alike. tryLock: a peer busy sending is not idle anyway, and the wheel must not block
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Peer peer : peers.values()) {
+            if (now - peer.heard < PEER_IDLE_NANOS || handler.keep(peer.addr) || !peer.tx.tryLock()) continue;
+            boolean done;
+            try {
+                done = retire(peer);
+            } finally {
+                peer.tx.unlock();
+            }
+            if (done) remove(peer);
+        }
+        scheduleSweep();
+    }
+
+    // ---------------------------------------------------------------- stats
+
+    // One peer: RTT estimate and what is in flight
+    String describe(InetSocketAddress addr) {
+        Peer peer = peers.get(addr);
+        if (peer == null || !peer.reliable) return "plain datagrams (no reliability layer)";
+        peer.tx.lock();
+        try {
+            return String.format("srtt %.2f ms, min rtt %.2f ms, rttvar %.2f ms, rto %d ms, cwnd %d KB, window %d KB, delivery %d KB/s, in flight %d, queued %d, "
+                            + "%d frames sent, %d resent (%.1f%%), %d loss events",
+                    peer.srtt / 1e6, peer.minRtt / 1e6, peer.rttvar / 1e6, peer.rto / 1_000_000, peer.cwnd / 1024, window(peer) / 1024,
+                    peer.deliveryRate / 1024,
+                    peer.nextSeq - peer.base, peer.queue.size(), peer.sentFrames, peer.resentFrames,
+                    peer.sentFrames == 0 ? 0.0 : 100.0 * peer.resentFrames / peer.sentFrames, peer.lossEvents);
+        } finally {
+            peer.tx.unlock();
+        }
+    }
+
+    // {frames sent, frames resent, payload bytes acked, loss events} to addr, for per-transfer reports
+    long[] counters(InetSocketAddress addr) {
+        Peer peer = peers.get(addr);
+        if (peer == null) return new long[4];
+        peer.tx.lock();
+        try {
+            return new long[] { peer.sentFrames, peer.resentFrames, peer.ackedBytes, peer.lossEvents };
+        } finally {
+            peer.tx.unlock();
+        }
+    }
+
+    String describe() {
+        return peers.size() + " peers, " + frames.sum() + " frames sent, " + retransmits.sum() + " retransmitted, "
+                + naks.sum() + " NAKs received, " + duplicates.sum() + " duplicates dropped, " + dropped.sum()
+                + " messages over queue limit, " + oversized.sum() + " too large, " + lostPeers.sum() + " peers timed out, " + expiredPeers.sum() + " peers forgotten";
+    }
+}
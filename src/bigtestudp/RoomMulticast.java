@@ -0,0 +1,446 @@
+package bigtestudp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/* RoomMulticast - optional IP multicast channel for the room-wide messages of bigtestudp.Server (MSG,
+   SYSTEM, FILE_BC, POLL_NEW/POLL_RES, PRESENCE_DELTA): one datagram to the group instead of one frame per
+   client. Private and control traffic stays on ReliableUdp unicast. Off unless -Dudp.multicast=<group:port>
+   (e.g. 224.7.7.7:6969, as in test.ex4) is set on the server.
+   Frames start with 0xFE (never UTF-8 text, not ReliableUdp's 0xFF):
+   - DATA [0xFE 'M' int epoch, int seq, payload] to the group; seq counts from 0, epoch is random per
+     server run. The server keeps the last HISTORY frames (at most HISTORY_BYTES) for repair.
+   - HEARTBEAT ['H' epoch, int next seq] to the group when nothing was sent for HEARTBEAT_MS, so a
+     receiver notices a lost last frame and the group stays audible while the room is quiet.
+   - NAK ['Q' epoch, short n, n x (int from, int to)] unicast from a receiver (through its ReliableUdp
+     socket, so the server knows the address): the missing seqs [from, to). The server unicasts the
+     DATA frames back (at most MAX_REPAIR frames / MAX_REPAIR_BYTES per NAK) and GONE ['G' epoch, int from,
+     int to] for frames it no longer has; the receiver skips those and reports MCAST_LOST:<n>. Only NAKs
+     from current members are answered: the epoch is no secret (it is in every group frame), so a NAK
+     with a forged source would otherwise turn the server into an amplifier aimed at that address.
+   Membership, over reliable unicast: after ID_OK the server sends MCAST:<group>:<port>:<epoch>. A client
+   that hears the group sends MCAST_JOIN; the server answers MCAST_OK:<seq> and from then on sends that
+   client room messages only through the group, from seq on (those before it went unicast as well).
+   Broadcasts and membership changes share one lock in the Server, so no message goes both ways or
+   neither. A member that hears nothing for 3 s stops listening and sends MCAST_LEAVE:<next seq it
+   needs>; the server replays the room messages from there over ReliableUdp, in order, and continues
+   unicast (MCAST_OFF). Clients that never hear the group simply stay on unicast.
+   Loopback testing: -Dudp.multicastIf=lo on server and clients (the interface to send and join on);
+   -Dudp.multicastLoss=<percent> drops that share of group datagrams on arrival at a client, to exercise
+   the NAK repair. -Dudp.multicastTtl (default 1) limits how far the group datagrams travel.
+*/
+final class RoomMulticast {
+    static final String GROUP_PROPERTY = "udp.multicast", IF_PROPERTY = "udp.multicastIf",
+            TTL_PROPERTY = "udp.multicastTtl", LOSS_PROPERTY = "udp.multicastLoss";
+    private static final byte MAGIC = (byte) 0xFE;
+    private static final byte DATA = 'M', HEARTBEAT = 'H', NAK = 'Q', GONE = 'G';
+    private static final int HEADER = 10;
+    static final int MAX_PAYLOAD = UdpTransport.MAX_DATAGRAM - HEADER;
+    private static final int HISTORY = 4096;               // frames kept for repair (power of two)
+    private static final long HISTORY_BYTES = 8L << 20;
+    private static final int MAX_REPAIR = 256;             // frames resent per NAK; the receiver NAKs the rest again
+    private static final long MAX_REPAIR_BYTES = 256 << 10;
+    private static final int MAX_RANGES = 64;              // missing ranges per NAK
+    private static final int MAX_PENDING = 4096;           // out-of-order frames a receiver buffers
+    private static final long HEARTBEAT_MS = 250, TICK_MS = 10;
+    private static final long REORDER_NANOS = 10_000_000L;  // a gap waits this long for a late frame before the NAK
+    private static final long NAK_RETRY_NANOS = 100_000_000L;
+    private static final long SILENCE_NANOS = 3_000_000_000L;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "udp-multicast-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private RoomMulticast() {}
+
+    static boolean isFrame(byte[] b, int off, int len) { return len >= HEADER - 4 && b[off] == MAGIC; }
+
+    // -Dudp.multicastIf by name (lo, eth0) or address; null: the OS picks
+    private static NetworkInterface networkInterface() throws IOException {
+        String name = System.getProperty(IF_PROPERTY);
+        if (name == null || name.isBlank()) return null;
+        NetworkInterface nif = NetworkInterface.getByName(name.trim());
+        if (nif == null) nif = NetworkInterface.getByInetAddress(InetAddress.getByName(name.trim()));
+        if (nif == null) throw new IOException("no network interface " + name);
+        return nif;
+    }
+
+    // Server side: sends to the group, answers NAKs through the server's unicast transport
+    static final class Sender {
+        private final InetSocketAddress group;
+        private final MulticastSocket socket;
+        private final UdpTransport unicast;
+        private final Predicate<InetSocketAddress> members; // whose NAKs are answered
+        private final int epoch = ThreadLocalRandom.current().nextInt();
+        private final byte[][] history = new byte[HISTORY][];
+        private final ByteBuffer out = ByteBuffer.allocate(UdpTransport.MAX_DATAGRAM); // guarded by this
+        private final DatagramPacket packet = new DatagramPacket(out.array(), 0);      // guarded by this
+        private int next, oldest;
+        private long historyBytes, lastSent = System.nanoTime();
+        private final LongAdder sent = new LongAdder(), naks = new LongAdder(), ignored = new LongAdder(), repaired = new LongAdder(), gone = new LongAdder();
+
+        private Sender(InetSocketAddress group, NetworkInterface nif, UdpTransport unicast, Predicate<InetSocketAddress> members) throws IOException {
+            this.group = group;
+            this.unicast = unicast;
+            this.members = members;
+            socket = new MulticastSocket();
+            try {
+                if (nif != null) socket.setNetworkInterface(nif);
+                socket.setTimeToLive(Integer.getInteger(TTL_PROPERTY, 1));
+                socket.setSendBufferSize(1 << 20);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            packet.setSocketAddress(group);
+            TIMER.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // The group from -Dudp.multicast, or null when multicast is off; members: addresses whose NAKs are answered
+        static Sender open(UdpTransport unicast, Predicate<InetSocketAddress> members) throws IOException {
+            String g = System.getProperty(GROUP_PROPERTY);
+            if (g == null || g.isBlank() || g.equalsIgnoreCase("off")) return null;
+            int colon = g.lastIndexOf(':');
+            if (colon < 0) throw new IOException(GROUP_PROPERTY + " must be <group>:<port>, got " + g);
+            InetAddress addr = InetAddress.getByName(g.substring(0, colon).trim());
+            if (!addr.isMulticastAddress()) throw new IOException(addr.getHostAddress() + " is not a multicast group");
+            return new Sender(new InetSocketAddress(addr, Integer.parseInt(g.substring(colon + 1).trim())), networkInterface(), unicast, members);
+        }
+
+        // Sent to a client after ID_OK
+        String advert() { return "MCAST:" + group.getAddress().getHostAddress() + ":" + group.getPort() + ":" + epoch; }
+
+        // The seq the next send() gets
+        synchronized int next() { return next; }
+
+        // The payloads from seq `from` on, in order, to a member going back to unicast; returns how many are no longer held
+        synchronized int replay(int from, Consumer<byte[]> to) {
+            int missed = oldest - from > 0 && next - from > 0 ? Math.min(oldest, next) - from : 0;
+            for (int s = from - oldest > 0 ? from : oldest; next - s > 0; s++) to.accept(history[s & (HISTORY - 1)]);
+            return missed;
+        }
+
+        // One DATA frame to the group; false if payload is too large for one datagram (send it unicast)
+        synchronized boolean send(byte[] payload) {
+            if (payload.length > MAX_PAYLOAD) return false;
+            int seq = next++;
+            history[seq & (HISTORY - 1)] = payload;
+            historyBytes += payload.length;
+            while (next - oldest > HISTORY || (historyBytes > HISTORY_BYTES && next - oldest > 1)) {
+                int i = oldest++ & (HISTORY - 1);
+                historyBytes -= history[i].length;
+                history[i] = null;
+            }
+            transmit(out.clear().put(MAGIC).put(DATA).putInt(epoch).putInt(seq).put(payload));
+            sent.increment();
+            return true;
+        }
+
+        private synchronized void heartbeat() {
+            if (System.nanoTime() - lastSent >= TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MS))
+                transmit(out.clear().put(MAGIC).put(HEARTBEAT).putInt(epoch).putInt(next));
+        }
+
+        // Caller holds the lock; a lost group datagram is repaired like any other
+        private void transmit(ByteBuffer b) {
+            packet.setLength(b.position());
+            try {
+                socket.send(packet);
+            } catch (IOException e) {
+                // the receivers NAK it
+            }
+            lastSent = System.nanoTime();
+        }
+
+        // A datagram from a peer's unicast address: true if it was a NAK (answered here), false for ReliableUdp
+        boolean repair(InetSocketAddress from, byte[] b, int off, int len) {
+            if (!isFrame(b, off, len)) return false;
+            if (!members.test(from)) { ignored.increment(); return true; } // not parsed, never answered
+            ByteBuffer in = ByteBuffer.wrap(b, off, len);
+            in.position(in.position() + 1);
+            if (in.get() != NAK || in.remaining() < 6 || in.getInt() != epoch) return true;
+            naks.increment();
+            List<int[]> gaps = new ArrayList<>();
+            List<Integer> seqs = new ArrayList<>();
+            List<byte[]> frames = new ArrayList<>();
+            long bytes = 0;
+            synchronized (this) {
+                for (int n = in.getShort(); n > 0 && in.remaining() >= 8 && frames.size() < MAX_REPAIR && bytes < MAX_REPAIR_BYTES; n--) {
+                    int s = in.getInt(), to = in.getInt();
+                    if (to - next > 0) to = next;
+                    if (oldest - s > 0) {
+                        int end = to - oldest < 0 ? to : oldest;
+                        if (end - s > 0) gaps.add(new int[]{s, end});
+                        s = oldest;
+                    }
+                    for (; to - s > 0 && frames.size() < MAX_REPAIR && bytes < MAX_REPAIR_BYTES; s++) {
+                        byte[] f = history[s & (HISTORY - 1)];
+                        seqs.add(s);
+                        frames.add(f);
+                        bytes += f.length;
+                    }
+                }
+            }
+            try {
+                for (int[] g : gaps) {
+                    unicast.send(unicast.buffer().put(MAGIC).put(GONE).putInt(epoch).putInt(g[0]).putInt(g[1]).flip(), from);
+                    gone.add(g[1] - g[0]);
+                }
+                for (int i = 0; i < frames.size(); i++) {
+                    unicast.send(unicast.buffer().put(MAGIC).put(DATA).putInt(epoch).putInt(seqs.get(i)).put(frames.get(i)).flip(), from);
+                    repaired.increment();
+                }
+            } catch (IOException e) {
+                // the receiver NAKs again
+            }
+            return true;
+        }
+
+        String describe() {
+            int held;
+            synchronized (this) { held = next - oldest; }
+            return "multicast " + group.getAddress().getHostAddress() + ":" + group.getPort() + ": " + sent.sum() + " frames sent, "
+                     + held + " held for repair, " + naks.sum() + " NAKs (" + ignored.sum() + " from non-members ignored), " + repaired.sum() + " frames repaired, " + gone.sum() + " gone";
+        }
+    }
+
+    // Client side: hears the group, delivers frames in seq order, NAKs gaps to the server
+    static final class Receiver {
+        private final InetSocketAddress group, server;
+        private final int epoch;
+        private final MulticastSocket socket;
+        private final DatagramSocket unicast;
+        private final Consumer<byte[]> deliver;
+        private final Consumer<String> control; // MCAST_JOIN / MCAST_LEAVE to the server, over ReliableUdp
+        private final double loss = Double.parseDouble(System.getProperty(LOSS_PROPERTY, "0"));
+        private final TreeMap<Integer, byte[]> pending = new TreeMap<>(); // out of order, or before MCAST_OK
+        private final long opened = System.nanoTime();
+        private int expected, known; // next seq to deliver; 1 + the highest seq known to exist
+        private boolean joining, started, closed;
+        private final ScheduledFuture<?> ticker;
+        private long lastHeard, gapSince, lastNak;
+        private long received, dropped, duplicates, repaired, nakCount, lost;
+
+        private Receiver(InetSocketAddress group, int epoch, NetworkInterface nif, InetSocketAddress server, DatagramSocket unicast,
+                         Consumer<byte[]> deliver, Consumer<String> control) throws IOException {
+            this.group = group;
+            this.epoch = epoch;
+            this.server = server;
+            this.unicast = unicast;
+            this.deliver = deliver;
+            this.control = control;
+            socket = new MulticastSocket(group.getPort());
+            try {
+                socket.setReceiveBufferSize(1 << 20);
+                socket.joinGroup(group, nif);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            Thread t = new Thread(this::listen, "udp-multicast");
+            t.setDaemon(true);
+            t.start();
+            ticker = TIMER.scheduleWithFixedDelay(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // advert: the server's MCAST:<group>:<port>:<epoch> line
+        static Receiver open(String advert, InetSocketAddress server, DatagramSocket unicast,
+                             Consumer<byte[]> deliver, Consumer<String> control) throws IOException {
+            String[] p = advert.split(":");
+            if (p.length < 4) throw new IOException("bad advert " + advert);
+            int epoch = Integer.parseInt(p[p.length - 1]), port = Integer.parseInt(p[p.length - 2]);
+            String host = advert.substring(advert.indexOf(':') + 1, advert.lastIndexOf(':', advert.lastIndexOf(':') - 1));
+            return new Receiver(new InetSocketAddress(InetAddress.getByName(host), port), epoch, networkInterface(), server, unicast, deliver, control);
+        }
+
+        private void listen() {
+            byte[] buf = new byte[UdpTransport.MAX_DATAGRAM];
+            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            while (!socket.isClosed()) {
+                try {
+                    p.setLength(buf.length);
+                    socket.receive(p);
+                } catch (IOException e) {
+                    return; // closed
+                }
+                if (loss > 0 && ThreadLocalRandom.current().nextDouble() * 100 < loss) {
+                    synchronized (this) { dropped++; }
+                    continue;
+                }
+                frame(buf, p.getOffset(), p.getLength(), false);
+            }
+        }
+
+        // A datagram on the client's unicast socket: true if it was a repair (handled here), false for ReliableUdp
+        boolean receive(DatagramPacket p) {
+            if (!isFrame(p.getData(), p.getOffset(), p.getLength())) return false;
+            frame(p.getData(), p.getOffset(), p.getLength(), true);
+            return true;
+        }
+
+        private void frame(byte[] b, int off, int len, boolean unicasted) {
+            if (!isFrame(b, off, len)) return;
+            ByteBuffer in = ByteBuffer.wrap(b, off + 1, len - 1);
+            byte type = in.get();
+            if (in.remaining() < 8 || in.getInt() != epoch) return;
+            int seq = in.getInt();
+            boolean join = false;
+            synchronized (this) {
+                if (closed) return;
+                if (!unicasted) lastHeard = System.nanoTime();
+                if (!joining) join = joining = true;
+                if (type == DATA) {
+                    received++;
+                    if (unicasted) repaired++;
+                    byte[] payload = new byte[in.remaining()];
+                    in.get(payload);
+                    data(seq, payload);
+                } else if (type == HEARTBEAT) {
+                    if (started && seq - known > 0) known = seq;
+                } else if (type == GONE && in.remaining() >= 4) {
+                    gone(seq, in.getInt());
+                }
+            }
+            if (join) control.accept("MCAST_JOIN"); // the group reaches us
+        }
+
+        // Caller holds the lock
+        private void data(int seq, byte[] payload) {
+            if (!started) {
+                if (pending.size() < MAX_PENDING) pending.put(seq, payload);
+                return;
+            }
+            if (seq - expected < 0 || pending.containsKey(seq)) { duplicates++; return; }
+            if (seq + 1 - known > 0) known = seq + 1;
+            if (seq != expected) {
+                pending.put(seq, payload);
+                if (pending.size() > MAX_PENDING) skipTo(pending.firstKey()); // too far behind to repair
+                return;
+            }
+            deliver.accept(payload);
+            expected++;
+            drain();
+        }
+
+        private void drain() {
+            for (byte[] d; (d = pending.remove(expected)) != null; expected++) deliver.accept(d);
+        }
+
+        // The server no longer has [from, to): deliver what we have of it, count the rest as lost
+        private void gone(int from, int to) {
+            if (!started || from - expected > 0 || to - expected <= 0) return;
+            skipTo(to);
+        }
+
+        private void skipTo(int to) {
+            long missed = 0;
+            for (; to - expected > 0; expected++) {
+                byte[] d = pending.remove(expected);
+                if (d != null) deliver.accept(d); else missed++;
+            }
+            drain();
+            if (missed > 0) {
+                lost += missed;
+                deliver.accept(("MCAST_LOST:" + missed).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            }
+        }
+
+        // MCAST_OK:<seq>: room messages from seq on come only from the group
+        synchronized void started(int from) {
+            if (started || closed) return;
+            started = true;
+            expected = known = from;
+            lastHeard = System.nanoTime();
+            for (Iterator<Integer> it = pending.keySet().iterator(); it.hasNext(); ) {
+                int s = it.next();
+                if (s - from < 0) it.remove(); // came unicast as well
+                else if (s + 1 - known > 0) known = s + 1;
+            }
+            drain();
+        }
+
+        synchronized void close() { closeLocked(); }
+
+        private void closeLocked() {
+            closed = true;
+            pending.clear();
+            socket.close();
+            ticker.cancel(false);
+        }
+
+        private void tick() {
+            long now = System.nanoTime();
+            byte[] nak = null;
+            String leave = null;
+            synchronized (this) {
+                if (closed) return;
+                if (!started) {
+                    if (!joining && now - opened > SILENCE_NANOS) closeLocked(); // the group does not reach us: stay on unicast
+                    return;
+                }
+                if (expected != known) {
+                    if (gapSince == 0) gapSince = now;
+                    if (now - gapSince >= REORDER_NANOS && now - lastNak >= NAK_RETRY_NANOS) {
+                        nak = nak();
+                        lastNak = now;
+                        nakCount++;
+                    }
+                } else gapSince = 0;
+                if (now - lastHeard > SILENCE_NANOS) { // the server replays the rest unicast
+                    leave = "MCAST_LEAVE:" + expected;
+                    closeLocked();
+                    nak = null;
+                }
+            }
+            if (leave != null) control.accept(leave);
+            if (nak != null) {
+                try {
+                    unicast.send(new DatagramPacket(nak, nak.length, server));
+                } catch (IOException e) {
+                    // next tick retries
+                }
+            }
+        }
+
+        // Caller holds the lock: the missing ranges between expected and known
+        private byte[] nak() {
+            List<int[]> ranges = new ArrayList<>();
+            int s = expected;
+            for (int k : pending.keySet()) {
+                if (ranges.size() == MAX_RANGES) break;
+                if (k - s > 0) ranges.add(new int[]{s, k});
+                s = k + 1;
+            }
+            if (known - s > 0 && ranges.size() < MAX_RANGES) ranges.add(new int[]{s, known});
+            ByteBuffer b = ByteBuffer.allocate(8 + 8 * ranges.size()).put(MAGIC).put(NAK).putInt(epoch).putShort((short) ranges.size());
+            for (int[] r : ranges) b.putInt(r[0]).putInt(r[1]);
+            return b.array();
+        }
+
+        synchronized String describe() {
+            String state = closed ? (started ? "left" : "not reachable") : started ? "member" : "joining";
+            return String.format("multicast %s:%d %s: %d frames, %d dropped on arrival (test), %d repaired, %d duplicates, %d NAKs, %d lost, next #%d",
+                    group.getAddress().getHostAddress(), group.getPort(), state, received, dropped, repaired, duplicates, nakCount, lost, expected);
+        }
+    }
+}
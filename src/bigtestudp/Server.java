@@ -4,9 +4,14 @@ import java.io.*;
 import java.math.BigInteger;
 import java.net.*;
 import java.nio.file.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import tools.BankLedger;
+import tools.PollTally;
+import tools.PresenceService;
 
 /**
  * UDP server implementing a similar protocol to the TCP server used elsewhere.
@@ -14,23 +19,46 @@ import java.util.concurrent.ConcurrentHashMap;
  *   ID:<id>, MSG:<text>, PRIV:target:msg, FILEDATA:name:b64, FILECHUNK:name:idx:b64, FILEEND:name, GETFILE:name, LIST, WHOAMI, BANK:..., POLL:...
  * - Maintains username -> InetSocketAddress mapping for addressing replies.
  * - Saves uploaded files into server_files/ (creates dir if missing).
- * - Chunked uploads supported via FILECHUNK/FILEEND (base64 chunks).
+ * - Chunked uploads supported via FILECHUNK/FILEEND (base64 chunks), written to disk as they arrive.
+ * - ReliableUdp between the socket and handleMessage: peers that speak it get lossless, ordered
+ *   messages (sequence numbers, ACK/SACK/NAK, window, RTT-based retransmit); plain datagrams still work.
+ * - The receive thread only reads datagrams; PeerDispatcher runs ReliableUdp and handleMessage on a pool
+ *   of workers sharded by peer address (-Dudp.workers), so each client is served in order and a slow
+ *   command from one client does not hold up the others. handleMessage therefore runs on several threads.
+ * - I/O engine: -Dudp.engine=socket (DatagramSocket, default) or channel (non-blocking DatagramChannel with
+ *   direct buffers), see UdpTransport. Broadcasts encode the text once for all peers and log one line;
+ *   -Dudp.logTraffic=false drops the per-datagram RECV/SEND lines. NETSTATS reports datagrams per CPU-second.
+ * - Optional IP multicast (-Dudp.multicast=224.7.7.7:6969, see RoomMulticast): room messages, polls and
+ *   presence deltas go to the group once for every client that joined it, with NAK repair over unicast;
+ *   other clients still get them unicast.
  */
 public class Server {
     private static final int DEFAULT_PORT = 5000;
-    private static final int BUFFER_SIZE = 65507; // max UDP payload
-    private final DatagramSocket socket;
+    private static final boolean LOG_TRAFFIC = !"false".equalsIgnoreCase(System.getProperty("udp.logTraffic"));
+    private final UdpTransport transport;
+    private final ReliableUdp rudp;
+    private final PeerDispatcher dispatcher;
+    private final RoomMulticast.Sender multicast; // null: every broadcast is unicast
+    private final Set<InetSocketAddress> groupMembers = ConcurrentHashMap.newKeySet(); // get room messages from the group
+    private final Object groupLock = new Object(); // a broadcast goes to the group or unicast, never both
     private final Map<String, InetSocketAddress> clients = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, String> names = new ConcurrentHashMap<>(); // clients reversed: the sender's name per datagram
     private final Map<String, String> rooms = new ConcurrentHashMap<>();
-    private final Map<String, BankAccount> accounts = new ConcurrentHashMap<>();
-    private final Map<Integer, Poll> polls = new ConcurrentHashMap<>();
-    private final Map<String, SortedMap<Integer,String>> chunkBuffers = new ConcurrentHashMap<>();
+    // Balances: tools.BankLedger (bank_ledger/bigtestudp-<port>); a withdraw short of funds waits without a thread
+    private final BankLedger bank;
+    private final Map<Integer, PollTally> polls = new ConcurrentHashMap<>(); // coalesced POLL_RES (-Dserver.pollFlushMs)
+    // Joins/leaves go out as one PRESENCE_DELTA per window (-Dserver.presenceWindowMs); LIST on request
+    private final PresenceService<InetSocketAddress> presence =
+            new PresenceService<>((a, m) -> sendTo(m, a), this::broadcast, this::listLine, this::roomSummary);
+    // FILECHUNK uploads in progress ("user:name"): decoded chunks go to name.part in index order
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
     private final Path saveDir = Paths.get("server_files");
-    private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private static final java.time.format.DateTimeFormatter TS =
+            java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(java.time.ZoneId.systemDefault());
     private final Random rnd = new Random();
     private volatile String adminUser = null;
     private volatile boolean running = true;
-    private int pollCounter = 0;
+    private final AtomicInteger pollCounter = new AtomicInteger();
 
     // Feature toggles
     private static final boolean BROADCAST_ENABLED = true; // set false for server-simple unicast behavior
@@ -39,17 +67,40 @@ public class Server {
      private final Map<String,String> credentials = new HashMap<>() {{ put("20520001","pass"); put("thao","hahaha"); }};
      private final boolean REQUIRE_AUTH = false; // toggle if you want AUTH over UDP (requires client to send AUTH:..)
 
-    public Server(int port) throws SocketException {
-        DatagramSocket s = null;
+    public Server(int port) throws IOException {
+        UdpTransport t;
         try {
-            s = new DatagramSocket(port);
+            t = UdpTransport.open(port);
         } catch (BindException be) {
             log("Port " + port + " unavailable, binding to an ephemeral port instead.");
-            try { s = new DatagramSocket(0); } catch (SocketException se) { throw se; }
+            t = UdpTransport.open(0);
+        }
+        transport = t;
+        rudp = new ReliableUdp(transport, new ReliableUdp.Handler() {
+            @Override public void deliver(InetSocketAddress from, byte[] data, int off, int len) {
+                handleMessage(new String(data, off, len, java.nio.charset.StandardCharsets.UTF_8), from);
+            }
+            @Override public void lost(InetSocketAddress peer) { log("Peer " + addrKey(peer) + " stopped acknowledging; its queued messages were dropped"); }
+            @Override public boolean keep(InetSocketAddress peer) { return names.containsKey(peer); } // logged in: may idle
+        }, false);
+        RoomMulticast.Sender mc = null;
+        try {
+            mc = RoomMulticast.Sender.open(transport, groupMembers::contains);
+        } catch (IOException | RuntimeException e) {
+            log("Multicast off: " + e.getMessage());
+        }
+        multicast = mc;
+        dispatcher = new PeerDispatcher((from, data) -> {
+            if (multicast == null || !multicast.repair(from, data, 0, data.length)) rudp.receive(from, data, 0, data.length);
+        });
+        try {
+            bank = BankLedger.open("bigtestudp-" + transport.localPort());
+        } catch (IOException e) {
+            throw new UncheckedIOException("bank ledger: " + e.getMessage(), e);
         }
-        socket = s;
         try { if (!Files.exists(saveDir)) Files.createDirectories(saveDir); } catch (IOException ignored) {}
-        log("UDP server listening on port " + socket.getLocalPort());
+        log("UDP server listening on port " + transport.localPort() + " (" + transport.engine() + " engine)"
+                + (multicast != null ? ", room messages to " + multicast.advert() : ""));
     }
 
     private void log(String s) { System.out.println("[UDP-SRV] " + s); }
@@ -57,36 +108,84 @@ public class Server {
     private void sendTo(String msg, InetSocketAddress addr) {
         try {
             byte[] data = msg.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-            DatagramPacket p = new DatagramPacket(data, data.length, addr.getAddress(), addr.getPort());
-            socket.send(p);
-            // Log the outgoing message for clear server activity tracing
-            log("SEND to " + addrKey(addr) + " => " + msg);
-        } catch (IOException e) { log("Send error to " + addr + ": " + e.getMessage()); }
+            // Framed and retransmitted until acknowledged for ReliableUdp peers, a plain datagram otherwise
+            if (rudp.send(addr, data)) { if (LOG_TRAFFIC) log("SEND to " + addrKey(addr) + " => " + msg); }
+            else log("Send dropped to " + addrKey(addr) + " (peer gone, too far behind or message too large) => " + msg);
+        } catch (RuntimeException e) { log("Send error to " + addr + ": " + e.getMessage()); }
+    }
+
+    // The ledger (batch on disk, a deposit covering a waiting withdraw) or the timer wheel completes op;
+    // the reply is sent from there, so the receive loop never waits on an account
+    private void bankReply(CompletableFuture<Long> op, String act, InetSocketAddress addr) {
+        op.whenComplete((bal, err) -> {
+            Throwable e = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+            if (e == null) sendTo("BANK_OK:" + act + ":" + BankLedger.format(bal), addr);
+            else if (e instanceof BankLedger.InsufficientFundsException) sendTo("BANK_ERR:insufficient", addr);
+            else sendTo("BANK_ERR:unavailable", addr);
+        });
     }
 
+    // Encoded once; every peer's frame shares the array (ReliableUdp only adds its header at send time).
+    // With multicast: one group datagram for the members, unicast for the rest
     private void broadcast(String msg) {
-        for (InetSocketAddress a : clients.values()) sendTo(msg, a);
+        byte[] data = msg.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        int n = 0, dropped = 0;
+        boolean grouped = false;
+        if (multicast == null) {
+            for (InetSocketAddress a : clients.values()) {
+                try {
+                    if (rudp.send(a, data)) n++; else dropped++;
+                } catch (RuntimeException e) { dropped++; }
+            }
+        } else {
+            synchronized (groupLock) {
+                grouped = multicast.send(data); // too large for one datagram: unicast to all
+                for (InetSocketAddress a : clients.values()) {
+                    if (grouped && groupMembers.contains(a)) continue;
+                    try {
+                        if (rudp.send(a, data)) n++; else dropped++;
+                    } catch (RuntimeException e) { dropped++; }
+                }
+            }
+        }
+        if (LOG_TRAFFIC || dropped > 0) log("BROADCAST to " + (grouped ? "group + " : "") + n + (dropped > 0 ? " (" + dropped + " dropped)" : "") + " => " + msg);
+    }
+
+    // MCAST_JOIN: room messages from the seq in MCAST_OK on come only from the group.
+    // MCAST_LEAVE:<seq>: the member stopped hearing the group; what it missed from seq on is replayed
+    // unicast, in order, ahead of the next broadcast
+    private void groupMembership(InetSocketAddress addr, String line) {
+        synchronized (groupLock) {
+            if (line.startsWith("MCAST_JOIN")) {
+                groupMembers.add(addr);
+                sendTo("MCAST_OK:" + multicast.next(), addr);
+                return;
+            }
+            if (!groupMembers.remove(addr)) return;
+            int from;
+            try { from = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim()); } catch (RuntimeException e) { from = multicast.next(); }
+            int missed = multicast.replay(from, data -> rudp.send(addr, data));
+            if (missed > 0) sendTo("MCAST_LOST:" + missed, addr);
+            sendTo("MCAST_OFF:" + multicast.next(), addr);
+        }
     }
 
-    private void broadcastList() {
-        String users = String.join(",", clients.keySet());
+    private String listLine() {
+        return "LIST:" + String.join(",", clients.keySet()) + ":ROOMS:" + roomSummary();
+    }
+
+    private String roomSummary() {
         Map<String,Integer> rm = new HashMap<>();
         for (String r : rooms.values()) rm.put(r, rm.getOrDefault(r,0)+1);
-        String roomMap = rm.toString();
-        broadcast("LIST:" + users + ":ROOMS:" + roomMap);
+        return rm.toString();
     }
 
     private String addrKey(InetSocketAddress a) { return a.getAddress().getHostAddress() + ":" + a.getPort(); }
 
     public void run() {
-        byte[] buf = new byte[BUFFER_SIZE];
         while (running) {
             try {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                socket.receive(packet);
-                String msg = new String(packet.getData(), packet.getOffset(), packet.getLength(), java.nio.charset.StandardCharsets.UTF_8);
-                InetSocketAddress addr = new InetSocketAddress(packet.getAddress(), packet.getPort());
-                handleMessage(msg, addr);
+                transport.receive(dispatcher::dispatch); // the peer's worker: acks/retransmits, then handleMessage in order
             } catch (IOException e) {
                 log("Receive error: " + e.getMessage());
             }
@@ -95,7 +194,7 @@ public class Server {
 
     private void handleMessage(String line, InetSocketAddress addr) {
         try {
-            log("RECV from " + addrKey(addr) + " => " + line.substring(0, Math.min(120, line.length())));
+            if (LOG_TRAFFIC) log("RECV from " + addrKey(addr) + " => " + line.substring(0, Math.min(120, line.length())));
             // If the sender is not known yet and sends ID, register them
             String[] p = line.split(":", 3);
             String prefix = p[0];
@@ -103,13 +202,13 @@ public class Server {
                 // AUTH:<user>:<pass>
                 if (p.length>=3) {
                     String user = p[1]; String pass = p[2]; String exp = credentials.get(user);
-                    if (exp!=null && exp.equals(pass)) { clients.put(user, addr); rooms.put(user, "Lobby"); sendTo("AUTH_OK", addr); if (adminUser==null) adminUser = user; broadcastList(); }
+                    if (exp!=null && exp.equals(pass)) { clients.put(user, addr); names.put(addr, user); rooms.put(user, "Lobby"); sendTo("AUTH_OK", addr); if (adminUser==null) adminUser = user; presence.joined(user, addr); }
                     else sendTo("AUTH_FAIL", addr);
                 } else sendTo("AUTH_FAIL", addr);
                 return;
             }
 
-            if (prefix.equals("ID") || (prefix.length()>0 && !clients.containsValue(addr) && clients.keySet().stream().noneMatch(k->k.equals(prefix)))) {
+            if (prefix.equals("ID") || (prefix.length()>0 && !names.containsKey(addr) && !clients.containsKey(prefix))) {
                 // Accept both ID:<id> or plain id
                 String rid = line.startsWith("ID:") ? line.substring(3).trim() : line.trim();
                 String username;
@@ -118,17 +217,19 @@ public class Server {
                 synchronized (clients) {
                     if (clients.containsKey(username)) username = username + "_" + rnd.nextInt(1000);
                     clients.put(username, addr);
+                    names.put(addr, username);
                     rooms.put(username, "Lobby");
                     if (adminUser==null) adminUser = username;
                 }
                 sendTo("ID_OK:" + username, addr);
+                if (multicast != null) sendTo(multicast.advert(), addr);
                 try { BigInteger n = new BigInteger(rid); sendTo("ID_RES:" + n.pow(4), addr); } catch (Exception ignored) {}
-                if (BROADCAST_ENABLED) { broadcast("SYSTEM:" + username + " has joined"); broadcastList(); }
+                if (BROADCAST_ENABLED) { broadcast("SYSTEM:" + username + " has joined"); presence.joined(username, addr); }
                 return;
             }
 
             // find username by address
-            String username = clients.entrySet().stream().filter(en -> en.getValue().equals(addr)).map(Map.Entry::getKey).findFirst().orElse(null);
+            String username = names.get(addr);
 
             // File-related
             if (prefix.equals("FILEDATA") || prefix.equals("FILECHUNK") || prefix.equals("FILEEND") || prefix.equals("FILE") || prefix.equals("GETFILE")) {
@@ -152,27 +253,31 @@ public class Server {
                     return;
                 }
                 if (prefix.equals("FILECHUNK")) {
-                    // FILECHUNK:name:idx:b64 -> split into 4 parts, but b64 can contain ':' not typically, base64 doesn't include ':' so safe
+                    // FILECHUNK:name:idx:b64 (base64 has no ':'). Chunks are written as soon as they are next in order;
+                    // only chunks that arrive early (plain datagram clients) wait in memory.
                     String[] parts = line.split(":",4);
                     if (parts.length<4) { sendTo("ERR:Malformed FILECHUNK", addr); return; }
-                    String name = parts[1]; int idx = Integer.parseInt(parts[2]); String b64 = parts[3];
+                    String name = parts[1]; int idx = Integer.parseInt(parts[2]); byte[] data = Base64.getDecoder().decode(parts[3]);
                     String key = (username==null?addrKey(addr):username) + ":" + name;
-                    SortedMap<Integer,String> buf = chunkBuffers.computeIfAbsent(key, k->new TreeMap<>());
-                    buf.put(idx, b64);
+                    Upload up = uploads.get(key);
+                    if (up == null) { up = new Upload(saveDir.resolve(name + ".part")); uploads.put(key, up); }
+                    up.add(idx, data);
                     sendTo("FILECHUNK_OK:" + name + ":" + idx, addr);
                     return;
                 }
                 if (prefix.equals("FILEEND")) {
                     String name = line.substring(line.indexOf(':')+1);
                     String key = (username==null?addrKey(addr):username) + ":" + name;
-                    SortedMap<Integer,String> buf = chunkBuffers.get(key);
-                    if (buf==null || buf.isEmpty()) { sendTo("FILE_ERR:No chunks for " + name, addr); return; }
+                    Upload up = uploads.remove(key);
+                    if (up==null || up.next==0) { sendTo("FILE_ERR:No chunks for " + name, addr); return; }
                     try {
+                        up.out.close();
+                        if (!up.early.isEmpty()) { Files.deleteIfExists(up.part); sendTo("FILE_ERR:Missing chunk " + up.next + " of " + name, addr); return; }
                         Path target = saveDir.resolve(name);
-                        try (FileOutputStream fos = new FileOutputStream(target.toFile())) {
-                            for (String b64 : buf.values()) fos.write(Base64.getDecoder().decode(b64));
-                        }
-                        chunkBuffers.remove(key);
+                        Files.move(up.part, target, StandardCopyOption.REPLACE_EXISTING);
+                        double secs = (System.nanoTime() - up.started) / 1e9;
+                        log(String.format("Upload %s: %d bytes in %.2f s, goodput %.1f KB/s; %s", key, up.bytes, secs,
+                                up.bytes / 1024.0 / Math.max(secs, 1e-3), rudp.describe(addr)));
                         sendTo("FILE_OK:" + name + ":SAVED_AT:" + target.toAbsolutePath(), addr);
                         if (BROADCAST_ENABLED) broadcast("FILE_BC:" + (username==null?addrKey(addr):username) + ":" + name);
                     } catch (Exception ex) { sendTo("ERR:File write failed:" + ex.getMessage(), addr); }
@@ -182,7 +287,9 @@ public class Server {
                     String name = line.substring(line.indexOf(':')+1);
                     Path target = saveDir.resolve(name);
                     if (Files.exists(target)) {
-                        try { byte[] data = Files.readAllBytes(target); String b64 = Base64.getEncoder().encodeToString(data); sendTo("FILE_SEND:" + name + ":" + b64, addr); } catch (Exception ex) { sendTo("ERR:File read failed:" + ex.getMessage(), addr); }
+                        try { byte[] data = Files.readAllBytes(target); String reply = "FILE_SEND:" + name + ":" + Base64.getEncoder().encodeToString(data);
+                            // One reply is one datagram: a larger file would only be refused by ReliableUdp
+                            if (reply.getBytes(java.nio.charset.StandardCharsets.UTF_8).length > ReliableUdp.MAX_MESSAGE) sendTo("FILE_SEND_ERR:Too large for one datagram (" + data.length + " bytes)", addr); else sendTo(reply, addr); } catch (Exception ex) { sendTo("ERR:File read failed:" + ex.getMessage(), addr); }
                     } else sendTo("FILE_SEND_ERR:Not found", addr);
                     return;
                 }
@@ -207,22 +314,28 @@ public class Server {
 
             // COMMANDS: LIST WHOAMI SAVELOG BANK POLL KICK QUIT
             if (prefix.equals("LIST")) {
-                String users = String.join(",", clients.keySet()); Map<String,Integer> rcount = new HashMap<>(); for (String r : rooms.values()) rcount.put(r, rcount.getOrDefault(r,0)+1); sendTo("LIST:" + users + ":ROOMS:" + rcount, addr); return; }
+                presence.snapshot(addr); return; }
+            if (prefix.equals("NETSTATS")) { sendTo("NETSTATS:" + rudp.describe(addr) + "; " + rudp.describe() + "; " + dispatcher.describe() + "; " + transport.describe()
+                    + (multicast != null ? "; " + multicast.describe() + ", " + groupMembers.size() + " members" : ""), addr); return; }
+            if (prefix.equals("MCAST_JOIN") || prefix.equals("MCAST_LEAVE")) {
+                if (multicast == null || username == null) sendTo("ERR:Multicast off", addr);
+                else groupMembership(addr, line);
+                return;
+            }
             if (prefix.equals("WHOAMI")) { String who = (username==null?addrKey(addr):username); sendTo("WHOAMI:" + who + ":addr:" + addrKey(addr) + ":room:" + rooms.getOrDefault(who, "Lobby"), addr); return; }
             if (prefix.equals("SAVELOG")) { sendTo("SAVELOG_DONE", addr); return; }
 
             if (prefix.equals("BANK")) {
                 String[] t = line.split(":",3);
-                accounts.putIfAbsent((username==null?addrKey(addr):username), new BankAccount());
-                BankAccount acc = accounts.get((username==null?addrKey(addr):username));
+                String who = (username==null?addrKey(addr):username);
                 if (t.length>=2) {
                     String act = t[1].toUpperCase();
                     try {
-                        if (act.equals("DEPOSIT") && t.length>=3) { BigInteger amt = new BigInteger(t[2]); BigInteger bal = acc.deposit(amt); sendTo("BANK_OK:DEPOSIT:" + bal, addr); }
-                        else if (act.equals("WITHDRAW") && t.length>=3) { BigInteger amt = new BigInteger(t[2]); try { BigInteger bal = acc.withdraw(amt); sendTo("BANK_OK:WITHDRAW:" + bal, addr); } catch (InterruptedException ie) { sendTo("BANK_ERR:timeout", addr); } }
-                        else if (act.equals("BALANCE")) sendTo("BANK_BAL:" + acc.getBalance(), addr);
+                        if (act.equals("DEPOSIT") && t.length>=3) bankReply(bank.deposit(who, BankLedger.parseCents(t[2])), act, addr);
+                        else if (act.equals("WITHDRAW") && t.length>=3) bankReply(bank.withdraw(who, BankLedger.parseCents(t[2]), BankLedger.WAIT_MILLIS), act, addr);
+                        else if (act.equals("BALANCE")) sendTo("BANK_BAL:" + BankLedger.format(bank.balance(who)), addr);
                         else sendTo("BANK_ERR:unknown", addr);
-                    } catch (NumberFormatException nfe) { sendTo("BANK_ERR:bad_amount", addr); }
+                    } catch (IllegalArgumentException iae) { sendTo("BANK_ERR:bad_amount", addr); }
                 } else sendTo("BANK_ERR:bad", addr);
                 return;
             }
@@ -232,27 +345,34 @@ public class Server {
                 if (t.length>=2) {
                     String act = t[1].toUpperCase();
                     if (act.equals("CREATE") && t.length>=4) {
-                        int id = ++pollCounter;
+                        int id = pollCounter.incrementAndGet();
                         List<String> opts = Arrays.asList(t[3].split(","));
-                        Poll newPoll = new Poll(id, t[2], opts);
-                        polls.put(id, newPoll);
+                        polls.put(id, new PollTally(id, t[2], opts, (pt, changes) -> broadcast("POLL_RES:" + pt.id + ":" + changes)));
                         broadcast("POLL_NEW:"+id+":"+t[2]+":"+opts);
                         sendTo("POLL_OK:CREATED:"+id, addr);
                     } else if (act.equals("VOTE") && t.length>=4) {
                         try {
                             int id = Integer.parseInt(t[2]);
                             int idx = Integer.parseInt(t[3]);
-                            Poll pol = polls.get(id);
-                            if (pol!=null) {
-                                pol.vote(idx);
-                                broadcast("POLL_RES:"+id+":"+pol.result());
-                                sendTo("POLL_OK:VOTED", addr);
-                            } else {
-                                sendTo("POLL_ERR:unknown", addr);
+                            PollTally pol = polls.get(id);
+                            if (pol == null) { sendTo("POLL_ERR:unknown", addr); return; }
+                            switch (pol.vote(username==null?addrKey(addr):username, idx)) { // counts follow in the next POLL_RES
+                                case VOTED -> sendTo("POLL_OK:VOTED", addr);
+                                case CHANGED -> sendTo("POLL_OK:CHANGED", addr);
+                                case SAME -> sendTo("POLL_ERR:already_voted", addr);
+                                case BAD_OPTION -> sendTo("POLL_ERR:bad_option", addr);
                             }
                         } catch(Exception ex) {
                             sendTo("POLL_ERR", addr);
                         }
+                    } else if ((act.equals("RETRACT") || act.equals("STATS")) && t.length>=3) {
+                        // POLL:RETRACT:<id> takes the vote back; POLL:STATS:<id> reports voters and bitmap memory
+                        PollTally pol = null;
+                        try { pol = polls.get(Integer.parseInt(t[2].trim())); } catch (NumberFormatException ignored) {}
+                        if (pol == null) sendTo("POLL_ERR:unknown", addr);
+                        else if (act.equals("STATS")) sendTo("POLL_STATS:" + pol.id + ":" + pol.describe(), addr);
+                        else if (pol.retract(username==null?addrKey(addr):username)) sendTo("POLL_OK:RETRACTED", addr);
+                        else sendTo("POLL_ERR:not_voted", addr);
                     } else {
                         sendTo("POLL_ERR", addr);
                     }
@@ -261,16 +381,16 @@ public class Server {
             }
 
             if (prefix.equals("KICK")) {
-                String who = line.substring(line.indexOf(':')+1).trim(); if (!who.isEmpty() && adminUser!=null && adminUser.equals((username==null?addrKey(addr):username))) { InetSocketAddress t = clients.get(who); if (t!=null) { sendTo("SYSTEM:You are kicked by admin", t); clients.remove(who); rooms.remove(who); broadcast("SYSTEM:"+who+" was kicked by " + adminUser); } else sendTo("ERR:User not found", addr); } else sendTo("ERR:Not admin", addr); return; }
+                String who = line.substring(line.indexOf(':')+1).trim(); if (!who.isEmpty() && adminUser!=null && adminUser.equals((username==null?addrKey(addr):username))) { InetSocketAddress t = clients.get(who); if (t!=null) { sendTo("SYSTEM:You are kicked by admin", t); clients.remove(who); names.remove(t, who); groupMembers.remove(t); rooms.remove(who); broadcast("SYSTEM:"+who+" was kicked by " + adminUser); presence.left(who); rudp.forget(t); } else sendTo("ERR:User not found", addr); } else sendTo("ERR:Not admin", addr); return; }
 
             if (prefix.equals("QUIT")) {
-                String who = (username==null?addrKey(addr):username); clients.remove(who); rooms.remove(who); broadcast("SYSTEM:" + who + " is leaving"); broadcastList(); return;
+                String who = (username==null?addrKey(addr):username); clients.remove(who); names.remove(addr, who); groupMembers.remove(addr); rooms.remove(who); broadcast("SYSTEM:" + who + " is leaving"); presence.left(who); rudp.forget(addr); return;
             }
 
             // default: treat as plain text message
             String who = (username==null?addrKey(addr):username);
             log("MSG_FROM:" + who + ":" + line);
-            String ts = df.format(new Date());
+            String ts = TS.format(java.time.Instant.now());
             if (BROADCAST_ENABLED) broadcast("MSG:" + who + ":" + ts + ":" + line);
             else sendTo("MSG:" + who + ":" + ts + ":" + line, addr);
             // private derived responses
@@ -282,32 +402,20 @@ public class Server {
         } catch (Exception e) { log("handleMessage exception: " + e.getMessage()); sendTo("ERR:ServerException:" + e.getMessage(), addr); }
     }
 
-    // Bank account
-    static class BankAccount {
-        private BigInteger balance = BigInteger.ZERO;
-        private final List<String> history = new ArrayList<>();
-        public synchronized BigInteger deposit(BigInteger amt) { balance = balance.add(amt); history.add("DEPOSIT:"+amt+":BAL="+balance); notifyAll(); return balance; }
-        public synchronized BigInteger withdraw(BigInteger amt) throws InterruptedException { long deadline = System.currentTimeMillis()+10000; while (balance.compareTo(amt)<0) { long w=deadline-System.currentTimeMillis(); if (w<=0) throw new IllegalStateException("Insufficient"); wait(w);} balance = balance.subtract(amt); history.add("WITHDRAW:"+amt+":BAL="+balance); return balance; }
-        public synchronized BigInteger getBalance(){ return balance; }
-    }
-
-    // Poll
-    static class Poll {
-        final int id;
-        final String title;
-        final List<String> opts;
-        final Map<Integer,Integer> votes = new HashMap<>();
-        Poll(int id,String t, List<String> o){
-            this.id=id; this.title=t; this.opts=o; for(int i=0;i<o.size();i++) votes.put(i,0);
-        }
-        void vote(int i){ votes.put(i, votes.getOrDefault(i,0)+1); }
-        String result(){
-            StringBuilder sb=new StringBuilder();
-            for(int i=0;i<opts.size();i++){
-                if (i>0) sb.append(",");
-                sb.append(opts.get(i)).append("=").append(votes.getOrDefault(i,0));
-            }
-            return sb.toString();
+    // One chunked upload: chunk `next` is the next to write; later ones wait in `early`
+    private static final class Upload {
+        final Path part;
+        final OutputStream out;
+        final TreeMap<Integer, byte[]> early = new TreeMap<>();
+        final long started = System.nanoTime();
+        long bytes;
+        int next;
+        Upload(Path part) throws IOException { this.part = part; out = new BufferedOutputStream(Files.newOutputStream(part), 1 << 16); }
+        void add(int idx, byte[] data) throws IOException {
+            if (idx < next) return; // duplicate
+            if (idx > next) { early.put(idx, data); return; }
+            out.write(data); next++; bytes += data.length;
+            for (byte[] d; (d = early.remove(next)) != null; next++) { out.write(d); bytes += d.length; }
         }
     }
 
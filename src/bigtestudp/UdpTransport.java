@@ -0,0 +1,162 @@
+package bigtestudp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.LongAdder;
+
+/* UdpTransport - the datagram I/O under ReliableUdp, in two engines (-Dudp.engine, bigtestudp.Server):
+   - socket (default): DatagramSocket, blocking receive and send.
+   - channel: non-blocking DatagramChannel. The receive thread waits in a Selector and drains every
+     datagram that is ready into one direct buffer; each sending thread (receive, workers, pacer, timer)
+     has its own direct send buffer, so a frame goes from the payload array to the kernel in one copy,
+     without a DatagramPacket or a temporary buffer per send. A send the kernel has no room for is
+     dropped and counted, like a datagram lost on the way (ReliableUdp resends it).
+   Callers fill buffer() (this thread's, cleared) and pass it to send(): a broadcast encodes its text
+   once and only the 10-byte frame header changes per peer. The channel engine also gets the sender of
+   consecutive datagrams from one peer as the same cached InetSocketAddress (the JDK caches it), where
+   DatagramPacket.getSocketAddress() makes a new one per datagram.
+   describe(): datagrams in/out per second and per CPU-second of the process, to compare engines.
+*/
+abstract class UdpTransport {
+    static final String ENGINE_PROPERTY = "udp.engine";
+    static final String ENGINE_SOCKET = "socket", ENGINE_CHANNEL = "channel";
+    static final int MAX_DATAGRAM = 65507;
+    private static final int SOCKET_BUFFER = 1 << 20; // a window of large frames must not overrun the kernel buffers
+
+    interface Receiver {
+        // data is only valid during the call
+        void received(InetSocketAddress from, ByteBuffer data);
+    }
+
+    final LongAdder received = new LongAdder(), sent = new LongAdder(), sendDropped = new LongAdder();
+    private final long startNanos = System.nanoTime(), startCpu = processCpuNanos();
+
+    // This thread's send buffer, cleared, MAX_DATAGRAM bytes
+    abstract ByteBuffer buffer();
+
+    // One datagram: b from position to limit
+    abstract void send(ByteBuffer b, InetSocketAddress to) throws IOException;
+
+    // Blocks until the transport is closed, handing every datagram to r
+    abstract void receive(Receiver r) throws IOException;
+
+    abstract int localPort();
+
+    abstract String engine();
+
+    // The engine from -Dudp.engine, bound to port
+    static UdpTransport open(int port) throws IOException {
+        if (ENGINE_CHANNEL.equalsIgnoreCase(System.getProperty(ENGINE_PROPERTY, ENGINE_SOCKET))) return new ChannelTransport(port);
+        return new SocketTransport(new DatagramSocket(port));
+    }
+
+    static UdpTransport of(DatagramSocket socket) { return new SocketTransport(socket); }
+
+    String describe() {
+        double secs = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        double cpu = Math.max(1e-3, (processCpuNanos() - startCpu) / 1e9);
+        long in = received.sum(), out = sent.sum();
+        return String.format("%s engine: %d datagrams in, %d out (%.0f/s), %d sends dropped, %.1f CPU-s, %.0f datagrams per CPU-second",
+                engine(), in, out, (in + out) / secs, sendDropped.sum(), cpu, (in + out) / cpu);
+    }
+
+    private static long processCpuNanos() {
+        return ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os
+                ? Math.max(0, os.getProcessCpuTime()) : 0;
+    }
+
+    private static final class SocketTransport extends UdpTransport {
+        private final DatagramSocket socket;
+        private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_DATAGRAM));
+        private final ThreadLocal<DatagramPacket> packets = ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+
+        SocketTransport(DatagramSocket socket) {
+            this.socket = socket;
+            try {
+                socket.setReceiveBufferSize(SOCKET_BUFFER);
+                socket.setSendBufferSize(SOCKET_BUFFER);
+            } catch (IOException e) {
+                // keep the defaults
+            }
+        }
+
+        @Override ByteBuffer buffer() { return buffers.get().clear(); }
+
+        @Override void send(ByteBuffer b, InetSocketAddress to) throws IOException {
+            DatagramPacket p = packets.get();
+            p.setData(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            p.setSocketAddress(to);
+            socket.send(p);
+            sent.increment();
+        }
+
+        @Override void receive(Receiver r) throws IOException {
+            byte[] buf = new byte[MAX_DATAGRAM];
+            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            ByteBuffer view = ByteBuffer.wrap(buf);
+            while (!socket.isClosed()) {
+                p.setLength(buf.length);
+                socket.receive(p);
+                received.increment();
+                r.received((InetSocketAddress) p.getSocketAddress(), view.limit(p.getLength()).position(0));
+            }
+        }
+
+        @Override int localPort() { return socket.getLocalPort(); }
+
+        @Override String engine() { return ENGINE_SOCKET; }
+    }
+
+    private static final class ChannelTransport extends UdpTransport {
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_DATAGRAM));
+
+        ChannelTransport(int port) throws IOException {
+            channel = DatagramChannel.open();
+            try {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+                channel.bind(new InetSocketAddress(port));
+                channel.configureBlocking(false);
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        @Override ByteBuffer buffer() { return buffers.get().clear(); }
+
+        @Override void send(ByteBuffer b, InetSocketAddress to) throws IOException {
+            if (channel.send(b, to) == 0) sendDropped.increment(); // socket buffer full
+            else sent.increment();
+        }
+
+        @Override void receive(Receiver r) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+            while (channel.isOpen()) {
+                selector.select();
+                selector.selectedKeys().clear();
+                // Drain everything that is queued before waiting again
+                for (InetSocketAddress from; (from = (InetSocketAddress) channel.receive(buf.clear())) != null; ) {
+                    received.increment();
+                    r.received(from, buf.flip());
+                }
+            }
+        }
+
+        @Override int localPort() { return channel.socket().getLocalPort(); }
+
+        @Override String engine() { return ENGINE_CHANNEL; }
+    }
+}
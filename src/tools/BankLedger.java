@@ -0,0 +1,600 @@
+package tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Bank balances of a server (bigtest, biggprojectt, updatedmid2025unicast, bigtestudp), replacing a synchronized BigInteger per account
+ * with an unbounded history list, and balances that were lost on restart.
+ * - Balances are long cents in an AtomicLong per account. Deposit and withdraw are CAS updates, so
+ *   clients on different accounts never wait for each other and one account never blocks a thread.
+ * - Write-ahead log: every change is queued (lock-free) to a daemon "bank-wal" thread that writes
+ *   whatever is queued as one CRC-checked batch and forces it once (group commit). The returned
+ *   future completes with the new balance when its batch is on disk. A deposit is queued before it
+ *   becomes visible and a withdraw after, so a withdraw is never in the log ahead of the deposit it
+ *   spent. Balances read by balance() may include changes whose batch is still being forced. If a
+ *   batch cannot be written, its changes are taken back out of the balances and the ledger refuses
+ *   every later change, so memory never runs ahead of the disk.
+ * - Snapshots: after -Dserver.bankSnapshotOps changes (default 100000) or -Dserver.bankSnapshotMs
+ *   (default 60000) the WAL thread writes every balance to snapshot.bin (temp file + atomic rename),
+ *   starts a new wal-<generation>.log and deletes the old ones, so the log stays short.
+ * - Recovery (open): snapshot, then the batches of the newer logs; a torn last batch (crash during a
+ *   write) was never acknowledged and is cut off. A fresh snapshot is taken right away.
+ * - Transfers (transfer(List)): one or many, applied all or nothing as one WAL record, without locks
+ *   (net debits by CAS, put back if one is short), so opposite transfers cannot deadlock. Their
+ *   latency to durable is kept as a histogram in describe().
+ * - Waiting withdraw (withdraw with waitMillis): without the funds it is queued on its account instead
+ *   of parking a thread; deposits serve the queue oldest first and a shared TimerWheel fails it with
+ *   InsufficientFundsException after -Dserver.bankWaitMs (default 10000). At most 64 per account.
+ * Amounts are decimal with up to 13 digits and 2 places ("12", "12.5", "12.34"), so below 10^13 per
+ * operation.
+ * Directory: -Dserver.bankDir (default bank_ledger) / name.
+ */
+public final class BankLedger implements Closeable {
+    public static final String DIR_PROPERTY = "server.bankDir";
+    public static final String SNAPSHOT_OPS_PROPERTY = "server.bankSnapshotOps";
+    public static final String SNAPSHOT_MS_PROPERTY = "server.bankSnapshotMs";
+    public static final String WAIT_PROPERTY = "server.bankWaitMs";
+    // How long a withdraw may wait for funds (servers pass it to withdraw(account, cents, waitMillis))
+    public static final long WAIT_MILLIS = Math.max(0, Long.getLong(WAIT_PROPERTY, 10_000));
+
+    private static final long SNAPSHOT_OPS = Math.max(1, Long.getLong(SNAPSHOT_OPS_PROPERTY, 100_000));
+    private static final long SNAPSHOT_NANOS = Math.max(1, Long.getLong(SNAPSHOT_MS_PROPERTY, 60_000)) * 1_000_000L;
+    private static final int MAX_DIGITS = 13;                         // whole units in an amount
+    private static final long MAX_AMOUNT = 999_999_999_999_999L;      // cents per operation: 13 digits, 2 places
+    private static final long MAX_BALANCE = Long.MAX_VALUE / 2;        // headroom for racing deposits
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_WAITERS = 64;                        // per account
+    private static final int SNAPSHOT_MAGIC = 0x42414e4b;             // "BANK"
+
+    // Withdraw of more than the balance
+    public static final class InsufficientFundsException extends Exception {
+        private static final long serialVersionUID = 1L;
+        public final long balance;
+        InsufficientFundsException(long balance) {
+            super("insufficient funds");
+            this.balance = balance;
+        }
+    }
+
+    private static final class Account {
+        final AtomicLong cents = new AtomicLong();
+        // Withdrawals waiting for a deposit, oldest first. The lock only guards the queue for a few
+        // instructions: no thread ever waits on it for money.
+        final ReentrantLock waitLock = new ReentrantLock();
+        ArrayDeque<Waiter> waiters;     // (waitLock)
+        volatile int waiting;           // waiters.size(), read without the lock by deposits
+    }
+
+    // A withdraw parked until the balance covers it or its timer fires
+    private static final class Waiter {
+        final long cents;
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        TimerWheel.Timeout timeout;
+        boolean settled;                // (waitLock)
+        Waiter(long cents) { this.cents = cents; }
+    }
+
+    // One move of money for transfer(List)
+    public static final class Transfer {
+        public final String from, to;
+        public final long cents;
+        public Transfer(String from, String to, long cents) { this.from = from; this.to = to; this.cents = cents; }
+    }
+
+    // One queued change of one or more accounts (all in the same WAL batch); done completes when it is forced
+    private static final class Op {
+        final String[] accounts;
+        final long[] deltas;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        Op(String[] accounts, long[] deltas) { this.accounts = accounts; this.deltas = deltas; }
+    }
+
+    private final Path dir;
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Op> queue = new ConcurrentLinkedQueue<>();
+    // WAL thread only: balances as of the last batch written (what a snapshot stores)
+    private final Map<String, long[]> durable = new HashMap<>();
+    private final Thread writer;
+    private final Latency latency = new Latency();
+    private FileChannel wal;
+    private long generation;
+    private ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    private long sinceSnapshot, lastSnapshot;
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private volatile long ops, batches, recoveryMillis;
+
+    private BankLedger(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        long t0 = System.nanoTime();
+        recover();
+        snapshot();
+        recoveryMillis = (System.nanoTime() - t0) / 1_000_000;
+        writer = new Thread(this::writeLoop, "bank-wal");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "bank-close"));
+    }
+
+    // Ledger of one server: <server.bankDir>/<name>
+    public static BankLedger open(String name) throws IOException {
+        return new BankLedger(Paths.get(System.getProperty(DIR_PROPERTY, "bank_ledger"), name));
+    }
+
+    // ---------------------------------------------------------------- operations
+
+    public long balance(String account) {
+        Account a = accounts.get(account);
+        return a == null ? 0 : a.cents.get();
+    }
+
+    // Completes with the new balance once durable; IllegalArgumentException for a bad amount
+    public CompletableFuture<Long> deposit(String account, long cents) {
+        checkAmount(cents);
+        Account a = account(account);
+        if (a.cents.get() > MAX_BALANCE - cents) throw new IllegalArgumentException("balance too large");
+        Op op = enqueue(account, cents);      // logged before anyone can spend it
+        if (op.done.isCompletedExceptionally()) return op.done.thenApply(v -> 0L);
+        long bal = a.cents.addAndGet(cents);
+        undoOnFailure(op, new Account[] { a });
+        if (a.waiting > 0) drain(account, a);
+        return op.done.thenApply(v -> bal);
+    }
+
+    // Completes with the new balance once durable, or fails with InsufficientFundsException at once
+    public CompletableFuture<Long> withdraw(String account, long cents) {
+        checkAmount(cents);
+        CompletableFuture<Long> f = take(account, account(account), cents);
+        return f != null ? f : CompletableFuture.failedFuture(new InsufficientFundsException(balance(account)));
+    }
+
+    // Like withdraw, but without the funds it waits up to waitMillis for deposits: waiting withdrawals of
+    // an account are served oldest first, each as soon as the balance covers it. No thread waits: the
+    // future completes from the depositor or fails with InsufficientFundsException from the timer wheel.
+    public CompletableFuture<Long> withdraw(String account, long cents, long waitMillis) {
+        checkAmount(cents);
+        Account a = account(account);
+        if (a.waiting == 0) {
+            CompletableFuture<Long> f = take(account, a, cents);
+            if (f != null || waitMillis <= 0) return f != null ? f : CompletableFuture.failedFuture(new InsufficientFundsException(a.cents.get()));
+        }
+        Waiter w = new Waiter(cents);
+        a.waitLock.lock();
+        try {
+            if (a.waiters == null) a.waiters = new ArrayDeque<>();
+            if (a.waiters.size() >= MAX_WAITERS) return CompletableFuture.failedFuture(new InsufficientFundsException(a.cents.get()));
+            a.waiters.add(w);
+            a.waiting = a.waiters.size();
+        } finally {
+            a.waitLock.unlock();
+        }
+        w.timeout = TimerWheel.shared().schedule(waitMillis, () -> expire(account, a, w));
+        drain(account, a); // a deposit may have landed before the waiter was visible
+        return w.result;
+    }
+
+    // CAS the amount off the balance and log it; null without the funds
+    private CompletableFuture<Long> take(String account, Account a, long cents) {
+        long bal = reserve(a, cents);
+        if (bal < 0) return null;
+        Op op = enqueue(account, -cents);     // logged after the money is taken
+        undoOnFailure(op, new Account[] { a });
+        return op.done.thenApply(v -> bal);
+    }
+
+    // CAS the amount off the balance: the new balance, or -1 without the funds
+    private static long reserve(Account a, long cents) {
+        long cur, bal;
+        do {
+            cur = a.cents.get();
+            if (cur < cents) return -1;
+            bal = cur - cents;
+        } while (!a.cents.compareAndSet(cur, bal));
+        return bal;
+    }
+
+    // Applies every transfer or none, as one WAL record, and completes once it is durable; fails with
+    // InsufficientFundsException at once if an account would go below zero (its balance in the exception).
+    // IllegalArgumentException for a bad amount or a transfer to the same account.
+    // No locks, so opposite transfers cannot deadlock: the net debit of each account is taken by CAS
+    // (in name order); if one is short, the ones already taken are put back. Credits are logged before
+    // they become visible, like deposits. A debit put back may briefly have hidden that money from others.
+    public CompletableFuture<Void> transfer(List<Transfer> batch) {
+        long t0 = System.nanoTime();
+        Map<String, Long> net = new TreeMap<>();
+        for (Transfer t : batch) {
+            checkAmount(t.cents);
+            if (t.from.equals(t.to)) throw new IllegalArgumentException("transfer to the same account");
+            net.merge(t.from, -t.cents, Math::addExact);
+            net.merge(t.to, t.cents, Math::addExact);
+        }
+        String[] names = net.keySet().toArray(new String[0]);
+        long[] deltas = new long[names.length];
+        Account[] accs = new Account[names.length];
+        for (int i = 0; i < names.length; i++) {
+            deltas[i] = net.get(names[i]);
+            accs[i] = account(names[i]);
+            if (deltas[i] > 0 && accs[i].cents.get() > MAX_BALANCE - deltas[i]) throw new IllegalArgumentException("balance too large");
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (deltas[i] >= 0 || reserve(accs[i], -deltas[i]) >= 0) continue;
+            long have = accs[i].cents.get();
+            for (int j = 0; j < i; j++) if (deltas[j] < 0) accs[j].cents.addAndGet(-deltas[j]);
+            return CompletableFuture.failedFuture(new InsufficientFundsException(have));
+        }
+        Op op = enqueue(names, deltas);
+        if (op.done.isCompletedExceptionally()) {
+            for (int i = 0; i < names.length; i++) if (deltas[i] < 0) accs[i].cents.addAndGet(-deltas[i]);
+            return op.done;
+        }
+        for (int i = 0; i < names.length; i++) if (deltas[i] > 0) accs[i].cents.addAndGet(deltas[i]);
+        undoOnFailure(op, accs);
+        for (int i = 0; i < names.length; i++) if (deltas[i] > 0 && accs[i].waiting > 0) drain(names[i], accs[i]);
+        op.done.thenRun(() -> latency.record((System.nanoTime() - t0) / 1000));
+        return op.done;
+    }
+
+    // Whether the ledger knows the account (recovered from disk, or used since startup)
+    public boolean exists(String account) {
+        return accounts.containsKey(account);
+    }
+
+    // Serve the waiting withdrawals from the head while the balance covers them
+    private void drain(String account, Account a) {
+        a.waitLock.lock();
+        try {
+            while (!a.waiters.isEmpty()) {
+                Waiter w = a.waiters.peek();
+                CompletableFuture<Long> f = take(account, a, w.cents);
+                if (f == null) break;             // the oldest first: later ones wait behind it
+                a.waiters.poll();
+                w.settled = true;
+                if (w.timeout != null) w.timeout.cancel();
+                f.whenComplete((bal, err) -> {
+                    if (err != null) w.result.completeExceptionally(err instanceof CompletionException && err.getCause() != null ? err.getCause() : err);
+                    else w.result.complete(bal);
+                });
+            }
+            a.waiting = a.waiters.size();
+        } finally {
+            a.waitLock.unlock();
+        }
+    }
+
+    // Timer wheel: give up on w, then let the ones behind it try
+    private void expire(String account, Account a, Waiter w) {
+        a.waitLock.lock();
+        try {
+            if (w.settled) return;
+            w.settled = true;
+            a.waiters.remove(w);
+            a.waiting = a.waiters.size();
+        } finally {
+            a.waitLock.unlock();
+        }
+        w.result.completeExceptionally(new InsufficientFundsException(a.cents.get()));
+        if (a.waiting > 0) drain(account, a);
+    }
+
+    private Account account(String name) {
+        Account a = accounts.get(name);
+        return a != null ? a : accounts.computeIfAbsent(name, k -> new Account());
+    }
+
+    // op is applied to accs (in op's account order): if its batch is not written, take it back out again
+    private static void undoOnFailure(Op op, Account[] accs) {
+        op.done.whenComplete((v, err) -> {
+            if (err != null) for (int i = 0; i < accs.length; i++) accs[i].cents.addAndGet(-op.deltas[i]);
+        });
+    }
+
+    private static void checkAmount(long cents) {
+        if (cents <= 0 || cents > MAX_AMOUNT) throw new IllegalArgumentException("bad amount");
+    }
+
+    private Op enqueue(String account, long delta) {
+        return enqueue(new String[] { account }, new long[] { delta });
+    }
+
+    private Op enqueue(String[] accounts, long[] deltas) {
+        Op op = new Op(accounts, deltas);
+        IOException f = failure;
+        if (f != null || closed) {
+            op.done.completeExceptionally(f != null ? f : new IOException("ledger closed"));
+            return op;
+        }
+        queue.offer(op);
+        LockSupport.unpark(writer);
+        return op;
+    }
+
+    // "12" / "12.5" / "12.34" -> cents; IllegalArgumentException otherwise
+    public static long parseCents(String amount) {
+        String s = amount == null ? "" : amount.trim();
+        int dot = s.indexOf('.');
+        String whole = dot < 0 ? s : s.substring(0, dot);
+        String frac = dot < 0 ? "" : s.substring(dot + 1);
+        if (whole.isEmpty() || whole.length() > MAX_DIGITS || frac.length() > 2 || (dot >= 0 && frac.isEmpty())
+                || !whole.chars().allMatch(Character::isDigit) || !frac.chars().allMatch(Character::isDigit)) {
+            throw new IllegalArgumentException("bad amount: " + amount);
+        }
+        long cents = Long.parseLong(whole) * 100;
+        if (!frac.isEmpty()) cents += Long.parseLong(frac) * (frac.length() == 1 ? 10 : 1);
+        return cents;
+    }
+
+    // 1200 -> "12", 1250 -> "12.50"
+    public static String format(long cents) {
+        long abs = Math.abs(cents);
+        String s = (cents < 0 ? "-" : "") + abs / 100;
+        return abs % 100 == 0 ? s : s + String.format(".%02d", abs % 100);
+    }
+
+    // ---------------------------------------------------------------- WAL thread
+
+    private void writeLoop() {
+        List<Op> batch = new ArrayList<>();
+        while (true) {
+            Op op = queue.poll();
+            if (op == null) {
+                if (closed) break;
+                if (sinceSnapshot > 0 && System.nanoTime() - lastSnapshot >= SNAPSHOT_NANOS) trySnapshot();
+                LockSupport.parkNanos(this, SNAPSHOT_NANOS);
+                continue;
+            }
+            batch.clear();
+            buf.clear().position(8); // length + crc
+            do {
+                put(op);
+                batch.add(op);
+            } while (batch.size() < MAX_BATCH && (op = queue.poll()) != null);
+            IOException err = failure;
+            if (err == null) {
+                try {
+                    buf.flip();
+                    CRC32C crc = new CRC32C();
+                    crc.update(buf.duplicate().position(8));
+                    buf.putInt(0, buf.limit() - 8).putInt(4, (int) crc.getValue());
+                    while (buf.hasRemaining()) wal.write(buf);
+                    wal.force(false);
+                } catch (IOException e) {
+                    failure = err = e;
+                    System.err.println("Bank ledger " + dir + ": write failed, refusing new changes: " + e);
+                }
+            }
+            for (Op o : batch) {
+                if (err != null) { o.done.completeExceptionally(err); continue; }
+                for (int i = 0; i < o.accounts.length; i++) durable.computeIfAbsent(o.accounts[i], k -> new long[1])[0] += o.deltas[i];
+                o.done.complete(null);
+            }
+            if (err == null) {
+                ops += batch.size();
+                batches++;
+                sinceSnapshot += batch.size();
+                if (sinceSnapshot >= SNAPSHOT_OPS) trySnapshot();
+            }
+        }
+        for (Op o; (o = queue.poll()) != null; ) o.done.completeExceptionally(new IOException("ledger closed"));
+        try { wal.close(); } catch (IOException ignored) {}
+    }
+
+    // Record: account length (short), account (UTF-8), delta (long); one per account of the op
+    private void put(Op op) {
+        for (int i = 0; i < op.accounts.length; i++) {
+            byte[] name = op.accounts[i].getBytes(StandardCharsets.UTF_8);
+            if (buf.remaining() < name.length + 10) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + name.length + 10));
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+            buf.putShort((short) name.length).put(name).putLong(op.deltas[i]);
+        }
+    }
+
+    private void trySnapshot() {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            System.err.println("Bank ledger " + dir + ": snapshot failed (log kept): " + e);
+        }
+    }
+
+    // Balances of every batch written so far -> snapshot.bin, then a new log generation
+    private void snapshot() throws IOException {
+        long next = generation + 1;
+        Path tmp = dir.resolve("snapshot.tmp");
+        try (FileChannel ch = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch), 64 * 1024))) {
+            CRC32C crc = new CRC32C();
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(next);
+            out.writeInt(durable.size());
+            for (Map.Entry<String, long[]> e : durable.entrySet()) {
+                byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeLong(e.getValue()[0]);
+                update(crc, name, e.getValue()[0]);
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            ch.force(true);
+        }
+        FileChannel fresh = FileChannel.open(walFile(next), CREATE, WRITE, TRUNCATE_EXISTING);
+        Files.move(tmp, dir.resolve("snapshot.bin"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileChannel old = wal;
+        wal = fresh;
+        generation = next;
+        if (old != null) old.close();
+        for (Path p : walFiles()) if (generationOf(p) < next) Files.deleteIfExists(p);
+        sinceSnapshot = 0;
+        lastSnapshot = System.nanoTime();
+    }
+
+    private static void update(CRC32C crc, byte[] name, long cents) {
+        crc.update(name);
+        crc.update(ByteBuffer.allocate(8).putLong(0, cents));
+    }
+
+    // ---------------------------------------------------------------- recovery
+
+    private void recover() throws IOException {
+        Path snap = dir.resolve("snapshot.bin");
+        if (Files.exists(snap)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snap), 64 * 1024))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("not a bank snapshot: " + snap);
+                generation = in.readLong() - 1;
+                int n = in.readInt();
+                CRC32C crc = new CRC32C();
+                for (int i = 0; i < n; i++) {
+                    byte[] name = new byte[in.readUnsignedShort()];
+                    in.readFully(name);
+                    long cents = in.readLong();
+                    update(crc, name, cents);
+                    durable.put(new String(name, StandardCharsets.UTF_8), new long[] { cents });
+                }
+                if (in.readInt() != (int) crc.getValue()) throw new IOException("corrupt bank snapshot: " + snap);
+            } catch (EOFException e) {
+                throw new IOException("truncated bank snapshot: " + snap, e);
+            }
+        }
+        for (Path p : walFiles()) {
+            long g = generationOf(p);
+            if (g <= generation) continue;
+            replay(p);
+            generation = Math.max(generation, g);
+        }
+        for (Map.Entry<String, long[]> e : durable.entrySet()) account(e.getKey()).cents.set(e.getValue()[0]);
+    }
+
+    // Applies the complete batches of one log and cuts it after the last one
+    private void replay(Path p) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, READ, WRITE)) {
+            long pos = 0, size = ch.size();
+            ByteBuffer head = ByteBuffer.allocate(8);
+            while (pos + 8 <= size) {
+                head.clear();
+                ch.read(head, pos);
+                int len = head.getInt(0), sum = head.getInt(4);
+                if (len <= 0 || pos + 8 + len > size) break;
+                ByteBuffer body = ByteBuffer.allocate(len);
+                while (body.hasRemaining() && ch.read(body, pos + 8 + body.position()) > 0) { }
+                body.flip();
+                CRC32C crc = new CRC32C();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != sum) break;
+                while (body.hasRemaining()) {
+                    byte[] name = new byte[body.getShort() & 0xffff];
+                    body.get(name);
+                    durable.computeIfAbsent(new String(name, StandardCharsets.UTF_8), k -> new long[1])[0] += body.getLong();
+                }
+                pos += 8 + len;
+            }
+            if (pos < size) {
+                System.err.println("Bank ledger " + p + ": dropped a torn batch of " + (size - pos) + " bytes");
+                ch.truncate(pos);
+            }
+        }
+    }
+
+    private Path walFile(long gen) { return dir.resolve(String.format("wal-%016d.log", gen)); }
+
+    private static long generationOf(Path p) {
+        String n = p.getFileName().toString();
+        return Long.parseLong(n.substring(4, n.length() - 4));
+    }
+
+    private List<Path> walFiles() throws IOException {
+        List<Path> out = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path p : ds) out.add(p);
+        }
+        out.sort((a, b) -> Long.compare(generationOf(a), generationOf(b)));
+        return out;
+    }
+
+    // ---------------------------------------------------------------- lifecycle
+
+    // Stops taking changes and waits until the queued ones are written
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        LockSupport.unpark(writer);
+        try { writer.join(5000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    // Stats for the server log
+    public String describe() {
+        long o = ops, b = batches;
+        return accounts.size() + " accounts, " + o + " changes in " + b + " commits"
+                + (b == 0 ? "" : String.format(" (%.1f per fsync)", (double) o / b))
+                + ", transfers " + latency + ", recovered in " + recoveryMillis + " ms"
+                + (failure != null ? ", FAILED: " + failure.getMessage() : "");
+    }
+
+    // Transfer latency (call to durable) in power-of-two microsecond buckets: count, p50, p99, max
+    private static final class Latency {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(1, micros)) - 1);
+            max.accumulateAndGet(micros, Math::max);
+        }
+
+        // upper bound of the bucket holding the q-quantile
+        private long quantile(long total, double q) {
+            long seen = 0, want = (long) Math.ceil(total * q);
+            for (int i = 0; i < 64; i++) if ((seen += buckets.get(i)) >= want) return 2L << i;
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            long total = 0;
+            for (int i = 0; i < 64; i++) total += buckets.get(i);
+            if (total == 0) return "0";
+            return total + " (p50 <" + fmt(quantile(total, 0.5)) + ", p99 <" + fmt(quantile(total, 0.99)) + ", max " + fmt(max.get()) + ")";
+        }
+
+        private static String fmt(long micros) { return micros >= 1000 ? micros / 1000 + " ms" : micros + " us"; }
+    }
+}
@@ -0,0 +1,433 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Broadcast ring for outgoing frames (biggprojectt, updatedfinalmulticast), replacing one
+ * LinkedBlockingQueue per client.
+ * - Slots are allocated once and reused. A producer claims the next slot, fills it and publishes it
+ *   once for a whole Group of receivers (e.g. everyone but the uploader). Producers take turns on a
+ *   short lock; nothing is copied or queued per receiver.
+ * - Every client's sender owns a Reader with its own cursor. It walks the ring, writes the entries
+ *   addressed to it, skips the rest and parks when it has caught up. The producer wakes only the
+ *   members of the group it just published to.
+ * - An entry counts the receivers still to write it; the last one calls Entry.clear(), which gives
+ *   pooled buffers back.
+ * - Slow receivers just lag behind, up to lagLimit entries; then producers wait for them, which is
+ *   the backpressure the bounded queues gave. A receiver that holds producers back without moving
+ *   for 2 s is handed to the LagPolicy: DISCONNECT detaches it from the ring and closes it (the old
+ *   behaviour after a 2 s offer timeout, but the close runs on its own thread: a TLS close waits for
+ *   the stuck write), DROP lets everyone else go on and makes it skip to the head, with a drop
+ *   callback for each group it lost (the servers send CANCEL). A DROP reader that still does not
+ *   move within another 2 s is disconnected.
+ * - SPILL never makes producers wait: a reader that falls lagLimit entries behind gets its entries
+ *   copied into its own SpillJournal (memory-mapped files) from then on and drains them at its own
+ *   pace, so it still receives every entry. Once the journal is empty it rejoins the ring at the head.
+ *   A reader whose journal reaches -Dserver.spillLimitMB is disconnected.
+ * Select with -Dserver.lagPolicy=disconnect|drop|spill and -Dserver.lagLimit=<entries>.
+ */
+public final class BroadcastRing<E extends BroadcastRing.Entry> {
+    public static final String POLICY_PROPERTY = "server.lagPolicy";
+    public static final String LIMIT_PROPERTY = "server.lagLimit";
+
+    public enum LagPolicy { DISCONNECT, DROP, SPILL }
+
+    private static final int RUNNING = 0, PARKED = 1;
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final Supplier<E> factory;
+    private final Object[] slots;
+    private final int mask;
+    private final LagPolicy policy;
+    private final int lagLimit;
+    private final ReentrantLock lock = new ReentrantLock(); // producers; reader park/skip/detach
+    private final Condition space = lock.newCondition();   // a lagging reader skipped ahead or left
+    private final List<Reader> readers = new CopyOnWriteArrayList<>();
+    private volatile long published; // sequence of the next entry to publish
+
+    public BroadcastRing(Supplier<E> factory, LagPolicy policy, int lagLimit) {
+        int cap = Integer.highestOneBit(Math.max(64, lagLimit * 2 - 1)) << 1; // power of two > lagLimit
+        this.factory = factory;
+        this.slots = new Object[cap];
+        for (int i = 0; i < cap; i++) slots[i] = factory.get();
+        this.mask = cap - 1;
+        this.policy = policy;
+        this.lagLimit = Math.max(1, lagLimit);
+    }
+
+    public static LagPolicy policyFromProperty() {
+        String p = System.getProperty(POLICY_PROPERTY, "");
+        if (p.equalsIgnoreCase("drop")) return LagPolicy.DROP;
+        if (p.equalsIgnoreCase("spill")) return LagPolicy.SPILL;
+        return LagPolicy.DISCONNECT;
+    }
+
+    public static int limitFromProperty(int def) {
+        return Integer.getInteger(LIMIT_PROPERTY, def);
+    }
+
+    public String describe() {
+        return "ring " + slots.length + " slots, lag limit " + lagLimit + ", policy " + policy.name().toLowerCase();
+    }
+
+    private Entry slot(long seq) { return (Entry) slots[(int) (seq & mask)]; }
+
+    @SuppressWarnings("unchecked")
+    private E cast(Entry e) { return (E) e; }
+
+    @SuppressWarnings("unchecked")
+    private Reader member(Object m) { return (Reader) m; } // groups only hold readers of this ring
+
+    // One entry of the ring, reused for every lap. Subclasses add the payload fields.
+    public abstract static class Entry {
+        private long seq;
+        private Group group;
+        private final AtomicInteger pending = new AtomicInteger();
+
+        public Group group() { return group; }
+
+        // Last entry of its group (EOF, CANCEL, a whole file): a reader that dropped the group forgets it here
+        protected abstract boolean endsGroup();
+
+        // Every receiver is done with this entry: release buffers, drop references
+        protected abstract void clear();
+
+        // SPILL: size of the payload as a journal record, write exactly that many bytes, and rebuild
+        // the payload from a record (into a reader's private entry, which must not keep the buffer)
+        protected abstract int spillSize();
+
+        protected abstract void spillTo(ByteBuffer out);
+
+        protected abstract void spillFrom(ByteBuffer in);
+
+        private void consumed() {
+            if (pending.decrementAndGet() == 0) clear();
+        }
+    }
+
+    // Receivers of a run of entries (one transfer). notifyDrop: tell a reader that drops part of it.
+    public static final class Group {
+        private final Set<Object> members; // readers of one ring
+        private final boolean notifyDrop;
+
+        private Group(Collection<?> members, boolean notifyDrop) {
+            this.members = Set.<Object>copyOf(members);
+            this.notifyDrop = notifyDrop;
+        }
+
+        public boolean notifyDrop() { return notifyDrop; }
+    }
+
+    public Group group(Collection<? extends Reader> members, boolean notifyDrop) {
+        return new Group(members, notifyDrop);
+    }
+
+    public interface DropHandler {
+        void dropped(Group group) throws IOException;
+    }
+
+    // A reader starts at the current head. onOverrun closes the connection (run on its own thread);
+    // onDrop runs on the reader's thread for each group it skipped (DROP policy).
+    public Reader reader(Runnable onOverrun, DropHandler onDrop) {
+        Reader r = new Reader(onOverrun, onDrop);
+        lock.lock();
+        try {
+            r.cursor = published;
+            readers.add(r);
+        } finally {
+            lock.unlock();
+        }
+        return r;
+    }
+
+    // Claim the next slot for 'group' and return with the ring locked; fill the entry, then commit().
+    // Returns null (nothing locked) when no member of the group is still attached.
+    public E claim(Group group) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                boolean attached = false;
+                for (Object m : group.members) attached |= !member(m).detached;
+                if (!attached) { lock.unlock(); return null; }
+                long seq = published;
+                boolean blocked = false;
+                long now = System.nanoTime();
+                for (Reader r : readers) {
+                    if (r.detached || r.spilling || r.state == PARKED) continue; // parked readers skip ahead when woken
+                    long c = r.cursor;
+                    boolean holdsSlot = c <= seq - slots.length;
+                    if (r.lagged) {                                // told to skip ahead, has not yet
+                        if (now - r.stallSince > STALL_NANOS) overrun(r);
+                        else blocked |= holdsSlot;
+                        continue;
+                    }
+                    if (seq - c < lagLimit) continue;
+                    if (policy == LagPolicy.SPILL) { startSpill(r); continue; }
+                    if (c != r.stallCursor) { r.stallCursor = c; r.stallSince = now; }
+                    if (now - r.stallSince <= STALL_NANOS) { blocked = true; continue; } // backpressure
+                    if (policy == LagPolicy.DROP) {
+                        r.lagged = true;
+                        r.stallSince = now;
+                        blocked |= holdsSlot;
+                    } else {
+                        overrun(r);
+                    }
+                }
+                if (!blocked) {
+                    int live = 0; // spilling members get a copy in commit()
+                    for (Object m : group.members) if (!member(m).detached && !member(m).spilling) live++;
+                    Entry e = slot(seq);
+                    e.seq = seq;
+                    e.group = group;
+                    e.pending.set(live);
+                    return cast(e);
+                }
+                space.awaitNanos(TimeUnit.MILLISECONDS.toNanos(1)); // readers move without the lock: poll
+            }
+        } catch (InterruptedException | RuntimeException ex) {
+            if (lock.isHeldByCurrentThread()) lock.unlock();
+            throw ex;
+        }
+    }
+
+    // Publish the entry returned by claim() and wake its parked receivers
+    public void commit(E entry) {
+        Entry e = entry;
+        try {
+            for (Object m : e.group.members) {
+                Reader r = member(m);
+                if (!r.spilling || r.detached) continue;
+                try {
+                    r.spill(e);
+                } catch (IOException ex) { // spill limit or disk trouble
+                    overrun(r);
+                }
+            }
+            if (e.pending.get() == 0) e.clear(); // spilling members only
+            published = e.seq + 1;
+            for (Object m : e.group.members) {
+                Reader r = member(m);
+                if (r.state == PARKED && !r.detached) {
+                    r.cursor = e.seq; // everything before it was for other readers
+                    r.state = RUNNING;
+                    LockSupport.unpark(r.thread);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ring locked. The reader's thread may be stuck in a write for good, so it is detached here
+    // (its slots become free) and the connection is closed on another thread.
+    private void overrun(Reader r) {
+        r.detachLocked();
+        HandlerExecutor.submit(r.onOverrun);
+    }
+
+    // Ring locked: move a reader that fell lagLimit behind to its journal, with what it still had to write
+    private void startSpill(Reader r) {
+        r.own.lock();
+        try {
+            if (r.detached) return;
+            long from = r.cursor + (r.busy ? 1 : 0), end = published;
+            try {
+                for (long s = from; s < end; s++) if (slot(s).group.members.contains(r)) r.spill(slot(s));
+            } catch (IOException ex) {
+                overrun(r); // nothing consumed yet: the detach releases the entries
+                return;
+            }
+            for (long s = from; s < end; s++) if (slot(s).group.members.contains(r)) slot(s).consumed();
+            r.spilling = true;
+        } finally {
+            r.own.unlock();
+        }
+    }
+
+    public final class Reader {
+        private volatile long cursor;         // next sequence to look at
+        private volatile int state = PARKED;  // starts parked: the first publish for it sets the cursor
+        private volatile Thread thread;
+        private volatile boolean detached;
+        private volatile boolean lagged;      // DROP requested by a producer
+        private volatile boolean spilling;    // SPILL: entries go to the journal, the cursor is unused
+        private SpillJournal journal;         // ring lock: created on the first spill, written by producers
+        private E spillEntry;                 // reader thread: the journal record being written
+        private long stallCursor = -1, stallSince; // ring lock: where and since when it held producers back
+        // Guards consuming entries against a detach from a producer: every pending count is dropped once
+        private final ReentrantLock own = new ReentrantLock();
+        private boolean busy;                 // own: the entry at cursor was returned by next(), not done()
+        private final Runnable onOverrun;
+        private final DropHandler onDrop;
+        private final Set<Group> dropped = new HashSet<>(); // reader thread only
+
+        private Reader(Runnable onOverrun, DropHandler onDrop) {
+            this.onOverrun = onOverrun;
+            this.onDrop = onDrop;
+        }
+
+        // Next entry for this reader; blocks until there is one. Pass it to done() after writing it.
+        // IOException once a producer has detached this reader as too slow.
+        public E next() throws InterruptedException, IOException {
+            thread = Thread.currentThread();
+            while (true) {
+                if (detached) throw new IOException("too far behind the broadcast ring");
+                if (spilling) {
+                    ByteBuffer rec = journal.peek();
+                    if (rec == null) { rejoin(); continue; }
+                    spillEntry.spillFrom(rec);
+                    return spillEntry;
+                }
+                if (lagged) skipToHead();
+                if (state == PARKED) { park(); continue; }
+                long c = cursor;
+                if (c < published) {
+                    Entry e = slot(c);
+                    Group g = e.group;
+                    if (!g.members.contains(this)) { cursor = c + 1; continue; }
+                    own.lock();
+                    try {
+                        if (detached || spilling) continue;
+                        if (!dropped.contains(g)) { busy = true; return cast(e); }
+                        if (e.endsGroup()) dropped.remove(g);
+                        e.consumed();
+                        cursor = c + 1;
+                    } finally {
+                        own.unlock();
+                    }
+                    continue;
+                }
+                lock.lock();
+                try {
+                    if (cursor == published && !lagged && !spilling) state = PARKED;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        public void done(E entry) {
+            Entry e = entry;
+            own.lock();
+            try {
+                if (e == spillEntry) { // spilled entries are not counted
+                    if (!detached) journal.advance();
+                    return;
+                }
+                busy = false;
+                if (detached) return; // the entry stays counted: its buffers are left to the GC
+                e.consumed();
+                cursor = e.seq + 1;
+            } finally {
+                own.unlock();
+            }
+        }
+
+        // Ring locked: append a copy of the entry to this reader's journal
+        private void spill(Entry e) throws IOException {
+            if (journal == null) {
+                journal = new SpillJournal("ring-reader");
+                spillEntry = factory.get();
+            }
+            e.spillTo(journal.reserve(e.spillSize()));
+            journal.publish();
+        }
+
+        // SPILL: the journal looked empty. Producers append under the ring lock, so checked again under
+        // it; then carry on from the head of the ring, which holds nothing older for this reader.
+        private void rejoin() {
+            lock.lock();
+            try {
+                if (!journal.isEmpty() || detached) return;
+                spilling = false;
+                cursor = published;
+                state = RUNNING;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void park() throws InterruptedException {
+            while (state == PARKED) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    lock.lock();
+                    try {
+                        if (state == PARKED) { cursor = published; state = RUNNING; }
+                    } finally {
+                        lock.unlock();
+                    }
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        // DROP: give up everything published so far, then report the groups that lost entries
+        private void skipToHead() throws IOException {
+            List<Group> lost = new ArrayList<>();
+            lock.lock();
+            own.lock();
+            try {
+                if (detached) return;
+                for (long s = cursor, end = published; s < end; s++) {
+                    Entry e = slot(s);
+                    Group g = e.group;
+                    if (!g.members.contains(this)) continue;
+                    if (dropped.add(g) && g.notifyDrop) lost.add(g);
+                    if (e.endsGroup()) dropped.remove(g);
+                    e.consumed();
+                }
+                cursor = published;
+                lagged = false;
+                space.signalAll();
+            } finally {
+                own.unlock();
+                lock.unlock();
+            }
+            for (Group g : lost) onDrop.dropped(g);
+        }
+
+        // Leave the ring (sender exiting): release every entry still counted for this reader
+        public void detach() {
+            lock.lock();
+            try {
+                detachLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void detachLocked() {
+            own.lock();
+            try {
+                if (detached) return;
+                detached = true;
+                if (journal != null) journal.close();
+                if (state == RUNNING && !spilling) {
+                    // an entry being written stays counted (see done): its chunk must not be reused under the write
+                    for (long s = cursor + (busy ? 1 : 0), end = published; s < end; s++) {
+                        Entry e = slot(s);
+                        if (e.group.members.contains(this)) e.consumed();
+                    }
+                }
+                readers.remove(this);
+                space.signalAll();
+            } finally {
+                own.unlock();
+            }
+        }
+    }
+}
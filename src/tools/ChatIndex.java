@@ -0,0 +1,235 @@
+package tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Full-text search over the chat lines of a ChatJournal (bigtest, biggprojectt): the SEARCH command,
+ * instead of downloading the whole log with SAVELOG and searching it on the client.
+ * - Inverted index: term -> posting list of documents, one document per chat line with its journal
+ *   offset, second and room. Built from the journal on startup and extended on every append
+ *   (ChatJournal.subscribe), so it never rescans the log.
+ * - Terms: lower-cased runs of letters/digits (any script), 1..64 chars. A query matches the lines
+ *   that contain every term; the shortest posting list drives the intersection and the others are
+ *   probed by galloping search from their last position, so the cost follows the rarest term.
+ * - Results: newest first, optionally one room and/or a start time, in pages of
+ *   -Dserver.searchPageSize (default 20). Only the lines of the page are read back from the journal.
+ * - Documents whose segment left the journal (retention) are dropped with their postings.
+ * Which journal lines are chat, and their room and text, is up to the server's Parser.
+ */
+public final class ChatIndex implements ChatJournal.Listener {
+    public static final String PAGE_PROPERTY = "server.searchPageSize";
+    private static final int PAGE_SIZE = Math.max(1, Integer.getInteger(PAGE_PROPERTY, 20));
+    private static final int MAX_TERM = 64;
+
+    // {room (or null), searchable text} of a chat line, or null for lines that are not chat
+    public interface Parser {
+        String[] parse(String line);
+    }
+
+    public static final class Page {
+        public final int page, pages, total;
+        public final List<String> lines;
+        Page(int page, int pages, int total, List<String> lines) {
+            this.page = page; this.pages = pages; this.total = total; this.lines = lines;
+        }
+    }
+
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+
+    private final ChatJournal journal;
+    private final Parser parser;
+    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<String, Integer> roomIds = new HashMap<>();
+    // Documents in offset order; document id d is at index d - base (write lock to change)
+    private long[] offsets = new long[1024];
+    private long[] seconds = new long[1024];
+    private int[] rooms = new int[1024];
+    private int base, count;
+
+    public ChatIndex(ChatJournal journal, Parser parser) throws IOException {
+        this.journal = journal;
+        this.parser = parser;
+        journal.subscribe(this);
+    }
+
+    @Override
+    public void appended(long offset, long timeMillis, String line) {
+        String[] doc = parser.parse(line);
+        if (doc == null) return;
+        Set<String> words = tokenize(doc[1]);
+        if (words.isEmpty()) return;
+        rw.writeLock().lock();
+        try {
+            if (count == offsets.length) grow();
+            int id = base + count;
+            offsets[count] = offset;
+            seconds[count] = Math.floorDiv(timeMillis, 1000);
+            rooms[count] = doc[0] == null ? -1 : roomIds.computeIfAbsent(doc[0], k -> roomIds.size());
+            count++;
+            for (String w : words) terms.computeIfAbsent(w, k -> new Postings()).add(id);
+            if ((id & 4095) == 0) prune(journal.start());
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    private void grow() {
+        int n = offsets.length * 2;
+        offsets = Arrays.copyOf(offsets, n);
+        seconds = Arrays.copyOf(seconds, n);
+        rooms = Arrays.copyOf(rooms, n);
+    }
+
+    // Write lock: forget the documents before the journal's first offset (a prefix of the ids)
+    private void prune(long first) {
+        int dead = 0;
+        while (dead < count && offsets[dead] < first) dead++;
+        if (dead == 0) return;
+        System.arraycopy(offsets, dead, offsets, 0, count - dead);
+        System.arraycopy(seconds, dead, seconds, 0, count - dead);
+        System.arraycopy(rooms, dead, rooms, 0, count - dead);
+        count -= dead;
+        base += dead;
+        terms.values().removeIf(p -> {
+            int k = lowerBound(p.ids, p.size, base);
+            System.arraycopy(p.ids, k, p.ids, 0, p.size - k);
+            p.size -= k;
+            return p.size == 0;
+        });
+    }
+
+    static Set<String> tokenize(String text) {
+        Set<String> out = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) start = i;
+            else if (!word && start >= 0) {
+                if (i - start <= MAX_TERM) out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return out;
+    }
+
+    // query: terms (any separators); room: null/"" = every room; sinceMillis: Long.MIN_VALUE = all; page from 1
+    public Page search(String query, String room, long sinceMillis, int page) throws IOException {
+        Set<String> words = tokenize(query);
+        long[] hits;
+        int total;
+        rw.readLock().lock();
+        try {
+            int[] match = match(words, room == null || room.isEmpty() ? null : room, sinceMillis);
+            total = match.length;
+            int from = Math.max(0, (page - 1) * PAGE_SIZE);
+            int n = Math.max(0, Math.min(PAGE_SIZE, total - from));
+            hits = new long[n];
+            for (int i = 0; i < n; i++) hits[i] = offsets[match[total - 1 - from - i] - base]; // newest first
+        } finally {
+            rw.readLock().unlock();
+        }
+        List<String> lines = new ArrayList<>(hits.length);
+        for (long off : hits) {
+            String line = journal.readLine(off);
+            if (line != null) lines.add(line);
+        }
+        int pages = Math.max(1, (total + PAGE_SIZE - 1) / PAGE_SIZE);
+        return new Page(page, pages, total, lines);
+    }
+
+    // Read lock: ids (ascending) of the documents with every word, in the room, since the time
+    private int[] match(Set<String> words, String room, long sinceMillis) {
+        if (words.isEmpty()) return new int[0];
+        Postings[] lists = new Postings[words.size()];
+        int k = 0;
+        for (String w : words) {
+            Postings p = terms.get(w);
+            if (p == null) return new int[0];
+            lists[k++] = p;
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        Integer roomId = null;
+        if (room != null) {
+            roomId = roomIds.get(room);
+            if (roomId == null) return new int[0];
+        }
+        int firstId = base;
+        if (sinceMillis != Long.MIN_VALUE) {
+            long sec = Math.floorDiv(sinceMillis, 1000);
+            int lo = 0, hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (seconds[mid] < sec) lo = mid + 1; else hi = mid;
+            }
+            firstId = base + lo;
+        }
+        Postings driver = lists[0];
+        int[] out = new int[Math.min(driver.size, 1024)];
+        int[] pos = new int[lists.length];
+        int n = 0;
+        next:
+        for (int i = lowerBound(driver.ids, driver.size, firstId); i < driver.size; i++) {
+            int id = driver.ids[i];
+            if (roomId != null && rooms[id - base] != roomId) continue;
+            for (int j = 1; j < lists.length; j++) {
+                Postings p = lists[j];
+                pos[j] = gallop(p.ids, p.size, pos[j], id);
+                if (pos[j] == p.size) break next; // this list is exhausted: no later id can match
+                if (p.ids[pos[j]] != id) continue next;
+            }
+            if (n == out.length) out = Arrays.copyOf(out, n * 2);
+            out[n++] = id;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // First index >= from with a[index] >= key: doubling steps, then a binary search in the last step
+    private static int gallop(int[] a, int size, int from, int key) {
+        int step = 1, hi = from;
+        while (hi < size && a[hi] < key) { from = hi + 1; hi += step; step <<= 1; }
+        hi = Math.min(hi, size);
+        while (from < hi) {
+            int mid = (from + hi) >>> 1;
+            if (a[mid] < key) from = mid + 1; else hi = mid;
+        }
+        return from;
+    }
+
+    private static int lowerBound(int[] a, int size, int key) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    // Memory report: documents and distinct terms in the index
+    public String describe() {
+        rw.readLock().lock();
+        try {
+            long postings = 0;
+            for (Postings p : terms.values()) postings += p.size;
+            return count + " lines, " + terms.size() + " terms, " + postings + " postings";
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,496 @@
+package tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only chat journal on disk (bigtest, biggprojectt, updatedmid2025unicast), replacing an
+ * in-memory history list that grew with uptime, a chat_log.txt flushed after every line and a
+ * SAVELOG that read the whole log into memory.
+ * - Records are text lines (UTF-8, '\n'-terminated) appended to memory-mapped segment files
+ *   <dir>/<base offset>.log of -Dserver.journalSegmentMB (default 16). Offsets count bytes over the
+ *   whole journal. A full segment is sealed (forced, cut to its length) and never written again.
+ * - Group commit: append() only copies into the mapped segment. A daemon "journal-sync" thread
+ *   forces what was written every -Dserver.journalSyncMs (default 50), so one fsync covers every
+ *   line of that window instead of one flush per line.
+ * - Sparse time index: one (second, offset) entry for the first line of each second with traffic,
+ *   kept in memory and appended to <base>.idx. range() turns a time range into an offset range to
+ *   the second without reading the log.
+ * - slices() lists the segment pieces of an offset range, so a server can FileChannel.transferTo
+ *   them (sendfile) straight to a socket; copyTo() and lines() cover other sinks, readLine() one line.
+ * - subscribe(): a Listener (the ChatIndex) gets every line already in the journal, then each new
+ *   one, in offset order.
+ * - Retention: past -Dserver.journalMaxMB (default 256) the oldest sealed segments are deleted.
+ * Directory: -Dserver.journalDir (default chat_journal) / name. On open the existing segments are
+ * kept (each cut at its first NUL: the preallocated tail after a crash) and a new segment starts.
+ */
+public final class ChatJournal implements Closeable {
+    public static final String DIR_PROPERTY = "server.journalDir";
+    public static final String SEGMENT_PROPERTY = "server.journalSegmentMB";
+    public static final String SYNC_PROPERTY = "server.journalSyncMs";
+    public static final String MAX_PROPERTY = "server.journalMaxMB";
+
+    private static final int SEGMENT_SIZE = (int) Math.min(1024, Math.max(1, Long.getLong(SEGMENT_PROPERTY, 16))) * 1024 * 1024;
+    private static final long SYNC_NANOS = Math.max(1, Long.getLong(SYNC_PROPERTY, 50)) * 1_000_000L;
+    private static final long MAX_BYTES = Math.max(1, Long.getLong(MAX_PROPERTY, 256)) * 1024 * 1024;
+
+    // Sees each line with its offset, in offset order (under the journal lock: keep it short)
+    public interface Listener {
+        void appended(long offset, long timeMillis, String line);
+    }
+
+    // A piece of the journal inside one segment file
+    public static final class Slice {
+        public final Path file;
+        public final long position;
+        public final long length;
+        Slice(Path file, long position, long length) { this.file = file; this.position = position; this.length = length; }
+        // Rebuilt from a stored form (a spilled frame)
+        public static Slice of(String file, long position, long length) { return new Slice(Paths.get(file), position, length); }
+    }
+
+    private static final class Segment {
+        final long base;
+        final Path log, idx;
+        long length;            // bytes written (lock)
+        MappedByteBuffer map;   // active and sealing segments only
+        FileChannel index;      // open while the segment is written
+        Segment(Path dir, long base) {
+            this.base = base;
+            String n = String.format("%020d", base);
+            this.log = dir.resolve(n + ".log");
+            this.idx = dir.resolve(n + ".idx");
+        }
+    }
+
+    private final Path dir;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Segment> segments = new ArrayList<>(); // oldest first; last = active (lock)
+    private final List<Segment> sealing = new ArrayList<>();  // full, not yet forced (lock)
+    private long[] secs = new long[1024], offs = new long[1024]; // time index (lock)
+    private int indexSize;
+    private volatile long end;   // offset after the last line
+    private long synced;         // flusher: forced up to here in the active segment
+    private long lost;           // lines not written after an I/O error (lock)
+    private volatile boolean closed;
+    private final Thread flusher;
+    private Listener listener; // (lock)
+
+    private ChatJournal(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        recover();
+        Segment first = new Segment(dir, end);
+        open(first, SEGMENT_SIZE);
+        segments.add(first);
+        synced = end;
+        flusher = new Thread(this::syncLoop, "journal-sync");
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::sync, "journal-close"));
+    }
+
+    // Journal of one server: <server.journalDir>/<name>
+    public static ChatJournal open(String name) throws IOException {
+        return new ChatJournal(Paths.get(System.getProperty(DIR_PROPERTY, "chat_journal"), name));
+    }
+
+    // ---------------------------------------------------------------- writing
+
+    // Any thread. The line is stored on one line: CR, LF and NUL become spaces. Returns its offset
+    // (-1: not written).
+    public long append(long timeMillis, String line) {
+        line = clean(line);
+        byte[] b = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            if (closed) return -1;
+            Segment s = segments.get(segments.size() - 1);
+            if (s.map.remaining() < b.length) s = roll(b.length);
+            long off = end;
+            long sec = Math.floorDiv(timeMillis, 1000);
+            if (indexSize == 0 || sec > secs[indexSize - 1]) addIndex(s, sec, off);
+            s.map.put(b);
+            s.length += b.length;
+            end = off + b.length;
+            if (listener != null) listener.appended(off, timeMillis, line);
+            return off;
+        } catch (IOException e) {
+            if (lost++ == 0) System.err.println("Chat journal " + dir + ": " + e.getMessage() + " (lines are dropped)");
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String clean(String line) {
+        if (line.indexOf('\n') < 0 && line.indexOf('\r') < 0 && line.indexOf('\0') < 0) return line;
+        return line.replace('\n', ' ').replace('\r', ' ').replace('\0', ' ');
+    }
+
+    // Lock held: hand the full segment to the flusher and start the next one
+    private Segment roll(int need) throws IOException {
+        Segment next = new Segment(dir, end);
+        open(next, Math.max(SEGMENT_SIZE, need));
+        sealing.add(segments.get(segments.size() - 1));
+        segments.add(next);
+        LockSupport.unpark(flusher);
+        return next;
+    }
+
+    private static void open(Segment s, int capacity) throws IOException {
+        try (FileChannel ch = FileChannel.open(s.log, CREATE_NEW, READ, WRITE)) {
+            s.map = ch.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        s.index = FileChannel.open(s.idx, CREATE_NEW, WRITE);
+    }
+
+    // Lock held. At most one entry per second, so the write is rare; forced with the segment.
+    private void addIndex(Segment s, long sec, long off) throws IOException {
+        if (indexSize == secs.length) {
+            secs = Arrays.copyOf(secs, indexSize * 2);
+            offs = Arrays.copyOf(offs, indexSize * 2);
+        }
+        secs[indexSize] = sec;
+        offs[indexSize++] = off;
+        ByteBuffer e = ByteBuffer.allocate(16).putLong(sec).putLong(off);
+        e.flip();
+        while (e.hasRemaining()) s.index.write(e);
+    }
+
+    // Force everything written so far (the flusher does this every window)
+    public void sync() {
+        Segment active;
+        List<Segment> full;
+        long upto;
+        lock.lock();
+        try {
+            if (segments.isEmpty()) return;
+            active = segments.get(segments.size() - 1);
+            full = new ArrayList<>(sealing);
+            sealing.clear();
+            upto = end;
+        } finally {
+            lock.unlock();
+        }
+        synchronized (this) { // the flusher and the shutdown hook
+            try {
+                for (Segment s : full) seal(s);
+                MappedByteBuffer map = active.map; // null: sealed meanwhile by another sync()
+                long from = Math.max(synced, active.base);
+                if (map != null && upto > from) {
+                    map.force((int) (from - active.base), (int) (upto - from));
+                    active.index.force(false);
+                }
+                synced = Math.max(synced, upto);
+            } catch (IOException e) {
+                System.err.println("Chat journal " + dir + " sync failed: " + e.getMessage());
+            }
+        }
+        retain();
+    }
+
+    private void seal(Segment s) throws IOException {
+        s.map.force();
+        s.index.force(false);
+        s.index.close();
+        s.map = null;
+        try (FileChannel ch = FileChannel.open(s.log, WRITE)) {
+            ch.truncate(s.length);
+        } catch (IOException ignored) {
+            // still mapped (Windows): the NUL tail is cut again on the next open
+        }
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(this, SYNC_NANOS);
+            sync();
+        }
+    }
+
+    // Drop the oldest sealed segments while the journal is over MAX_BYTES
+    private void retain() {
+        List<Segment> gone = new ArrayList<>();
+        lock.lock();
+        try {
+            while (segments.size() > 1 && end - segments.get(0).base > MAX_BYTES
+                    && !sealing.contains(segments.get(0))) {
+                gone.add(segments.remove(0));
+            }
+            if (gone.isEmpty()) return;
+            long first = segments.get(0).base;
+            int keep = 0;
+            while (keep < indexSize && offs[keep] < first) keep++;
+            System.arraycopy(secs, keep, secs, 0, indexSize - keep);
+            System.arraycopy(offs, keep, offs, 0, indexSize - keep);
+            indexSize -= keep;
+        } finally {
+            lock.unlock();
+        }
+        for (Segment s : gone) {
+            try { Files.deleteIfExists(s.log); Files.deleteIfExists(s.idx); } catch (IOException ignored) {}
+        }
+    }
+
+    @Override
+    public void close() {
+        sync();
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        LockSupport.unpark(flusher);
+    }
+
+    // ---------------------------------------------------------------- reading
+
+    public long end() { return end; }
+
+    // Offset of the oldest line still kept
+    public long start() {
+        lock.lock();
+        try {
+            return segments.get(0).base;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Replay every line to l (time: the second of its index entry), then keep it informed of appends
+    public void subscribe(Listener l) throws IOException {
+        lock.lock();
+        try {
+            List<Slice> all = slices(segments.get(0).base, end);
+            long[] pos = { segments.get(0).base };
+            int[] entry = { 0 };
+            lines(all, line -> {
+                while (entry[0] + 1 < indexSize && offs[entry[0] + 1] <= pos[0]) entry[0]++;
+                long sec = indexSize > 0 ? secs[entry[0]] : 0;
+                l.appended(pos[0], sec * 1000, line);
+                pos[0] += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            });
+            listener = l;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The line starting at offset (null if it left the journal)
+    public String readLine(long offset) throws IOException {
+        Path file = null;
+        long pos = 0, max = 0;
+        lock.lock();
+        try {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment s = segments.get(i);
+                if (offset >= s.base) {
+                    if (offset >= s.base + s.length) return null;
+                    file = s.log;
+                    pos = offset - s.base;
+                    max = s.length;
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (file == null) return null;
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        try (FileChannel fc = FileChannel.open(file, READ)) {
+            while (pos < max) {
+                buf.clear().limit((int) Math.min(buf.capacity(), max - pos));
+                int n = fc.read(buf, pos);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) {
+                    if (buf.get(i) == '\n') { line.write(buf.array(), 0, i); return line.toString(StandardCharsets.UTF_8); }
+                }
+                line.write(buf.array(), 0, n);
+                pos += n;
+            }
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    // Offsets [start, end) of the lines logged in [fromMillis, toMillis), to the second.
+    // Long.MIN_VALUE / Long.MAX_VALUE leave a side open.
+    public long[] range(long fromMillis, long toMillis) {
+        lock.lock();
+        try {
+            long start = segments.get(0).base, stop = end;
+            if (fromMillis != Long.MIN_VALUE) start = offsetAt(Math.floorDiv(fromMillis, 1000), stop);
+            if (toMillis != Long.MAX_VALUE) stop = offsetAt(Math.floorDiv(toMillis, 1000), stop);
+            return new long[] { start, Math.max(start, stop) };
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Lock held: offset of the first line of second >= sec (binary search over the index)
+    private long offsetAt(long sec, long none) {
+        int lo = 0, hi = indexSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (secs[mid] < sec) lo = mid + 1; else hi = mid;
+        }
+        return lo < indexSize ? offs[lo] : none;
+    }
+
+    // Segment pieces of [start, end); bytes that left the journal (retention) are skipped
+    public List<Slice> slices(long start, long stop) {
+        List<Slice> out = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Segment s : segments) {
+                long a = Math.max(start, s.base), b = Math.min(stop, s.base + s.length);
+                if (a < b) out.add(new Slice(s.log, a - s.base, b - a));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return out;
+    }
+
+    public static long size(List<Slice> slices) {
+        long n = 0;
+        for (Slice s : slices) n += s.length;
+        return n;
+    }
+
+    // Copy the slices to a channel with FileChannel.transferTo (sendfile for a socket channel)
+    public static long copyTo(List<Slice> slices, WritableByteChannel out) throws IOException {
+        long total = 0;
+        for (Slice s : slices) {
+            try (FileChannel fc = FileChannel.open(s.file, READ)) {
+                for (long done = 0; done < s.length; ) done += fc.transferTo(s.position + done, s.length - done, out);
+            }
+            total += s.length;
+        }
+        return total;
+    }
+
+    // Each line of the slices (without '\n'), read through one small buffer
+    public static void lines(List<Slice> slices, Consumer<String> sink) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (Slice s : slices) {
+            try (FileChannel fc = FileChannel.open(s.file, READ)) {
+                for (long pos = s.position, stop = s.position + s.length; pos < stop; ) {
+                    buf.clear().limit((int) Math.min(buf.capacity(), stop - pos));
+                    int n = fc.read(buf, pos);
+                    if (n < 0) break;
+                    pos += n;
+                    byte[] a = buf.array();
+                    int from = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (a[i] != '\n') continue;
+                        line.write(a, from, i - from);
+                        sink.accept(line.toString(StandardCharsets.UTF_8));
+                        line.reset();
+                        from = i + 1;
+                    }
+                    line.write(a, from, n - from);
+                }
+            }
+        }
+        if (line.size() > 0) sink.accept(line.toString(StandardCharsets.UTF_8));
+    }
+
+    // SAVELOG time argument: "" = open, "-30m" / "-2h" / "-1d" / "-45s" = relative to now, digits = epoch seconds
+    public static long parseTime(String s, long nowMillis, long open) {
+        s = s.trim();
+        if (s.isEmpty()) return open;
+        if (s.startsWith("-")) {
+            long n = Long.parseLong(s.substring(1, s.length() - 1));
+            switch (Character.toLowerCase(s.charAt(s.length() - 1))) {
+                case 's': return nowMillis - n * 1000;
+                case 'm': return nowMillis - n * 60_000;
+                case 'h': return nowMillis - n * 3_600_000;
+                case 'd': return nowMillis - n * 86_400_000;
+                default: throw new NumberFormatException("unit must be s, m, h or d: " + s);
+            }
+        }
+        return Long.parseLong(s) * 1000;
+    }
+
+    // ---------------------------------------------------------------- recovery
+
+    // Load the segments left by an earlier run, in offset order, with their index entries
+    private void recover() throws IOException {
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path p : ds) logs.add(p);
+        }
+        logs.sort(null); // zero-padded base offsets: name order is offset order
+        for (Path p : logs) {
+            String n = p.getFileName().toString();
+            long base;
+            try { base = Long.parseLong(n.substring(0, n.length() - 4)); } catch (NumberFormatException e) { continue; }
+            if (base < end) continue; // overlaps what was already loaded: not one of ours
+            Segment s = new Segment(dir, base);
+            long scanFrom = 0;
+            if (Files.exists(s.idx)) {
+                ByteBuffer idx = ByteBuffer.wrap(Files.readAllBytes(s.idx));
+                long size = Files.size(p);
+                while (idx.remaining() >= 16) {
+                    long sec = idx.getLong(), off = idx.getLong();
+                    if (off < base || off - base >= size) break;
+                    if (indexSize > 0 && sec <= secs[indexSize - 1]) continue;
+                    if (indexSize == secs.length) { secs = Arrays.copyOf(secs, indexSize * 2); offs = Arrays.copyOf(offs, indexSize * 2); }
+                    secs[indexSize] = sec;
+                    offs[indexSize++] = off;
+                    scanFrom = off - base;
+                }
+            }
+            s.length = dataLength(p, scanFrom);
+            if (s.length == 0) {
+                Files.deleteIfExists(p);
+                Files.deleteIfExists(s.idx);
+                while (indexSize > 0 && offs[indexSize - 1] >= base) indexSize--;
+                continue;
+            }
+            try (FileChannel ch = FileChannel.open(p, WRITE)) { ch.truncate(s.length); }
+            segments.add(s);
+            end = base + s.length;
+        }
+    }
+
+    // Length up to the first NUL at or after 'from' (the file size if there is none)
+    private static long dataLength(Path p, long from) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            long pos = from, size = ch.size();
+            while (pos < size) {
+                buf.clear();
+                int n = ch.read(buf, pos);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) if (buf.get(i) == 0) return pos + i;
+                pos += n;
+            }
+            return size;
+        }
+    }
+}
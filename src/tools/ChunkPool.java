@@ -0,0 +1,92 @@
+package tools;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed-size, reference-counted byte chunks for file fan-out (biggprojectt, updatedfinalmulticast).
+ * The uploader fills one chunk per piece of file and hands the same chunk to every receiver's send queue
+ * (retain() per queue entry); each sender writes it and calls release(). When the last reference is gone
+ * the chunk goes back to the pool, so memory and GC work depend on how many chunks are in flight, not on
+ * receivers x file size. Chunks are heap arrays: the senders write to (TLS) socket streams, which would
+ * copy a direct buffer back into a heap array anyway.
+ */
+public final class ChunkPool {
+    private final int chunkSize;
+    private final BlockingQueue<Chunk> free;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    // maxPooled: idle chunks kept for reuse; more may be in flight, the surplus is left to the GC on release
+    public ChunkPool(int chunkSize, int maxPooled) {
+        this.chunkSize = chunkSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public int chunkSize() { return chunkSize; }
+
+    // A chunk owned by the caller (one reference, length 0)
+    public Chunk acquire() {
+        Chunk c = free.poll();
+        if (c == null) {
+            allocated.incrementAndGet();
+            c = new Chunk(new byte[chunkSize]);
+        } else {
+            reused.incrementAndGet();
+        }
+        c.len = 0;
+        c.refs.set(1);
+        return c;
+    }
+
+    public String stats() {
+        return "chunks allocated=" + allocated.get() + " reused=" + reused.get() + " idle=" + free.size();
+    }
+
+    public final class Chunk {
+        private final byte[] data;
+        private final AtomicInteger refs = new AtomicInteger();
+        private int len; // written by the owner before the first retain(); the queue hand-off publishes it
+
+        private Chunk(byte[] data) { this.data = data; }
+
+        public byte[] data() { return data; }
+        public int length() { return len; }
+
+        // Read up to max bytes (at most the chunk size); returns the count, -1 at end of stream
+        public int fill(InputStream in, int max) throws IOException {
+            int r = in.read(data, 0, Math.min(max, data.length));
+            len = Math.max(r, 0);
+            return r;
+        }
+
+        // Append exactly n bytes (n <= space()) after the current content
+        public void append(DataInputStream in, int n) throws IOException {
+            in.readFully(data, len, n);
+            len += n;
+        }
+
+        public int space() { return data.length - len; }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(data, 0, len);
+        }
+
+        public Chunk retain() {
+            if (refs.getAndIncrement() <= 0) throw new IllegalStateException("retain() on a released chunk");
+            return this;
+        }
+
+        public void release() {
+            int left = refs.decrementAndGet();
+            if (left == 0) free.offer(this); // pool full: drop it
+            else if (left < 0) throw new IllegalStateException("chunk released twice");
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package tools;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executor for per-client work (ClientHandler loops and per-client sender loops).
+ * - platform (default): a cached pool of daemon platform threads, one per running task, like the old
+ *   new Thread(...).start() but reusing threads of finished clients. Works on JDK 17.
+ * - virtual: one virtual thread per task. Needs JDK 21 at run time; the executor is looked up
+ *   reflectively, so the tree still builds and runs on JDK 17, where this mode falls back to platform
+ *   threads with a warning. Blocking readLine/readUTF loops stay as they are; a parked virtual thread
+ *   only costs its small heap stack, so tens of thousands of idle clients fit.
+ * Select with -Dserver.threads=virtual (or platform). Pinning notes are in README.md ("Virtual threads").
+ */
+public final class HandlerExecutor {
+    public static final String MODE_PROPERTY = "server.threads";
+    public static final String MODE_PLATFORM = "platform";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private static final ExecutorService VIRTUAL =
+            MODE_VIRTUAL.equalsIgnoreCase(System.getProperty(MODE_PROPERTY, MODE_PLATFORM)) ? virtual() : null;
+    private static final String MODE = VIRTUAL != null ? MODE_VIRTUAL : MODE_PLATFORM;
+    private static final ExecutorService EXECUTOR = VIRTUAL != null ? VIRTUAL : platform();
+
+    private HandlerExecutor() {}
+
+    private static ExecutorService platform() {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "client-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() (JDK 21), or null before JDK 21
+    private static ExecutorService virtual() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("[HandlerExecutor] -D" + MODE_PROPERTY + "=virtual needs JDK 21 (running "
+                    + System.getProperty("java.version") + "); using platform threads");
+            return null;
+        }
+    }
+
+    public static String mode() { return MODE; }
+
+    public static boolean isVirtual() { return MODE_VIRTUAL.equals(MODE); }
+
+    // Run a per-client task. Cancel the returned Future with cancel(true) to interrupt it.
+    public static Future<?> submit(Runnable task) { return EXECUTOR.submit(task); }
+
+    public static ExecutorService executor() { return EXECUTOR; }
+}
@@ -0,0 +1,106 @@
+package tools;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Font;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Server log view (bigtest, biggprojectt, updatedmid2025unicast, updatedfinalmulticast) replacing a
+ * JTextArea that got one invokeLater + append per log line and grew forever.
+ * - append() from any thread only stores the line in a bounded ring (a short lock, no EDT work).
+ * - A Swing timer refreshes the text area at a fixed rate with the lines that arrived since the last
+ *   refresh, in one append, then trims the area to the ring size. Lines overwritten in the ring
+ *   before a refresh could show them are counted as dropped in the status line under the log.
+ * So the EDT does a bounded amount of work per tick however fast the server logs, and the document
+ * never holds more than the ring.
+ * Ring size: -Dserver.logLines (default 5000). Refresh period: -Dserver.logRefreshMs (default 100).
+ */
+public final class LogPanel extends JPanel {
+    private static final long serialVersionUID = 1L;
+    public static final String LINES_PROPERTY = "server.logLines";
+    public static final String REFRESH_PROPERTY = "server.logRefreshMs";
+
+    private final String[] ring;
+    private long appended;                 // lock: lines ever appended; line i is in ring[i % length]
+    private final ReentrantLock lock = new ReentrantLock();
+    private final JTextArea area = new JTextArea();
+    private final JLabel status = new JLabel(" ");
+    private long shown;                    // EDT: lines appended as of the last refresh
+    private long dropped;                  // EDT: lines that never reached the view
+
+    public LogPanel(Font font, Color background) {
+        super(new BorderLayout());
+        this.ring = new String[Math.max(100, Integer.getInteger(LINES_PROPERTY, 5000))];
+        area.setEditable(false);
+        area.setFont(font);
+        if (background != null) area.setBackground(background);
+        status.setFont(font.deriveFont(Font.PLAIN, Math.max(10f, font.getSize2D() - 1)));
+        add(new JScrollPane(area), BorderLayout.CENTER);
+        add(status, BorderLayout.SOUTH);
+        Timer timer = new Timer(Math.max(10, Integer.getInteger(REFRESH_PROPERTY, 100)), e -> refresh());
+        timer.setCoalesce(true);
+        timer.start();
+    }
+
+    // Any thread
+    public void append(String line) {
+        lock.lock();
+        try {
+            ring[(int) (appended++ % ring.length)] = line;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Any thread: several lines under one lock
+    public void appendAll(Collection<String> lines) {
+        lock.lock();
+        try {
+            for (String line : lines) ring[(int) (appended++ % ring.length)] = line;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // EDT (timer)
+    private void refresh() {
+        StringBuilder text = new StringBuilder();
+        long total, fresh;
+        int take;
+        lock.lock();
+        try {
+            total = appended;
+            fresh = total - shown;
+            if (fresh == 0) return;
+            take = (int) Math.min(fresh, ring.length);
+            for (long i = total - take; i < total; i++) text.append(ring[(int) (i % ring.length)]).append('\n');
+        } finally {
+            lock.unlock();
+        }
+        dropped += fresh - take;
+        shown = total;
+        if (take == ring.length) {
+            area.setText(text.toString());
+        } else {
+            area.append(text.toString());
+            int excess = area.getLineCount() - 1 - ring.length; // the text ends with '\n': last line is empty
+            if (excess > 0) {
+                try {
+                    area.replaceRange(null, 0, area.getLineStartOffset(excess));
+                } catch (BadLocationException ignored) {
+                    // cannot happen: excess < line count
+                }
+            }
+        }
+        area.setCaretPosition(area.getDocument().getLength());
+        status.setText("Lines: " + total + " | shown: " + Math.min(total, ring.length) + " | dropped: " + dropped);
+    }
+}
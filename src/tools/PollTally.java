@@ -0,0 +1,167 @@
+package tools;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Vote counts of one poll (biggprojectt, bigtest, bigtestudp, updatedmid2025unicast), instead of a
+ * synchronized HashMap per poll and a full result broadcast per vote.
+ * - One LongAdder per option: voters on many threads add to their own cells, nobody waits for a lock.
+ * - One vote per user: user names are interned once per process to an int ordinal, and each option keeps
+ *   the ordinals of its voters in a VoterBitmap. The bitmaps are split in 16 stripes by ordinal, each with
+ *   its own short lock, so the duplicate check, a change of option and a retraction stay cheap for
+ *   large polls (about 2 bytes per voter instead of a String entry in a Set).
+ * - Results are coalesced: the first vote after a publish schedules one on the shared TimerWheel
+ *   -Dserver.pollFlushMs later (default 100). It runs on a HandlerExecutor task and hands the server
+ *   only the options whose count changed since the last publish ("opt=count,..."), so a burst of
+ *   10000 votes costs about one broadcast per poll per tick instead of one per vote.
+ * How the change line is framed and sent (POLL_RES, POLL_RESULT) is up to the server's Publisher.
+ */
+public final class PollTally {
+    public static final String FLUSH_PROPERTY = "server.pollFlushMs";
+    private static final long FLUSH_MILLIS = Math.max(1, Long.getLong(FLUSH_PROPERTY, 100));
+    private static final int STRIPES = 16;
+    private static final ConcurrentHashMap<String, Integer> ORDINALS = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_ORDINAL = new AtomicInteger();
+
+    public enum Vote { VOTED, CHANGED, SAME, BAD_OPTION }
+
+    // Called with "opt=count,..." of the changed options, one call at a time per poll
+    public interface Publisher {
+        void publish(PollTally poll, String changes);
+    }
+
+    public final int id;
+    public final String title;
+    public final List<String> options;
+    private final LongAdder[] counts;
+    private final Publisher publisher;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final long[] published; // flushLock
+    private final ReentrantLock[] stripeLocks = new ReentrantLock[STRIPES];
+    private final VoterBitmap[][] voters; // [stripe][option] (null until a vote), ordinal >>> 4 under stripeLocks[ordinal & 15]
+
+    public PollTally(int id, String title, List<String> options, Publisher publisher) {
+        this.id = id;
+        this.title = title;
+        this.options = List.copyOf(options);
+        this.publisher = publisher;
+        counts = new LongAdder[this.options.size()];
+        for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        published = new long[counts.length];
+        voters = new VoterBitmap[STRIPES][counts.length];
+        for (int s = 0; s < STRIPES; s++) stripeLocks[s] = new ReentrantLock();
+    }
+
+    private static int ordinal(String user) {
+        Integer n = ORDINALS.get(user);
+        return n != null ? n : ORDINALS.computeIfAbsent(user, k -> NEXT_ORDINAL.getAndIncrement());
+    }
+
+    // The user's vote goes to option; a user who already voted for another option moves there
+    public Vote vote(String user, int option) {
+        if (option < 0 || option >= counts.length) return Vote.BAD_OPTION;
+        int ord = ordinal(user), stripe = ord & (STRIPES - 1), local = ord >>> 4;
+        int prev;
+        stripeLocks[stripe].lock();
+        try {
+            prev = find(stripe, local);
+            if (prev == option) return Vote.SAME;
+            if (prev >= 0) voters[stripe][prev].remove(local);
+            if (voters[stripe][option] == null) voters[stripe][option] = new VoterBitmap();
+            voters[stripe][option].add(local);
+        } finally {
+            stripeLocks[stripe].unlock();
+        }
+        if (prev >= 0) counts[prev].decrement();
+        counts[option].increment();
+        changed();
+        return prev >= 0 ? Vote.CHANGED : Vote.VOTED;
+    }
+
+    // false if the user has no vote in this poll
+    public boolean retract(String user) {
+        int ord = ordinal(user), stripe = ord & (STRIPES - 1), local = ord >>> 4;
+        int prev;
+        stripeLocks[stripe].lock();
+        try {
+            prev = find(stripe, local);
+            if (prev < 0) return false;
+            voters[stripe][prev].remove(local);
+        } finally {
+            stripeLocks[stripe].unlock();
+        }
+        counts[prev].decrement();
+        changed();
+        return true;
+    }
+
+    // Stripe lock held: option the local ordinal voted for, or -1
+    private int find(int stripe, int local) {
+        for (int o = 0; o < counts.length; o++) {
+            VoterBitmap b = voters[stripe][o];
+            if (b != null && b.contains(local)) return o;
+        }
+        return -1;
+    }
+
+    // Memory report: voters and the bytes their bitmaps take in this poll
+    public String describe() {
+        long n = 0, bytes = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            stripeLocks[s].lock();
+            try {
+                for (VoterBitmap b : voters[s]) if (b != null) { n += b.size(); bytes += b.bytes(); }
+            } finally {
+                stripeLocks[s].unlock();
+            }
+        }
+        return n + " voters, " + bytes + " bytes of voter bitmaps (" + String.format("%.1f", n == 0 ? 0.0 : (double) bytes / n) + " per voter), "
+                + ORDINALS.size() + " interned users";
+    }
+
+    public long count(int option) { return counts[option].sum(); }
+
+    // "opt=count,..." of every option (POLL:LIST, late joiners)
+    public String results() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(options.get(i)).append('=').append(counts[i].sum());
+        }
+        return sb.toString();
+    }
+
+    public String optionsCSV() { return String.join(",", options); }
+
+    private void changed() {
+        if (scheduled.get() || !scheduled.compareAndSet(false, true)) return;
+        TimerWheel.shared().schedule(FLUSH_MILLIS, () -> HandlerExecutor.executor().execute(this::flush));
+    }
+
+    // Votes that land after the flag is cleared either make this publish or schedule the next one
+    private void flush() {
+        scheduled.set(false);
+        flushLock.lock();
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < counts.length; i++) {
+                long n = counts[i].sum();
+                if (n == published[i]) continue;
+                published[i] = n;
+                if (sb.length() > 0) sb.append(',');
+                sb.append(options.get(i)).append('=').append(n);
+            }
+            if (sb.length() > 0) publisher.publish(this, sb.toString());
+        } catch (RuntimeException e) {
+            System.err.println("Poll " + id + " publish failed: " + e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+}
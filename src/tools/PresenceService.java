@@ -0,0 +1,122 @@
+package tools;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Debounced presence updates (bigtest, bigtestudp), replacing a full LIST broadcast on
+ * every join and leave.
+ * - joined()/left() only record the change. The first change of a window schedules one flush
+ *   windowMs later; the flush sends every client a single
+ *   PRESENCE_DELTA:+alice,+bob,-carol:ROOMS:{Lobby=2, dev=1}
+ *   with the last change (+ joined, - left) of each user in the window. A join followed by a leave
+ *   still sends the leave: a client that got a snapshot in between may list that user.
+ *   roomsChanged() schedules a flush with no user changes, for the room summary alone.
+ * - Full LIST snapshots go to a client that just joined (snapshot()) and to the LIST command.
+ *   A delta may repeat a change already in a client's snapshot; clients apply it as set add/remove.
+ * - A reconnect storm of N clients costs about N snapshots plus one delta per window to each client,
+ *   instead of N full lists to each client.
+ * - A server that can reach every client at once (bigtestudp's multicast group) passes a broadcast
+ *   function; the delta is then handed to it once instead of sent to each client.
+ * Window: -Dserver.presenceWindowMs (default 100); 0 sends each change at once, still as a delta.
+ */
+public final class PresenceService<C> {
+    public static final String WINDOW_PROPERTY = "server.presenceWindowMs";
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "presence");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final long windowMs = Long.getLong(WINDOW_PROPERTY, 100);
+    private final BiConsumer<C, String> send;
+    private final Consumer<String> broadcast;
+    private final Supplier<String> listLine;  // full LIST line
+    private final Supplier<String> roomSummary;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Boolean> pending = new LinkedHashMap<>(); // user -> joined (true) / left (false)
+    private boolean scheduled; // a flush is due: there are changes (or rooms changed) since the last one
+
+    // clients: everyone to notify; send: one line to one client; listLine/roomSummary: built on demand
+    public PresenceService(Supplier<? extends Collection<C>> clients, BiConsumer<C, String> send,
+                           Supplier<String> listLine, Supplier<String> roomSummary) {
+        this(send, line -> {
+            for (C c : clients.get()) {
+                try {
+                    send.accept(c, line);
+                } catch (RuntimeException ex) {
+                    // one broken client must not keep the others from the update
+                }
+            }
+        }, listLine, roomSummary);
+    }
+
+    // broadcast: one line to every client at once; send: snapshots to one client
+    public PresenceService(BiConsumer<C, String> send, Consumer<String> broadcast,
+                           Supplier<String> listLine, Supplier<String> roomSummary) {
+        this.send = send;
+        this.broadcast = broadcast;
+        this.listLine = listLine;
+        this.roomSummary = roomSummary;
+    }
+
+    // A user came online: record it and send the newcomer the full list
+    public void joined(String user, C client) {
+        change(user, true);
+        snapshot(client);
+    }
+
+    public void left(String user) {
+        change(user, false);
+    }
+
+    public void roomsChanged() {
+        change(null, false);
+    }
+
+    public void snapshot(C client) {
+        send.accept(client, listLine.get());
+    }
+
+    private void change(String user, boolean joined) {
+        lock.lock();
+        try {
+            if (user != null) {
+                pending.remove(user); // last change wins, in order of the last change
+                pending.put(user, joined);
+            }
+            if (scheduled) return;
+            scheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        if (windowMs <= 0) flush();
+        else TIMER.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        StringBuilder delta = new StringBuilder("PRESENCE_DELTA:");
+        lock.lock();
+        try {
+            scheduled = false;
+            int n = 0;
+            for (Map.Entry<String, Boolean> e : pending.entrySet()) {
+                if (n++ > 0) delta.append(',');
+                delta.append(e.getValue() ? '+' : '-').append(e.getKey());
+            }
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+        broadcast.accept(delta.append(":ROOMS:").append(roomSummary.get()).toString());
+    }
+}
@@ -0,0 +1,115 @@
+package tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Overflow journal of one slow client (BroadcastRing SPILL policy): records of [length:4][payload]
+ * appended to memory-mapped segment files and read back in order.
+ * - One writer (producers, serialized by the ring lock) and one reader (the client's sender thread).
+ *   The writer publishes each record with a volatile counter, so the reader never takes a lock.
+ * - Segments are SEGMENT_SIZE bytes, mapped once and never resized; a record does not span two
+ *   segments (length 0 or a short tail marks the end of a segment). The files are opened
+ *   DELETE_ON_CLOSE and their channel is closed right after mapping, so nothing is left on disk once
+ *   the mappings are gone (or after a crash, on Linux).
+ * Directory: -Dserver.spillDir (default: <java.io.tmpdir>/npr-spill). Size cap per client:
+ * -Dserver.spillLimitMB (default 1024); past it reserve() fails and the ring disconnects the client.
+ */
+public final class SpillJournal implements Closeable {
+    public static final String DIR_PROPERTY = "server.spillDir";
+    public static final String LIMIT_PROPERTY = "server.spillLimitMB";
+    static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final long LIMIT = Long.getLong(LIMIT_PROPERTY, 1024) * 1024 * 1024;
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    private final Path dir;
+    private final String prefix;
+    private final ConcurrentLinkedQueue<MappedByteBuffer> full = new ConcurrentLinkedQueue<>(); // written, not yet read
+    private MappedByteBuffer out; // writer's segment
+    private ByteBuffer in;        // reader's segment
+    private int segments;
+    private volatile long appended, consumed; // records
+    private final AtomicLong bytes = new AtomicLong(); // mapped by the writer, minus segments the reader finished
+    private volatile boolean closed;
+    private long totalRecords;
+
+    public SpillJournal(String name) throws IOException {
+        this.dir = Paths.get(System.getProperty(DIR_PROPERTY, Paths.get(System.getProperty("java.io.tmpdir"), "npr-spill").toString()));
+        Files.createDirectories(dir);
+        this.prefix = name.replaceAll("[^A-Za-z0-9_-]", "_") + "-" + IDS.incrementAndGet() + "-";
+    }
+
+    // Writer: room for one record of 'size' payload bytes; fill the returned buffer, then publish()
+    public ByteBuffer reserve(int size) throws IOException {
+        if (closed) throw new IOException("spill journal closed");
+        if (size + 4 > SEGMENT_SIZE) throw new IOException("record of " + size + " bytes does not fit a spill segment");
+        if (out == null || out.remaining() < 4 + size) {
+            if (bytes.get() + SEGMENT_SIZE > LIMIT) throw new IOException("spill limit of " + (LIMIT >> 20) + " MB reached");
+            if (out != null && out.remaining() >= 4) out.putInt(out.position(), 0); // end of segment
+            out = map();
+            full.add(out);
+            bytes.addAndGet(SEGMENT_SIZE);
+        }
+        out.putInt(size);
+        return out;
+    }
+
+    public void publish() {
+        totalRecords++;
+        appended = totalRecords; // volatile write: the record's bytes are visible to the reader after this
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        Path file = dir.resolve(prefix + (segments++) + ".seg");
+        try (FileChannel ch = FileChannel.open(file, CREATE_NEW, READ, WRITE, DELETE_ON_CLOSE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE); // stays valid after close
+        }
+    }
+
+    public boolean isEmpty() { return consumed == appended; }
+
+    // Bytes of disk/page cache held by this journal
+    public long footprint() { return bytes.get(); }
+
+    // Reader: the next record's payload (positioned at its start), or null when the journal is empty.
+    // The buffer is only valid until advance().
+    public ByteBuffer peek() {
+        if (closed || consumed == appended) return null;
+        while (true) {
+            if (in != null && in.remaining() >= 4) {
+                int len = in.getInt(in.position());
+                if (len > 0) return in.slice(in.position() + 4, len);
+            }
+            if (in != null) { full.poll(); bytes.addAndGet(-SEGMENT_SIZE); } // finished with it
+            in = full.peek();
+            if (in == null) return null; // closed underneath us
+            in = in.duplicate().clear();
+        }
+    }
+
+    public void advance() {
+        in.position(in.position() + 4 + in.getInt(in.position()));
+        consumed = consumed + 1; // only the reader writes it
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        full.clear(); // the mappings (and with them the deleted files) go with the GC
+        out = null;
+    }
+}
@@ -0,0 +1,109 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel for many short timeouts (pending bank withdrawals), instead of a thread that
+ * sleeps per timeout or a shared heap every add and cancel must lock.
+ * - One daemon "timer-wheel" thread advances a ring of 512 buckets every -Dserver.timerTickMs
+ *   (default 10). A timeout further away than one turn waits some rounds in its bucket.
+ * - schedule() only queues the timeout (lock-free); the wheel thread files it into its bucket on the
+ *   next tick. cancel() is a flag; cancelled timeouts are dropped when their bucket comes round.
+ * - With nothing scheduled the thread parks until the next schedule() instead of ticking.
+ * Tasks run on the wheel thread, so they must be short and never block. Precision is one tick.
+ */
+public final class TimerWheel {
+    public static final String TICK_PROPERTY = "server.timerTickMs";
+    private static final long TICK_NANOS = Math.max(1, Long.getLong(TICK_PROPERTY, 10)) * 1_000_000L;
+    private static final int WHEEL = 512;
+    private static final TimerWheel SHARED = new TimerWheel("timer-wheel");
+
+    public static final class Timeout {
+        private static final int PENDING = 0, CANCELLED = 1, FIRED = 2;
+        final long deadline; // System.nanoTime()
+        final Runnable task;
+        final AtomicInteger state = new AtomicInteger(PENDING);
+        long rounds;         // wheel thread
+        Timeout(long deadline, Runnable task) { this.deadline = deadline; this.task = task; }
+
+        // false if it already fired
+        public boolean cancel() { return state.compareAndSet(PENDING, CANCELLED) || state.get() == CANCELLED; }
+    }
+
+    // One slot of the ring (a class, so the array is typed without a raw List[])
+    private static final class Bucket {
+        final List<Timeout> timeouts = new ArrayList<>();
+    }
+
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final Bucket[] buckets = new Bucket[WHEEL];
+    private final Thread thread;
+    private final long start = System.nanoTime();
+    private long tick;     // wheel thread: last tick processed
+    private volatile int pending; // timeouts in the buckets (written by the wheel thread only)
+
+    private TimerWheel(String name) {
+        for (int i = 0; i < WHEEL; i++) buckets[i] = new Bucket();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The process-wide wheel
+    public static TimerWheel shared() { return SHARED; }
+
+    // Runs task on the wheel thread after delayMillis (rounded up to a tick) unless cancelled first
+    public Timeout schedule(long delayMillis, Runnable task) {
+        Timeout t = new Timeout(System.nanoTime() + Math.max(0, delayMillis) * 1_000_000L, task);
+        incoming.offer(t);
+        if (pending == 0) LockSupport.unpark(thread); // racy read: at worst one extra unpark
+        return t;
+    }
+
+    private void run() {
+        while (true) {
+            if (pending == 0 && incoming.isEmpty()) {
+                LockSupport.park(this);
+                tick = Math.max(tick, (System.nanoTime() - start) / TICK_NANOS); // skip the idle ticks
+                continue;
+            }
+            long deadline = start + (tick + 1) * TICK_NANOS;
+            for (long now; (now = System.nanoTime()) < deadline; ) LockSupport.parkNanos(this, deadline - now);
+            tick++;
+            transfer();
+            expire(buckets[(int) (tick & (WHEEL - 1))].timeouts);
+        }
+    }
+
+    // New timeouts into their buckets (a deadline already passed goes into the next one)
+    private void transfer() {
+        for (Timeout t; (t = incoming.poll()) != null; ) {
+            if (t.state.get() != Timeout.PENDING) continue;
+            long at = Math.max(tick + 1, (t.deadline - start + TICK_NANOS - 1) / TICK_NANOS);
+            t.rounds = (at - tick) / WHEEL;
+            buckets[(int) (at & (WHEEL - 1))].timeouts.add(t);
+            pending++;
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        int keep = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout t = bucket.get(i);
+            if (t.state.get() == Timeout.CANCELLED) { pending--; continue; }
+            if (t.rounds > 0) { t.rounds--; bucket.set(keep++, t); continue; }
+            pending--;
+            if (!t.state.compareAndSet(Timeout.PENDING, Timeout.FIRED)) continue;
+            try {
+                t.task.run();
+            } catch (Throwable e) {
+                System.err.println("Timer task failed: " + e);
+            }
+        }
+        bucket.subList(keep, bucket.size()).clear();
+    }
+}
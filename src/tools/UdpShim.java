@@ -0,0 +1,130 @@
+package tools;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lossy, slow UDP link for testing bigtestudp (or any datagram server) on loopback. Sits between the
+ * clients and the server: clients talk to listenPort, the shim talks to the server from one socket per
+ * client, so the server sees each client as its own peer.
+ * Each direction is a link with:
+ * - random loss (percent),
+ * - a bottleneck of rateKBps with a queue of queueKB: datagrams that would wait longer than the queue
+ *   holds are tail-dropped, the way a router drops when the sender is faster than the link,
+ * - one-way delay plus uniform jitter (which can reorder datagrams).
+ * Usage: java tools.UdpShim <listenPort> <serverHost> <serverPort> [loss%=1] [delayMs=10] [jitterMs=2] [rateKBps=0 (unlimited)] [queueKB=256]
+ * Prints forwarded/lost/queue-dropped counts every 5 s.
+ */
+public class UdpShim {
+    private final DatagramSocket front;
+    private final InetSocketAddress server;
+    private final double loss;
+    private final long delayNanos, jitterNanos, rateBytes, queueBytes;
+    private final Map<SocketAddress, DatagramSocket> upstream = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "shim-timer"); t.setDaemon(true); return t;
+    });
+    private final LongAdder forwarded = new LongAdder(), lost = new LongAdder(), queueDropped = new LongAdder();
+
+    // One direction of the link; busyUntil is when its bottleneck finishes the datagrams already queued
+    private final class Link {
+        private long busyUntil;
+
+        synchronized void offer(byte[] data, DatagramSocket out, SocketAddress to) {
+            if (ThreadLocalRandom.current().nextDouble() * 100 < loss) { lost.increment(); return; }
+            long now = System.nanoTime(), leave = now;
+            if (rateBytes > 0) {
+                long start = Math.max(now, busyUntil);
+                if ((start - now) * rateBytes / 1_000_000_000L + data.length > queueBytes) { queueDropped.increment(); return; }
+                busyUntil = start + data.length * 1_000_000_000L / rateBytes;
+                leave = busyUntil;
+            }
+            long at = leave - now + delayNanos + (jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(jitterNanos) : 0);
+            timer.schedule(() -> {
+                try {
+                    out.send(new DatagramPacket(data, data.length, to));
+                    forwarded.increment();
+                } catch (Exception e) {
+                    System.err.println("[SHIM] send to " + to + " failed: " + e.getMessage());
+                }
+            }, at, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private final Link toServer = new Link(), toClient = new Link();
+
+    public UdpShim(int port, InetSocketAddress server, double loss, long delayMs, long jitterMs, long rateKBps, long queueKB) throws Exception {
+        front = new DatagramSocket(port);
+        front.setReceiveBufferSize(1 << 20);
+        this.server = server;
+        this.loss = loss;
+        delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+        jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMs);
+        rateBytes = rateKBps * 1024;
+        queueBytes = queueKB * 1024;
+    }
+
+    public void run() throws Exception {
+        byte[] buf = new byte[65536];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        while (true) {
+            front.receive(p);
+            SocketAddress client = p.getSocketAddress();
+            DatagramSocket up = upstream.get(client);
+            if (up == null) up = upstream.computeIfAbsent(client, this::open);
+            toServer.offer(Arrays.copyOf(p.getData(), p.getLength()), up, server);
+        }
+    }
+
+    // Server-side socket for one client, with a thread that carries the server's replies back
+    private DatagramSocket open(SocketAddress client) {
+        try {
+            DatagramSocket up = new DatagramSocket();
+            up.setReceiveBufferSize(1 << 20);
+            Thread t = new Thread(() -> {
+                byte[] buf = new byte[65536];
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                try {
+                    while (true) {
+                        up.receive(p);
+                        toClient.offer(Arrays.copyOf(p.getData(), p.getLength()), front, client);
+                    }
+                } catch (Exception e) {
+                    System.err.println("[SHIM] upstream for " + client + " closed: " + e.getMessage());
+                }
+            }, "shim-up-" + client);
+            t.setDaemon(true);
+            t.start();
+            System.out.println("[SHIM] new client " + client);
+            return up;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: java tools.UdpShim <listenPort> <serverHost> <serverPort> [loss%=1] [delayMs=10] [jitterMs=2] [rateKBps=0] [queueKB=256]");
+            return;
+        }
+        double loss = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+        long delay = args.length > 4 ? Long.parseLong(args[4]) : 10, jitter = args.length > 5 ? Long.parseLong(args[5]) : 2;
+        long rate = args.length > 6 ? Long.parseLong(args[6]) : 0, queue = args.length > 7 ? Long.parseLong(args[7]) : 256;
+        UdpShim shim = new UdpShim(Integer.parseInt(args[0]), new InetSocketAddress(args[1], Integer.parseInt(args[2])), loss, delay, jitter, rate, queue);
+        System.out.printf("[SHIM] :%s -> %s:%s, loss %.1f%%, delay %d+%d ms, rate %s, queue %d KB%n", args[0], args[1], args[2],
+                loss, delay, jitter, rate > 0 ? rate + " KB/s" : "unlimited", queue);
+        shim.timer.scheduleAtFixedRate(() -> System.out.println("[SHIM] forwarded " + shim.forwarded.sum() + ", lost " + shim.lost.sum()
+                + ", queue-dropped " + shim.queueDropped.sum()), 5, 5, TimeUnit.SECONDS);
+        shim.run();
+    }
+}
@@ -0,0 +1,135 @@
+package tools;
+
+import java.util.Arrays;
+
+/**
+ * Compact set of non-negative ints (interned voter ordinals) for PollTally, instead of a Set<String> of
+ * user names per poll. Roaring-style:
+ * - Values are grouped by their high 16 bits; the groups (containers) are kept sorted by that key.
+ * - A container of up to 4096 values is a sorted char[] of the low 16 bits (2 bytes per voter). Past that
+ *   it becomes a 65536-bit bitmap (8 KB, under 2 bytes per voter) and goes back to an array below 2048.
+ * - contains/add/remove: binary search over the few containers, then one bit or a binary search in 4096.
+ * Not thread-safe: the caller locks.
+ */
+final class VoterBitmap {
+    private static final int ARRAY_MAX = 4096;
+
+    private static final class Container {
+        char[] array = new char[4]; // sorted, while bits == null
+        long[] bits;
+        int size;
+
+        boolean contains(char low) {
+            if (bits != null) return (bits[low >>> 6] & (1L << low)) != 0;
+            return Arrays.binarySearch(array, 0, size, low) >= 0;
+        }
+
+        boolean add(char low) {
+            if (bits != null) {
+                long m = 1L << low;
+                if ((bits[low >>> 6] & m) != 0) return false;
+                bits[low >>> 6] |= m;
+                size++;
+                return true;
+            }
+            int i = Arrays.binarySearch(array, 0, size, low);
+            if (i >= 0) return false;
+            if (size == ARRAY_MAX) {
+                toBits();
+                return add(low);
+            }
+            i = -i - 1;
+            if (size == array.length) array = Arrays.copyOf(array, Math.min(ARRAY_MAX, size * 2));
+            System.arraycopy(array, i, array, i + 1, size - i);
+            array[i] = low;
+            size++;
+            return true;
+        }
+
+        boolean remove(char low) {
+            if (bits != null) {
+                long m = 1L << low;
+                if ((bits[low >>> 6] & m) == 0) return false;
+                bits[low >>> 6] &= ~m;
+                if (--size < ARRAY_MAX / 2) toArray();
+                return true;
+            }
+            int i = Arrays.binarySearch(array, 0, size, low);
+            if (i < 0) return false;
+            System.arraycopy(array, i + 1, array, i, size - i - 1);
+            size--;
+            if (array.length > 16 && size < array.length / 4) array = Arrays.copyOf(array, array.length / 2);
+            return true;
+        }
+
+        private void toBits() {
+            bits = new long[1024];
+            for (int i = 0; i < size; i++) bits[array[i] >>> 6] |= 1L << array[i];
+            array = null;
+        }
+
+        private void toArray() {
+            array = new char[Math.max(4, size)];
+            int n = 0;
+            for (int w = 0; w < bits.length; w++) {
+                for (long word = bits[w]; word != 0; word &= word - 1) {
+                    array[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                }
+            }
+            bits = null;
+        }
+
+        long bytes() { return 24 + (bits != null ? 16 + 8L * bits.length : 16 + 2L * array.length); }
+    }
+
+    private int[] keys = new int[1];
+    private Container[] containers = new Container[1];
+    private int count;
+    private long size;
+
+    boolean contains(int value) {
+        int i = Arrays.binarySearch(keys, 0, count, value >>> 16);
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    boolean add(int value) {
+        int key = value >>> 16;
+        int i = Arrays.binarySearch(keys, 0, count, key);
+        if (i < 0) {
+            i = -i - 1;
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                containers = Arrays.copyOf(containers, count * 2);
+            }
+            System.arraycopy(keys, i, keys, i + 1, count - i);
+            System.arraycopy(containers, i, containers, i + 1, count - i);
+            keys[i] = key;
+            containers[i] = new Container();
+            count++;
+        }
+        if (!containers[i].add((char) value)) return false;
+        size++;
+        return true;
+    }
+
+    boolean remove(int value) {
+        int i = Arrays.binarySearch(keys, 0, count, value >>> 16);
+        if (i < 0 || !containers[i].remove((char) value)) return false;
+        size--;
+        if (containers[i].size == 0) {
+            System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, count - i - 1);
+            containers[--count] = null;
+        }
+        return true;
+    }
+
+    long size() { return size; }
+
+    // Approximate heap footprint: arrays plus object headers
+    long bytes() {
+        long b = 16 + 16 + 4L * keys.length + 16 + 4L * containers.length;
+        for (int i = 0; i < count; i++) b += containers[i].bytes();
+        return b;
+    }
+}
@@ -8,11 +8,15 @@ import java.math.BigInteger;
 import java.net.*;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import tools.BroadcastRing;
+import tools.ChunkPool;
+import tools.HandlerExecutor;
+import tools.LogPanel;
 
 /*
  ServerGUI (Broadcast Mode)
@@ -35,12 +39,14 @@ public class ServerGUI extends JFrame {
     private static final long MAX_FILE_SIZE = 500L * 1024L * 1024L; // 500 MB
     // Socket read timeout while waiting for upload frames (ms)
     private static final int UPLOAD_READ_TIMEOUT_MS = 30_000; // 30 seconds
-    // Per-client send queue capacity (number of frames)
-    private static final int PER_CLIENT_QUEUE_CAPACITY = 256;
-    // Timeout when offering a frame into client's queue (ms)
-    private static final long QUEUE_OFFER_TIMEOUT_MS = 2000;
-
-     private JTextArea txtLog;
+    // Frames a client may fall behind the broadcast ring before uploads wait for it; one that stays
+    // stuck there for 2 s is disconnected (or skipped with -Dserver.lagPolicy=drop)
+    private static final int LAG_LIMIT = BroadcastRing.limitFromProperty(256);
+    // Upload fan-out: incoming frames are gathered into 64 KB pooled chunks and each chunk is queued,
+    // shared and reference-counted, to every receiver (no per-receiver copies)
+    private static final ChunkPool FAN_OUT = new ChunkPool(64 * 1024, 256);
+
+     private LogPanel txtLog; // bounded, repainted by its own timer
      private JButton btnStart;
      private JButton btnStop;
      private JLabel lblStatus;
@@ -52,6 +58,9 @@ public class ServerGUI extends JFrame {
      private boolean isRunning = false;
      private final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
      private int clientCounter = 0;
+     // Outgoing file frames of every client: published once per group of receivers, read by each
+     // client's sender with its own cursor
+     private final BroadcastRing<Frame> frames = new BroadcastRing<>(Frame::new, BroadcastRing.policyFromProperty(), LAG_LIMIT);
 
      public ServerGUI() {
          initializeGUI();
@@ -128,12 +137,9 @@ public class ServerGUI extends JFrame {
          JPanel panel = new JPanel(new BorderLayout());
          panel.setBorder(BorderFactory.createTitledBorder("Server Log"));
 
-         txtLog = new JTextArea();
-         txtLog.setEditable(false);
          // Use Times New Roman for server logs per user request
-         txtLog.setFont(new Font("Times New Roman", Font.PLAIN, 12));
-         JScrollPane scrollPane = new JScrollPane(txtLog);
-         panel.add(scrollPane, BorderLayout.CENTER);
+         txtLog = new LogPanel(new Font("Times New Roman", Font.PLAIN, 12), null);
+         panel.add(txtLog, BorderLayout.CENTER);
 
          return panel;
      }
@@ -165,6 +171,7 @@ public class ServerGUI extends JFrame {
              log("=== SERVER STARTED ===");
              log("Port: " + PORT);
              log("Upload directory: " + UPLOAD_DIR);
+             log("Handler threads: " + HandlerExecutor.mode() + ", file frames: " + frames.describe());
              log("Waiting for clients...\n");
 
              // Accept clients trong thread riêng
@@ -178,7 +185,7 @@ public class ServerGUI extends JFrame {
 
                          ClientHandler handler = new ClientHandler(clientSocket, clientId, clientInfo);
                          clients.add(handler);
-                         new Thread(handler).start();
+                         HandlerExecutor.submit(handler); // platform or virtual thread (-Dserver.threads)
 
                          log("✓ " + clientId + " [" + clientInfo + "] connected");
                          updateClientList();
@@ -228,24 +235,97 @@ public class ServerGUI extends JFrame {
          }
      }
 
-     private void broadcast(String message, ClientHandler sender) {
+     // Copy of the other clients, taken under the lock. Writes and queue offers happen outside
+     // the monitor so one slow socket does not block every broadcaster (or pin a virtual thread).
+     private List<ClientHandler> receiversExcept(ClientHandler sender) {
+         List<ClientHandler> out = new ArrayList<>();
          synchronized (clients) {
-             for (ClientHandler client : clients) {
-                 if (client != sender) { // Không gửi lại cho người gửi
-                     client.sendMessage(message);
-                 }
-             }
+             for (ClientHandler client : clients) if (client != sender) out.add(client);
          }
+         return out;
      }
 
+     private void broadcast(String message, ClientHandler sender) {
+         for (ClientHandler client : receiversExcept(sender)) { // Không gửi lại cho người gửi
+             client.sendMessage(message);
+         }
+     }
+
+     // Header to each receiver, then the data published once as frames sharing fileData (no copies)
      private void broadcastFile(String fileName, long fileSize, byte[] fileData, ClientHandler sender) {
-         synchronized (clients) {
-             for (ClientHandler client : clients) {
-                 if (client != sender) {
-                     client.sendFile(fileName, fileSize, fileData);
-                 }
+         List<BroadcastRing<Frame>.Reader> readers = new ArrayList<>();
+         for (ClientHandler client : receiversExcept(sender)) {
+             if (client.sendFileHeader(fileName, fileSize)) readers.add(client.frameReader);
+         }
+         BroadcastRing.Group group = frames.group(readers, true);
+         try {
+             boolean open = true;
+             for (int offset = 0; open && offset < fileData.length; offset += 4096) {
+                 open = publish(group, Math.min(4096, fileData.length - offset), null, fileData, offset);
              }
+             if (open) publish(group, 0, null, null, 0);
+             log("  ✓ File scheduled to send to " + readers.size() + " client(s)");
+         } catch (InterruptedIOException e) {
+             log("  ✗ Interrupted while sending file " + fileName);
+         }
+     }
+
+     // Frame: len + bytes, the payload is a pooled upload chunk or a slice of a byte[].
+     // len = 0 EOF, -1 CANCEL. Frames are ring slots, reused for every lap.
+     private static class Frame extends BroadcastRing.Entry {
+         int len;
+         ChunkPool.Chunk chunk; // shared upload chunk, released once every receiver has written it
+         byte[] data;
+         int offset;
+
+         @Override protected boolean endsGroup() { return len <= 0; }
+
+         @Override protected void clear() {
+             if (chunk != null) chunk.release();
+             chunk = null;
+             data = null;
+         }
+
+         // Journal record of a spilling receiver: [len:int][bytes], read back into its own data array
+         @Override protected int spillSize() { return 4 + Math.max(len, 0); }
+
+         @Override protected void spillTo(ByteBuffer out) {
+             out.putInt(len);
+             if (chunk != null) out.put(chunk.data(), 0, len);
+             else if (len > 0) out.put(data, offset, len);
+         }
+
+         @Override protected void spillFrom(ByteBuffer in) {
+             len = in.getInt();
+             chunk = null;
+             offset = 0;
+             if (data == null || data.length < in.remaining()) data = new byte[Math.max(in.remaining(), 64 * 1024)];
+             in.get(data, 0, in.remaining());
+         }
+     }
+
+     // Publish one frame to a group of receivers. False when none of them is left; the chunk
+     // (if any) belongs to the ring from here on, or is released.
+     private boolean publish(BroadcastRing.Group group, int len, ChunkPool.Chunk chunk, byte[] data, int offset)
+             throws InterruptedIOException {
+         Frame f;
+         try {
+             f = frames.claim(group);
+         } catch (InterruptedException ie) {
+             if (chunk != null) chunk.release();
+             Thread.currentThread().interrupt();
+             throw new InterruptedIOException("interrupted while publishing a frame");
+         }
+         if (f == null) {
+             if (chunk != null) chunk.release();
+             return false;
          }
+         f.len = len;
+         f.chunk = chunk;
+         f.data = data;
+         f.offset = offset;
+         frames.commit(f);
+         return true;
      }
 
      private void updateClientList() {
@@ -261,10 +341,7 @@ public class ServerGUI extends JFrame {
      }
 
      private void log(String message) {
-         SwingUtilities.invokeLater(() -> {
-             txtLog.append(message + "\n");
-             txtLog.setCaretPosition(txtLog.getDocument().getLength());
-         });
+         txtLog.append(message);
      }
 
      // Inner class ClientHandler
@@ -278,60 +355,59 @@ public class ServerGUI extends JFrame {
          private DataInputStream dataIn;
          private DataOutputStream dataOut;
 
-         // Per-client send queue to avoid blocking the uploader when some clients are slow.
-         // Frames are small chunks (len + bytes) that will be written to client's dataOut by senderThread.
-         private final BlockingQueue<Frame> sendQueue = new LinkedBlockingQueue<>(PER_CLIENT_QUEUE_CAPACITY);
-         private Thread senderThread;
-
-         // Frame represents a single frame to be sent to the client
-         private class Frame {
-             final int len; // -1 = CANCEL, 0 = EOF, >0 = bytes length
-             final byte[] data; // null for control frames
-             Frame(int len, byte[] data) { this.len = len; this.data = data; }
-         }
-
-         // Enqueue a frame to this client's send queue. If queue is full / client too slow,
-         // we will log and drop the client for robustness.
-         private boolean enqueueFrame(Frame f) {
-             try {
-                 boolean ok = sendQueue.offer(f, QUEUE_OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-                 if (!ok) {
-                     log("  Warning: send queue full for " + clientId + " — dropping client");
-                     // best-effort close
-                     close();
-                     return false;
-                 }
-                 return true;
-             } catch (InterruptedException ie) {
-                 Thread.currentThread().interrupt();
-                 return false;
-             }
-         }
+         // Reader of the broadcast ring: the uploader publishes each frame once and is not blocked
+         // by slow clients, which lag behind on their own cursor (see LAG_LIMIT).
+         private final BroadcastRing<Frame>.Reader frameReader = frames.reader(this::onOverrun, g -> sendCancel());
+         private Future<?> sender;
+         // writer, dataOut and the sender's frames share one socket stream: each message (both lines of a
+         // BROADCAST_MSG, a file header, one frame) is written whole under this lock
+         private final ReentrantLock writeLock = new ReentrantLock();
 
-         // Sender thread: takes frames from queue and writes to dataOut
+         // Sender task: takes this client's frames from the ring and writes them to dataOut
          private void startSender() {
-             senderThread = new Thread(() -> {
+             sender = HandlerExecutor.submit(() -> {
                  try {
-                     while (!Thread.currentThread().isInterrupted()) {
-                         Frame f = sendQueue.take();
+                     while (true) {
+                         Frame f = frameReader.next();
+                         writeLock.lock();
                          try {
                              dataOut.writeInt(f.len);
-                             if (f.len > 0 && f.data != null) dataOut.write(f.data, 0, f.len);
+                             if (f.chunk != null) f.chunk.writeTo(dataOut);
+                             else if (f.len > 0 && f.data != null) dataOut.write(f.data, f.offset, f.len);
                              dataOut.flush();
-                         } catch (IOException ioe) {
-                             log("  ✗ Error writing frame to " + clientId + ": " + ioe.getMessage());
-                             break;
+                         } finally {
+                             writeLock.unlock();
+                             frameReader.done(f);
                          }
                      }
+                 } catch (IOException ioe) {
+                     log("  ✗ Error writing frame to " + clientId + ": " + ioe.getMessage());
                  } catch (InterruptedException ie) {
                      // Thread interrupted -> exit cleanly
                  } finally {
                      // Ensure client is closed if sender stops unexpectedly
                      close();
+                     frameReader.detach();
                  }
-             }, clientId + "-sender");
-             senderThread.setDaemon(true);
-             senderThread.start();
+             });
+         }
+
+         // Lag policy "disconnect": this client stayed too far behind the ring
+         private void onOverrun() {
+             log("  Warning: " + clientId + " is too slow for the file broadcast — dropping client");
+             close();
+         }
+
+         // Lag policy "drop" (sender thread): part of a file was skipped for this client, tell it to discard the file
+         private void sendCancel() throws IOException {
+             log("  Warning: " + clientId + " lagged behind — file transfer cancelled for it");
+             writeLock.lock();
+             try {
+                 dataOut.writeInt(-1);
+                 dataOut.flush();
+             } finally {
+                 writeLock.unlock();
+             }
          }
 
          ClientHandler(Socket socket, String clientId, String clientInfo) {
@@ -363,9 +439,7 @@ public class ServerGUI extends JFrame {
                      log("→ " + clientId + " Student_ID: " + studentId);
 
                      String response = calculateFirstResponse(studentId);
-                     writer.write(response);
-                     writer.newLine();
-                     writer.flush();
+                     writeLines(response);
                      log("← Sent to " + clientId + ": " + response);
 
                      updateClientList();
@@ -409,9 +483,7 @@ public class ServerGUI extends JFrame {
 
          private void handleMessage(String msg) throws IOException {
              String response = processMessage(msg);
-             writer.write(response);
-             writer.newLine();
-             writer.flush();
+             writeLines(response);
              log("← Sent to " + clientId + ": " + response);
          }
 
@@ -435,9 +507,7 @@ public class ServerGUI extends JFrame {
              String broadcastMsg = "[" + clientId + "]: " + message;
              broadcast(broadcastMsg, this);
 
-             writer.write("BROADCAST_OK");
-             writer.newLine();
-             writer.flush();
+             writeLines("BROADCAST_OK");
          }
 
          private void handleFileUpload() throws IOException {
@@ -452,7 +522,7 @@ public class ServerGUI extends JFrame {
                  // Reject overly large files explicitly
                  if (fileSize > MAX_FILE_SIZE) {
                      log("  ✗ File too large (" + formatFileSize(fileSize) + ") — rejecting upload from " + clientId);
-                     try { dataOut.writeUTF("ERROR: File too large"); dataOut.flush(); } catch (IOException ignored) {}
+                     try { writeStatus("ERROR: File too large"); } catch (IOException ignored) {}
                      // Optionally, consume/skip frames or close connection. We'll return and let client handle.
                      return;
                  }
@@ -462,26 +532,16 @@ public class ServerGUI extends JFrame {
                  boolean cancelled = false;
                  long lastLogTime = System.currentTimeMillis();
 
-                 // Notify other clients (send header) so they can prepare to receive streamed frames
-                 synchronized (clients) {
-                     for (ClientHandler c : clients) {
-                         if (c != this) {
-                             try {
-                                 c.writer.write("BROADCAST_FILE");
-                                 c.writer.newLine();
-                                 c.writer.flush();
-                                 c.dataOut.writeUTF(clientId + "_" + fileName);
-                                 c.dataOut.writeLong(fileSize);
-                                 c.dataOut.flush();
-                             } catch (IOException ignored) {
-                                 // ignore failures to notify a specific client
-                             }
-                         }
-                     }
+                 // Notify other clients (send header) so they can prepare to receive streamed frames.
+                 // The receiver set is fixed for the whole upload; every frame is published once for it.
+                 List<BroadcastRing<Frame>.Reader> readers = new ArrayList<>();
+                 for (ClientHandler c : receiversExcept(this)) {
+                     if (c.sendFileHeader(clientId + "_" + fileName, fileSize)) readers.add(c.frameReader);
                  }
+                 BroadcastRing.Group receivers = frames.group(readers, true);
 
-                 // Prepare buffer for streaming
-                 byte[] buffer = new byte[4096];
+                 // Chunk being filled; it is fanned out when full and at EOF
+                 ChunkPool.Chunk pending = FAN_OUT.acquire();
 
                  // Set socket read timeout to avoid indefinite blocking when client stalls
                  try {
@@ -505,49 +565,39 @@ public class ServerGUI extends JFrame {
                          }
 
                          if (frameLen == -1) {
-                             // client requested cancel
+                             // client requested cancel: bytes not yet fanned out are dropped
                              cancelled = true;
                              log("    Client sent CANCEL frame");
-                             // enqueue CANCEL frame to other clients
-                             synchronized (clients) {
-                                 for (ClientHandler c : clients) {
-                                     if (c != this) c.enqueueFrame(new Frame(-1, null));
-                                 }
-                             }
+                             // publish CANCEL frame to other clients
+                             publish(receivers, -1, null, null, 0);
                              break;
                          }
 
                          if (frameLen == 0) {
-                             // finished sending — enqueue EOF to others
-                             synchronized (clients) {
-                                 for (ClientHandler c : clients) {
-                                     if (c != this) c.enqueueFrame(new Frame(0, null));
-                                 }
-                             }
+                             // finished sending — flush the last partial chunk, then publish EOF to others
+                             if (pending.length() > 0) pending = fanOut(pending, receivers);
+                             publish(receivers, 0, null, null, 0);
                              break;
                          }
 
                          int remaining = frameLen;
                          while (remaining > 0) {
-                             int toRead = Math.min(remaining, buffer.length);
-                             int actuallyRead = dataIn.read(buffer, 0, toRead);
-                             if (actuallyRead == -1) {
+                             int n = Math.min(remaining, pending.space());
+                             int off = pending.length();
+                             try {
+                                 pending.append(dataIn, n);
+                             } catch (EOFException eof) {
                                  cancelled = true;
                                  log("    Unexpected EOF while reading chunk");
                                  break;
                              }
                              // write to disk
-                             fos.write(buffer, 0, actuallyRead);
-                             totalReceived += actuallyRead;
-                             remaining -= actuallyRead;
-
-                             // Broadcast this chunk to other clients by enqueueing a copy into their queues
-                             byte[] copy = Arrays.copyOf(buffer, actuallyRead);
-                             synchronized (clients) {
-                                 for (ClientHandler c : clients) {
-                                     if (c != this) c.enqueueFrame(new Frame(actuallyRead, copy));
-                                 }
-                             }
+                             fos.write(pending.data(), off, n);
+                             totalReceived += n;
+                             remaining -= n;
+
+                             // Broadcast full chunks to other clients: each chunk is published once for all of them
+                             if (pending.space() == 0) pending = fanOut(pending, receivers);
 
                              long currentTime = System.currentTimeMillis();
                              if (currentTime - lastLogTime > 500 || totalReceived == fileSize) {
@@ -562,6 +612,7 @@ public class ServerGUI extends JFrame {
                      }
                      fos.getFD().sync();
                  } finally {
+                     pending.release();
                      // restore socket timeout (0 means infinite)
                      try { socket.setSoTimeout(0); } catch (SocketException ignored) {}
                  }
@@ -574,65 +625,77 @@ public class ServerGUI extends JFrame {
                      }
 
                      try {
-                         if (cancelled) {
-                             dataOut.writeUTF("CANCELLED");
-                         } else {
-                             dataOut.writeUTF("ERROR: Incomplete upload");
-                         }
-                         dataOut.flush();
+                         writeStatus(cancelled ? "CANCELLED" : "ERROR: Incomplete upload");
                      } catch (IOException ignored) {}
 
                      log("  ✗ File upload incomplete or cancelled: " + savePath + "\n");
                  } else {
                      try {
-                         dataOut.writeUTF("SUCCESS");
-                         dataOut.flush();
+                         writeStatus("SUCCESS");
                      } catch (IOException ignored) {}
-                     log("  ✓ File saved and broadcasted: " + savePath + "\n");
+                     log("  ✓ File saved and broadcasted: " + savePath + " (" + FAN_OUT.stats() + ")\n");
                  }
              } catch (IOException e) {
                  log("  ✗ File upload error: " + e.getMessage());
-                 try { dataOut.writeUTF("ERROR: " + e.getMessage()); dataOut.flush(); } catch (IOException ignored) {}
+                 try { writeStatus("ERROR: " + e.getMessage()); } catch (IOException ignored) {}
              }
          }
 
-         void sendMessage(String message) {
+         // Hand a full chunk to the ring (published once for all receivers) and return a fresh one
+         private ChunkPool.Chunk fanOut(ChunkPool.Chunk chunk, BroadcastRing.Group receivers) throws InterruptedIOException {
+             publish(receivers, chunk.length(), chunk, null, 0);
+             return FAN_OUT.acquire();
+         }
+
+         // Text lines, written and flushed as one message
+         private void writeLines(String... lines) throws IOException {
+             writeLock.lock();
              try {
-                 writer.write("BROADCAST_MSG");
-                 writer.newLine();
-                 writer.write(message);
-                 writer.newLine();
+                 for (String line : lines) {
+                     writer.write(line);
+                     writer.newLine();
+                 }
                  writer.flush();
+             } finally {
+                 writeLock.unlock();
+             }
+         }
+
+         // Upload result (writeUTF) for this client's own upload
+         private void writeStatus(String status) throws IOException {
+             writeLock.lock();
+             try {
+                 dataOut.writeUTF(status);
+                 dataOut.flush();
+             } finally {
+                 writeLock.unlock();
+             }
+         }
+
+         void sendMessage(String message) {
+             try {
+                 writeLines("BROADCAST_MSG", message);
              } catch (IOException e) {
                  log("  ✗ Error sending broadcast to " + clientId);
              }
          }
 
-         // Backward-compatible sendFile: chunk a byte[] into frames and enqueue to client's queue
-         void sendFile(String fileName, long fileSize, byte[] fileData) {
+         // BROADCAST_FILE header for a file whose frames follow through the ring; false if the client is gone
+         boolean sendFileHeader(String fileName, long fileSize) {
+             writeLock.lock();
              try {
                  writer.write("BROADCAST_FILE");
                  writer.newLine();
                  writer.flush();
-
                  dataOut.writeUTF(fileName);
                  dataOut.writeLong(fileSize);
                  dataOut.flush();
-
-                 int offset = 0;
-                 while (offset < fileData.length) {
-                     int len = Math.min(4096, fileData.length - offset);
-                     byte[] copy = Arrays.copyOfRange(fileData, offset, offset + len);
-                     if (!enqueueFrame(new Frame(len, copy))) break;
-                     offset += len;
-                 }
-
-                 // EOF frame
-                 enqueueFrame(new Frame(0, null));
-
-                 log("  ✓ File scheduled to send to " + clientId);
+                 return true;
              } catch (IOException e) {
-                 log("  ✗ Error sending file to " + clientId);
+                 log("  ✗ Error sending file header to " + clientId);
+                 return false;
+             } finally {
+                 writeLock.unlock();
              }
          }
 
@@ -643,7 +706,7 @@ public class ServerGUI extends JFrame {
                  if (dataIn != null) dataIn.close();
                  if (dataOut != null) dataOut.close();
                  if (socket != null && !socket.isClosed()) socket.close();
-                 if (senderThread != null) senderThread.interrupt();
+                 if (sender != null) sender.cancel(true);
              } catch (IOException e) {
                  // Ignore
              }
@@ -6,10 +6,18 @@ import java.math.BigInteger;
 import java.net.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.*; // for optional TLS support
 import java.security.*; // for security exceptions
+import tools.BankLedger;
+import tools.ChatJournal;
+import tools.HandlerExecutor;
+import tools.LogPanel;
+import tools.PollTally;
 
 /*
  BCrypt example (commented):
@@ -42,7 +50,7 @@ public class Server extends JFrame {
     private static final String UPLOAD_DIR = "server_files_unicast/"; // thư mục lưu file upload
 
     // --- Thành phần GUI ---
-    private JTextArea txtLog;         // vùng hiển thị log server
+    private LogPanel txtLog;          // vùng hiển thị log server (giới hạn số dòng, cập nhật theo timer)
     private JButton btnStart;         // nút start server
     private JButton btnStop;          // nút stop server
     private JLabel lblStatus;         // trạng thái server (Running/Stopped)
@@ -59,85 +67,24 @@ public class Server extends JFrame {
     private int clientCounter = 0;                           // bộ đếm client để đặt id
 
     // --- New features: per-user bank accounts, poll manager, and helper utilities ---
-    // Map studentId -> BankAccount (synchronized)
-    private final Map<String, BankAccount> accounts = Collections.synchronizedMap(new HashMap<>());
+    // Số dư: tools.BankLedger (bank_ledger/unicast, CAS + WAL, giữ qua restart), null nếu không mở được
+    private BankLedger bank;
 
-    // Polls: pollId -> Poll
-    private final Map<Integer, Poll> polls = Collections.synchronizedMap(new HashMap<>());
+    // Polls: pollId -> vote counts; results go out as coalesced POLL_RESULT changes (-Dserver.pollFlushMs)
+    private final Map<Integer, PollTally> polls = Collections.synchronizedMap(new HashMap<>());
     private final java.util.concurrent.atomic.AtomicInteger pollCounter = new java.util.concurrent.atomic.AtomicInteger(0);
 
+    // Nhật ký chat (SAVELOG): journal append-only mmap trên đĩa (chat_journal/unicast), null nếu không mở được
+    private ChatJournal chatLog;
+
     // Helper method to broadcast a text message to all connected clients
+    // Copy the list under the lock, write outside it (a blocking write must not hold 'clients')
     private void broadcastToAll(String message) {
-        synchronized (clients) {
-            for (ClientHandler ch : clients) {
-                try {
-                    if (ch != null && ch.writer != null) {
-                        ch.writer.write(message);
-                        ch.writer.newLine();
-                        ch.writer.flush();
-                    }
-                } catch (IOException ignore) {}
-            }
-        }
-    }
-
-    // Simple BankAccount class (per-user). Uses BigInteger and keeps a small history list.
-    private static class BankAccount {
-        private java.math.BigInteger balance = java.math.BigInteger.ZERO;
-        private final List<String> history = new ArrayList<>();
-
-        public synchronized java.math.BigInteger deposit(java.math.BigInteger amount) {
-            balance = balance.add(amount);
-            String entry = "DEPOSIT:" + amount + ":BAL=" + balance;
-            history.add(entry);
-            return balance;
-        }
-
-        public synchronized java.math.BigInteger withdraw(java.math.BigInteger amount) throws InterruptedException {
-            long deadline = System.currentTimeMillis() + 10_000; // 10s wait
-            while (balance.compareTo(amount) < 0) {
-                long waitTime = deadline - System.currentTimeMillis();
-                if (waitTime <= 0) throw new IllegalStateException("Insufficient");
-                wait(waitTime);
-            }
-            balance = balance.subtract(amount);
-            String entry = "WITHDRAW:" + amount + ":BAL=" + balance;
-            history.add(entry);
-            return balance;
-        }
-
-        public synchronized java.math.BigInteger getBalance() { return balance; }
-        public synchronized List<String> getHistory() { return new ArrayList<>(history); }
-    }
-
-    // Simple Poll class to manage votes
-    private static class Poll {
-        final int id;
-        final String title;
-        final List<String> options;
-        final Map<Integer, Integer> votes = new HashMap<>(); // optionIndex -> count
-
-        Poll(int id, String title, List<String> options) {
-            this.id = id; this.title = title; this.options = options;
-            for (int i = 0; i < options.size(); i++) votes.put(i, 0);
-        }
-
-        public synchronized void vote(int optIndex) {
-            votes.put(optIndex, votes.getOrDefault(optIndex, 0) + 1);
-        }
-
-        public synchronized String resultsString() {
-            StringBuilder sb = new StringBuilder();
-            sb.append("POLL_RESULT:").append(id).append(":").append(title).append(":");
-            for (int i = 0; i < options.size(); i++) {
-                sb.append(options.get(i)).append("=").append(votes.getOrDefault(i,0));
-                if (i < options.size()-1) sb.append(",");
-            }
-            return sb.toString();
-        }
-
-        public synchronized String optionsCSV() {
-            return String.join(",", options);
+        List<ClientHandler> targets;
+        synchronized (clients) { targets = new ArrayList<>(clients); }
+        // sendLine: poll results and bank broadcasts come from executor threads, not the client's handler
+        for (ClientHandler ch : targets) {
+            if (ch != null && ch.writer != null) ch.sendLine(message);
         }
     }
 
@@ -156,6 +103,16 @@ public class Server extends JFrame {
                 System.err.println("Warning: cannot create upload directory: " + UPLOAD_DIR);
             }
         }
+        try {
+            chatLog = ChatJournal.open("unicast");
+        } catch (IOException e) {
+            System.err.println("Warning: chat journal unavailable, SAVELOG disabled: " + e.getMessage());
+        }
+        try {
+            bank = BankLedger.open("unicast");
+        } catch (IOException e) {
+            System.err.println("Warning: bank ledger unavailable, BANK disabled: " + e.getMessage());
+        }
     }
 
     // --- Phần tạo GUI ---
@@ -239,13 +196,9 @@ public class Server extends JFrame {
         JPanel panel = new JPanel(new BorderLayout());
         panel.setBorder(BorderFactory.createTitledBorder("Server Log"));
 
-        txtLog = new JTextArea();
-        txtLog.setEditable(false);
         // Use Times New Roman for server logs per user request
-        txtLog.setFont(new Font("Times New Roman", Font.PLAIN, 12));
-        txtLog.setBackground(new Color(240, 240, 240));
-        JScrollPane scrollPane = new JScrollPane(txtLog);
-        panel.add(scrollPane, BorderLayout.CENTER);
+        txtLog = new LogPanel(new Font("Times New Roman", Font.PLAIN, 12), new Color(240, 240, 240));
+        panel.add(txtLog, BorderLayout.CENTER);
 
         return panel;
     }
@@ -322,6 +275,7 @@ public class Server extends JFrame {
             log("║       SERVER STARTED (UNICAST)        ║");
             log("╚════════════════════════════════════════╝");
             log("Port: " + PORT + (useTLS?" (TLS)":""));
+            log("Handler threads: " + HandlerExecutor.mode());
             log("Upload directory: " + UPLOAD_DIR);
             log("Waiting for clients...\n");
 
@@ -335,7 +289,7 @@ public class Server extends JFrame {
 
                         ClientHandler handler = new ClientHandler(clientSocket, clientId, clientInfo);
                         clients.add(handler);
-                        new Thread(handler).start();
+                        HandlerExecutor.submit(handler); // platform or virtual thread (-Dserver.threads)
 
                         log("✓ " + clientId + " [" + clientInfo + "] connected");
                         updateClientList();
@@ -413,13 +367,10 @@ public class Server extends JFrame {
 
     /*
      log(message)
-     - Ghi message vào vùng txtLog (sử dụng invokeLater để chạy trên EDT)
+     - Ghi message vào vùng txtLog (LogPanel tự cập nhật trên EDT theo timer, không invokeLater mỗi dòng)
     */
     private void log(String message) {
-        SwingUtilities.invokeLater(() -> {
-            txtLog.append(message + "\n");
-            txtLog.setCaretPosition(txtLog.getDocument().getLength());
-        });
+        txtLog.append(message);
     }
 
     /*
@@ -439,6 +390,9 @@ public class Server extends JFrame {
         private BufferedWriter writer;
         private DataInputStream dataIn;
         private DataOutputStream dataOut;
+        // Every write to the socket (sendLine, the SAVELOG stream, upload status) holds it: bank replies and
+        // broadcasts come from other threads and must not land inside another message
+        private final ReentrantLock writeLock = new ReentrantLock();
 
         ClientHandler(Socket socket, String clientId, String clientInfo) {
             this.socket = socket;
@@ -469,9 +423,7 @@ public class Server extends JFrame {
                     log(">> " + clientId + " sent Student_ID: " + studentId);
 
                     String response = calculateFirstResponse(studentId);
-                    writer.write(response);
-                    writer.newLine();
-                    writer.flush();
+                    sendLine(response);
                     log("<< Sent to " + clientId + ": 4×" + studentId + " = " + response);
 
                     updateClientList();
@@ -489,8 +441,8 @@ public class Server extends JFrame {
                     } else if (command.startsWith("POLL:")) {
                         handlePollCommand(command);
                         continue;
-                    } else if (command.equals("SAVELOG")) {
-                        handleSaveLog();
+                    } else if (command.equals("SAVELOG") || command.startsWith("SAVELOG:")) {
+                        handleSaveLog(command.length() > 8 ? command.substring(8) : "");
                         continue;
                     }
 
@@ -524,90 +476,146 @@ public class Server extends JFrame {
             // BANK:DEPOSIT:5000  or BANK:WITHDRAW:3000 or BANK:BAL
             String[] parts = command.split(":", 3);
             String op = parts.length >=2 ? parts[1].toUpperCase() : "";
-            accounts.putIfAbsent(studentId, new BankAccount());
-            BankAccount acc = accounts.get(studentId);
-
-            if ("BAL".equals(op)) {
-                writer.write("BANK_RES:BAL:" + acc.getBalance().toString()); writer.newLine(); writer.flush();
-            } else if ("DEPOSIT".equals(op) && parts.length==3) {
-                try {
-                    java.math.BigInteger amt = new java.math.BigInteger(parts[2].trim());
-                    java.math.BigInteger newBal = acc.deposit(amt);
-                    writer.write("BANK_RES:DEPOSIT:" + newBal.toString()); writer.newLine(); writer.flush();
-                    // also send small history entry to this client
-                    writer.write("BANK_HISTORY:" + studentId + ":DEPOSIT:" + amt + ":BAL:" + newBal); writer.newLine(); writer.flush();
-                    // broadcast balance change to all
-                    broadcastToAll("BANK_BC:" + studentId + ":balance:" + newBal.toString());
-                } catch (Exception e) { writer.write("BANK_ERR:invalid amount"); writer.newLine(); writer.flush(); }
-            } else if ("WITHDRAW".equals(op) && parts.length==3) {
-                try {
-                    java.math.BigInteger amt = new java.math.BigInteger(parts[2].trim());
-                    try {
-                        java.math.BigInteger newBal = acc.withdraw(amt);
-                        writer.write("BANK_RES:WITHDRAW:" + newBal.toString()); writer.newLine(); writer.flush();
-                        writer.write("BANK_HISTORY:" + studentId + ":WITHDRAW:" + amt + ":BAL:" + newBal); writer.newLine(); writer.flush();
-                        broadcastToAll("BANK_BC:" + studentId + ":balance:" + newBal.toString());
-                    } catch (IllegalStateException | InterruptedException ise) {
-                        writer.write("BANK_ERR:insufficient funds"); writer.newLine(); writer.flush();
+            if (bank == null) {
+                sendLine("BANK_ERR:unavailable");
+            } else if ("BAL".equals(op)) {
+                sendLine("BANK_RES:BAL:" + BankLedger.format(bank.balance(studentId)));
+            } else if (("DEPOSIT".equals(op) || "WITHDRAW".equals(op)) && parts.length==3) {
+                long amt;
+                try { amt = BankLedger.parseCents(parts[2]); } catch (IllegalArgumentException e) { sendLine("BANK_ERR:invalid amount"); return; }
+                CompletableFuture<Long> res = "DEPOSIT".equals(op) ? bank.deposit(studentId, amt) : bank.withdraw(studentId, amt, BankLedger.WAIT_MILLIS);
+                // Trả lời khi ledger xong (đã ghi WAL, hoặc lệnh rút đã đủ tiền / hết hạn chờ): không thread nào ngủ chờ tiền
+                res.whenCompleteAsync((newBal, err) -> {
+                    Throwable e = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+                    if (e == null) {
+                        sendLine("BANK_RES:" + op + ":" + BankLedger.format(newBal));
+                        // also send small history entry to this client
+                        sendLine("BANK_HISTORY:" + studentId + ":" + op + ":" + BankLedger.format(amt) + ":BAL:" + BankLedger.format(newBal));
+                        // broadcast balance change to all
+                        broadcastToAll("BANK_BC:" + studentId + ":balance:" + BankLedger.format(newBal));
+                    } else if (e instanceof BankLedger.InsufficientFundsException) {
+                        sendLine("BANK_ERR:insufficient funds");
+                    } else {
+                        sendLine("BANK_ERR:unavailable");
                     }
-                } catch (Exception e) { writer.write("BANK_ERR:invalid amount"); writer.newLine(); writer.flush(); }
+                }, HandlerExecutor.executor());
             } else {
-                writer.write("BANK_ERR:unknown"); writer.newLine(); writer.flush();
+                sendLine("BANK_ERR:unknown");
+            }
+        }
+
+        // One line from any thread (bank replies arrive from the executor): write/newLine/flush together
+        private void sendLine(String line) {
+            writeLock.lock();
+            try {
+                writer.write(line); writer.newLine(); writer.flush();
+            } catch (IOException ignore) {
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Upload result (writeUTF), under the same lock as the text lines
+        private void sendStatus(String status) {
+            writeLock.lock();
+            try {
+                dataOut.writeUTF(status);
+                dataOut.flush();
+            } catch (IOException ignored) {
+                // client may have disconnected
+            } finally {
+                writeLock.unlock();
             }
         }
 
+        // One vote per student ID (per connection before the ID is known)
+        private String voter() { return studentId != null ? studentId : clientId; }
+
         private void handlePollCommand(String command) throws IOException {
-            // POLL:CREATE:title:opt1,opt2  or POLL:VOTE:pollId:optIndex or POLL:LIST
+            // POLL:CREATE:title:opt1,opt2  or POLL:VOTE:pollId:optIndex or POLL:RETRACT:pollId or POLL:STATS:pollId or POLL:LIST
             String[] p = command.split(":", 4);
             String op = p.length>=2 ? p[1].toUpperCase() : "";
             if ("CREATE".equals(op) && p.length>=4) {
                 String title = p[2];
                 String[] opts = p[3].split(",");
                 int id = pollCounter.incrementAndGet();
-                Poll pol = new Poll(id, title, java.util.Arrays.asList(opts));
+                PollTally pol = new PollTally(id, title, java.util.Arrays.asList(opts),
+                        (t, changes) -> broadcastToAll("POLL_RESULT:" + t.id + ":" + t.title + ":" + changes));
                 polls.put(id, pol);
                 // broadcast new poll
                 broadcastToAll("POLL_NEW:" + id + ":" + title + ":" + pol.optionsCSV());
-                writer.write("POLL_CREATED:" + id); writer.newLine(); writer.flush();
+                sendLine("POLL_CREATED:" + id);
             } else if ("VOTE".equals(op) && p.length>=4) {
                 try {
                     int pid = Integer.parseInt(p[2]);
                     int opt = Integer.parseInt(p[3]);
-                    Poll pol = polls.get(pid);
-                    if (pol != null) {
-                        pol.vote(opt);
-                        // broadcast updated results
-                        broadcastToAll(pol.resultsString());
-                        writer.write("POLL_VOTED:" + pid); writer.newLine(); writer.flush();
-                    } else { writer.write("POLL_ERR:notfound"); writer.newLine(); writer.flush(); }
-                } catch (NumberFormatException nfe) { writer.write("POLL_ERR:badargs"); writer.newLine(); writer.flush(); }
+                    PollTally pol = polls.get(pid);
+                    if (pol == null) { sendLine("POLL_ERR:notfound"); return; }
+                    switch (pol.vote(voter(), opt)) { // changed counts follow in the next POLL_RESULT
+                        case VOTED -> sendLine("POLL_VOTED:" + pid);
+                        case CHANGED -> sendLine("POLL_CHANGED:" + pid);
+                        case SAME -> sendLine("POLL_ERR:already voted");
+                        case BAD_OPTION -> sendLine("POLL_ERR:badargs");
+                    }
+                } catch (NumberFormatException nfe) { sendLine("POLL_ERR:badargs"); }
+            } else if (("RETRACT".equals(op) || "STATS".equals(op)) && p.length>=3) {
+                // POLL:RETRACT:pollId takes the vote back; POLL:STATS:pollId reports voters and bitmap memory
+                PollTally pol = null;
+                try { pol = polls.get(Integer.parseInt(p[2])); } catch (NumberFormatException ignored) {}
+                if (pol == null) sendLine("POLL_ERR:notfound");
+                else if ("STATS".equals(op)) sendLine("POLL_STATS:" + pol.id + ":" + pol.describe());
+                else if (pol.retract(voter())) sendLine("POLL_RETRACTED:" + pol.id);
+                else sendLine("POLL_ERR:not voted");
             } else if ("LIST".equals(op)) {
                 // list all polls
                 StringBuilder sb = new StringBuilder();
                 synchronized (polls) {
-                    for (Poll pol : polls.values()) {
+                    for (PollTally pol : polls.values()) {
                         sb.append(pol.id).append("|").append(pol.title).append("|").append(pol.optionsCSV()).append(";;");
                     }
                 }
-                writer.write("POLL_LIST:" + sb.toString()); writer.newLine(); writer.flush();
+                sendLine("POLL_LIST:" + sb.toString());
             } else {
-                writer.write("POLL_ERR:unknown"); writer.newLine(); writer.flush();
+                sendLine("POLL_ERR:unknown");
             }
         }
 
-        private void handleSaveLog() throws IOException {
-            // Read chat_log.txt if exists and send as base64 line: SAVELOGDATA:filename:b64
-            java.nio.file.Path logPath = java.nio.file.Paths.get("chat_log.txt");
-            if (java.nio.file.Files.exists(logPath)) {
-                byte[] bytes = java.nio.file.Files.readAllBytes(logPath);
-                String b64 = java.util.Base64.getEncoder().encodeToString(bytes);
-                String fname = logPath.getFileName().toString();
-                writer.write("SAVELOGDATA:" + fname + ":" + b64);
+        // SAVELOG[:from[:to]] (giờ: epoch giây hoặc -30m/-2h/-1d): vẫn một dòng SAVELOGDATA:chat_log.txt:<b64>,
+        // nhưng Base64 được mã hoá dần từ các segment của journal qua một buffer nhỏ, không readAllBytes cả file
+        private void handleSaveLog(String arg) throws IOException {
+            if (chatLog == null) {
+                sendLine("SAVELOG_ERR:missing");
+                return;
+            }
+            String[] t = arg.split(":", 2);
+            long now = System.currentTimeMillis(), from, to;
+            try {
+                from = ChatJournal.parseTime(t[0], now, Long.MIN_VALUE);
+                to = t.length > 1 ? ChatJournal.parseTime(t[1], now, Long.MAX_VALUE) : Long.MAX_VALUE;
+            } catch (RuntimeException e) {
+                sendLine("SAVELOG_ERR:bad_time");
+                return;
+            }
+            long[] r = chatLog.range(from, to);
+            List<ChatJournal.Slice> slices = chatLog.slices(r[0], r[1]);
+            // The whole line is one message: no BANK_BC / POLL_RESULT may land inside the Base64
+            writeLock.lock();
+            try {
+                writer.write("SAVELOGDATA:chat_log.txt:");
+                writer.flush();
+                // The encoder must not close the socket stream: close() here only writes the Base64 tail
+                OutputStream raw = new FilterOutputStream(socket.getOutputStream()) {
+                    @Override public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+                    @Override public void close() throws IOException { flush(); }
+                };
+                try (OutputStream b64 = Base64.getEncoder().wrap(new BufferedOutputStream(raw, 8192))) {
+                    ChatJournal.copyTo(slices, java.nio.channels.Channels.newChannel(b64));
+                }
                 writer.newLine(); writer.flush();
-                log("<< Sent SAVELOG to " + clientId);
-            } else {
-                writer.write("SAVELOG_ERR:missing"); writer.newLine(); writer.flush();
+            } finally {
+                writeLock.unlock();
             }
+            log("<< Sent SAVELOG (" + ChatJournal.size(slices) + " bytes) to " + clientId);
         }
         // --------- end new handlers ----------
 
@@ -630,10 +638,12 @@ public class Server extends JFrame {
          - Ghi log tương ứng
         */
         private void handleMessage(String msg) throws IOException {
+            if (chatLog != null) {
+                long now = System.currentTimeMillis();
+                chatLog.append(now, String.format("%tF %<tT", now) + " | " + studentId + " (" + clientId + "): " + msg);
+            }
             String response = processMessage(msg);
-            writer.write(response);
-            writer.newLine();
-            writer.flush();
+            sendLine(response);
 
             try {
                 BigInteger num = new BigInteger(msg);
@@ -752,36 +762,17 @@ public class Server extends JFrame {
                         }
                     }
 
-                    try {
-                        if (cancelled) {
-                            dataOut.writeUTF("CANCELLED");
-                        } else {
-                            dataOut.writeUTF("ERROR: Incomplete upload");
-                        }
-                        dataOut.flush();
-                    } catch (IOException ignored) {
-                        // client may have disconnected
-                    }
+                    sendStatus(cancelled ? "CANCELLED" : "ERROR: Incomplete upload");
 
                     log("  ✗ File upload incomplete or cancelled: " + savePath + "\n");
                 } else {
-                    try {
-                        dataOut.writeUTF("SUCCESS");
-                        dataOut.flush();
-                    } catch (IOException ignored) {
-                        // client likely disconnected
-                    }
+                    sendStatus("SUCCESS");
                     log("  ✓ File saved successfully: " + savePath + "\n");
                 }
 
             } catch (IOException e) {
                 log("  ✗ File upload error: " + e.getMessage());
-                try {
-                    dataOut.writeUTF("ERROR: " + e.getMessage());
-                    dataOut.flush();
-                } catch (IOException ignored) {
-                    // ignore
-                }
+                sendStatus("ERROR: " + e.getMessage());
             }
         }
 